@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import mockit.Deencapsulation;
+import mockit.Mock;
+import mockit.MockUp;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.dc.DataCenter;
+import org.dasein.cloud.dc.Folder;
+import org.dasein.cloud.dc.ResourcePool;
+import org.dasein.cloud.dc.StoragePool;
+import org.dasein.cloud.vsphere.compute.HardDisk;
+import org.dasein.cloud.vsphere.compute.HostSupport;
+import org.dasein.cloud.vsphere.compute.ImageSupport;
+import org.dasein.cloud.vsphere.compute.Vm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the inventory decode loops over generated inventories of 1k, 10k and 100k objects, see
+ * {@link InventoryGenerator}. The vim port is replaced by JMockit mock-ups returning the generated results, so
+ * only decoding is measured; caches are bypassed by calling the loaders directly. Run with
+ * {@code mvn -Pbenchmark test-compile exec:exec}, the gc profiler adds the allocation rate per decoder. Needs a
+ * JDK so JMockit can attach itself.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecoderBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    private Vsphere provider;
+    private Vm vm;
+    private HardDisk hardDisk;
+    private HostSupport hostSupport;
+    private ImageSupport imageSupport;
+    private DataCenters dataCenters;
+    private List<MockUp<?>> mockUps = new ArrayList<MockUp<?>>();
+
+    @Setup
+    public void setUp() {
+        int clusters = Math.max(1, size / 100);
+        InventoryGenerator inventory = new InventoryGenerator(InventoryGenerator.Shape.getInstance()
+                .withClustersPerDataCenter(clusters)
+                .withHostsPerCluster(size / clusters)
+                .withDatastores(size / clusters, 1)
+                .withVirtualMachines(size - size / 10, size / 10));
+        final RetrieveResult virtualMachines = inventory.getVirtualMachines();
+        final RetrieveResult hardDisks = inventory.getHardDisks();
+        final RetrieveResult hosts = inventory.getHosts();
+        final RetrieveResult images = inventory.getTemplates();
+        final RetrieveResult storagePools = inventory.getStoragePools();
+        final List<ResourcePool> resourcePools = inventory.getDaseinResourcePools();
+        final List<AffinityGroup> daseinHosts = inventory.getDaseinHosts();
+        final List<Folder> vmFolders = new ArrayList<Folder>();
+
+        ObjectManagement om = new ObjectManagement();
+        om.mapper.enableDefaultTypingAsProperty(ObjectMapper.DefaultTyping.NON_FINAL, "type");
+        om.mapper.configure(SerializationConfig.Feature.FAIL_ON_EMPTY_BEANS, false);
+        final DataCenter dataCenter = om.readJsonFile("src/test/resources/VirtualMachine/daseinDatacenter.json", DataCenter.class);
+
+        MockUp<ProviderContext> contextMockUp = new MockUp<ProviderContext>() {
+            @Mock
+            public String getAccountNumber() {
+                return "BENCHMARKACCOUNTNO";
+            }
+
+            @Mock
+            public String getRegionId() {
+                return "datacenter-21";
+            }
+
+            @Mock
+            public String getEndpoint() {
+                return "BENCHMARKENDPOINT";
+            }
+
+            @Mock
+            public Properties getCustomProperties() {
+                return new Properties();
+            }
+        };
+        mockUps.add(contextMockUp);
+        final ProviderContext ctx = contextMockUp.getMockInstance();
+
+        mockUps.add(new MockUp<Vsphere>() {
+            @Mock
+            public ProviderContext getContext() {
+                return ctx;
+            }
+        });
+        mockUps.add(new MockUp<Vm>() {
+            @Mock
+            public RetrieveResult retrieveObjectList(Vsphere provider, String baseFolder, List<SelectionSpec> selectionSpecsArr, List<PropertySpec> pSpecs) {
+                return virtualMachines;
+            }
+
+            @Mock
+            public List<ResourcePool> getResourcePools(boolean rootOnly) {
+                return resourcePools;
+            }
+        });
+        mockUps.add(new MockUp<HardDisk>() {
+            @Mock
+            public RetrieveResult retrieveObjectList(Vsphere provider, String baseFolder, List<SelectionSpec> selectionSpecsArr, List<PropertySpec> pSpecs) {
+                // unattached disks need a datastore browser round trip per datastore, not a decoding cost
+                return ("vmFolder".equals(baseFolder) ? hardDisks : null);
+            }
+
+            @Mock
+            public List<ResourcePool> getAllResourcePoolsIncludingRoot() {
+                return resourcePools;
+            }
+        });
+        mockUps.add(new MockUp<HostSupport>() {
+            @Mock
+            public RetrieveResult retrieveObjectList(Vsphere provider, String baseFolder, List<SelectionSpec> selectionSpecsArr, List<PropertySpec> pSpecs) {
+                return hosts;
+            }
+
+            @Mock
+            public Iterable<AffinityGroup> list(AffinityGroupFilterOptions options) {
+                return daseinHosts;
+            }
+        });
+        mockUps.add(new MockUp<ImageSupport>() {
+            @Mock
+            public RetrieveResult retrieveObjectList(Vsphere provider, String baseFolder, List<SelectionSpec> selectionSpecsArr, List<PropertySpec> pSpecs) {
+                return images;
+            }
+        });
+        mockUps.add(new MockUp<DataCenters>() {
+            @Mock
+            public RetrieveResult retrieveObjectList(Vsphere provider, String baseFolder, List<SelectionSpec> selectionSpecsArr, List<PropertySpec> pSpecs) {
+                return storagePools;
+            }
+
+            @Mock
+            public Collection<Folder> listVMFolders() {
+                return vmFolders;
+            }
+
+            @Mock
+            public DataCenter getDataCenter(String dataCenterId) {
+                return dataCenter;
+            }
+        });
+
+        provider = new Vsphere();
+        vm = new Vm(provider);
+        hardDisk = new HardDisk(provider);
+        hostSupport = new HostSupport(provider);
+        imageSupport = new ImageSupport(provider);
+        dataCenters = provider.getDataCenterServices();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for( MockUp<?> mockUp : mockUps ) {
+            mockUp.tearDown();
+        }
+        mockUps.clear();
+    }
+
+    @Benchmark
+    public Iterable<VirtualMachine> listVirtualMachines() {
+        return Deencapsulation.invoke(vm, "loadVirtualMachines");
+    }
+
+    @Benchmark
+    public Iterable<Volume> listVolumes() {
+        return Deencapsulation.invoke(hardDisk, "loadVolumes");
+    }
+
+    @Benchmark
+    public Collection<StoragePool> listStoragePools() {
+        return Deencapsulation.invoke(dataCenters, "loadStoragePools");
+    }
+
+    @Benchmark
+    public List<AffinityGroup> listHosts() {
+        return Deencapsulation.invoke(hostSupport, "loadHosts");
+    }
+
+    @Benchmark
+    public Iterable<MachineImage> listImages() throws Exception {
+        return imageSupport.listImages(null);
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectFactory;
+import com.vmware.vim25.RetrievePropertiesExResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import javax.xml.bind.JAXBContext;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a {@code RetrievePropertiesEx} response of 1k, 10k and 100k virtual machines, as the generated port
+ * does (unmarshalling the whole response) against {@link PropertyStream} (one object at a time). Both walk
+ * every object so the comparison is the cost of getting the objects to a decoder; run with the gc profiler to
+ * compare allocation, see {@link DecoderBenchmark}.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PropertyStreamBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    private JAXBContext context;
+    private XMLInputFactory inputFactory;
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws Exception {
+        InventoryGenerator inventory = new InventoryGenerator(InventoryGenerator.Shape.getInstance()
+                .withClustersPerDataCenter(Math.max(1, size / 100))
+                .withVirtualMachines(size - size / 10, size / 10));
+        RetrievePropertiesExResponse body = new RetrievePropertiesExResponse();
+        body.setReturnval(inventory.getVirtualMachines());
+
+        context = JAXBContext.newInstance(ObjectFactory.class);
+        inputFactory = XMLInputFactory.newInstance();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.createMarshaller().marshal(body, out);
+        response = out.toByteArray();
+    }
+
+    @Benchmark
+    public int unmarshalResponse() throws Exception {
+        RetrievePropertiesExResponse body = (RetrievePropertiesExResponse) context.createUnmarshaller().unmarshal(new ByteArrayInputStream(response));
+        int properties = 0;
+
+        for( ObjectContent oc : body.getReturnval().getObjects() ) {
+            properties += oc.getPropSet().size();
+        }
+        return properties;
+    }
+
+    @Benchmark
+    public int streamResponse() throws Exception {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(response));
+        final int[] properties = new int[1];
+
+        try {
+            PropertyStream.parse(reader, new PropertyStream.Handler() {
+                @Override
+                public void handle(@Nonnull ObjectContent object) {
+                    properties[0] += object.getPropSet().size();
+                }
+            });
+        }
+        finally {
+            reader.close();
+        }
+        return properties[0];
+    }
+}
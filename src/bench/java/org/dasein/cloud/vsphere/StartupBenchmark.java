@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VimService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import javax.xml.ws.BindingProvider;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from a cold JVM until a number of connections have logged in to a {@link VimSimulator}, with a
+ * {@link VimService} created per connection as the provider used to do, and with the {@link SharedVimService}.
+ * Every measurement runs in a fresh fork so the first connection pays the WSDL and JAXB loading.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({ "1", "20" })
+    public int connections;
+
+    private VimSimulator simulator;
+
+    @Setup
+    public void setUp() throws Exception {
+        // the simulator's own binding is not what is measured
+        SharedVimService.getJaxbContext();
+        simulator = new VimSimulator(new InventoryGenerator(InventoryGenerator.Shape.getInstance())).start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    private @Nonnull ServiceContent login(@Nonnull VimService vimService) throws Exception {
+        VimPortType port = vimService.getVimPort();
+        ((BindingProvider) port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, simulator.getEndpoint());
+        ((BindingProvider) port).getRequestContext().put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+
+        ManagedObjectReference serviceInstance = new ManagedObjectReference();
+        serviceInstance.setType("ServiceInstance");
+        serviceInstance.setValue("ServiceInstance");
+        ServiceContent serviceContent = port.retrieveServiceContent(serviceInstance);
+        port.login(serviceContent.getSessionManager(), "benchmark", "benchmark", null);
+        return serviceContent;
+    }
+
+    @Benchmark
+    public ServiceContent servicePerConnection() throws Exception {
+        ServiceContent serviceContent = null;
+
+        for( int i = 0; i < connections; i++ ) {
+            serviceContent = login(new VimService());
+        }
+        return serviceContent;
+    }
+
+    @Benchmark
+    public ServiceContent sharedService() throws Exception {
+        ServiceContent serviceContent = null;
+
+        for( int i = 0; i < connections; i++ ) {
+            serviceContent = login(SharedVimService.getVimService());
+        }
+        return serviceContent;
+    }
+}
@@ -21,7 +21,6 @@ package org.dasein.cloud.vsphere;
 
 import com.vmware.vim25.*;
 
-import org.apache.commons.collections.IteratorUtils;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
@@ -30,8 +29,6 @@ import org.dasein.cloud.compute.AffinityGroup;
 import org.dasein.cloud.compute.AffinityGroupFilterOptions;
 import org.dasein.cloud.compute.AffinityGroupSupport;
 import org.dasein.cloud.dc.*;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.capabilities.VsphereDataCenterCapabilities;
 import org.dasein.util.uom.storage.*;
@@ -43,6 +40,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Danielle Mayne
@@ -52,17 +50,26 @@ import java.util.*;
 public class DataCenters extends AbstractDataCenterServices<Vsphere> {
 
     public AffinityGroupSupport agSupport;
-    public List<SelectionSpec>  rpSSpecs;
+    private ResourcePoolTree    resourcePoolTree;
     private List<PropertySpec>  regionPSpecs;
     private List<PropertySpec>  dcPSpecs;
-    private List<PropertySpec>  rpPSpecs;
     private List<PropertySpec>  spPSpecs;
     private List<PropertySpec>  vfPSpecs;
+    private List<PropertySpec>  parentPSpecs;
 
 
     protected DataCenters(@Nonnull Vsphere provider) {
         super(provider);
         agSupport = provider.getComputeServices().getAffinityGroupSupport();
+        resourcePoolTree = new ResourcePoolTree(provider);
+    }
+
+    /**
+     * @param provider the provider a cache load has to run through
+     * @return these services if they use that provider, otherwise services of that provider
+     */
+    private @Nonnull DataCenters forProvider(@Nonnull Vsphere provider) {
+        return (provider == getProvider() ? this : new DataCenters(provider));
     }
 
     public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
@@ -70,47 +77,24 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
         return nav.retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
     }
 
+    public RetrieveResult retrieveObjectProperties(Vsphere provider, @Nonnull ManagedObjectReference objectRef, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
+        VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
+        return nav.retrieveObjectProperties(provider, objectRef, pSpecs);
+    }
+
     public List<PropertySpec> getRegionPropertySpec() {
         regionPSpecs = VsphereTraversalSpec.createPropertySpec(regionPSpecs, "Datacenter", false, "name");
         return regionPSpecs;
     }
 
     public List<PropertySpec> getDataCenterPropertySpec() {
-        dcPSpecs = VsphereTraversalSpec.createPropertySpec(dcPSpecs, "ClusterComputeResource", false, "name", "overallStatus");
+        // clusters and the plain compute resources of standalone hosts, which their hosts and vms are mapped to
+        dcPSpecs = VsphereTraversalSpec.createPropertySpec(dcPSpecs, "ComputeResource", false, "name", "overallStatus");
         return dcPSpecs;
     }
 
-    public List<SelectionSpec> getResourcePoolSelectionSpec() {
-        if (rpSSpecs == null) {
-            rpSSpecs = new ArrayList<SelectionSpec>();
-            // Recurse through all ResourcePools
-            SelectionSpec sSpec = new SelectionSpec();
-            sSpec.setName("rpToRp");
-
-            TraversalSpec rpToRp = new TraversalSpec();
-            rpToRp.setType("ResourcePool");
-            rpToRp.setPath("resourcePool");
-            rpToRp.setSkip(Boolean.FALSE);
-            rpToRp.setName("rpToRp");
-            rpToRp.getSelectSet().add(sSpec);
-
-            TraversalSpec crToRp = new TraversalSpec();
-            crToRp.setType("ComputeResource");
-            crToRp.setPath("resourcePool");
-            crToRp.setSkip(Boolean.TRUE);
-            crToRp.setName("crToRp");
-            crToRp.getSelectSet().add(sSpec);
-
-            rpSSpecs.add(sSpec);
-            rpSSpecs.add(rpToRp);
-            rpSSpecs.add(crToRp);
-        }
-        return rpSSpecs;
-    }
-
-    public List<PropertySpec> getResourcePoolPropertySpec() {
-        rpPSpecs = VsphereTraversalSpec.createPropertySpec(rpPSpecs, "ResourcePool", false, "name", "owner", "runtime");
-        return rpPSpecs;
+    public ResourcePoolTree getResourcePoolTree() {
+        return resourcePoolTree;
     }
 
     public List<PropertySpec> getStoragePoolPropertySpec() {
@@ -123,20 +107,98 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
         return vfPSpecs;
     }
 
+    public List<PropertySpec> getInventoryParentPropertySpec() {
+        if (parentPSpecs == null) {
+            parentPSpecs = VsphereTraversalSpec.createPropertySpec(parentPSpecs, "Datacenter", false, "name", "parent");
+            parentPSpecs = VsphereTraversalSpec.createPropertySpec(parentPSpecs, "Folder", false, "name", "parent");
+        }
+        return parentPSpecs;
+    }
+
     @Override
     public @Nullable DataCenter getDataCenter(@Nonnull String dataCenterId) throws InternalException, CloudException {
+        return getIndex().dataCenters.get(dataCenterId);
+    }
+
+    @Override
+    public @Nullable Region getRegion(@Nonnull String providerRegionId) throws InternalException, CloudException {
+        return getIndex().regions.get(providerRegionId);
+    }
+
+    /**
+     * @param providerRegionId the region to list datacenters for
+     * @return the datacenters of the region from the index, without going back to the cache
+     */
+    public @Nonnull Collection<DataCenter> getIndexedDataCenters(@Nonnull String providerRegionId) throws InternalException, CloudException {
+        Collection<DataCenter> dataCenters = getIndex().regionDataCenters.get(providerRegionId);
+        return (dataCenters == null ? Collections.<DataCenter>emptyList() : dataCenters);
+    }
+
+    /**
+     * Lookup maps over the cached regions and datacenters. An index is never modified once built, a refresh builds
+     * a new one and swaps it in so readers always see a consistent set of maps.
+     */
+    static private class DataCenterIndex {
+        final Map<String, Region> regions;
+        final Map<String, DataCenter> dataCenters;
+        final Map<String, Collection<DataCenter>> regionDataCenters;
+        final long expiration;
+
+        DataCenterIndex(Map<String, Region> regions, Map<String, DataCenter> dataCenters, Map<String, Collection<DataCenter>> regionDataCenters, long expiration) {
+            this.regions = regions;
+            this.dataCenters = dataCenters;
+            this.regionDataCenters = regionDataCenters;
+            this.expiration = expiration;
+        }
+    }
+
+    static private final long INDEX_TIMEOUT = 60L * 60L * 1000L;
+    // how long expired inventory is still served while it is reloaded in the background
+    static private final TimePeriod<Hour> STALE_GRACE = new TimePeriod<Hour>(1, TimePeriod.HOUR);
+    static private final Map<String, DataCenterIndex> indexes = new ConcurrentHashMap<String, DataCenterIndex>();
+
+    private @Nonnull String getIndexKey() throws CloudException {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        return ctx.getAccountNumber() + "|" + ctx.getEndpoint();
+    }
+
+    private void invalidateIndex() throws CloudException {
+        indexes.remove(getIndexKey());
+    }
+
+    private @Nonnull DataCenterIndex getIndex() throws InternalException, CloudException {
+        String key = getIndexKey();
+        DataCenterIndex index = indexes.get(key);
+
+        if( index != null && index.expiration > System.currentTimeMillis() ) {
+            return index;
+        }
+        Map<String, Region> regions = new HashMap<String, Region>();
+        Map<String, DataCenter> dataCenters = new HashMap<String, DataCenter>();
+        Map<String, Collection<DataCenter>> regionDataCenters = new HashMap<String, Collection<DataCenter>>();
+
         for( Region region : listRegions() ) {
-            for( DataCenter dc : listDataCenters(region.getProviderRegionId()) ) {
-                if( dataCenterId.equals(dc.getProviderDataCenterId()) ) {
-                    return dc;
+            regions.put(region.getProviderRegionId(), region);
+        }
+        for( String regionId : regions.keySet() ) {
+            Collection<DataCenter> dcs = Collections.unmodifiableList(new ArrayList<DataCenter>(listDataCenters(regionId)));
+            regionDataCenters.put(regionId, dcs);
+            for( DataCenter dc : dcs ) {
+                if( !dataCenters.containsKey(dc.getProviderDataCenterId()) ) {
+                    dataCenters.put(dc.getProviderDataCenterId(), dc);
                 }
             }
         }
-        return null;
+        index = new DataCenterIndex(regions, dataCenters, regionDataCenters, System.currentTimeMillis() + INDEX_TIMEOUT);
+        indexes.put(key, index);
+        return index;
     }
 
-    @Override
-    public @Nullable Region getRegion(@Nonnull String providerRegionId) throws InternalException, CloudException {
+    private @Nullable Region findRegion(@Nonnull String providerRegionId) throws InternalException, CloudException {
         for( Region r : listRegions() ) {
             if( providerRegionId.equals(r.getProviderRegionId()) ) {
                 return r;
@@ -147,9 +209,10 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
 
     @Override
     public @Nonnull Collection<DataCenter> listDataCenters(@Nonnull String providerRegionId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listDataCenters");
+        OperationTrace.begin(getProvider(), "listDataCenters");
         try {
-            Region region = getRegion(providerRegionId);
+            // not getRegion() as the index is built from this method
+            Region region = findRegion(providerRegionId);
 
             if( region == null ) {
                 throw new CloudException("No such region: " + providerRegionId);
@@ -159,103 +222,114 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            Cache<DataCenter> cache = Cache.getInstance(getProvider(), "dataCenters", DataCenter.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Collection<DataCenter> dcList = (Collection<DataCenter>)cache.get(ctx);
+            VsphereCache<DataCenter> cache = VsphereCache.getInstance(getProvider(), "dataCenters", DataCenter.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY), STALE_GRACE);
+            final String regionId = providerRegionId;
+            final String regionName = region.getName();
+
+            return (Collection<DataCenter>)cache.get(ctx, new VsphereCache.Loader<DataCenter>() {
+                @Override
+                public @Nonnull Iterable<DataCenter> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadDataCenters(regionId, regionName);
+                }
+            });
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-            if( dcList != null ) {
-                return dcList;
-            }
-            ArrayList<DataCenter> dataCenters = new ArrayList<DataCenter>();
-            List<PropertySpec>  pSpecs = getDataCenterPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", null, pSpecs);
-
-            if (listobcont != null) {
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference mr = oc.getObj();
-                    String dcnm = null, status = null;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            if (dp.getName().equals("name") ) {
-                                dcnm = (String) dp.getVal();
-                            }
-                            else if (dp.getName().equals("overallStatus")) {
-                                ManagedEntityStatus mes = (ManagedEntityStatus) dp.getVal();
-                                status = mes.value();
-                            }
+    private @Nonnull Collection<DataCenter> loadDataCenters(@Nonnull String providerRegionId, @Nonnull String regionName) throws InternalException, CloudException {
+        invalidateIndex();
+        ArrayList<DataCenter> dataCenters = new ArrayList<DataCenter>();
+        List<PropertySpec>  pSpecs = getDataCenterPropertySpec();
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", null, pSpecs);
+
+        if (listobcont != null) {
+            for (ObjectContent oc : listobcont.getObjects()) {
+                ManagedObjectReference mr = oc.getObj();
+                String dcnm = null, status = null;
+                List<DynamicProperty> dps = oc.getPropSet();
+                if (dps != null) {
+                    for (DynamicProperty dp : dps) {
+                        if (dp.getName().equals("name") ) {
+                            dcnm = (String) dp.getVal();
                         }
-                        if (dcnm != null && status != null) {
-                            DataCenter dc = toDataCenter(mr.getValue(), dcnm, providerRegionId, status);
-                            if (dc != null) {
-                                dataCenters.add(dc);
-                            }
+                        else if (dp.getName().equals("overallStatus")) {
+                            ManagedEntityStatus mes = (ManagedEntityStatus) dp.getVal();
+                            status = mes.value();
+                        }
+                    }
+                    if (dcnm != null && status != null) {
+                        DataCenter dc = toDataCenter(mr.getValue(), dcnm, providerRegionId, status);
+                        if (dc != null) {
+                            dataCenters.add(dc);
                         }
                     }
                 }
             }
-            if ( dataCenters.size() == 0 ) {
-                // create a dummy dc based on the region (vSphere datacenter)
-                // this environment does not support clusters but we need a DCM datacenter mapping
-                DataCenter dc = toDataCenter(providerRegionId+"-a", region.getName(), providerRegionId, "active");
-                dataCenters.add(dc);
-            }
-            cache.put(ctx, dataCenters);
-            return dataCenters;
         }
-        finally {
-            APITrace.end();
+        if ( dataCenters.size() == 0 ) {
+            // create a dummy dc based on the region (vSphere datacenter)
+            // this environment has no clusters or hosts but we need a DCM datacenter mapping
+            DataCenter dc = toDataCenter(providerRegionId+"-a", regionName, providerRegionId, "active");
+            dataCenters.add(dc);
         }
+        return dataCenters;
     }
     
     @Override
     @Nonnull
     public Collection<Region> listRegions() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listRegions");
+        OperationTrace.begin(getProvider(), "listRegions");
         try {
             ProviderContext ctx = getProvider().getContext();
 
             if( ctx == null ) {
                 throw new NoContextException(); 
             }
-            Cache<Region> cache = Cache.getInstance(getProvider(), "regions", Region.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR));
-            Collection<Region> regions = (Collection<Region>)cache.get(ctx);
-
-            if( regions != null ) {
-                return regions;
-            }
-            regions = new ArrayList<Region>();
-
-            // Create Property Spec
-            List<PropertySpec> pSpecs = getRegionPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", null, pSpecs);
-
-            if (listobcont != null) {
-               for (ObjectContent oc : listobcont.getObjects()) {
-                  ManagedObjectReference mr = oc.getObj();
-                  String dcnm;
-                  List<DynamicProperty> dps = oc.getPropSet();
-                  if (dps != null) {
-                     //Since there is only one property PropertySpec pathset
-                     //this array contains only one value
-                     for (DynamicProperty dp : dps) {
-                         dcnm = (String) dp.getVal();
-                         Region region = toRegion(mr.getValue(), dcnm);
-                         if ( region != null ) {
-                             regions.add(region);
-                         }
-                     }
-                  }
-               }
-            }
-            cache.put(ctx, regions);
-            return regions;
+            VsphereCache<Region> cache = VsphereCache.getInstance(getProvider(), "regions", Region.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR), STALE_GRACE);
 
+            return (Collection<Region>)cache.get(ctx, new VsphereCache.Loader<Region>() {
+                @Override
+                public @Nonnull Iterable<Region> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadRegions();
+                }
+            });
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Collection<Region> loadRegions() throws InternalException, CloudException {
+        invalidateIndex();
+        Collection<Region> regions = new ArrayList<Region>();
+
+        // Create Property Spec
+        List<PropertySpec> pSpecs = getRegionPropertySpec();
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", null, pSpecs);
+
+        if (listobcont != null) {
+           for (ObjectContent oc : listobcont.getObjects()) {
+              ManagedObjectReference mr = oc.getObj();
+              String dcnm;
+              List<DynamicProperty> dps = oc.getPropSet();
+              if (dps != null) {
+                 //Since there is only one property PropertySpec pathset
+                 //this array contains only one value
+                 for (DynamicProperty dp : dps) {
+                     dcnm = (String) dp.getVal();
+                     Region region = toRegion(mr.getValue(), dcnm);
+                     if ( region != null ) {
+                         regions.add(region);
+                     }
+                 }
+              }
+           }
         }
+        return regions;
     }
 
     @Override
@@ -267,56 +341,29 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
     @Override
     @Nonnull
     public Collection<ResourcePool> listResourcePools(String providerDataCenterId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listResourcePools");
+        OperationTrace.begin(getProvider(), "listResourcePools");
         try {
             List<ResourcePool> resourcePools = new ArrayList<ResourcePool>();
 
-            List<SelectionSpec> selectionSpecsArr = getResourcePoolSelectionSpec();
-            List<PropertySpec> pSpecs = getResourcePoolPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", selectionSpecsArr, pSpecs);
-
-            if (listobcont != null) {
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference rpRef = oc.getObj();
-                    String rpId = rpRef.getValue();
-                    String rpName = null, rpStatus = null, owner = null;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            switch (dp.getName()) {
-                                case "name":
-                                    rpName = (String) dp.getVal();
-                                    break;
-                                case "owner":
-                                    ManagedObjectReference clusterRef = (ManagedObjectReference) dp.getVal();
-                                    owner = clusterRef.getValue();
-                                    break;
-                                case "runtime":
-                                    ResourcePoolRuntimeInfo rpri = (ResourcePoolRuntimeInfo) dp.getVal();
-                                    rpStatus = rpri.getOverallStatus().value();
-                                    break;
-                            }
-                        }
-                    }
-                    if (rpName != null && owner != null) {
-                        ResourcePool resourcePool = toResourcePool(rpId, rpName, owner, rpStatus);
-                        if (resourcePool != null && (providerDataCenterId == null || resourcePool.getDataCenterId().equals(providerDataCenterId))) {
-                            resourcePools.add(resourcePool);
-                        }
-                    }
+            // root pools are the clusters themselves and are not listed as resource pools
+            for (ResourcePoolTree.Node node : getResourcePoolTree().listNodes()) {
+                if (node.isRoot() || node.getName() == null || node.getOwnerId() == null) {
+                    continue;
+                }
+                if (providerDataCenterId == null || node.getOwnerId().equals(providerDataCenterId)) {
+                    resourcePools.add(toResourcePool(node.getId(), node.getName(), node.getOwnerId(), node.getStatus()));
                 }
             }
             return resourcePools;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public ResourcePool getResourcePool(@Nonnull String providerResourcePoolId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DataCenters.getResourcePool");
+        OperationTrace.begin(getProvider(), "DataCenters.getResourcePool");
         try {
             Iterable<org.dasein.cloud.dc.ResourcePool> rps = listResourcePools(null);
             for (org.dasein.cloud.dc.ResourcePool rp : rps) {
@@ -327,102 +374,121 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public Collection<StoragePool> listStoragePools() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listStoragePools");
+        OperationTrace.begin(getProvider(), "listStoragePools");
         try {
             ProviderContext ctx = getProvider().getContext();
 
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            Cache<StoragePool> cache = Cache.getInstance(getProvider(), "storagePools", StoragePool.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR));
-            Collection<StoragePool> storagePools = (Collection<StoragePool>)cache.get(ctx);
+            VsphereCache<StoragePool> cache = VsphereCache.getInstance(getProvider(), "storagePools", StoragePool.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR), STALE_GRACE);
 
-            if( storagePools != null ) {
-                return storagePools;
+            return (Collection<StoragePool>)cache.get(ctx, new VsphereCache.Loader<StoragePool>() {
+                @Override
+                public @Nonnull Iterable<StoragePool> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadStoragePools();
+                }
+            });
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Collection<StoragePool> loadStoragePools() throws InternalException, CloudException {
+        final Collection<StoragePool> storagePools = new ArrayList<StoragePool>();
+        List<PropertySpec> pSpecs = getStoragePoolPropertySpec();
+
+        if (PropertyStream.isEnabled(getProvider())) {
+            final Map<String, String> hostToDataCenter = getHostToDataCenter();
+            streamObjectList(getProvider(), "datastoreFolder", null, pSpecs, new PropertyStream.Handler() {
+                @Override
+                public void handle(@Nonnull ObjectContent oc) {
+                    addStoragePool(storagePools, oc, hostToDataCenter);
+                }
+            });
+            return storagePools;
+        }
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "datastoreFolder", null, pSpecs);
+
+        if (listobcont != null) {
+            Map<String, String> hostToDataCenter = getHostToDataCenter();
+            for (ObjectContent oc : listobcont.getObjects()) {
+                addStoragePool(storagePools, oc, hostToDataCenter);
             }
-            storagePools = new ArrayList<StoragePool>();
-            List<PropertySpec> pSpecs = getStoragePoolPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "datastoreFolder", null, pSpecs);
-
-            if (listobcont != null) {
-                Iterable<AffinityGroup> allHosts = agSupport.list(AffinityGroupFilterOptions.getInstance());
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference dsRef = oc.getObj();
-                    String dsId = dsRef.getValue();
-                    DatastoreSummary dsSummary = null;
-                    String datastoreHostId = null, datastoreDataCenterId = null;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            if (dp.getName().equals("summary")) {
-                                dsSummary = (DatastoreSummary) dp.getVal();
-                            }
-                            else if (dp.getName().equals("host")) {
-                                ArrayOfDatastoreHostMount dhm = (ArrayOfDatastoreHostMount) dp.getVal();
-                                List<DatastoreHostMount> list = dhm.getDatastoreHostMount();
-                                if (list.size() == 1) {
-                                    datastoreHostId = list.get(0).getKey().getValue();
-                                    List<AffinityGroup> myTempList = IteratorUtils.toList(allHosts.iterator());
-                                    for (AffinityGroup host : myTempList) {
-                                        if (datastoreHostId.equals(host.getAffinityGroupId())) {
-                                            datastoreDataCenterId = host.getDataCenterId();
-                                            break;
-                                        }
-                                    }
+        }
+        return storagePools;
+    }
+
+    // resolve mounts through a host -> datacenter map built once rather than rescanning the host list per mount
+    private @Nonnull Map<String, String> getHostToDataCenter() throws InternalException, CloudException {
+        Map<String, String> hostToDataCenter = new HashMap<String, String>();
+        for (AffinityGroup host : agSupport.list(AffinityGroupFilterOptions.getInstance())) {
+            if (!hostToDataCenter.containsKey(host.getAffinityGroupId())) {
+                hostToDataCenter.put(host.getAffinityGroupId(), host.getDataCenterId());
+            }
+        }
+        return hostToDataCenter;
+    }
+
+    private void addStoragePool(@Nonnull Collection<StoragePool> storagePools, @Nonnull ObjectContent oc, @Nonnull Map<String, String> hostToDataCenter) {
+        ManagedObjectReference dsRef = oc.getObj();
+        String dsId = dsRef.getValue();
+        DatastoreSummary dsSummary = null;
+        String datastoreHostId = null, datastoreDataCenterId = null;
+        List<DynamicProperty> dps = oc.getPropSet();
+        if (dps != null) {
+            for (DynamicProperty dp : dps) {
+                if (dp.getName().equals("summary")) {
+                    dsSummary = (DatastoreSummary) dp.getVal();
+                }
+                else if (dp.getName().equals("host")) {
+                    ArrayOfDatastoreHostMount dhm = (ArrayOfDatastoreHostMount) dp.getVal();
+                    List<DatastoreHostMount> list = dhm.getDatastoreHostMount();
+                    if (list.size() == 1) {
+                        datastoreHostId = list.get(0).getKey().getValue();
+                        datastoreDataCenterId = hostToDataCenter.get(datastoreHostId);
+                    }
+                    else {
+                        boolean firstTime = true;
+                        for (DatastoreHostMount mount : list) {
+                            String hostMountId = mount.getKey().getValue();
+                            if (hostToDataCenter.containsKey(hostMountId)) {
+                                String hostDataCenterId = hostToDataCenter.get(hostMountId);
+                                if (datastoreDataCenterId != null && !datastoreDataCenterId.equals(hostDataCenterId)) {
+                                    // mounted by hosts in different datacenters so the datastore is shared
+                                    datastoreDataCenterId = null;
+                                    break;
                                 }
-                                else {
-                                    boolean shared = false, firstTime= true;
-                                    for (DatastoreHostMount mount : list) {
-                                        String hostMountId = mount.getKey().getValue();
-                                        List<AffinityGroup> myTempList = IteratorUtils.toList(allHosts.iterator());
-                                        for (AffinityGroup host : myTempList) {
-                                            if (hostMountId.equals(host.getAffinityGroupId())) {
-                                                if (datastoreDataCenterId != null && !datastoreDataCenterId.equals(host.getDataCenterId())) {
-                                                    datastoreDataCenterId = null;
-                                                    shared = true;
-                                                }
-                                                else if (firstTime){
-                                                    datastoreDataCenterId = host.getDataCenterId();
-                                                    firstTime=false;
-                                                }
-                                                break;
-                                            }
-                                        }
-                                        if (shared) {
-                                            break;
-                                        }
-                                    }
+                                else if (firstTime) {
+                                    datastoreDataCenterId = hostDataCenterId;
+                                    firstTime = false;
                                 }
                             }
                         }
                     }
-                    if (dsSummary != null) {
-                        StoragePool storagePool = toStoragePool(dsSummary, dsId, datastoreHostId, datastoreDataCenterId);
-                        if (storagePool != null) {
-                            storagePools.add(storagePool);
-                        }
-                    }
                 }
             }
-            cache.put(ctx, storagePools);
-            return storagePools;
         }
-        finally {
-            APITrace.end();
+        if (dsSummary != null) {
+            StoragePool storagePool = toStoragePool(dsSummary, dsId, datastoreHostId, datastoreDataCenterId);
+            if (storagePool != null) {
+                storagePools.add(storagePool);
+            }
         }
     }
 
     @Override
     public StoragePool getStoragePool(@Nonnull String providerStoragePoolId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DataCenters.getStoragePool");
+        OperationTrace.begin(getProvider(), "DataCenters.getStoragePool");
         try {
             Collection<StoragePool> pools = listStoragePools();
             for (StoragePool pool : pools) {
@@ -433,115 +499,335 @@ public class DataCenters extends AbstractDataCenterServices<Vsphere> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public Collection<Folder> listVMFolders() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listVMFolders");
+        OperationTrace.begin(getProvider(), "listVMFolders");
         try {
             ProviderContext ctx = getProvider().getContext();
 
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            Cache<Folder> cache = Cache.getInstance(getProvider(), "folders", Folder.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR));
-            Collection<Folder> folders = (Collection<Folder>)cache.get(ctx);
-            Map<String, Folder> folderMap = new HashMap<String, Folder>();
+            VsphereCache<Folder> cache = getFolderCache();
 
-            if( folders != null ) {
-                return folders;
-            }
-            folders = new ArrayList<Folder>();
-
-            // Create Property Spec
-            List<PropertySpec> pSpecs = getVmFolderPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
-
-            if (listobcont != null) {
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference fRef = oc.getObj();
-                    String folderId = fRef.getValue();
-                    String folderName = null, folderParent = null;
-                    List<String> folderChildren = null;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            switch (dp.getName()) {
-                                case "name":
-                                    folderName = (String) dp.getVal();
-                                    break;
-                                case "parent":
-                                    ManagedObjectReference pRef = (ManagedObjectReference) dp.getVal();
-                                    if (pRef.getType().equals("Folder")) {
-                                        folderParent = pRef.getValue();
-                                    }
-                                    break;
-                                case "childEntity":
-                                    ArrayOfManagedObjectReference cRefs = (ArrayOfManagedObjectReference) dp.getVal();
-                                    List<ManagedObjectReference> list = cRefs.getManagedObjectReference();
-                                    boolean firstTime = true;
-                                    for (ManagedObjectReference item : list) {
-                                        if (item.getType().equals("Folder")) {
-                                            if (firstTime) {
-                                                folderChildren = new ArrayList<String>();
-                                                firstTime = false;
-                                            }
-                                            folderChildren.add(item.getValue());
+            return (Collection<Folder>)cache.get(ctx, new VsphereCache.Loader<Folder>() {
+                @Override
+                public @Nonnull Iterable<Folder> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadVMFolders();
+                }
+            });
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Collection<Folder> loadVMFolders() throws InternalException, CloudException {
+        Collection<Folder> folders = new ArrayList<Folder>();
+        Map<String, Folder> folderMap = new HashMap<String, Folder>();
+        Map<String, String> rootDataCenters = new HashMap<String, String>();
+
+        // Create Property Spec
+        List<PropertySpec> pSpecs = getVmFolderPropertySpec();
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
+
+        if (listobcont != null) {
+            for (ObjectContent oc : listobcont.getObjects()) {
+                ManagedObjectReference fRef = oc.getObj();
+                String folderId = fRef.getValue();
+                String folderName = null, folderParent = null, dataCenterId = null;
+                List<String> folderChildren = null;
+                List<DynamicProperty> dps = oc.getPropSet();
+                if (dps != null) {
+                    for (DynamicProperty dp : dps) {
+                        switch (dp.getName()) {
+                            case "name":
+                                folderName = (String) dp.getVal();
+                                break;
+                            case "parent":
+                                ManagedObjectReference pRef = (ManagedObjectReference) dp.getVal();
+                                if (pRef.getType().equals("Folder")) {
+                                    folderParent = pRef.getValue();
+                                }
+                                else if (pRef.getType().equals("Datacenter")) {
+                                    dataCenterId = pRef.getValue();
+                                }
+                                break;
+                            case "childEntity":
+                                ArrayOfManagedObjectReference cRefs = (ArrayOfManagedObjectReference) dp.getVal();
+                                List<ManagedObjectReference> list = cRefs.getManagedObjectReference();
+                                boolean firstTime = true;
+                                for (ManagedObjectReference item : list) {
+                                    if (item.getType().equals("Folder")) {
+                                        if (firstTime) {
+                                            folderChildren = new ArrayList<String>();
+                                            firstTime = false;
                                         }
+                                        folderChildren.add(item.getValue());
                                     }
-                                    break;
-                            }
+                                }
+                                break;
                         }
-                        if (folderName != null) {
-                            Folder folder = toFolder(folderId, folderName, folderParent, folderChildren, FolderType.VM);
-                            if (folder != null) {
-                                folders.add(folder);
-                                folderMap.put(folderId, folder);
+                    }
+                    if (folderName != null) {
+                        Folder folder = toFolder(folderId, folderName, folderParent, folderChildren, FolderType.VM);
+                        if (folder != null) {
+                            folders.add(folder);
+                            folderMap.put(folderId, folder);
+                            if (dataCenterId != null) {
+                                rootDataCenters.put(folderId, dataCenterId);
                             }
                         }
                     }
                 }
-                for (Folder f : folders) {
-                    if (f.getParent() != null) {
-                        f.setParent(folderMap.get(f.getParent().getId()));
-                    }
+            }
+            for (Folder f : folders) {
+                if (f.getParent() != null) {
+                    f.setParent(folderMap.get(f.getParent().getId()));
+                }
 
-                    List<Folder> children = new ArrayList<Folder>();
-                    if (f.getChildren() != null) {
-                        for (Folder fChild : f.getChildren()) {
-                            Folder tmpChild = folderMap.get(fChild.getId());
-                            children.add(tmpChild);
-                        }
+                List<Folder> children = new ArrayList<Folder>();
+                if (f.getChildren() != null) {
+                    for (Folder fChild : f.getChildren()) {
+                        Folder tmpChild = folderMap.get(fChild.getId());
+                        children.add(tmpChild);
                     }
-                    f.setChildren(children);
                 }
+                f.setChildren(children);
             }
-            cache.put(ctx, folders);
-            return folders;
-        }
-        finally {
-            APITrace.end();
         }
+        folderIndexes.put(getIndexKey(), new FolderIndex(folderMap, rootDataCenters, System.currentTimeMillis() + FOLDER_INDEX_TIMEOUT));
+        return folders;
     }
 
     @Override
     public Folder getVMFolder(@Nonnull String providerVMFolderId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DataCenters.getVMFolder");
+        OperationTrace.begin(getProvider(), "DataCenters.getVMFolder");
+        try {
+            return getFolderIndex().folders.get(providerVMFolderId);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Resolves a vm folder from its inventory path, e.g. /dc1/vm/prod/web, or /emea/dc1/vm/prod/web for a
+     * datacenter kept in a folder. Paths are looked up in the folder index first and only go to the SearchIndex of vCenter for folders created since the index was built.
+     * @param inventoryPath the path of the folder starting with the datacenter name
+     * @return the id of the folder or null if no folder exists at that path
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable String getVMFolderIdByPath(@Nonnull String inventoryPath) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DataCenters.getVMFolderIdByPath");
         try {
-            Collection<Folder> folders = listVMFolders();
-            for (Folder folder : folders) {
-                if (folder.getId().equals(providerVMFolderId)) {
-                    return folder;
+            String path = normalizeInventoryPath(inventoryPath);
+            String folderId = getFolderPaths(getFolderIndex()).get(path);
+
+            if( folderId != null ) {
+                return folderId;
+            }
+            folderId = findByInventoryPath(path);
+            if( folderId != null ) {
+                // the folder is newer than the index, so the folders of this account are reloaded on the next read
+                invalidateFolders();
+            }
+            return folderId;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * @param providerRegionId the vSphere datacenter
+     * @return the id of the root vm folder of the datacenter, or null if it is not known
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable String getRootVMFolderId(@Nonnull String providerRegionId) throws InternalException, CloudException {
+        return getFolderIndex().dataCenterRoots.get(providerRegionId);
+    }
+
+    /**
+     * Lookup maps over the cached vm folders, rebuilt together with the folder cache. The path map needs the
+     * datacenter paths so it is only built on the first path lookup.
+     */
+    static private class FolderIndex {
+        final Map<String, Folder> folders;
+        final Map<String, String> rootDataCenters;
+        final Map<String, String> dataCenterRoots;
+        final long expiration;
+        volatile Map<String, String> paths;
+
+        FolderIndex(Map<String, Folder> folders, Map<String, String> rootDataCenters, long expiration) {
+            this.folders = folders;
+            this.rootDataCenters = rootDataCenters;
+            this.dataCenterRoots = new HashMap<String, String>();
+            for( Map.Entry<String, String> entry : rootDataCenters.entrySet() ) {
+                dataCenterRoots.put(entry.getValue(), entry.getKey());
+            }
+            this.expiration = expiration;
+        }
+    }
+
+    private @Nonnull VsphereCache<Folder> getFolderCache() {
+        return VsphereCache.getInstance(getProvider(), "folders", Folder.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR), STALE_GRACE);
+    }
+
+    static private final long FOLDER_INDEX_TIMEOUT = 10L * 60L * 60L * 1000L;
+    static private final Map<String, FolderIndex> folderIndexes = new ConcurrentHashMap<String, FolderIndex>();
+
+    private void invalidateFolders() throws CloudException {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        getFolderCache().invalidate(ctx);
+        folderIndexes.remove(getIndexKey());
+    }
+
+    private @Nonnull FolderIndex getFolderIndex() throws InternalException, CloudException {
+        String key = getIndexKey();
+        FolderIndex index = folderIndexes.get(key);
+
+        // the index is only valid as long as the folders it was built from are cached
+        if( index != null && index.expiration > System.currentTimeMillis() && getFolderCache().peek(getProvider().getContext()) != null ) {
+            return index;
+        }
+        // the index is rebuilt whenever the folders are loaded, so within the stale grace the last index goes with
+        // the expired folders still being served while both are reloaded in the background
+        listVMFolders();
+        index = folderIndexes.get(key);
+        if( index == null ) {
+            // the cached folders were loaded before this index existed, reload them for this account only
+            invalidateFolders();
+            listVMFolders();
+            index = folderIndexes.get(key);
+        }
+        if( index == null ) {
+            throw new InternalException("Unable to index vm folders");
+        }
+        return index;
+    }
+
+    private @Nonnull Map<String, String> getFolderPaths(@Nonnull FolderIndex index) throws InternalException, CloudException {
+        Map<String, String> paths = index.paths;
+
+        if( paths != null ) {
+            return paths;
+        }
+        paths = new HashMap<String, String>();
+        for( Folder folder : index.folders.values() ) {
+            if( folder.getParent() != null ) {
+                continue;
+            }
+            String prefix = "";
+            String dataCenterId = index.rootDataCenters.get(folder.getId());
+            if( dataCenterId != null ) {
+                prefix = getDataCenterPath(dataCenterId);
+                if( prefix == null ) {
+                    continue;
                 }
             }
+            addFolderPaths(paths, folder, prefix);
+        }
+        index.paths = paths;
+        return paths;
+    }
+
+    /**
+     * Walks up from a datacenter to the root folder, so datacenters kept in folders get their full path.
+     * @param dataCenterId the vSphere datacenter
+     * @return the inventory path of the datacenter, e.g. /emea/dc1, or null if it no longer exists
+     */
+    private @Nullable String getDataCenterPath(@Nonnull String dataCenterId) throws InternalException, CloudException {
+        ManagedObjectReference ref = new ManagedObjectReference();
+        ref.setType("Datacenter");
+        ref.setValue(dataCenterId);
+
+        String path = "";
+        while( ref != null ) {
+            String name = null;
+            ManagedObjectReference parent = null;
+            RetrieveResult props = retrieveObjectProperties(getProvider(), ref, getInventoryParentPropertySpec());
+
+            if( props != null ) {
+                for( ObjectContent oc : props.getObjects() ) {
+                    if( oc.getPropSet() == null ) {
+                        continue;
+                    }
+                    for( DynamicProperty dp : oc.getPropSet() ) {
+                        if( dp.getName().equals("name") ) {
+                            name = ( String ) dp.getVal();
+                        }
+                        else if( dp.getName().equals("parent") ) {
+                            parent = ( ManagedObjectReference ) dp.getVal();
+                        }
+                    }
+                }
+            }
+            if( name == null ) {
+                return null;
+            }
+            if( parent == null ) {
+                // the root folder is not part of inventory paths
+                break;
+            }
+            path = "/" + name + path;
+            ref = parent;
+        }
+        return path;
+    }
+
+    private void addFolderPaths(@Nonnull Map<String, String> paths, @Nonnull Folder folder, @Nonnull String parentPath) {
+        String path = parentPath + "/" + folder.getName();
+
+        paths.put(path, folder.getId());
+        if( folder.getChildren() != null ) {
+            for( Folder child : folder.getChildren() ) {
+                if( child != null ) {
+                    addFolderPaths(paths, child, path);
+                }
+            }
+        }
+    }
+
+    private @Nonnull String normalizeInventoryPath(@Nonnull String inventoryPath) {
+        String path = inventoryPath.trim();
+
+        if( !path.startsWith("/") ) {
+            path = "/" + path;
+        }
+        while( path.length() > 1 && path.endsWith("/") ) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private @Nullable String findByInventoryPath(@Nonnull String inventoryPath) throws InternalException, CloudException {
+        VsphereConnection vsphereConnection = getProvider().getServiceInstance();
+        VimPortType vimPortType = vsphereConnection.getVimPort();
+        ServiceContent serviceContent = vsphereConnection.getServiceContent();
+
+        try {
+            // vCenter paths do not start with a slash
+            ManagedObjectReference ref = vimPortType.findByInventoryPath(serviceContent.getSearchIndex(), inventoryPath.substring(1));
+            if( ref != null && "Folder".equals(ref.getType()) ) {
+                return ref.getValue();
+            }
             return null;
         }
-        finally {
-            APITrace.end();
+        catch( RuntimeFaultFaultMsg runtimeFaultFaultMsg ) {
+            throw new CloudException("RuntimeFaultFaultMsg when searching inventory path " + inventoryPath, runtimeFaultFaultMsg);
         }
     }
 
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.VimPortType;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import javax.xml.soap.Detail;
+import javax.xml.soap.DetailEntry;
+import javax.xml.soap.SOAPFault;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.Binding;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Wraps a {@link VimPortType} so every vim call is timed and counted in the {@link VimMetrics} of its endpoint
+ * and logged to the wire logger. When given a {@link VimLimiter} each call first waits for its budget, the wait
+ * not being part of the recorded time, and when given a {@link VimRetryPolicy} transient faults are retried, each
+ * attempt being recorded as a call of its own. The proxy also implements {@link BindingProvider} so the request context of
+ * the port stays reachable.
+ * <p>
+ * Request and response sizes are only counted when {@link #PAYLOAD_BYTES_PROPERTY} is true, as counting has
+ * to serialize each SOAP message once more.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class InstrumentedVimPort implements InvocationHandler {
+    static private final Logger wire = Vsphere.getWireLogger(InstrumentedVimPort.class);
+
+    static public final String PAYLOAD_BYTES_PROPERTY = "vsphere.metrics.payloadBytes";
+
+    // request and response bytes of the call in progress on this thread, filled in by the handler
+    static private final ThreadLocal<long[]> payloadBytes = new ThreadLocal<long[]>();
+
+    /**
+     * @param port the port to instrument
+     * @param metrics where to record the calls
+     * @param countPayloadBytes true to add a handler counting the size of each SOAP message
+     * @return the instrumented port
+     */
+    static public @Nonnull VimPortType wrap(@Nonnull VimPortType port, @Nonnull VimMetrics metrics, boolean countPayloadBytes) {
+        return wrap(port, metrics, null, null, countPayloadBytes);
+    }
+
+    /**
+     * @param port the port to instrument
+     * @param metrics where to record the calls
+     * @param limiter the limiter admitting the calls, null to let every call through
+     * @param retryPolicy the policy retrying transient faults, null to surface every fault
+     * @param countPayloadBytes true to add a handler counting the size of each SOAP message
+     * @return the instrumented port
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nonnull VimPortType wrap(@Nonnull VimPortType port, @Nonnull VimMetrics metrics, @Nullable VimLimiter limiter, @Nullable VimRetryPolicy retryPolicy, boolean countPayloadBytes) {
+        if( countPayloadBytes && port instanceof BindingProvider ) {
+            Binding binding = (( BindingProvider ) port).getBinding();
+            List<Handler> chain = binding.getHandlerChain();
+            chain.add(new PayloadSizeHandler());
+            binding.setHandlerChain(chain);
+        }
+        return ( VimPortType ) Proxy.newProxyInstance(VimPortType.class.getClassLoader(), new Class<?>[] { VimPortType.class, BindingProvider.class }, new InstrumentedVimPort(port, metrics, limiter, retryPolicy));
+    }
+
+    /**
+     * @param cause the failure of a vim call
+     * @return true if the failure suggests vCenter is overloaded rather than the call being wrong: a runtime fault
+     * or a transport failure, but not a SOAP fault such as InvalidProperty reported to a dispatch
+     */
+    static public boolean isOverloaded(@Nullable Throwable cause) {
+        if( cause instanceof SOAPFaultException ) {
+            SOAPFault fault = (( SOAPFaultException ) cause).getFault();
+            Detail detail = (fault == null ? null : fault.getDetail());
+
+            if( detail != null ) {
+                Iterator<?> entries = detail.getDetailEntries();
+
+                while( entries.hasNext() ) {
+                    Object entry = entries.next();
+
+                    // vim reports every runtime fault, SystemError included, under its declared RuntimeFaultFault
+                    if( entry instanceof DetailEntry && "RuntimeFaultFault".equals((( DetailEntry ) entry).getLocalName()) ) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        return (cause instanceof RuntimeFaultFaultMsg || cause instanceof WebServiceException);
+    }
+
+    /**
+     * @param method the {@code VimPortType} method called
+     * @param args the arguments of the call
+     * @return the method followed, for property collector calls, by the type each filter starts from, whether it
+     * traverses the inventory from there and the properties it asks for, so single object reads and inventory
+     * listings through the same method are told apart
+     */
+    static public @Nonnull String getQueryShape(@Nonnull String method, @Nullable Object[] args) {
+        StringBuilder shape = new StringBuilder(method);
+
+        if( args != null ) {
+            for( Object arg : args ) {
+                if( arg instanceof PropertyFilterSpec ) {
+                    appendShape(shape, ( PropertyFilterSpec ) arg);
+                }
+                else if( arg instanceof List ) {
+                    for( Object item : ( List<?> ) arg ) {
+                        if( item instanceof PropertyFilterSpec ) {
+                            appendShape(shape, ( PropertyFilterSpec ) item);
+                        }
+                    }
+                }
+            }
+        }
+        return shape.toString();
+    }
+
+    static private void appendShape(@Nonnull StringBuilder shape, @Nonnull PropertyFilterSpec spec) {
+        for( ObjectSpec os : spec.getObjectSet() ) {
+            shape.append('|').append(os.getObj() == null ? null : os.getObj().getType());
+            if( !os.getSelectSet().isEmpty() ) {
+                shape.append("+traversal");
+            }
+        }
+        for( PropertySpec ps : spec.getPropSet() ) {
+            shape.append('|').append(ps.getType()).append(ps.getPathSet());
+        }
+    }
+
+    private final VimPortType port;
+    private final VimMetrics metrics;
+    private final VimLimiter limiter;
+    private final VimRetryPolicy retryPolicy;
+
+    private InstrumentedVimPort(@Nonnull VimPortType port, @Nonnull VimMetrics metrics, @Nullable VimLimiter limiter, @Nullable VimRetryPolicy retryPolicy) {
+        this.port = port;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if( method.getDeclaringClass() != VimPortType.class ) {
+            // Object and BindingProvider methods are not vim calls
+            try {
+                return method.invoke(port, args);
+            }
+            catch( InvocationTargetException e ) {
+                throw e.getCause();
+            }
+        }
+        String name = method.getName();
+
+        if( retryPolicy == null ) {
+            return attempt(name, method, args);
+        }
+        retryPolicy.called();
+        for( int attempt = 1; ; attempt++ ) {
+            try {
+                return attempt(name, method, args);
+            }
+            catch( Throwable cause ) {
+                if( !retryPolicy.retry(name, cause, attempt) ) {
+                    throw cause;
+                }
+                long delay = retryPolicy.getDelay(attempt);
+
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(metrics.getEndpoint() + " " + name + " retrying in " + delay + "ms after " + cause);
+                }
+                try {
+                    Thread.sleep(delay);
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw cause;
+                }
+            }
+        }
+    }
+
+    private Object attempt(@Nonnull String name, @Nonnull Method method, Object[] args) throws Throwable {
+        VimLimiter.Permit permit = null;
+
+        if( limiter != null ) {
+            try {
+                permit = limiter.acquire(name, getQueryShape(name, args));
+            }
+            catch( InterruptedException e ) {
+                // not declared by the vim methods, the proxy would surface it as UndeclaredThrowableException
+                Thread.currentThread().interrupt();
+                throw new WebServiceException("Interrupted while waiting to call " + name, e);
+            }
+        }
+        long[] bytes = new long[2];
+        boolean fault = false;
+        boolean overloaded = false;
+        long start = System.nanoTime();
+
+        payloadBytes.set(bytes);
+        metrics.begin(name);
+        try {
+            return method.invoke(port, args);
+        }
+        catch( InvocationTargetException e ) {
+            fault = true;
+            overloaded = isOverloaded(e.getCause());
+            throw e.getCause();
+        }
+        finally {
+            long millis = (System.nanoTime() - start) / 1000000L;
+
+            if( permit != null ) {
+                permit.release(millis, overloaded);
+            }
+            payloadBytes.remove();
+            if( !VimRetryPolicy.isRead(name) ) {
+                // later listings by this thread must not join one that started before the change
+                SingleFlight.changed();
+            }
+            metrics.end(name, millis, bytes[0], bytes[1], fault);
+            OperationTrace.record(name, bytes[0] + bytes[1]);
+            if( wire.isDebugEnabled() ) {
+                wire.debug(metrics.getEndpoint() + " " + name + " " + millis + "ms" + (fault ? " FAULT" : "") + (bytes[0] > 0 ? " sent=" + bytes[0] + " received=" + bytes[1] : ""));
+            }
+        }
+    }
+
+    /**
+     * Counts the serialized size of the SOAP messages of the call in progress.
+     */
+    static private class PayloadSizeHandler implements SOAPHandler<SOAPMessageContext> {
+        @Override
+        public Set<QName> getHeaders() {
+            return null;
+        }
+
+        @Override
+        public boolean handleMessage(SOAPMessageContext context) {
+            count(context);
+            return true;
+        }
+
+        @Override
+        public boolean handleFault(SOAPMessageContext context) {
+            count(context);
+            return true;
+        }
+
+        @Override
+        public void close(MessageContext context) {
+        }
+
+        private void count(SOAPMessageContext context) {
+            long[] bytes = payloadBytes.get();
+            SOAPMessage message = context.getMessage();
+
+            if( bytes == null || message == null ) {
+                return;
+            }
+            CountingOutputStream out = new CountingOutputStream();
+            try {
+                message.writeTo(out);
+            }
+            catch( Exception ignore ) {
+                // size stays partial, not worth failing the call for
+            }
+            boolean outbound = Boolean.TRUE.equals(context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY));
+            bytes[outbound ? 0 : 1] += out.count;
+        }
+    }
+
+    static private class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
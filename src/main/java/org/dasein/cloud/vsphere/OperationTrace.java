@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.util.APITrace;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Drop-in for {@link APITrace#begin(org.dasein.cloud.CloudProvider, String)} and {@link APITrace#end()} that
+ * also accounts for the vim calls, SOAP bytes and wall time each operation consumes on the calling thread. Calls
+ * made by nested operations count towards every enclosing operation as well, calls made on other threads (such
+ * as background cache reloads) are not counted.
+ * <p>
+ * When an operation ends its usage is checked against the budgets set as custom properties, per operation as
+ * {@code vsphere.budget.<operation>.calls}, {@code .bytes} or {@code .millis}, and for top-level operations
+ * without a budget of their own as {@code vsphere.budget.calls}, {@code .bytes} or {@code .millis}. Overruns
+ * are logged as warnings. Bytes are only known when payload counting is enabled, see
+ * {@link InstrumentedVimPort#PAYLOAD_BYTES_PROPERTY}.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class OperationTrace {
+    static private final Logger logger = Vsphere.getLogger(OperationTrace.class);
+
+    static public final String BUDGET_PREFIX = "vsphere.budget.";
+
+    static private final ThreadLocal<List<OperationTrace>> open = new ThreadLocal<List<OperationTrace>>();
+    static private final ThreadLocal<Usage> lastCompleted = new ThreadLocal<Usage>();
+
+    /**
+     * What a completed operation consumed.
+     */
+    static public class Usage {
+        private final String operation;
+        private final long vimCalls;
+        private final long bytes;
+        private final long millis;
+        private final Map<String, Integer> callsByMethod;
+
+        private Usage(@Nonnull String operation, long vimCalls, long bytes, long millis, @Nonnull Map<String, Integer> callsByMethod) {
+            this.operation = operation;
+            this.vimCalls = vimCalls;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.callsByMethod = callsByMethod;
+        }
+
+        public @Nonnull String getOperation() {
+            return operation;
+        }
+
+        public long getVimCalls() {
+            return vimCalls;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return the number of calls per vim method
+         */
+        public @Nonnull Map<String, Integer> getCallsByMethod() {
+            return callsByMethod;
+        }
+
+        @Override
+        public String toString() {
+            return operation + ": vimCalls=" + vimCalls + ", bytes=" + bytes + ", millis=" + millis + ", calls=" + callsByMethod;
+        }
+    }
+
+    /**
+     * Starts an operation, see {@link APITrace#begin(org.dasein.cloud.CloudProvider, String)}. Every call must be
+     * matched by a call to {@link #end()} in a finally block.
+     * @param provider the provider running the operation
+     * @param operation the operation name
+     */
+    static public void begin(@Nonnull Vsphere provider, @Nonnull String operation) {
+        APITrace.begin(provider, operation);
+        List<OperationTrace> stack = open.get();
+
+        if( stack == null ) {
+            stack = new ArrayList<OperationTrace>();
+            open.set(stack);
+        }
+        stack.add(new OperationTrace(provider, operation, stack.isEmpty()));
+    }
+
+    /**
+     * Ends the innermost operation started on this thread, see {@link APITrace#end()}.
+     */
+    static public void end() {
+        try {
+            List<OperationTrace> stack = open.get();
+
+            if( stack != null && !stack.isEmpty() ) {
+                OperationTrace trace = stack.remove(stack.size() - 1);
+
+                if( stack.isEmpty() ) {
+                    open.remove();
+                }
+                Usage usage = trace.complete();
+                if( trace.topLevel ) {
+                    lastCompleted.set(usage);
+                }
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Records a vim call against every operation open on this thread.
+     * @param method the vim method
+     * @param bytes request and response bytes, 0 if not counted
+     */
+    static void record(@Nonnull String method, long bytes) {
+        List<OperationTrace> stack = open.get();
+
+        if( stack != null ) {
+            for( OperationTrace trace : stack ) {
+                trace.vimCalls++;
+                trace.bytes += bytes;
+                Integer count = trace.callsByMethod.get(method);
+                trace.callsByMethod.put(method, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the usage of the last top-level operation completed on this thread, for tests guarding round-trip counts
+     */
+    static public @Nullable Usage getLastCompleted() {
+        return lastCompleted.get();
+    }
+
+    private final Vsphere provider;
+    private final String operation;
+    private final boolean topLevel;
+    private final long started = System.currentTimeMillis();
+    private final Map<String, Integer> callsByMethod = new TreeMap<String, Integer>();
+    private long vimCalls;
+    private long bytes;
+
+    private OperationTrace(@Nonnull Vsphere provider, @Nonnull String operation, boolean topLevel) {
+        this.provider = provider;
+        this.operation = operation;
+        this.topLevel = topLevel;
+    }
+
+    private @Nonnull Usage complete() {
+        Usage usage = new Usage(operation, vimCalls, bytes, System.currentTimeMillis() - started, callsByMethod);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug(usage.toString());
+        }
+        checkBudget("calls", usage.getVimCalls());
+        checkBudget("bytes", usage.getBytes());
+        checkBudget("millis", usage.getMillis());
+        return usage;
+    }
+
+    private void checkBudget(@Nonnull String name, long used) {
+        Long budget = getBudget(BUDGET_PREFIX + operation + "." + name);
+
+        if( budget == null && topLevel ) {
+            budget = getBudget(BUDGET_PREFIX + name);
+        }
+        if( budget != null && used > budget ) {
+            logger.warn(operation + " exceeded its " + name + " budget of " + budget + ": " + vimCalls + " vim calls, " + bytes + " bytes, " + (System.currentTimeMillis() - started) + "ms " + callsByMethod);
+        }
+    }
+
+    private @Nullable Long getBudget(@Nonnull String property) {
+        String value = provider.getCustomProperty(property);
+
+        if( value == null ) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Ignoring invalid budget " + property + "=" + value);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ContinueRetrievePropertiesExRequestType;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrievePropertiesExRequestType;
+import com.vmware.vim25.ServiceContent;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retrieves properties with {@code RetrievePropertiesEx} and hands the result to a {@link Handler} one object at
+ * a time while the response is still being read. The generated port unmarshals a whole response before returning
+ * it, so listing thousands of virtual machines holds every {@code VirtualMachineConfigInfo} of the listing at
+ * once; here the SOAP body is read with StAX and only the {@link ObjectContent} being decoded is materialized.
+ * Continuation tokens are followed until the result is complete.
+ * <p>
+ * The streaming path is off unless {@link #STREAMING_PROPERTY} is true in the context's custom properties. It is
+ * also turned off for the JVM once the JAX-WS runtime turns out to hand back responses already read into memory,
+ * as there is nothing to gain then; callers retrieve the objects in one piece instead.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class PropertyStream {
+    static public final String STREAMING_PROPERTY = "vsphere.decoder.streaming";
+
+    static private final String VIM25 = "urn:vim25";
+    static private final QName VIM_PORT = new QName("urn:vim25Service", "VimPort");
+    // the version the generated port announces, for servers not reporting theirs
+    static private final String DEFAULT_API_VERSION = "6.0";
+
+    static private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    // cleared once the runtime hands back a response that is not a stream
+    static private volatile boolean streamed = true;
+
+    /**
+     * Decodes retrieved objects.
+     */
+    public interface Handler {
+        /**
+         * @param object the next retrieved object, not referenced by the stream once this returns
+         * @throws CloudException an error occurred in the cloud provider
+         * @throws InternalException an error occurred within the Dasein Cloud implementation
+         */
+        void handle(@Nonnull ObjectContent object) throws CloudException, InternalException;
+    }
+
+    /**
+     * @param provider the vSphere provider
+     * @return true if the context asks for streamed retrievals
+     */
+    static public boolean isEnabled(@Nonnull Vsphere provider) {
+        return streamed && "true".equalsIgnoreCase(provider.getCustomProperty(STREAMING_PROPERTY));
+    }
+
+    /**
+     * Reads the objects of a {@code RetrievePropertiesEx} or {@code ContinueRetrievePropertiesEx} response body.
+     * @param reader the response, positioned anywhere before its first object
+     * @param handler receives every object
+     * @return the continuation token of the result, null if it is complete
+     * @throws XMLStreamException the response is not well formed
+     * @throws JAXBException an object does not match the vim25 schema
+     * @throws CloudException the handler failed
+     * @throws InternalException the handler failed
+     */
+    static public @Nullable String parse(@Nonnull XMLStreamReader reader, @Nonnull Handler handler) throws XMLStreamException, JAXBException, CloudException, InternalException {
+        Unmarshaller unmarshaller = SharedVimService.getJaxbContext().createUnmarshaller();
+        String token = null;
+        int event = reader.getEventType();
+
+        while( true ) {
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                String name = reader.getLocalName();
+
+                if( name.equals("objects") ) {
+                    handler.handle(unmarshaller.unmarshal(reader, ObjectContent.class).getValue());
+                    // the unmarshaller leaves the reader on the event after the object
+                    event = reader.getEventType();
+                    continue;
+                }
+                else if( name.equals("token") ) {
+                    token = reader.getElementText();
+                }
+            }
+            if( !reader.hasNext() ) {
+                break;
+            }
+            event = reader.next();
+        }
+        return token;
+    }
+
+    private final Vsphere provider;
+    private boolean inMemory;
+
+    public PropertyStream(@Nonnull Vsphere provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Retrieves the properties selected by the filter specs.
+     * @param specSet the properties to retrieve
+     * @param handler receives every retrieved object
+     * @return true if the objects were streamed, false if the runtime does not stream responses, in which case
+     * nothing was handed to the handler and the objects have to be retrieved in one piece
+     * @throws CloudException vCenter failed the retrieval
+     * @throws InternalException the response could not be read
+     */
+    public boolean retrieve(@Nonnull List<PropertyFilterSpec> specSet, @Nonnull Handler handler) throws CloudException, InternalException {
+        VsphereConnection connection = provider.getServiceInstance();
+        ManagedObjectReference collector = connection.getServiceContent().getPropertyCollector();
+        Dispatch<Source> dispatch = createDispatch(connection);
+
+        RetrievePropertiesExRequestType request = new RetrievePropertiesExRequestType();
+        request.setThis(collector);
+        request.getSpecSet().addAll(specSet);
+        request.setOptions(new RetrieveOptions());
+        // continuations cost like the listing they continue, their latency is compared with listings of the same shape
+        Object[] args = new Object[] { specSet };
+        String token = invoke(dispatch, "RetrievePropertiesEx", InstrumentedVimPort.getQueryShape("RetrievePropertiesEx", args), new JAXBElement<RetrievePropertiesExRequestType>(new QName(VIM25, "RetrievePropertiesEx"), RetrievePropertiesExRequestType.class, request), handler);
+
+        if( inMemory ) {
+            return false;
+        }
+        while( token != null ) {
+            ContinueRetrievePropertiesExRequestType next = new ContinueRetrievePropertiesExRequestType();
+            next.setThis(collector);
+            next.setToken(token);
+            token = invoke(dispatch, "ContinueRetrievePropertiesEx", InstrumentedVimPort.getQueryShape("ContinueRetrievePropertiesEx", args), new JAXBElement<ContinueRetrievePropertiesExRequestType>(new QName(VIM25, "ContinueRetrievePropertiesEx"), ContinueRetrievePropertiesExRequestType.class, next), handler);
+            if( inMemory ) {
+                // part of the result was handed out already, so it can't be retrieved again in one piece
+                throw new InternalException("The continuation of a streamed retrieval was not streamed");
+            }
+        }
+        return true;
+    }
+
+    private @Nonnull Dispatch<Source> createDispatch(@Nonnull VsphereConnection connection) throws InternalException {
+        Dispatch<Source> dispatch = connection.getVimService().createDispatch(VIM_PORT, Source.class, Service.Mode.PAYLOAD);
+        Map<String, Object> requestContext = dispatch.getRequestContext();
+
+        requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, (( BindingProvider ) connection.getVimPort()).getRequestContext().get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY));
+        requestContext.put(BindingProvider.SOAPACTION_USE_PROPERTY, Boolean.TRUE);
+        requestContext.put(BindingProvider.SOAPACTION_URI_PROPERTY, getSoapAction(connection));
+        VimTransport.configure(dispatch, provider);
+        if( connection.getSessionCookie() != null ) {
+            // the dispatch has no cookie store of its own, it joins the session the port logged in
+            VimTransport.addHeader(dispatch, "Cookie", connection.getSessionCookie());
+        }
+        return dispatch;
+    }
+
+    /**
+     * @param connection the connection the dispatch joins
+     * @return the SOAP action announcing the API version of the server, as older servers reject newer versions
+     */
+    static @Nonnull String getSoapAction(@Nonnull VsphereConnection connection) {
+        ServiceContent serviceContent = connection.getServiceContent();
+        String apiVersion = (serviceContent == null || serviceContent.getAbout() == null ? null : serviceContent.getAbout().getApiVersion());
+
+        return VIM25 + "/" + (apiVersion == null || apiVersion.isEmpty() ? DEFAULT_API_VERSION : apiVersion);
+    }
+
+    private @Nullable String invoke(@Nonnull Dispatch<Source> dispatch, @Nonnull String method, @Nonnull String shape, @Nonnull JAXBElement<?> request, @Nonnull Handler handler) throws CloudException, InternalException {
+        VimMetrics metrics = provider.getVimMetrics();
+        VimLimiter.Permit permit;
+
+        try {
+            permit = provider.getVimLimiter().acquire(method, shape);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( WebServiceException e ) {
+            throw new CloudException(e);
+        }
+        boolean fault = false;
+        boolean overloaded = false;
+        long requestBytes = 0;
+        CountingInputStream response = null;
+        long start = System.nanoTime();
+
+        metrics.begin(method);
+        try {
+            // the request is small, marshalling it up front gives its size
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Marshaller marshaller = SharedVimService.getJaxbContext().createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            marshaller.marshal(request, out);
+            requestBytes = out.size();
+
+            Source source = dispatch.invoke(new StreamSource(new ByteArrayInputStream(out.toByteArray())));
+            XMLStreamReader reader;
+
+            if( source instanceof StAXSource && (( StAXSource ) source).getXMLStreamReader() != null ) {
+                // already being parsed by the runtime, the size is not known
+                reader = (( StAXSource ) source).getXMLStreamReader();
+            }
+            else if( source instanceof StreamSource && (( StreamSource ) source).getInputStream() != null ) {
+                response = new CountingInputStream((( StreamSource ) source).getInputStream());
+                reader = inputFactory.createXMLStreamReader(response);
+            }
+            else {
+                // any other source has been read into memory already, streaming it would only copy it once more
+                streamed = false;
+                inMemory = true;
+                return null;
+            }
+            try {
+                return parse(reader, handler);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch( WebServiceException e ) {
+            fault = true;
+            overloaded = InstrumentedVimPort.isOverloaded(e);
+            throw new CloudException(e);
+        }
+        catch( JAXBException e ) {
+            throw new InternalException(e);
+        }
+        catch( XMLStreamException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            long millis = (System.nanoTime() - start) / 1000000L;
+            long responseBytes = (response == null ? 0 : response.count);
+
+            permit.release(millis, overloaded);
+            metrics.end(method, millis, requestBytes, responseBytes, fault);
+            OperationTrace.record(method, requestBytes + responseBytes);
+        }
+    }
+
+    static private class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(@Nonnull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if( b >= 0 ) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+
+            if( n > 0 ) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+
+            count += skipped;
+            return skipped;
+        }
+    }
+}
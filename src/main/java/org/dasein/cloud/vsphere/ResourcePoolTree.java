@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared view of the resource pool hierarchy of all clusters, including the root pools. One retrieval fetches
+ * name, owner, parent and runtime usage for every pool and the result is cached for the account, so the data
+ * center, vm and volume services all read the same tree instead of each walking the inventory.
+ * Operations that change pool usage (launch, clone, terminate) invalidate the tree.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class ResourcePoolTree {
+
+    /**
+     * A single resource pool in the tree.
+     */
+    static public class Node {
+        private String id;
+        private String name;
+        private String ownerId;
+        private String parentId;
+        private boolean root;
+        private String status;
+        private long cpuUsageMhz;
+        private long memoryUsageBytes;
+        private List<String> childIds = new ArrayList<String>();
+
+        public @Nullable String getId() {
+            return id;
+        }
+
+        public @Nullable String getName() {
+            return name;
+        }
+
+        /**
+         * @return the id of the cluster (or standalone compute resource) the pool belongs to
+         */
+        public @Nullable String getOwnerId() {
+            return ownerId;
+        }
+
+        /**
+         * @return the id of the parent pool, null for root pools
+         */
+        public @Nullable String getParentId() {
+            return parentId;
+        }
+
+        public boolean isRoot() {
+            return root;
+        }
+
+        public @Nullable String getStatus() {
+            return status;
+        }
+
+        public long getCpuUsageMhz() {
+            return cpuUsageMhz;
+        }
+
+        public long getMemoryUsageBytes() {
+            return memoryUsageBytes;
+        }
+
+        public @Nonnull List<String> getChildIds() {
+            return childIds;
+        }
+    }
+
+    private Vsphere provider;
+    private List<SelectionSpec> rpSSpecs;
+    private List<PropertySpec> rpPSpecs;
+
+    public ResourcePoolTree(@Nonnull Vsphere provider) {
+        this.provider = provider;
+    }
+
+    public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
+        VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
+        return nav.retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
+    }
+
+    public List<SelectionSpec> getResourcePoolSelectionSpec() {
+        if (rpSSpecs == null) {
+            rpSSpecs = new ArrayList<SelectionSpec>();
+            // Recurse through all ResourcePools
+            SelectionSpec sSpec = new SelectionSpec();
+            sSpec.setName("rpToRp");
+
+            TraversalSpec rpToRp = new TraversalSpec();
+            rpToRp.setType("ResourcePool");
+            rpToRp.setPath("resourcePool");
+            rpToRp.setSkip(Boolean.FALSE);
+            rpToRp.setName("rpToRp");
+            rpToRp.getSelectSet().add(sSpec);
+
+            TraversalSpec crToRp = new TraversalSpec();
+            crToRp.setType("ComputeResource");
+            crToRp.setPath("resourcePool");
+            crToRp.setSkip(Boolean.FALSE);
+            crToRp.setName("crToRp");
+            crToRp.getSelectSet().add(sSpec);
+
+            rpSSpecs.add(sSpec);
+            rpSSpecs.add(rpToRp);
+            rpSSpecs.add(crToRp);
+        }
+        return rpSSpecs;
+    }
+
+    public List<PropertySpec> getResourcePoolPropertySpec() {
+        rpPSpecs = VsphereTraversalSpec.createPropertySpec(rpPSpecs, "ResourcePool", false, "name", "owner", "parent", "runtime");
+        return rpPSpecs;
+    }
+
+    private VsphereCache<Node> getCache() {
+        return VsphereCache.getInstance(provider, "resourcePoolTree", Node.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
+    }
+
+    /**
+     * Drops the cached tree of this account so its next read fetches it again.
+     */
+    public void invalidate() {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx != null ) {
+            getCache().invalidate(ctx);
+        }
+    }
+
+    /**
+     * @return every resource pool, root pools included
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nonnull Collection<Node> listNodes() throws InternalException, CloudException {
+        OperationTrace.begin(provider, "ResourcePoolTree.listNodes");
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
+            VsphereCache<Node> cache = getCache();
+            Collection<Node> nodes = (Collection<Node>)cache.get(ctx);
+
+            if( nodes != null ) {
+                return nodes;
+            }
+            List<Node> list = new ArrayList<Node>();
+            Map<String, Node> nodeMap = new HashMap<String, Node>();
+
+            RetrieveResult listobcont = retrieveObjectList(provider, "hostFolder", getResourcePoolSelectionSpec(), getResourcePoolPropertySpec());
+
+            if (listobcont != null) {
+                for (ObjectContent oc : listobcont.getObjects()) {
+                    Node node = new Node();
+                    node.id = oc.getObj().getValue();
+                    List<DynamicProperty> dps = oc.getPropSet();
+                    if (dps != null) {
+                        for (DynamicProperty dp : dps) {
+                            switch (dp.getName()) {
+                                case "name":
+                                    node.name = (String) dp.getVal();
+                                    break;
+                                case "owner":
+                                    ManagedObjectReference clusterRef = (ManagedObjectReference) dp.getVal();
+                                    node.ownerId = clusterRef.getValue();
+                                    break;
+                                case "parent":
+                                    ManagedObjectReference parentRef = (ManagedObjectReference) dp.getVal();
+                                    if (parentRef.getType().equals("ResourcePool")) {
+                                        node.parentId = parentRef.getValue();
+                                    }
+                                    else {
+                                        node.root = true;
+                                    }
+                                    break;
+                                case "runtime":
+                                    ResourcePoolRuntimeInfo rpri = (ResourcePoolRuntimeInfo) dp.getVal();
+                                    if (rpri.getOverallStatus() != null) {
+                                        node.status = rpri.getOverallStatus().value();
+                                    }
+                                    if (rpri.getCpu() != null) {
+                                        node.cpuUsageMhz = rpri.getCpu().getOverallUsage();
+                                    }
+                                    if (rpri.getMemory() != null) {
+                                        node.memoryUsageBytes = rpri.getMemory().getOverallUsage();
+                                    }
+                                    break;
+                            }
+                        }
+                    }
+                    list.add(node);
+                    nodeMap.put(node.id, node);
+                }
+                for (Node node : list) {
+                    if (node.parentId != null) {
+                        Node parent = nodeMap.get(node.parentId);
+                        if (parent != null) {
+                            parent.childIds.add(node.id);
+                        }
+                    }
+                }
+            }
+            cache.put(ctx, list);
+            return list;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    public @Nullable Node getNode(@Nonnull String resourcePoolId) throws InternalException, CloudException {
+        for (Node node : listNodes()) {
+            if (resourcePoolId.equals(node.getId())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param ownerId the cluster to find the root pool of
+     * @return the root resource pool of the cluster or null if the cluster is not known
+     */
+    public @Nullable Node getRootNode(@Nonnull String ownerId) throws InternalException, CloudException {
+        for (Node node : listNodes()) {
+            if (node.isRoot() && ownerId.equals(node.getOwnerId())) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
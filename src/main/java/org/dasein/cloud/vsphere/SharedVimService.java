@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ObjectFactory;
+import com.vmware.vim25.VimService;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+/**
+ * The vim25 metadata every connection needs, loaded once per JVM. Creating a {@link VimService} parses the vim
+ * WSDL and its schemas and builds the runtime's JAXB model of the generated types, which takes seconds and a lot
+ * of memory; a provider is created per request context, so each of them creating its own service paid that on
+ * every login. The service is thread safe and hands out a new port per connection, the port holding the session
+ * and request context.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class SharedVimService {
+    static private final Logger logger = Vsphere.getLogger(SharedVimService.class);
+
+    static private VimService vimService;
+    static private JAXBContext jaxbContext;
+
+    /**
+     * @return the JVM wide vim service, created on first use
+     */
+    static public synchronized @Nonnull VimService getVimService() {
+        if( vimService == null ) {
+            long start = System.currentTimeMillis();
+
+            vimService = new VimService();
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Loaded vim service in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+        return vimService;
+    }
+
+    /**
+     * @return a JAXB context of the vim25 types for the calls made outside of a port, created on first use
+     * @throws JAXBException the generated types could not be bound
+     */
+    static public synchronized @Nonnull JAXBContext getJaxbContext() throws JAXBException {
+        if( jaxbContext == null ) {
+            jaxbContext = JAXBContext.newInstance(ObjectFactory.class);
+        }
+        return jaxbContext;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent identical inventory reads. The first caller for a key performs the call while callers
+ * arriving before it completes wait for it and receive the same result, or the same exception. A burst of
+ * requests after a cache expiry therefore costs vCenter a single traversal. Callers that joined get their own
+ * copy of a list result, the items in it are still shared and must not be modified.
+ * <p>
+ * A caller never joins a call that started before its own last change to the inventory, recorded through
+ * {@link #changed()} for every vim call that is not a read, as that call may not see the change. It starts a new
+ * call instead, which later callers join.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class SingleFlight {
+    static private final Logger logger = Vsphere.getLogger(SingleFlight.class);
+
+    /**
+     * The work to coalesce.
+     */
+    public interface Call<V> {
+        V call() throws InternalException, CloudException;
+    }
+
+    static private class Flight {
+        final long started = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        Object result;
+        Throwable error;
+    }
+
+    static private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    // when the calling thread last changed the inventory, in System.nanoTime()
+    static private final ThreadLocal<Long> lastChange = new ThreadLocal<Long>();
+
+    /**
+     * Records that the calling thread has just changed the inventory, so its next reads do not join calls that
+     * were already in flight.
+     */
+    static public void changed() {
+        lastChange.set(System.nanoTime());
+    }
+
+    /**
+     * @param ctx the context of the call
+     * @param shape identifies the query, e.g. the operation name and any arguments it depends on
+     * @return a key for the query against the vCenter, account and region of the context
+     */
+    static public @Nonnull String getKey(@Nonnull ProviderContext ctx, @Nonnull String shape) {
+        return ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|" + shape;
+    }
+
+    /**
+     * Runs the call unless an identical call is already in flight, in which case its result is awaited.
+     * @param key the key of the query, see {@link #getKey(ProviderContext, String)}
+     * @param call the work to do
+     * @return the result of the call
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    @SuppressWarnings("unchecked")
+    static public <V> V execute(@Nonnull String key, @Nonnull Call<V> call) throws InternalException, CloudException {
+        Long changed = lastChange.get();
+        Flight flight = new Flight();
+
+        while( true ) {
+            Flight current = flights.putIfAbsent(key, flight);
+
+            if( current == null ) {
+                break;
+            }
+            if( changed == null || current.started - changed > 0 ) {
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Joining in-flight call for " + key);
+                }
+                try {
+                    current.done.await();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException("Interrupted while waiting for " + key);
+                }
+                return (V) copy(rethrow(current));
+            }
+            // the call in flight may predate this thread's last change, take its place so later callers join ours
+            if( flights.replace(key, current, flight) ) {
+                break;
+            }
+        }
+        try {
+            flight.result = call.call();
+        }
+        catch( InternalException e ) {
+            flight.error = e;
+        }
+        catch( CloudException e ) {
+            flight.error = e;
+        }
+        catch( RuntimeException e ) {
+            flight.error = e;
+        }
+        catch( Error e ) {
+            flight.error = e;
+        }
+        finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+        return (V) rethrow(flight);
+    }
+
+    static private @Nullable Object copy(@Nullable Object result) {
+        if( result instanceof List ) {
+            return new ArrayList<Object>(( List<?> ) result);
+        }
+        return result;
+    }
+
+    static private Object rethrow(@Nonnull Flight flight) throws InternalException, CloudException {
+        Throwable error = flight.error;
+
+        if( error == null ) {
+            return flight.result;
+        }
+        if( error instanceof InternalException ) {
+            throw ( InternalException ) error;
+        }
+        if( error instanceof CloudException ) {
+            throw ( CloudException ) error;
+        }
+        if( error instanceof RuntimeException ) {
+            throw ( RuntimeException ) error;
+        }
+        throw ( Error ) error;
+    }
+}
@@ -0,0 +1,518 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.ws.WebServiceException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the vim calls all providers of the JVM make to one vCenter. Calls are split into three budgets, property
+ * collection, tasks (and the other calls changing the inventory) and session calls, so a burst of listings cannot
+ * starve task submission or logins. Each budget has
+ * <ul>
+ *     <li>a token bucket limiting the call rate, {@code vsphere.limit.<budget>.rate} calls per second with bursts of
+ *     {@code vsphere.limit.<budget>.burst}, unlimited when the rate is 0</li>
+ *     <li>an adaptive concurrency limit starting at {@code vsphere.limit.<budget>.concurrency} and kept between 1 and
+ *     {@code vsphere.limit.<budget>.maxConcurrency}: it grows by one call per round trip while the budget is
+ *     saturated and calls are as fast as usual, and shrinks by 10% when a call takes more than twice the usual
+ *     latency of its query shape or vCenter answers with a runtime fault. The shape is the method and, for property
+ *     collector calls, the objects and properties asked for, so reading one object and traversing the whole
+ *     inventory with the same method are not measured against each other</li>
+ * </ul>
+ * Long polls for updates ({@code WaitForUpdates} and {@code WaitForUpdatesEx}) are held by vCenter until something
+ * changes or their wait ends, so they are only subject to the rate of their budget: they take no concurrency slot
+ * and their latency is left out of the adaptive limit.
+ * Calls over the limits wait in line up to {@code vsphere.limit.queueTimeout} milliseconds and then fail. The
+ * limits, calls in flight and queueing delays of each endpoint are published as the MBean
+ * {@code org.dasein.cloud.vsphere:type=VimLimiter,endpoint=<endpoint>}. The limits are only applied when
+ * {@code vsphere.limit.enabled} is true, until then every call is let through and only counted.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class VimLimiter implements VimLimiterMBean {
+    static private final Logger logger = Vsphere.getLogger(VimLimiter.class);
+
+    static public final String PROPERTY_PREFIX = "vsphere.limit.";
+    static public final String ENABLED_PROPERTY = PROPERTY_PREFIX + "enabled";
+    static public final String QUEUE_TIMEOUT_PROPERTY = PROPERTY_PREFIX + "queueTimeout";
+
+    static public final String PROPERTY_COLLECTOR = "propertyCollector";
+    static public final String TASKS = "tasks";
+    static public final String SESSION = "session";
+
+    static public final long DEFAULT_QUEUE_TIMEOUT = 60000L;
+
+    // latency above this multiple of a method's usual latency is taken as vCenter slowing down
+    static private final double LATENCY_TOLERANCE = 2.0;
+    static private final double DECREASE_FACTOR = 0.9;
+    // weight of the latest call in the usual latency of its query shape
+    static private final double LATENCY_SMOOTHING = 0.05;
+
+    static private final Set<String> PROPERTY_COLLECTOR_METHODS = new HashSet<String>(Arrays.asList(
+            "retrieveProperties", "retrievePropertiesEx", "continueRetrievePropertiesEx", "cancelRetrievePropertiesEx",
+            "createFilter", "destroyPropertyFilter", "createPropertyCollector", "destroyPropertyCollector",
+            "waitForUpdates", "waitForUpdatesEx", "checkForUpdates", "cancelWaitForUpdates", "createContainerView",
+            "destroyView"));
+
+    static private final Set<String> LONG_POLL_METHODS = new HashSet<String>(Arrays.asList(
+            "waitForUpdates", "waitForUpdatesEx"));
+
+    static private final Set<String> SESSION_METHODS = new HashSet<String>(Arrays.asList(
+            "retrieveServiceContent", "login", "loginByToken", "loginExtensionByCertificate", "logout",
+            "sessionIsActive", "currentTime", "acquireCloneTicket", "acquireGenericServiceTicket"));
+
+    static private final ConcurrentHashMap<String, VimLimiter> instances = new ConcurrentHashMap<String, VimLimiter>();
+
+    /**
+     * @param method a {@code VimPortType} method or SOAP operation name
+     * @return the budget the method is counted against
+     */
+    static public @Nonnull String getBudget(@Nonnull String method) {
+        method = toMethodName(method);
+        if( PROPERTY_COLLECTOR_METHODS.contains(method) ) {
+            return PROPERTY_COLLECTOR;
+        }
+        if( SESSION_METHODS.contains(method) ) {
+            return SESSION;
+        }
+        return TASKS;
+    }
+
+    /**
+     * @param method a {@code VimPortType} method or SOAP operation name
+     * @return true if vCenter holds the call until an update arrives, see the class documentation
+     */
+    static public boolean isLongPoll(@Nonnull String method) {
+        return LONG_POLL_METHODS.contains(toMethodName(method));
+    }
+
+    static private @Nonnull String toMethodName(@Nonnull String method) {
+        // the SOAP operation names are capitalized
+        return (method.isEmpty() ? method : Character.toLowerCase(method.charAt(0)) + method.substring(1));
+    }
+
+    /**
+     * @param endpoint the vCenter endpoint
+     * @return the limiter of the endpoint, registered with the platform MBean server on first use
+     */
+    static public @Nonnull VimLimiter getInstance(@Nonnull String endpoint) {
+        VimLimiter limiter = instances.get(endpoint);
+
+        if( limiter == null ) {
+            VimLimiter created = new VimLimiter(endpoint);
+            limiter = instances.putIfAbsent(endpoint, created);
+            if( limiter == null ) {
+                limiter = created;
+                limiter.register();
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * The state of a budget at the time of the snapshot.
+     */
+    static public class BudgetSnapshot {
+        private double limit;
+        private int inFlight;
+        private int waiting;
+        private long calls;
+        private long queued;
+        private long queueMillis;
+        private long maxQueueMillis;
+        private long timeouts;
+
+        /**
+         * @return the current concurrency limit
+         */
+        public double getLimit() {
+            return limit;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return the calls waiting for the budget right now
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return the calls that had to wait
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return the total time calls spent waiting
+         */
+        public long getQueueMillis() {
+            return queueMillis;
+        }
+
+        public long getMaxQueueMillis() {
+            return maxQueueMillis;
+        }
+
+        public long getMeanQueueMillis() {
+            return (queued == 0 ? 0 : queueMillis / queued);
+        }
+
+        /**
+         * @return the calls that failed after waiting for the whole queue timeout
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        @Override
+        public String toString() {
+            return "limit=" + String.format("%.1f", limit) + ", inFlight=" + inFlight + ", waiting=" + waiting + ", calls=" + calls + ", queued=" + queued + ", meanQueueMillis=" + getMeanQueueMillis() + ", maxQueueMillis=" + maxQueueMillis + ", timeouts=" + timeouts;
+        }
+    }
+
+    static private class Budget {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final Map<String, Double> usualMillis = new HashMap<String, Double>();
+
+        final int defaultLimit;
+        final int defaultMaxLimit;
+        final double defaultRate;
+        final int defaultBurst;
+
+        int initialLimit;
+        int maxLimit;
+        double rate;
+        int burst;
+
+        double limit;
+        double tokens;
+        long lastRefill = System.nanoTime();
+        int inFlight;
+        int waiting;
+
+        long calls;
+        long queued;
+        long queueMillis;
+        long maxQueueMillis;
+        long timeouts;
+
+        Budget(int initialLimit, int maxLimit, double rate, int burst) {
+            this.defaultLimit = initialLimit;
+            this.defaultMaxLimit = maxLimit;
+            this.defaultRate = rate;
+            this.defaultBurst = burst;
+            configure(initialLimit, maxLimit, rate, burst);
+            this.tokens = this.burst;
+        }
+
+        void configure(int initialLimit, int maxLimit, double rate, int burst) {
+            initialLimit = Math.max(1, initialLimit);
+            if( initialLimit != this.initialLimit ) {
+                // a new starting point overrides what was learned from the old one
+                this.limit = initialLimit;
+            }
+            this.initialLimit = initialLimit;
+            this.maxLimit = Math.max(initialLimit, maxLimit);
+            this.rate = Math.max(0, rate);
+            this.burst = Math.max(1, burst);
+            this.limit = Math.min(this.limit, this.maxLimit);
+            this.tokens = Math.min(tokens, this.burst);
+        }
+
+        void refill(long now) {
+            if( rate > 0 ) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000000000.0);
+            }
+            lastRefill = now;
+        }
+
+        @Nonnull BudgetSnapshot snapshot() {
+            BudgetSnapshot s = new BudgetSnapshot();
+
+            lock.lock();
+            try {
+                s.limit = limit;
+                s.inFlight = inFlight;
+                s.waiting = waiting;
+                s.calls = calls;
+                s.queued = queued;
+                s.queueMillis = queueMillis;
+                s.maxQueueMillis = maxQueueMillis;
+                s.timeouts = timeouts;
+            }
+            finally {
+                lock.unlock();
+            }
+            return s;
+        }
+    }
+
+    /**
+     * A call admitted by the limiter, to be released exactly once when it completes.
+     */
+    public class Permit {
+        private final Budget budget;
+        private final String shape;
+        private final boolean slotted;
+
+        private Permit(@Nonnull Budget budget, @Nonnull String shape, boolean slotted) {
+            this.budget = budget;
+            this.shape = shape;
+            this.slotted = slotted;
+        }
+
+        /**
+         * @param millis the time the call took once admitted
+         * @param overloaded true if vCenter failed the call in a way that suggests it is overloaded
+         */
+        public void release(long millis, boolean overloaded) {
+            if( !slotted ) {
+                // a long poll's time says how long nothing changed, not how busy vCenter is
+                return;
+            }
+            budget.lock.lock();
+            try {
+                Double usual = budget.usualMillis.get(shape);
+                boolean slow = (usual != null && millis > usual * LATENCY_TOLERANCE && millis - usual > 10);
+
+                budget.inFlight--;
+                budget.usualMillis.put(shape, usual == null ? millis : usual + (millis - usual) * LATENCY_SMOOTHING);
+                if( overloaded || slow ) {
+                    budget.limit = Math.max(1, budget.limit * DECREASE_FACTOR);
+                }
+                else if( budget.inFlight + 1 >= ( int ) budget.limit ) {
+                    // only a saturated budget learns whether it could go higher
+                    budget.limit = Math.min(budget.maxLimit, budget.limit + 1.0 / budget.limit);
+                }
+                budget.changed.signalAll();
+            }
+            finally {
+                budget.lock.unlock();
+            }
+        }
+    }
+
+    private final String endpoint;
+    private final Map<String, Budget> budgets = new LinkedHashMap<String, Budget>();
+    private volatile boolean enabled = false;
+    private volatile long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT;
+
+    private VimLimiter(@Nonnull String endpoint) {
+        this.endpoint = endpoint;
+        budgets.put(PROPERTY_COLLECTOR, new Budget(8, 32, 0, 1));
+        budgets.put(TASKS, new Budget(4, 16, 10, 20));
+        budgets.put(SESSION, new Budget(4, 8, 0, 1));
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.dasein.cloud.vsphere:type=VimLimiter,endpoint=" + ObjectName.quote(endpoint));
+
+            if( !server.isRegistered(name) ) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register vim limiter MBean for " + endpoint + ": " + e.getMessage());
+        }
+    }
+
+    static private double getNumber(@Nonnull Vsphere provider, @Nonnull String name, double defaultValue) {
+        String value = provider.getCustomProperty(name);
+
+        if( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Applies the limits of the provider's context; the last provider to connect sets the limits of the endpoint.
+     * @param provider the provider whose context holds the limits
+     */
+    public void configure(@Nonnull Vsphere provider) {
+        enabled = "true".equalsIgnoreCase(provider.getCustomProperty(ENABLED_PROPERTY));
+        queueTimeoutMillis = ( long ) getNumber(provider, QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT);
+        for( Map.Entry<String, Budget> entry : budgets.entrySet() ) {
+            String prefix = PROPERTY_PREFIX + entry.getKey() + ".";
+            Budget budget = entry.getValue();
+
+            budget.lock.lock();
+            try {
+                budget.configure(( int ) getNumber(provider, prefix + "concurrency", budget.defaultLimit), ( int ) getNumber(provider, prefix + "maxConcurrency", budget.defaultMaxLimit), getNumber(provider, prefix + "rate", budget.defaultRate), ( int ) getNumber(provider, prefix + "burst", budget.defaultBurst));
+                budget.changed.signalAll();
+            }
+            finally {
+                budget.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until the budget of the method admits another call, its latency being compared with earlier calls of
+     * the same method.
+     * @param method the {@code VimPortType} method about to be called
+     * @return the permit to release when the call completes
+     * @throws InterruptedException the thread was interrupted while waiting
+     * @throws WebServiceException the call waited longer than the queue timeout
+     */
+    public @Nonnull Permit acquire(@Nonnull String method) throws InterruptedException {
+        return acquire(method, method);
+    }
+
+    /**
+     * Waits until the budget of the method admits another call.
+     * @param method the {@code VimPortType} method about to be called
+     * @param shape identifies calls of similar cost, whose latency the call's is compared with
+     * @return the permit to release when the call completes
+     * @throws InterruptedException the thread was interrupted while waiting
+     * @throws WebServiceException the call waited longer than the queue timeout
+     */
+    public @Nonnull Permit acquire(@Nonnull String method, @Nonnull String shape) throws InterruptedException {
+        String name = getBudget(method);
+        Budget budget = budgets.get(name);
+        boolean slotted = !isLongPoll(method);
+        Permit permit = new Permit(budget, shape, slotted);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        boolean waited = false;
+
+        budget.lock.lock();
+        try {
+            while( true ) {
+                long now = System.nanoTime();
+
+                budget.refill(now);
+                boolean hasToken = (!enabled || budget.rate <= 0 || budget.tokens >= 1);
+                boolean hasSlot = (!enabled || !slotted || budget.inFlight < ( int ) budget.limit);
+
+                if( hasToken && hasSlot ) {
+                    if( enabled && budget.rate > 0 ) {
+                        budget.tokens -= 1;
+                    }
+                    if( slotted ) {
+                        budget.inFlight++;
+                    }
+                    break;
+                }
+                long remaining = deadline - now;
+
+                if( remaining <= 0 ) {
+                    budget.timeouts++;
+                    throw new WebServiceException("Gave up on " + method + " after waiting " + queueTimeoutMillis + "ms for the " + name + " budget of " + endpoint);
+                }
+                if( !hasToken ) {
+                    // no release will signal a refill, wake up when the next token is due
+                    remaining = Math.min(remaining, ( long ) ((1 - budget.tokens) * 1000000000.0 / budget.rate) + 1);
+                }
+                if( !waited ) {
+                    waited = true;
+                    budget.waiting++;
+                }
+                try {
+                    budget.changed.awaitNanos(remaining);
+                }
+                catch( InterruptedException e ) {
+                    budget.waiting--;
+                    throw e;
+                }
+            }
+            budget.calls++;
+            if( waited ) {
+                long millis = (System.nanoTime() - start) / 1000000L;
+
+                budget.waiting--;
+                budget.queued++;
+                budget.queueMillis += millis;
+                budget.maxQueueMillis = Math.max(budget.maxQueueMillis, millis);
+            }
+        }
+        finally {
+            budget.lock.unlock();
+        }
+        return permit;
+    }
+
+    public @Nonnull String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the state of every budget by name
+     */
+    public @Nonnull Map<String, BudgetSnapshot> snapshot() {
+        Map<String, BudgetSnapshot> snapshot = new LinkedHashMap<String, BudgetSnapshot>();
+
+        for( Map.Entry<String, Budget> entry : budgets.entrySet() ) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public @Nonnull String[] getBudgetSummaries() {
+        Map<String, BudgetSnapshot> snapshot = snapshot();
+        String[] lines = new String[snapshot.size()];
+        int i = 0;
+
+        for( Map.Entry<String, BudgetSnapshot> entry : snapshot.entrySet() ) {
+            lines[i++] = entry.getKey() + ": " + entry.getValue();
+        }
+        return lines;
+    }
+}
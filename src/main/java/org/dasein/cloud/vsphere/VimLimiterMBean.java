@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+/**
+ * JMX view of {@link VimLimiter}.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public interface VimLimiterMBean {
+    boolean isEnabled();
+
+    /**
+     * @return one line per budget with its current limit, calls in flight and queueing delays
+     */
+    String[] getBudgetSummaries();
+}
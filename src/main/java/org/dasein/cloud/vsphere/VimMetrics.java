@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per vim method call statistics of one vCenter: call and fault counts, calls in flight, a latency histogram
+ * and, when payload counting is enabled, request and response bytes. Each endpoint's metrics are registered as
+ * the MBean {@code org.dasein.cloud.vsphere:type=VimMetrics,endpoint=<endpoint>} and can be pulled as a
+ * {@link #snapshot()}.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class VimMetrics implements VimMetricsMBean {
+    static private final Logger logger = Vsphere.getLogger(VimMetrics.class);
+
+    /**
+     * Upper bounds of the latency histogram buckets in milliseconds, the last bucket counts everything slower.
+     */
+    static public final long[] BUCKET_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    static private final ConcurrentHashMap<String, VimMetrics> instances = new ConcurrentHashMap<String, VimMetrics>();
+
+    /**
+     * The statistics of a single vim method at the time of the snapshot.
+     */
+    static public class MethodSnapshot {
+        private long calls;
+        private long faults;
+        private long inFlight;
+        private long totalMillis;
+        private long maxMillis;
+        private long requestBytes;
+        private long responseBytes;
+        private long[] histogram;
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getFaults() {
+            return faults;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getMeanMillis() {
+            return (calls == 0 ? 0 : totalMillis / calls);
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        /**
+         * @return the call count per latency bucket, see {@link #BUCKET_MILLIS}
+         */
+        public @Nonnull long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket the percentile falls into, the max latency for the last bucket
+         */
+        public long getPercentileMillis(double percentile) {
+            long rank = ( long ) Math.ceil(calls * percentile / 100.0);
+            long seen = 0;
+
+            for( int i = 0; i < histogram.length; i++ ) {
+                seen += histogram[i];
+                if( seen >= rank && seen > 0 ) {
+                    return (i < BUCKET_MILLIS.length ? Math.min(BUCKET_MILLIS[i], maxMillis) : maxMillis);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + ", faults=" + faults + ", inFlight=" + inFlight + ", meanMillis=" + getMeanMillis() + ", p95Millis=" + getPercentileMillis(95) + ", maxMillis=" + maxMillis + ", requestBytes=" + requestBytes + ", responseBytes=" + responseBytes;
+        }
+    }
+
+    static private class MethodStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong faults = new AtomicLong();
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+        final AtomicLong requestBytes = new AtomicLong();
+        final AtomicLong responseBytes = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+
+        /**
+         * Zeroes the counters, leaving the calls in flight to be ended by their callers.
+         */
+        void reset() {
+            calls.set(0);
+            faults.set(0);
+            totalMillis.set(0);
+            maxMillis.set(0);
+            requestBytes.set(0);
+            responseBytes.set(0);
+            for( int i = 0; i < histogram.length(); i++ ) {
+                histogram.set(i, 0);
+            }
+        }
+
+        @Nonnull MethodSnapshot snapshot() {
+            MethodSnapshot s = new MethodSnapshot();
+
+            s.calls = calls.get();
+            s.faults = faults.get();
+            s.inFlight = inFlight.get();
+            s.totalMillis = totalMillis.get();
+            s.maxMillis = maxMillis.get();
+            s.requestBytes = requestBytes.get();
+            s.responseBytes = responseBytes.get();
+            s.histogram = new long[histogram.length()];
+            for( int i = 0; i < s.histogram.length; i++ ) {
+                s.histogram[i] = histogram.get(i);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @param endpoint the vCenter endpoint
+     * @return the metrics of the endpoint, registered with the platform MBean server on first use
+     */
+    static public @Nonnull VimMetrics getInstance(@Nonnull String endpoint) {
+        VimMetrics metrics = instances.get(endpoint);
+
+        if( metrics == null ) {
+            VimMetrics created = new VimMetrics(endpoint);
+            metrics = instances.putIfAbsent(endpoint, created);
+            if( metrics == null ) {
+                metrics = created;
+                metrics.register();
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of every endpoint used in this JVM
+     */
+    static public @Nonnull Map<String, VimMetrics> getInstances() {
+        return Collections.unmodifiableMap(new TreeMap<String, VimMetrics>(instances));
+    }
+
+    private final String endpoint;
+    private final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<String, MethodStats>();
+
+    private VimMetrics(@Nonnull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.dasein.cloud.vsphere:type=VimMetrics,endpoint=" + ObjectName.quote(endpoint));
+
+            if( !server.isRegistered(name) ) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register vim metrics MBean for " + endpoint + ": " + e.getMessage());
+        }
+    }
+
+    private @Nonnull MethodStats getStats(@Nonnull String method) {
+        MethodStats stats = methods.get(method);
+
+        if( stats == null ) {
+            MethodStats created = new MethodStats();
+            stats = methods.putIfAbsent(method, created);
+            if( stats == null ) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Marks the start of a call.
+     * @param method the vim method
+     */
+    public void begin(@Nonnull String method) {
+        getStats(method).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records a completed call.
+     * @param method the vim method
+     * @param millis the time the call took
+     * @param requestBytes the size of the request, 0 if not counted
+     * @param responseBytes the size of the response, 0 if not counted
+     * @param fault true if the call threw
+     */
+    public void end(@Nonnull String method, long millis, long requestBytes, long responseBytes, boolean fault) {
+        MethodStats stats = getStats(method);
+
+        stats.inFlight.decrementAndGet();
+        stats.calls.incrementAndGet();
+        if( fault ) {
+            stats.faults.incrementAndGet();
+        }
+        stats.totalMillis.addAndGet(millis);
+        stats.requestBytes.addAndGet(requestBytes);
+        stats.responseBytes.addAndGet(responseBytes);
+        long max = stats.maxMillis.get();
+        while( millis > max && !stats.maxMillis.compareAndSet(max, millis) ) {
+            max = stats.maxMillis.get();
+        }
+        int bucket = 0;
+        while( bucket < BUCKET_MILLIS.length && millis > BUCKET_MILLIS[bucket] ) {
+            bucket++;
+        }
+        stats.histogram.incrementAndGet(bucket);
+    }
+
+    public @Nonnull String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the statistics of every method called so far, by method name
+     */
+    public @Nonnull Map<String, MethodSnapshot> snapshot() {
+        Map<String, MethodSnapshot> snapshot = new TreeMap<String, MethodSnapshot>();
+
+        for( Map.Entry<String, MethodStats> entry : methods.entrySet() ) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public long getCalls() {
+        long calls = 0;
+
+        for( MethodStats stats : methods.values() ) {
+            calls += stats.calls.get();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getFaults() {
+        long faults = 0;
+
+        for( MethodStats stats : methods.values() ) {
+            faults += stats.faults.get();
+        }
+        return faults;
+    }
+
+    @Override
+    public long getInFlight() {
+        long inFlight = 0;
+
+        for( MethodStats stats : methods.values() ) {
+            inFlight += stats.inFlight.get();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getRequestBytes() {
+        long bytes = 0;
+
+        for( MethodStats stats : methods.values() ) {
+            bytes += stats.requestBytes.get();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getResponseBytes() {
+        long bytes = 0;
+
+        for( MethodStats stats : methods.values() ) {
+            bytes += stats.responseBytes.get();
+        }
+        return bytes;
+    }
+
+    @Override
+    public @Nonnull String[] getMethodSummaries() {
+        List<String> lines = new ArrayList<String>();
+
+        for( Map.Entry<String, MethodSnapshot> entry : snapshot().entrySet() ) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset() {
+        // the stats are kept so the end of a call begun before the reset still finds its in flight count
+        for( MethodStats stats : methods.values() ) {
+            stats.reset();
+        }
+    }
+}
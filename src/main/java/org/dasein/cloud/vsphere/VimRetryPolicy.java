@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.HostCommunication;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.SystemError;
+import com.vmware.vim25.TaskInProgressFaultMsg;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.ws.WebServiceException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which failed vim calls are worth another attempt, so a transient fault costs one more call instead of
+ * the caller repeating a whole operation and its listings. A call is retried when
+ * <ul>
+ *     <li>vCenter rejected it with a {@code TaskInProgress} fault, the object being busy with another task</li>
+ *     <li>the connection could not be opened, so the request never reached vCenter</li>
+ *     <li>it only reads, and failed with a socket timeout or a system, host communication or plain runtime
+ *     fault</li>
+ * </ul>
+ * Calls changing the inventory are not retried on timeouts and runtime faults, as they may have been carried out.
+ * Attempts are spaced by exponential backoff with full jitter, between 0 and {@code vsphere.retry.baseDelay}
+ * times 2<sup>attempt - 1</sup> milliseconds capped at {@code vsphere.retry.maxDelay}, up to
+ * {@code vsphere.retry.maxAttempts} attempts per call. Retries also draw on a budget per endpoint holding up to
+ * {@code vsphere.retry.budgetReserve} retries and refilled by {@code vsphere.retry.budgetRatio} of a retry per
+ * call, so an endpoint in trouble sees at most that share of extra calls instead of every call tripled.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class VimRetryPolicy {
+    static private final Logger logger = Vsphere.getLogger(VimRetryPolicy.class);
+
+    static public final String MAX_ATTEMPTS_PROPERTY = "vsphere.retry.maxAttempts";
+    static public final String BASE_DELAY_PROPERTY = "vsphere.retry.baseDelay";
+    static public final String MAX_DELAY_PROPERTY = "vsphere.retry.maxDelay";
+    static public final String BUDGET_RATIO_PROPERTY = "vsphere.retry.budgetRatio";
+    static public final String BUDGET_RESERVE_PROPERTY = "vsphere.retry.budgetReserve";
+
+    static public final int DEFAULT_MAX_ATTEMPTS = 3;
+    static public final long DEFAULT_BASE_DELAY = 200L;
+    static public final long DEFAULT_MAX_DELAY = 5000L;
+    static public final double DEFAULT_BUDGET_RATIO = 0.1;
+    static public final double DEFAULT_BUDGET_RESERVE = 10;
+
+    static private final Set<String> READ_METHODS = new HashSet<String>(Arrays.asList(
+            "retrieveServiceContent", "retrieveProperties", "retrievePropertiesEx", "waitForUpdates",
+            "waitForUpdatesEx", "checkForUpdates", "currentTime", "sessionIsActive", "findByInventoryPath",
+            "findByUuid", "findAllByUuid", "findByIp", "findAllByIp", "findByDnsName", "findAllByDnsName", "findChild",
+            "searchDatastoreTask", "searchDatastoreSubFoldersTask", "queryPerf", "queryAvailablePerfMetric"));
+
+    static private final ConcurrentHashMap<String, VimRetryPolicy> instances = new ConcurrentHashMap<String, VimRetryPolicy>();
+
+    /**
+     * @param endpoint the vCenter endpoint
+     * @return the retry policy of the endpoint
+     */
+    static public @Nonnull VimRetryPolicy getInstance(@Nonnull String endpoint) {
+        VimRetryPolicy policy = instances.get(endpoint);
+
+        if( policy == null ) {
+            VimRetryPolicy created = new VimRetryPolicy(endpoint);
+            policy = instances.putIfAbsent(endpoint, created);
+            if( policy == null ) {
+                policy = created;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @param method a {@code VimPortType} method name
+     * @return true if calling the method again cannot change the inventory
+     */
+    static public boolean isRead(@Nonnull String method) {
+        return READ_METHODS.contains(method);
+    }
+
+    /**
+     * @param method the {@code VimPortType} method that failed
+     * @param cause the failure
+     * @return true if the failure is transient and another attempt is safe
+     */
+    static public boolean isRetriable(@Nonnull String method, @Nullable Throwable cause) {
+        if( cause instanceof TaskInProgressFaultMsg || hasCause(cause, ConnectException.class) ) {
+            return true;
+        }
+        if( !isRead(method) ) {
+            return false;
+        }
+        if( cause instanceof RuntimeFaultFaultMsg ) {
+            RuntimeFault fault = (( RuntimeFaultFaultMsg ) cause).getFaultInfo();
+
+            // security errors, invalid requests and missing objects will fail the same way again
+            return (fault == null || fault.getClass() == RuntimeFault.class || fault instanceof SystemError || fault instanceof HostCommunication);
+        }
+        return (cause instanceof WebServiceException && hasCause(cause, SocketTimeoutException.class));
+    }
+
+    static private boolean hasCause(@Nullable Throwable t, @Nonnull Class<? extends Throwable> type) {
+        while( t != null ) {
+            if( type.isInstance(t) ) {
+                return true;
+            }
+            t = (t.getCause() == t ? null : t.getCause());
+        }
+        return false;
+    }
+
+    private final String endpoint;
+    private final Random random = new Random();
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY;
+    private volatile double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private volatile double budgetReserve = DEFAULT_BUDGET_RESERVE;
+
+    private double balance = DEFAULT_BUDGET_RESERVE;
+    private long retries;
+    private long refusals;
+
+    private VimRetryPolicy(@Nonnull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    static private double getNumber(@Nonnull Vsphere provider, @Nonnull String name, double defaultValue) {
+        String value = provider.getCustomProperty(name);
+
+        if( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Applies the retry settings of the provider's context; the last provider to connect sets them for the endpoint.
+     * @param provider the provider whose context holds the settings
+     */
+    public void configure(@Nonnull Vsphere provider) {
+        maxAttempts = Math.max(1, ( int ) getNumber(provider, MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+        baseDelayMillis = Math.max(0, ( long ) getNumber(provider, BASE_DELAY_PROPERTY, DEFAULT_BASE_DELAY));
+        maxDelayMillis = Math.max(baseDelayMillis, ( long ) getNumber(provider, MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY));
+        budgetRatio = Math.max(0, getNumber(provider, BUDGET_RATIO_PROPERTY, DEFAULT_BUDGET_RATIO));
+        budgetReserve = Math.max(0, getNumber(provider, BUDGET_RESERVE_PROPERTY, DEFAULT_BUDGET_RESERVE));
+        synchronized( this ) {
+            balance = Math.min(balance, budgetReserve);
+        }
+    }
+
+    /**
+     * Counts a call, its first attempt adding to the retry budget.
+     */
+    public synchronized void called() {
+        balance = Math.min(budgetReserve, balance + budgetRatio);
+    }
+
+    /**
+     * Takes a retry from the budget if the failure is worth one.
+     * @param method the {@code VimPortType} method that failed
+     * @param cause the failure
+     * @param attempt the attempt that failed, starting at 1
+     * @return true if the call should be attempted again
+     */
+    public boolean retry(@Nonnull String method, @Nullable Throwable cause, int attempt) {
+        if( attempt >= maxAttempts || !isRetriable(method, cause) ) {
+            return false;
+        }
+        synchronized( this ) {
+            if( balance < 1 ) {
+                refusals++;
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Retry budget of " + endpoint + " spent, not retrying " + method);
+                }
+                return false;
+            }
+            balance -= 1;
+            retries++;
+        }
+        return true;
+    }
+
+    /**
+     * @param attempt the attempt that failed, starting at 1
+     * @return how long to wait before the next attempt
+     */
+    public long getDelay(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+
+        if( ceiling <= 0 ) {
+            return 0;
+        }
+        synchronized( random ) {
+            return ( long ) (random.nextDouble() * ceiling);
+        }
+    }
+
+    public @Nonnull String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the retries made since the policy was created
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the retriable failures not retried because the budget was spent
+     */
+    public synchronized long getRefusals() {
+        return refusals;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.MessageContext;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP settings of the vim ports, taken from the context's custom properties:
+ * <ul>
+ *     <li>{@link #CONNECT_TIMEOUT_PROPERTY} and {@link #READ_TIMEOUT_PROPERTY} in milliseconds</li>
+ *     <li>{@link #GZIP_PROPERTY} asks vCenter for gzip compressed responses, on unless set to false</li>
+ *     <li>{@link #TLS_SESSION_TIMEOUT_PROPERTY} in seconds and {@link #TLS_SESSION_CACHE_SIZE_PROPERTY} for the
+ *     client TLS session cache of the JVM's default {@link SSLContext}, applied once by the first provider that
+ *     sets them and left to the JDK otherwise</li>
+ * </ul>
+ * Every port uses the JVM wide default HTTPS socket factory, so the trust and key managers an application installs
+ * through {@link HttpsURLConnection#setDefaultSSLSocketFactory(SSLSocketFactory)} apply to vCenter as well. Being
+ * the same for every port, TLS sessions are resumed and kept-alive connections are reused across provider
+ * instances; the JDK only reuses a cached HTTPS connection for the socket factory it was opened with. The number
+ * of idle connections kept per vCenter is the JVM wide {@code http.maxConnections}.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class VimTransport {
+    static private final Logger logger = Vsphere.getLogger(VimTransport.class);
+
+    static public final String CONNECT_TIMEOUT_PROPERTY = "vsphere.http.connectTimeout";
+    static public final String READ_TIMEOUT_PROPERTY = "vsphere.http.readTimeout";
+    static public final String GZIP_PROPERTY = "vsphere.http.gzip";
+    static public final String TLS_SESSION_TIMEOUT_PROPERTY = "vsphere.tls.sessionTimeout";
+    static public final String TLS_SESSION_CACHE_SIZE_PROPERTY = "vsphere.tls.sessionCacheSize";
+
+    static public final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    static public final int DEFAULT_READ_TIMEOUT = 600000;
+
+    // the JDK and the standalone JAX-WS runtimes read the same settings under different prefixes
+    static private final String[] RUNTIME_PREFIXES = { "com.sun.xml.internal.ws.", "com.sun.xml.ws." };
+
+    static private boolean sessionsConfigured;
+
+    /**
+     * The session cache is shared by everything in the JVM using the default context, so the settings of the first
+     * provider that has them are applied once and never changed afterwards.
+     */
+    static private synchronized void configureSessions(@Nonnull Vsphere provider) throws InternalException {
+        if( sessionsConfigured ) {
+            return;
+        }
+        String timeout = provider.getCustomProperty(TLS_SESSION_TIMEOUT_PROPERTY);
+        String cacheSize = provider.getCustomProperty(TLS_SESSION_CACHE_SIZE_PROPERTY);
+
+        if( timeout == null && cacheSize == null ) {
+            return;
+        }
+        try {
+            SSLSessionContext sessions = SSLContext.getDefault().getClientSessionContext();
+
+            if( timeout != null ) {
+                sessions.setSessionTimeout(getInt(provider, TLS_SESSION_TIMEOUT_PROPERTY, sessions.getSessionTimeout()));
+            }
+            if( cacheSize != null ) {
+                sessions.setSessionCacheSize(getInt(provider, TLS_SESSION_CACHE_SIZE_PROPERTY, sessions.getSessionCacheSize()));
+            }
+            sessionsConfigured = true;
+        }
+        catch( GeneralSecurityException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private int getInt(@Nonnull Vsphere provider, @Nonnull String name, int defaultValue) {
+        String value = provider.getCustomProperty(name);
+
+        if( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param provider the provider whose context holds the settings
+     * @return the longest a long poll such as {@code WaitForUpdatesEx} may ask vCenter to hold the request, kept
+     * below the read timeout so an empty wait ends with vCenter's answer rather than a socket timeout
+     */
+    static public int getMaxWaitSeconds(@Nonnull Vsphere provider) {
+        int readTimeout = getInt(provider, READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+
+        return Math.max(1, readTimeout / 1000 * 9 / 10);
+    }
+
+    /**
+     * Applies the transport settings of the provider's context to a vim port or dispatch.
+     * @param port the port to configure
+     * @param provider the provider whose context holds the settings
+     * @throws InternalException the default TLS context is not available
+     */
+    static public void configure(@Nonnull BindingProvider port, @Nonnull Vsphere provider) throws InternalException {
+        Map<String, Object> requestContext = port.getRequestContext();
+        int connectTimeout = getInt(provider, CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT);
+        int readTimeout = getInt(provider, READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+        configureSessions(provider);
+        SSLSocketFactory socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+
+        for( String prefix : RUNTIME_PREFIXES ) {
+            requestContext.put(prefix + "connect.timeout", connectTimeout);
+            requestContext.put(prefix + "request.timeout", readTimeout);
+            requestContext.put(prefix + "transport.https.client.SSLSocketFactory", socketFactory);
+        }
+        if( !"false".equalsIgnoreCase(provider.getCustomProperty(GZIP_PROPERTY)) ) {
+            // the runtime inflates the response itself when vCenter honours the header
+            addHeader(port, "Accept-Encoding", "gzip");
+        }
+    }
+
+    /**
+     * Adds an HTTP header to every request of the port, keeping the headers already set.
+     * @param port the port
+     * @param name the header name
+     * @param value the header value
+     */
+    @SuppressWarnings("unchecked")
+    static public void addHeader(@Nonnull BindingProvider port, @Nonnull String name, @Nonnull String value) {
+        Map<String, List<String>> current = (Map<String, List<String>>) port.getRequestContext().get(MessageContext.HTTP_REQUEST_HEADERS);
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+
+        if( current != null ) {
+            headers.putAll(current);
+        }
+        List<String> values = new ArrayList<String>();
+        if( headers.get(name) != null ) {
+            values.addAll(headers.get(name));
+        }
+        values.add(value);
+        headers.put(name, Collections.unmodifiableList(values));
+        port.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+    }
+}
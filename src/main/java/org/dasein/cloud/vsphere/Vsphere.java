@@ -22,10 +22,12 @@ package org.dasein.cloud.vsphere;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.ContextRequirements;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
@@ -44,7 +46,7 @@ import org.dasein.util.CalendarWrapper;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.ws.BindingProvider;
-import javax.net.ssl.SSLContext;
+import javax.xml.ws.handler.MessageContext;
 
 
 /**
@@ -53,7 +55,6 @@ import javax.net.ssl.SSLContext;
  * @since 2013.01
  */
 public class Vsphere extends AbstractCloud {
-    private int sessionTimeout = 0;
     private String vimHostname;
     private VsphereConnection vsphereConnection;
     private int apiMajorVersion;
@@ -64,6 +65,19 @@ public class Vsphere extends AbstractCloud {
 
     public int getApiMajorVersion() { return apiMajorVersion; }
 
+    /**
+     * @param name the name of a custom property set on the provider context
+     * @return the property value or null if the context or the property is not set
+     */
+    public @Nullable String getCustomProperty(@Nonnull String name) {
+        ProviderContext ctx = getContext();
+        if( ctx == null ) {
+            return null;
+        }
+        Properties properties = ctx.getCustomProperties();
+        return (properties == null ? null : properties.getProperty(name));
+    }
+
     static private final Logger log = getLogger(Vsphere.class);
 
     static private @Nonnull String getLastItem(@Nonnull String name) {
@@ -91,7 +105,7 @@ public class Vsphere extends AbstractCloud {
     }
 
     static public @Nonnull Logger getWireLogger(@Nonnull Class<?> cls) {
-        return Logger.getLogger("dasein.cloud.skeleton.wire." + getLastItem(cls.getPackage().getName()) + "." + getLastItem(cls.getName()));
+        return Logger.getLogger("dasein.cloud.vsphere.wire." + getLastItem(cls.getPackage().getName()) + "." + getLastItem(cls.getName()));
     }
 
     public Vsphere() { 
@@ -130,23 +144,25 @@ public class Vsphere extends AbstractCloud {
             VimPortType vimPortType;
             UserSession userSession;
             try {
-                SSLContext sc = SSLContext.getInstance("SSL");
-                sc.getServerSessionContext().setSessionTimeout(sessionTimeout);
-                sc.init(null, null, null);
-
-                
-                //HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-
                 ManagedObjectReference servicesInstance = new ManagedObjectReference();
                 servicesInstance.setType("ServiceInstance");
                 servicesInstance.setValue("ServiceInstance");
 
-                vimService = new com.vmware.vim25.VimService();
-                vimPortType = vimService.getVimPort();
+                // parsing the wsdl and binding the vim types is done once per JVM, only the port is per connection
+                vimService = SharedVimService.getVimService();
+                // every vim call, login included, is admitted by the endpoint's limiter, then timed and counted,
+                // transient faults being retried there rather than surfaced to the caller
+                boolean payloadBytes = "true".equalsIgnoreCase(getCustomProperty(InstrumentedVimPort.PAYLOAD_BYTES_PROPERTY));
+                VimLimiter limiter = getVimLimiter();
+                limiter.configure(this);
+                VimRetryPolicy retryPolicy = VimRetryPolicy.getInstance(limiter.getEndpoint());
+                retryPolicy.configure(this);
+                vimPortType = InstrumentedVimPort.wrap(vimService.getVimPort(), getVimMetrics(), limiter, retryPolicy, payloadBytes);
                 Map<String, Object> ctxt = ((BindingProvider) vimPortType).getRequestContext();
 
                 ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, ctx.getCloud().getEndpoint());
                 ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+                VimTransport.configure((BindingProvider) vimPortType, this);
 
                 serviceContent = vimPortType.retrieveServiceContent(servicesInstance);
             } catch (Exception e) {
@@ -168,8 +184,10 @@ public class Vsphere extends AbstractCloud {
                 throw new InternalException(e);
             }
 
+            String sessionCookie = null;
             try {
                 userSession = vimPortType.login(serviceContent.getSessionManager(), username, password, null);
+                sessionCookie = getSessionCookie((BindingProvider) vimPortType);
             } catch (Exception e) {
                 throw new CloudException(e.getMessage());
             }
@@ -178,11 +196,86 @@ public class Vsphere extends AbstractCloud {
             apiVersion = apiVersion.substring(0, apiVersion.indexOf("."));
             apiMajorVersion = Integer.parseInt(apiVersion);
 
-            vsphereConnection = new VsphereConnection(vimService, vimPortType, userSession, serviceContent);
+            vsphereConnection = new VsphereConnection(vimService, vimPortType, userSession, serviceContent, sessionCookie);
         }
         return vsphereConnection;
     }
 
+    @SuppressWarnings("unchecked")
+    static private @Nullable String getSessionCookie(@Nonnull BindingProvider port) {
+        Map<String, List<String>> headers = (Map<String, List<String>>) port.getResponseContext().get(MessageContext.HTTP_RESPONSE_HEADERS);
+
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if ("Set-Cookie".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+                for (String cookie : header.getValue()) {
+                    if (cookie.startsWith("vmware_soap_session")) {
+                        int idx = cookie.indexOf(';');
+                        return (idx < 0 ? cookie : cookie.substring(0, idx));
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs in and loads regions, data centers, hosts, networks and the resource pool tree into their caches
+     * so the first requests do not pay for them. Nothing calls this implicitly, services that want to be ready
+     * before taking traffic call it once after connecting.
+     * @return the per-dataset timings and failures
+     * @throws CloudException the login failed
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull WarmUp.Report warmUp() throws CloudException, InternalException {
+        return new WarmUp(this).run();
+    }
+
+    /**
+     * Connects a new provider with a copy of the current context, for work that runs beside the current call and so
+     * must not share its connection, the vim port not being safe for concurrent use. The new provider logs in on
+     * its first vim call and logs out when the caller closes it.
+     * @return the new provider, to be closed by the caller
+     * @throws CloudException the copied context could not be connected
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Vsphere connectCopy() throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        CloudProvider provider = ctx.copy(ctx.getRegionId()).connect();
+
+        if( !(provider instanceof Vsphere) ) {
+            provider.close();
+            throw new InternalException("Context connected a " + provider.getClass().getName() + " instead of a vSphere provider");
+        }
+        return ( Vsphere ) provider;
+    }
+
+    /**
+     * @return the vim call statistics of the vCenter of the current context
+     */
+    public @Nonnull VimMetrics getVimMetrics() {
+        ProviderContext ctx = getContext();
+        String endpoint = (ctx == null || ctx.getCloud() == null ? null : ctx.getCloud().getEndpoint());
+
+        return VimMetrics.getInstance(endpoint == null ? "" : endpoint);
+    }
+
+    /**
+     * @return the limiter shared by every connection to the vCenter of the current context
+     */
+    public @Nonnull VimLimiter getVimLimiter() {
+        ProviderContext ctx = getContext();
+        String endpoint = (ctx == null || ctx.getCloud() == null ? null : ctx.getCloud().getEndpoint());
+
+        return VimLimiter.getInstance(endpoint == null ? "" : endpoint);
+    }
+
     @Override
     public @Nonnull VsphereCompute getComputeServices() {
         return new VsphereCompute(this);
@@ -0,0 +1,686 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache policy layer over the Dasein {@link Cache}. The time to live, stale grace and refresh-ahead of each
+ * cache can be set through context properties, with the values the provider used so far as defaults:
+ * <ul>
+ *     <li>{@code vsphere.cache.<name>.ttl} time to live in seconds</li>
+ *     <li>{@code vsphere.cache.<name>.refreshAhead} fraction of the time to live (e.g. 0.8) after which the entry
+ *     is reloaded in the background while readers keep being served the cached value, 0 to disable</li>
+ *     <li>{@code vsphere.cache.<name>.staleGrace} seconds after expiry during which readers are still served the
+ *     expired value while it is reloaded in the background, 0 to disable</li>
+ * </ul>
+ * Reads either follow the same get/put pattern as {@link Cache}, where a null from {@link #get(ProviderContext)}
+ * tells the caller to load and {@link #put(ProviderContext, Iterable)} the result, or hand a {@link Loader} to
+ * {@link #get(ProviderContext, Loader)}. Only the latter can serve stale values; its loads on a miss are
+ * coalesced through {@link SingleFlight}. Readers that must not wait for a load at all, not even after a miss,
+ * use {@link #getCached(ProviderContext, Loader)} instead.
+ * <p>
+ * When {@code vsphere.cache.proactiveRefresh.topN} is set, the most read loader-backed entries are also marked for
+ * reload shortly before they expire, ranked every {@code vsphere.cache.proactiveRefresh.interval} seconds
+ * (default 60), and the next read of a marked entry starts its reload in the background.
+ * </p>
+ * Loads after a miss run in the thread of the reader through its provider. Background reloads run on a small pool
+ * of daemon threads, each through a provider of its own connected from a copy of the reader's context and closed
+ * once the reload is done, so the reader's provider and its vim port are never used beyond the reader's call or
+ * from another thread. Only keys and load times are kept statically, never providers or loaders.
+ * Hits, misses and load times are counted per cache name and available through {@link #getStatistics()}.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class VsphereCache<T> {
+    static private final Logger logger = Vsphere.getLogger(VsphereCache.class);
+
+    static public final String PROPERTY_PREFIX = "vsphere.cache.";
+
+    // a refresh that has not completed by then is assumed to have failed and may be claimed by another reader
+    static private final long REFRESH_TIMEOUT = 60L * 1000L;
+
+    static private final Map<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+    static private final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+    static private final ConcurrentHashMap<String, Long> refreshes = new ConcurrentHashMap<String, Long>();
+    static private final String PROACTIVE_PREFIX = PROPERTY_PREFIX + "proactiveRefresh.";
+    // hot entries are reloaded once this much of their time to live has passed
+    static private final double PROACTIVE_FRACTION = 0.75;
+
+    static private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<String, HotKey>();
+    // hot entries the next reader should reload
+    static private final ConcurrentHashMap<String, Boolean> dueKeys = new ConcurrentHashMap<String, Boolean>();
+    static private final AtomicLong lastRanking = new AtomicLong(System.currentTimeMillis());
+    static private volatile int proactiveTopN = 0;
+    static private volatile long proactiveInterval = 60L * 1000L;
+
+    static private final int REFRESH_THREADS = 2;
+    static private final int REFRESH_QUEUE = 100;
+    // idle threads time out, so the pool holds no threads while nothing is being refreshed
+    static private final ThreadPoolExecutor refresher = createRefresher();
+
+    /**
+     * Loads the items of a cache entry. A loader reaches vCenter only through the provider it is given, which is the
+     * reader's own provider after a miss and a provider of the refresh's own for background reloads.
+     */
+    public interface Loader<T> {
+        @Nonnull Iterable<T> load(@Nonnull Vsphere provider) throws InternalException, CloudException;
+    }
+
+    static private @Nonnull ThreadPoolExecutor createRefresher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "vsphere-cache-refresh-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // a loader-backed entry along with how often it was read since the last ranking, only keys are kept
+    static private class HotKey {
+        final String key;
+        final long ttl;
+        final AtomicLong reads = new AtomicLong();
+        long lastReads;
+
+        HotKey(String key, long ttl) {
+            this.key = key;
+            this.ttl = ttl;
+        }
+    }
+
+    static private final ThreadLocal<Map<String, Long>> pendingLoads = new ThreadLocal<Map<String, Long>>() {
+        @Override
+        protected Map<String, Long> initialValue() {
+            return new HashMap<String, Long>();
+        }
+    };
+
+    /**
+     * Hit, miss and load time counters of one cache.
+     */
+    static public class Statistics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong staleHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong refreshes = new AtomicLong();
+        private final AtomicLong loads = new AtomicLong();
+        private final AtomicLong loadMillis = new AtomicLong();
+        private final AtomicLong maxLoadMillis = new AtomicLong();
+        private final AtomicLong refreshLoads = new AtomicLong();
+        private final AtomicLong refreshFailures = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @return the number of reads served an expired value while it was reloaded in the background
+         */
+        public long getStaleHits() {
+            return staleHits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * @return the number of background reloads of aging, expired or hot entries that were started
+         */
+        public long getRefreshes() {
+            return refreshes.get();
+        }
+
+        public long getLoads() {
+            return loads.get();
+        }
+
+        public long getTotalLoadMillis() {
+            return loadMillis.get();
+        }
+
+        public long getMaxLoadMillis() {
+            return maxLoadMillis.get();
+        }
+
+        public long getAverageLoadMillis() {
+            long count = loads.get();
+            return (count == 0 ? 0 : loadMillis.get() / count);
+        }
+
+        /**
+         * @return the number of background reloads that completed
+         */
+        public long getRefreshLoads() {
+            return refreshLoads.get();
+        }
+
+        /**
+         * @return the number of background reloads that failed or could not be started, the cached value being
+         * served until the next attempt
+         */
+        public long getRefreshFailures() {
+            return refreshFailures.get();
+        }
+
+        public double getHitRatio() {
+            long served = hits.get() + staleHits.get();
+            long reads = served + misses.get();
+            return (reads == 0 ? 0.0 : ( double ) served / ( double ) reads);
+        }
+
+        void recordLoad(long millis) {
+            loads.incrementAndGet();
+            loadMillis.addAndGet(millis);
+            long max = maxLoadMillis.get();
+            while( millis > max && !maxLoadMillis.compareAndSet(max, millis) ) {
+                max = maxLoadMillis.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + getHits() + ", staleHits=" + getStaleHits() + ", misses=" + getMisses() + ", refreshes=" + getRefreshes() + ", loads=" + getLoads() + ", refreshLoads=" + getRefreshLoads() + ", refreshFailures=" + getRefreshFailures() + ", avgLoadMillis=" + getAverageLoadMillis() + ", maxLoadMillis=" + getMaxLoadMillis();
+        }
+    }
+
+    /**
+     * Creates the cache with the policy configured for it in the context of the provider.
+     * @param provider the provider the cache is used by
+     * @param name the cache name, also used for the context property names
+     * @param ofType the type of the cached objects
+     * @param level the level the cache is shared at
+     * @param defaultTimeout the time to live if none is configured
+     * @return the cache
+     */
+    static public @Nonnull <T> VsphereCache<T> getInstance(@Nonnull Vsphere provider, @Nonnull String name, @Nonnull Class<T> ofType, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> defaultTimeout) {
+        return getInstance(provider, name, ofType, level, defaultTimeout, null);
+    }
+
+    /**
+     * Creates the cache with the policy configured for it in the context of the provider.
+     * @param provider the provider the cache is used by
+     * @param name the cache name, also used for the context property names
+     * @param ofType the type of the cached objects
+     * @param level the level the cache is shared at
+     * @param defaultTimeout the time to live if none is configured
+     * @param defaultStaleGrace how long expired values may be served while they are reloaded, if none is configured
+     * @return the cache
+     */
+    static public @Nonnull <T> VsphereCache<T> getInstance(@Nonnull Vsphere provider, @Nonnull String name, @Nonnull Class<T> ofType, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> defaultTimeout, @Nullable TimePeriod<?> defaultStaleGrace) {
+        long ttl = defaultTimeout.convertTo(TimePeriod.MILLISECOND).longValue();
+        ttl = getLongProperty(provider, name, "ttl", ttl / 1000L) * 1000L;
+        long grace = (defaultStaleGrace == null ? 0 : defaultStaleGrace.convertTo(TimePeriod.MILLISECOND).longValue());
+        grace = getLongProperty(provider, name, "staleGrace", grace / 1000L) * 1000L;
+        double refreshAhead = getDoubleProperty(provider, name, "refreshAhead", 0.0);
+
+        configureProactiveRefresh(provider);
+        // the underlying cache keeps values through the grace period, freshness is tracked here
+        Cache<T> cache = Cache.getInstance(provider, name, ofType, level, new TimePeriod<Millisecond>(ttl + grace, TimePeriod.MILLISECOND));
+        return new VsphereCache<T>(provider, cache, name, level, ttl, grace, refreshAhead);
+    }
+
+    /**
+     * @return a snapshot of the statistics of every cache used so far, by cache name
+     */
+    static public @Nonnull Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<String, Statistics>(statistics));
+    }
+
+    static private @Nonnull Statistics getStatistics(@Nonnull String name) {
+        Statistics stats = statistics.get(name);
+
+        if( stats == null ) {
+            synchronized( statistics ) {
+                stats = statistics.get(name);
+                if( stats == null ) {
+                    stats = new Statistics();
+                    statistics.put(name, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    static private long getLongProperty(@Nonnull Vsphere provider, @Nonnull String name, @Nonnull String property, long defaultValue) {
+        return getLongProperty(provider, PROPERTY_PREFIX + name + "." + property, defaultValue);
+    }
+
+    static private long getLongProperty(@Nonnull Vsphere provider, @Nonnull String property, long defaultValue) {
+        String value = provider.getCustomProperty(property);
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value " + value + " for " + property);
+            }
+        }
+        return defaultValue;
+    }
+
+    static private void configureProactiveRefresh(@Nonnull Vsphere provider) {
+        int topN = ( int ) getLongProperty(provider, PROACTIVE_PREFIX + "topN", 0);
+
+        if( topN <= 0 ) {
+            return;
+        }
+        proactiveTopN = topN;
+        proactiveInterval = Math.max(1, getLongProperty(provider, PROACTIVE_PREFIX + "interval", 60)) * 1000L;
+    }
+
+    /**
+     * Marks the most read entries of the last interval that are close to expiring, so their next read starts a
+     * background reload. Entries that were not read at all are forgotten.
+     * @param now the current time
+     */
+    static private void rankHotKeys(long now) {
+        try {
+            List<HotKey> keys = new ArrayList<HotKey>();
+
+            for( HotKey hk : hotKeys.values() ) {
+                hk.lastReads = hk.reads.getAndSet(0);
+                if( hk.lastReads == 0 ) {
+                    hotKeys.remove(hk.key, hk);
+                }
+                else {
+                    keys.add(hk);
+                }
+            }
+            Collections.sort(keys, new Comparator<HotKey>() {
+                @Override
+                public int compare(HotKey a, HotKey b) {
+                    return (a.lastReads < b.lastReads ? 1 : (a.lastReads == b.lastReads ? 0 : -1));
+                }
+            });
+            int topN = proactiveTopN;
+            for( int i = 0; i < keys.size() && i < topN; i++ ) {
+                HotKey hk = keys.get(i);
+                Long loaded = loadTimes.get(hk.key);
+
+                if( loaded != null && now - loaded > ( long ) (hk.ttl * PROACTIVE_FRACTION) ) {
+                    dueKeys.put(hk.key, Boolean.TRUE);
+                }
+            }
+        }
+        catch( Throwable t ) {
+            logger.warn("Ranking hot cache entries failed: " + t.getMessage());
+        }
+    }
+
+    static private double getDoubleProperty(@Nonnull Vsphere provider, @Nonnull String name, @Nonnull String property, double defaultValue) {
+        String value = provider.getCustomProperty(PROPERTY_PREFIX + name + "." + property);
+
+        if( value != null ) {
+            try {
+                return Double.parseDouble(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value " + value + " for " + PROPERTY_PREFIX + name + "." + property);
+            }
+        }
+        return defaultValue;
+    }
+
+    // only used for the duration of the call that created this instance, to copy its context for background reloads
+    private Vsphere provider;
+    private Cache<T> cache;
+    private String name;
+    private CacheLevel level;
+    private long ttl;
+    private long staleGrace;
+    private double refreshAhead;
+    private Statistics stats;
+
+    private VsphereCache(@Nonnull Vsphere provider, @Nonnull Cache<T> cache, @Nonnull String name, @Nonnull CacheLevel level, long ttl, long staleGrace, double refreshAhead) {
+        this.provider = provider;
+        this.cache = cache;
+        this.name = name;
+        this.level = level;
+        this.ttl = ttl;
+        this.staleGrace = staleGrace;
+        this.refreshAhead = refreshAhead;
+        this.stats = getStatistics(name);
+    }
+
+    /**
+     * @param ctx the context to read the cache for
+     * @return the cached items or null if the caller has to load them, either because nothing is cached or
+     * because the entry is due for an early refresh
+     */
+    public @Nullable Iterable<T> get(@Nonnull ProviderContext ctx) {
+        String key = getKey(ctx);
+        long now = System.currentTimeMillis();
+        Iterable<T> items = cache.get(ctx);
+        Long loaded = loadTimes.get(key);
+
+        // the underlying cache may have been created with a longer timeout than the configured one
+        if( items != null && loaded != null && now - loaded > ttl ) {
+            items = null;
+        }
+        if( items == null ) {
+            stats.misses.incrementAndGet();
+            pendingLoads.get().put(key, now);
+            return null;
+        }
+        if( refreshAhead > 0 && loaded != null && now - loaded > ( long ) (ttl * refreshAhead) && claimRefresh(key, now) ) {
+            stats.refreshes.incrementAndGet();
+            pendingLoads.get().put(key, now);
+            return null;
+        }
+        stats.hits.incrementAndGet();
+        return items;
+    }
+
+    /**
+     * Reads the cache and loads the entry if needed. Fresh values are returned as they are. Values within the stale
+     * grace period, and fresh values due for refresh-ahead or marked as hot, are returned as well while the first
+     * reader to see them starts a background reload. Otherwise the loader runs in the calling thread through the
+     * provider of this cache, shared with concurrent callers for the same entry.
+     * @param ctx the context to read the cache for
+     * @param loader loads the items of the entry
+     * @return the cached or loaded items
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nonnull Iterable<T> get(@Nonnull final ProviderContext ctx, @Nonnull final Loader<T> loader) throws InternalException, CloudException {
+        final String key = getKey(ctx);
+        long now = System.currentTimeMillis();
+        Iterable<T> items = cache.get(ctx);
+        Long loaded = loadTimes.get(key);
+
+        recordRead(key, now);
+        if( items != null ) {
+            long age = (loaded == null ? 0 : now - loaded);
+
+            if( age <= ttl ) {
+                boolean due = (refreshAhead > 0 && age > ( long ) (ttl * refreshAhead)) || dueKeys.containsKey(key);
+
+                if( due && claimRefresh(key, now) ) {
+                    dueKeys.remove(key);
+                    refreshInBackground(ctx, key, loader);
+                }
+                stats.hits.incrementAndGet();
+                return items;
+            }
+            if( age <= ttl + staleGrace ) {
+                if( claimRefresh(key, now) ) {
+                    refreshInBackground(ctx, key, loader);
+                }
+                stats.staleHits.incrementAndGet();
+                return items;
+            }
+        }
+        stats.misses.incrementAndGet();
+        return SingleFlight.execute("cache|" + key, new SingleFlight.Call<Iterable<T>>() {
+            @Override
+            public Iterable<T> call() throws InternalException, CloudException {
+                long started = System.currentTimeMillis();
+                Iterable<T> result = loader.load(provider);
+                store(ctx, key, result, started);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Reads the cache without ever loading in the calling thread, for readers that would rather do without the
+     * items than wait for them. Values are returned for as long as the underlying cache keeps them; the first reader
+     * to see a value due for refresh, past its time to live or missing starts a background reload.
+     * @param ctx the context to read the cache for
+     * @param loader loads the items of the entry in the background
+     * @return the cached items, however old, or null if nothing is cached yet
+     */
+    public @Nullable Iterable<T> getCached(@Nonnull ProviderContext ctx, @Nonnull Loader<T> loader) {
+        String key = getKey(ctx);
+        long now = System.currentTimeMillis();
+        Iterable<T> items = cache.get(ctx);
+        Long loaded = loadTimes.get(key);
+
+        recordRead(key, now);
+        if( items == null ) {
+            stats.misses.incrementAndGet();
+            if( claimRefresh(key, now) ) {
+                refreshInBackground(ctx, key, loader);
+            }
+            return null;
+        }
+        long age = (loaded == null ? 0 : now - loaded);
+        boolean due = age > ttl || (refreshAhead > 0 && age > ( long ) (ttl * refreshAhead)) || dueKeys.containsKey(key);
+
+        if( due && claimRefresh(key, now) ) {
+            dueKeys.remove(key);
+            refreshInBackground(ctx, key, loader);
+        }
+        if( age > ttl ) {
+            stats.staleHits.incrementAndGet();
+        }
+        else {
+            stats.hits.incrementAndGet();
+        }
+        return items;
+    }
+
+    /**
+     * Reads the cache without counting the read or triggering a refresh.
+     * @param ctx the context to read the cache for
+     * @return the cached items or null if nothing is cached
+     */
+    public @Nullable Iterable<T> peek(@Nonnull ProviderContext ctx) {
+        Iterable<T> items = cache.get(ctx);
+        Long loaded = loadTimes.get(getKey(ctx));
+
+        if( items != null && loaded != null && System.currentTimeMillis() - loaded > ttl ) {
+            return null;
+        }
+        return items;
+    }
+
+    /**
+     * Caches the items loaded after a miss.
+     * @param ctx the context the items were loaded for
+     * @param items the loaded items
+     */
+    public void put(@Nonnull ProviderContext ctx, @Nonnull Iterable<T> items) {
+        String key = getKey(ctx);
+
+        store(ctx, key, items, pendingLoads.get().remove(key));
+    }
+
+    private void store(@Nonnull ProviderContext ctx, @Nonnull String key, @Nonnull Iterable<T> items, @Nullable Long started) {
+        long now = System.currentTimeMillis();
+
+        if( started != null ) {
+            stats.recordLoad(now - started);
+        }
+        try {
+            cache.put(ctx, items);
+            loadTimes.put(key, now);
+        }
+        finally {
+            refreshes.remove(key);
+        }
+    }
+
+    /**
+     * Expires the entry of one context beyond its stale grace, so its next read loads it again. The entries of
+     * other contexts are left as they are.
+     * @param ctx the context whose entry is out of date
+     */
+    public void invalidate(@Nonnull ProviderContext ctx) {
+        String key = getKey(ctx);
+
+        // no load time would make the cached value count as fresh, so the entry is dated back instead
+        loadTimes.put(key, 0L);
+        dueKeys.remove(key);
+    }
+
+    /**
+     * Empties the cache for all contexts.
+     */
+    public void clear() {
+        cache.clear();
+        String prefix = name + "|";
+        Iterator<String> it = loadTimes.keySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().startsWith(prefix) ) {
+                it.remove();
+            }
+        }
+    }
+
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    public long getTimeToLiveMillis() {
+        return ttl;
+    }
+
+    public long getStaleGraceMillis() {
+        return staleGrace;
+    }
+
+    private void recordRead(@Nonnull String key, long now) {
+        if( proactiveTopN <= 0 ) {
+            return;
+        }
+        HotKey hk = hotKeys.get(key);
+
+        if( hk == null ) {
+            HotKey created = new HotKey(key, ttl);
+            hk = hotKeys.putIfAbsent(key, created);
+            if( hk == null ) {
+                hk = created;
+            }
+        }
+        hk.reads.incrementAndGet();
+
+        long last = lastRanking.get();
+        if( now - last >= proactiveInterval && lastRanking.compareAndSet(last, now) ) {
+            rankHotKeys(now);
+        }
+    }
+
+    /**
+     * Starts reloading an entry on behalf of the readers still being served its cached value. The reload runs on the
+     * refresh pool through a provider connected from a copy of the reader's context, closed once the reload is done.
+     * A failed reload is logged, the next reader after the refresh timeout trying again; a reload that cannot be
+     * started leaves the entry to the next reader.
+     */
+    private void refreshInBackground(@Nonnull final ProviderContext ctx, @Nonnull final String key, @Nonnull final Loader<T> loader) {
+        final Vsphere detached;
+
+        try {
+            detached = provider.connectCopy();
+        }
+        catch( Exception e ) {
+            refreshes.remove(key);
+            stats.refreshFailures.incrementAndGet();
+            logger.warn("Unable to connect for refresh of " + key + ": " + e.getMessage());
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long started = System.currentTimeMillis();
+
+                    try {
+                        Iterable<T> result = loader.load(detached);
+                        store(ctx, key, result, started);
+                        stats.refreshLoads.incrementAndGet();
+                    }
+                    catch( Throwable t ) {
+                        stats.refreshFailures.incrementAndGet();
+                        logger.warn("Refresh of " + key + " failed: " + t.getMessage());
+                    }
+                    finally {
+                        detached.close();
+                    }
+                }
+            });
+            stats.refreshes.incrementAndGet();
+        }
+        catch( RejectedExecutionException e ) {
+            detached.close();
+            refreshes.remove(key);
+            stats.refreshFailures.incrementAndGet();
+            logger.warn("Refresh of " + key + " not started, " + REFRESH_QUEUE + " refreshes already queued");
+        }
+    }
+
+    private boolean claimRefresh(@Nonnull String key, long now) {
+        Long claimed = refreshes.putIfAbsent(key, now);
+
+        if( claimed == null ) {
+            return true;
+        }
+        return (now - claimed > REFRESH_TIMEOUT && refreshes.replace(key, claimed, now));
+    }
+
+    private @Nonnull String getKey(@Nonnull ProviderContext ctx) {
+        switch( level ) {
+            case CLOUD:
+                return name + "|" + ctx.getEndpoint();
+            case CLOUD_ACCOUNT:
+                return name + "|" + ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+            case REGION:
+                return name + "|" + ctx.getEndpoint() + "|" + ctx.getRegionId();
+            default:
+                return name + "|" + ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId();
+        }
+    }
+}
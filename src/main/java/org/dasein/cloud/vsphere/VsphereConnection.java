@@ -39,12 +39,14 @@ public class VsphereConnection {
     private VimPortType vimPortType = null;
     private UserSession userSession = null;
     private ServiceContent serviceContent = null;
+    private String sessionCookie = null;
 
-    VsphereConnection(VimService vimService, VimPortType vimPortType, UserSession userSession, ServiceContent serviceContent) {
+    VsphereConnection(VimService vimService, VimPortType vimPortType, UserSession userSession, ServiceContent serviceContent, String sessionCookie) {
         this.vimService = vimService;
         this.vimPortType = vimPortType;
         this.userSession = userSession;
         this.serviceContent = serviceContent;
+        this.sessionCookie = sessionCookie;
     }
 
     /**
@@ -74,4 +76,11 @@ public class VsphereConnection {
     public ServiceContent getServiceContent() {
         return serviceContent;
     }
+
+    /**
+     * @return the session cookie set by the login, for calls made outside of the VimPortType
+     */
+    public String getSessionCookie() {
+        return sessionCookie;
+    }
 }
@@ -26,6 +26,7 @@ import org.dasein.cloud.InternalException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -53,8 +54,64 @@ public class VsphereInventoryNavigation {
         ServiceContent serviceContent = vsphereConnection.getServiceContent();
         VimPortType vimPortType = vsphereConnection.getVimPort();
 
-        ManagedObjectReference rootFolder = serviceContent.getRootFolder();
+        VsphereTraversalSpec traversalSpec = getObjectListTraversalSpec(serviceContent.getRootFolder(), baseFolder, selectionSpecsArr, pSpecs);
 
+        ServiceContent vimServiceContent;
+        try {
+            ManagedObjectReference ref = new ManagedObjectReference();
+            ref.setType(VIMSERVICEINSTANCETYPE);
+            ref.setValue(VIMSERVICEINSTANCEVALUE);
+            vimServiceContent = vimPortType.retrieveServiceContent(ref);
+        } catch ( RuntimeFaultFaultMsg e ) {
+            throw new CloudException(e);
+        }
+
+        RetrieveResult props;
+        try {
+            props = vimPortType.retrievePropertiesEx(vimServiceContent.getPropertyCollector(), traversalSpec.getPropertyFilterSpecList(), new RetrieveOptions());
+        } catch ( InvalidPropertyFaultMsg e ) {
+            throw new InternalException("InvalidPropertyFault", e);
+        } catch ( RuntimeFaultFaultMsg e ) {
+            throw new CloudException("RuntimeFault", e);
+        } catch ( Exception e ) {
+            throw new CloudException(e);
+        }
+
+        return props;
+    }
+
+    /**
+     * Retrieves the same objects as {@link #retrieveObjectList} but hands them to the handler one at a time as the
+     * response is read, see {@link PropertyStream}. If the JAX-WS runtime does not stream responses the objects are
+     * retrieved with {@link #retrieveObjectList} instead.
+     * @param provider the vSphere provider
+     * @param baseFolder the datacenter folder to traverse
+     * @param selectionSpecsArr additional traversals, may be null
+     * @param pSpecs the properties to retrieve
+     * @param handler receives every retrieved object
+     */
+    public void streamObjectList(@Nonnull Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs, @Nonnull PropertyStream.Handler handler) throws InternalException, CloudException {
+        if ("".equals(baseFolder)) {
+            throw new CloudException("baseFolder must be non-empty string");
+        }
+        if (pSpecs.size() == 0) {
+            throw new CloudException("PropertySpec list must have at least one element");
+        }
+
+        ServiceContent serviceContent = provider.getServiceInstance().getServiceContent();
+        VsphereTraversalSpec traversalSpec = getObjectListTraversalSpec(serviceContent.getRootFolder(), baseFolder, selectionSpecsArr, pSpecs);
+
+        if (!new PropertyStream(provider).retrieve(traversalSpec.getPropertyFilterSpecList(), handler)) {
+            RetrieveResult props = retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
+            if (props != null) {
+                for (ObjectContent oc : props.getObjects()) {
+                    handler.handle(oc);
+                }
+            }
+        }
+    }
+
+    private VsphereTraversalSpec getObjectListTraversalSpec(@Nonnull ManagedObjectReference rootFolder, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) {
         VsphereTraversalSpec traversalSpec = new VsphereTraversalSpec("VisitFolders", "childEntity", "Folder", false)
             .withSelectionSpec("VisitFolders", "DataCenterTo" + baseFolder, "Datacenter", baseFolder, false);
 
@@ -66,20 +123,39 @@ public class VsphereInventoryNavigation {
                 .withPropertySpec(pSpecs);
 
         traversalSpec.finalizeTraversalSpec();
+        return traversalSpec;
+    }
 
-        ServiceContent vimServiceContent;
-        try {
-            ManagedObjectReference ref = new ManagedObjectReference();
-            ref.setType(VIMSERVICEINSTANCETYPE);
-            ref.setValue(VIMSERVICEINSTANCEVALUE);
-            vimServiceContent = vimPortType.retrieveServiceContent(ref);
-        } catch ( RuntimeFaultFaultMsg e ) {
-            throw new CloudException(e);
+    /**
+     * Retrieves properties for a single managed object without traversing the inventory.
+     * @param provider the vSphere provider
+     * @param objectRef the managed object to read
+     * @param pSpecs the properties to retrieve, the type of each spec should match the object type
+     * @return the retrieved properties of the object
+     */
+    public RetrieveResult retrieveObjectProperties(@Nonnull Vsphere provider, @Nonnull ManagedObjectReference objectRef, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
+        if (pSpecs.size() == 0) {
+            throw new CloudException("PropertySpec list must have at least one element");
         }
 
+        VsphereConnection vsphereConnection = provider.getServiceInstance();
+        ServiceContent serviceContent = vsphereConnection.getServiceContent();
+        VimPortType vimPortType = vsphereConnection.getVimPort();
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(objectRef);
+        oSpec.setSkip(Boolean.FALSE);
+
+        PropertyFilterSpec fSpec = new PropertyFilterSpec();
+        fSpec.getObjectSet().add(oSpec);
+        fSpec.getPropSet().addAll(pSpecs);
+
+        List<PropertyFilterSpec> fSpecList = new ArrayList<PropertyFilterSpec>();
+        fSpecList.add(fSpec);
+
         RetrieveResult props;
         try {
-            props = vimPortType.retrievePropertiesEx(vimServiceContent.getPropertyCollector(), traversalSpec.getPropertyFilterSpecList(), new RetrieveOptions());
+            props = vimPortType.retrievePropertiesEx(serviceContent.getPropertyCollector(), fSpecList, new RetrieveOptions());
         } catch ( InvalidPropertyFaultMsg e ) {
             throw new InternalException("InvalidPropertyFault", e);
         } catch ( RuntimeFaultFaultMsg e ) {
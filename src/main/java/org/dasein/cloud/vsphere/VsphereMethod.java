@@ -23,16 +23,19 @@ import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.vmware.vim25.*;
 
+import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
-import org.dasein.cloud.util.APITrace;
+import org.dasein.util.uom.time.Millisecond;
 import org.dasein.util.uom.time.Second;
 import org.dasein.util.uom.time.TimePeriod;
 
 public class VsphereMethod {
+    static private final Logger logger = Vsphere.getLogger(VsphereMethod.class);
 
     private Vsphere provider;
 
@@ -45,25 +48,33 @@ public class VsphereMethod {
     }
 
     public boolean getOperationComplete(ManagedObjectReference taskmor, TimePeriod interval, int repetions) throws CloudException, InternalException {
-        APITrace.begin(provider, "VsphereMethod.getOperationComplete");
+        OperationTrace.begin(provider, "VsphereMethod.getOperationComplete");
         Long intervalSeconds = ((TimePeriod<Second>)interval.convertTo(TimePeriod.SECOND)).longValue();
+        // state left over from an earlier task must not end this wait
+        taskResult = null;
+        taskState = null;
+        taskError = null;
         try {
             for (int iteration = 0; iteration < repetions; iteration++) {
                 if (getOperationCurrentStatus(taskmor)) {
                     return true;
                 }
+                if (taskState != null && TaskInfoState.ERROR.equals(taskState.getVal())) {
+                    // a failed task never completes, no point polling it any longer
+                    return false;
+                }
                 try { Thread.sleep(1000 * intervalSeconds); }
                 catch( InterruptedException e ) { }
             }
 
             return false;
         } finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     public boolean getOperationCurrentStatus(ManagedObjectReference taskmor) throws CloudException, InternalException {
-        APITrace.begin(provider, "VsphereMethod.getOperationCurrentStatus");
+        OperationTrace.begin(provider, "VsphereMethod.getOperationCurrentStatus");
 
         String version = "";
         List<PropertyFilterUpdate> filtupary;
@@ -122,11 +133,90 @@ public class VsphereMethod {
             } catch (Exception e) {
                 throw new CloudException(e);
             }
-            APITrace.end();
+            OperationTrace.end();
         }
         return (null != taskState) && (taskState.getVal().equals(TaskInfoState.SUCCESS));
     }
 
+    /**
+     * Condition used by {@link #waitForPropertyValue} to decide when a watched property has reached the wanted value.
+     */
+    public interface PropertyCondition {
+        boolean matches(@Nullable Object value);
+    }
+
+    /**
+     * Subscribes to a single property of a managed object and blocks until the property value matches the condition.
+     * A private property collector is used so updates from other filters in the session are never consumed here.
+     * @param objectRef the managed object to watch
+     * @param propertyName the property path to watch, e.g. config.hardware.device
+     * @param condition the condition the new value must satisfy
+     * @param timeout how long to wait for a matching value
+     * @return the first value matching the condition, or null if none arrived before the timeout
+     */
+    public @Nullable Object waitForPropertyValue(@Nonnull ManagedObjectReference objectRef, @Nonnull String propertyName, @Nonnull PropertyCondition condition, @Nonnull TimePeriod timeout) throws CloudException, InternalException {
+        OperationTrace.begin(provider, "VsphereMethod.waitForPropertyValue");
+        long timeoutMillis = ((TimePeriod<Millisecond>)timeout.convertTo(TimePeriod.MILLISECOND)).longValue();
+        long endTime = System.currentTimeMillis() + timeoutMillis;
+
+        VsphereConnection vsphereConnection = provider.getServiceInstance();
+        VimPortType vimPort = vsphereConnection.getVimPort();
+        ServiceContent serviceContent = vsphereConnection.getServiceContent();
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(objectRef);
+        oSpec.setSkip(Boolean.FALSE);
+        spec.getObjectSet().add(oSpec);
+
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.getPathSet().add(propertyName);
+        pSpec.setType(objectRef.getType());
+        spec.getPropSet().add(pSpec);
+
+        ManagedObjectReference collector = null;
+        try {
+            collector = vimPort.createPropertyCollector(serviceContent.getPropertyCollector());
+            vimPort.createFilter(collector, spec, true);
+
+            String version = "";
+            int maxWaitSeconds = VimTransport.getMaxWaitSeconds(provider);
+            while (System.currentTimeMillis() < endTime) {
+                WaitOptions options = new WaitOptions();
+                options.setMaxWaitSeconds((int) Math.min(maxWaitSeconds, Math.max(1L, (endTime - System.currentTimeMillis()) / 1000L)));
+                UpdateSet updateset = vimPort.waitForUpdatesEx(collector, version, options);
+
+                if (updateset == null || updateset.getFilterSet() == null) {
+                    continue;
+                }
+                version = updateset.getVersion();
+                for (PropertyFilterUpdate filtup : updateset.getFilterSet()) {
+                    for (ObjectUpdate objup : filtup.getObjectSet()) {
+                        for (PropertyChange propchg : objup.getChangeSet()) {
+                            if (propertyName.equals(propchg.getName()) && condition.matches(propchg.getVal())) {
+                                return propchg.getVal();
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            throw new CloudException(e);
+        } finally {
+            try {
+                if (collector != null) {
+                    // destroying the collector also destroys its filters
+                    vimPort.destroyPropertyCollector(collector);
+                }
+            } catch (Exception e) {
+                // throwing here would hide the outcome of the wait, the collector goes with the session anyway
+                logger.warn("Unable to destroy property collector " + collector.getValue() + ": " + e.getMessage());
+            }
+            OperationTrace.end();
+        }
+    }
+
     public PropertyChange getTaskResult() {
         return taskResult;
     }
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logs in and loads the inventory most calls depend on (regions, data centers, hosts, networks and the resource
+ * pool tree) into the caches. The datasets are independent and fetched concurrently, each through a provider of its
+ * own connected from a copy of the context, as a vim port is not safe for concurrent use. The caches are shared per
+ * endpoint, account and region, so they are warmed for the caller's provider all the same. Datasets not loaded
+ * within the {@code vsphere.warmUp.timeout} context property in seconds (default 300) are reported as timed out.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class WarmUp {
+    static private final Logger logger = Vsphere.getLogger(WarmUp.class);
+
+    static public final String TIMEOUT_PROPERTY = "vsphere.warmUp.timeout";
+
+    /**
+     * The outcome of a warm-up. Datasets that failed or timed out are listed with their error
+     * instead of a timing.
+     */
+    static public class Report {
+        private long loginMillis;
+        private long totalMillis;
+        private Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        private Map<String, String> failures = new LinkedHashMap<String, String>();
+
+        public long getLoginMillis() {
+            return loginMillis;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return the load time of each dataset that was cached, in milliseconds
+         */
+        public @Nonnull Map<String, Long> getTimings() {
+            return Collections.unmodifiableMap(timings);
+        }
+
+        /**
+         * @return the error of each dataset that could not be loaded
+         */
+        public @Nonnull Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "login=" + loginMillis + "ms, datasets=" + timings + ", failures=" + failures + ", total=" + totalMillis + "ms";
+        }
+    }
+
+    private Vsphere provider;
+
+    public WarmUp(@Nonnull Vsphere provider) {
+        this.provider = provider;
+    }
+
+    private enum Dataset {
+        REGIONS("regions"), DATA_CENTERS("dataCenters"), HOSTS("hosts"), NETWORKS("networks"), RESOURCE_POOL_TREE("resourcePoolTree");
+
+        final String label;
+
+        Dataset(String label) {
+            this.label = label;
+        }
+    }
+
+    static private void load(@Nonnull Vsphere provider, @Nonnull Dataset dataset, @Nonnull ProviderContext ctx) throws InternalException, CloudException {
+        switch( dataset ) {
+            case REGIONS:
+                provider.getDataCenterServices().listRegions();
+                break;
+            case DATA_CENTERS:
+                provider.getDataCenterServices().listDataCenters(ctx.getRegionId());
+                break;
+            case HOSTS:
+                provider.getComputeServices().getAffinityGroupSupport().list(AffinityGroupFilterOptions.getInstance());
+                break;
+            case NETWORKS:
+                provider.getNetworkServices().getVlanSupport().listVlans();
+                break;
+            case RESOURCE_POOL_TREE:
+                provider.getDataCenterServices().getResourcePoolTree().listNodes();
+                break;
+        }
+    }
+
+    /**
+     * Runs the warm-up. Failures of single datasets are reported rather than thrown, the service still works
+     * without them and simply loads them on first use.
+     * @return the timings of the login and of every dataset
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException the login failed
+     */
+    public @Nonnull Report run() throws InternalException, CloudException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new NoContextException();
+        }
+        Report report = new Report();
+        long start = System.currentTimeMillis();
+
+        provider.getServiceInstance();
+        report.loginMillis = System.currentTimeMillis() - start;
+
+        long timeout = 300;
+        String value = provider.getCustomProperty(TIMEOUT_PROPERTY);
+        if( value != null ) {
+            try {
+                timeout = Long.parseLong(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value " + value + " for " + TIMEOUT_PROPERTY);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Dataset.values().length, new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "vsphere-warm-up-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+
+            for( final Dataset dataset : Dataset.values() ) {
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long started = System.currentTimeMillis();
+                        Vsphere detached = provider.connectCopy();
+
+                        try {
+                            load(detached, dataset, ctx);
+                        }
+                        finally {
+                            detached.close();
+                        }
+                        return System.currentTimeMillis() - started;
+                    }
+                });
+            }
+            List<Future<Long>> results = executor.invokeAll(tasks, timeout, TimeUnit.SECONDS);
+
+            for( int i = 0; i < results.size(); i++ ) {
+                String name = Dataset.values()[i].label;
+                Future<Long> result = results.get(i);
+
+                if( result.isCancelled() ) {
+                    report.failures.put(name, "Timed out after " + timeout + " seconds");
+                    continue;
+                }
+                try {
+                    report.timings.put(name, result.get());
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = (e.getCause() == null ? e : e.getCause());
+                    logger.warn("Warm-up of " + name + " failed: " + cause.getMessage());
+                    report.failures.put(name, String.valueOf(cause.getMessage()));
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted during warm-up");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        report.totalMillis = System.currentTimeMillis() - start;
+        logger.info("Warm-up of " + ctx.getEndpoint() + ": " + report);
+        return report;
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.*;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.dc.StoragePool;
+import org.dasein.cloud.vsphere.OperationTrace;
+import org.dasein.cloud.vsphere.Vsphere;
+import org.dasein.cloud.vsphere.VsphereConnection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the datastore for new disks and vms. Eligible datastores are ranked by the fraction of their capacity
+ * that would still be free after the placement, so new storage goes to the least loaded datastore rather than
+ * always to the first one. Free space comes from the cached storage pool list, so every decision is remembered
+ * for a short time and its size counted against the chosen datastore. Concurrent requests therefore spread out
+ * instead of all landing on the same datastore before the cache catches up. Once the storage is in place, or the
+ * placement has failed, the caller releases its decision with {@link #release(String, long)}.
+ * <p>
+ * When the context property {@value #PLACE_VM_PROPERTY} is set to true and the vCenter supports it (6.0+),
+ * launch placement first asks DRS through PlaceVm for a host and datastore together and only falls back to the
+ * local ranking if no recommendation comes back.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class DatastorePlacement {
+    static private final Logger logger = Vsphere.getLogger(DatastorePlacement.class);
+
+    static public final String PLACE_VM_PROPERTY = "vsphere.placement.placeVm";
+
+    // how long a placement decision keeps counting against the free space of its datastore
+    static private final long RESERVATION_MILLIS = 5L * 60L * 1000L;
+
+    static private final Map<String, List<Reservation>> reservations = new HashMap<String, List<Reservation>>();
+
+    static private class Reservation {
+        long bytes;
+        long expires;
+
+        Reservation(long bytes, long expires) {
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+    }
+
+    private Vsphere provider;
+
+    public DatastorePlacement(@Nonnull Vsphere provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Picks the least loaded datastore with room for the requested size.
+     * @param dataCenterId consider datastores in this datacenter (cluster) and datastores shared between datacenters
+     * @param candidateIds if not null, also consider these datastores regardless of their datacenter
+     * @param requiredBytes the size of the storage to place
+     * @return the chosen datastore or null if no datastore is eligible
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable StoragePool chooseDatastore(@Nullable String dataCenterId, @Nullable Collection<String> candidateIds, long requiredBytes) throws InternalException, CloudException {
+        return chooseDatastore(dataCenterId, candidateIds, null, requiredBytes);
+    }
+
+    /**
+     * Picks the least loaded datastore with room for the requested size.
+     * @param dataCenterId consider datastores in this datacenter (cluster) and datastores shared between datacenters
+     * @param candidateIds if not null, also consider these datastores regardless of their datacenter
+     * @param mountedIds if not null, only datastores in this list are eligible, typically those mounted by the host
+     * the vm runs on
+     * @param requiredBytes the size of the storage to place
+     * @return the chosen datastore or null if no datastore is eligible
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable StoragePool chooseDatastore(@Nullable String dataCenterId, @Nullable Collection<String> candidateIds, @Nullable Collection<String> mountedIds, long requiredBytes) throws InternalException, CloudException {
+        OperationTrace.begin(provider, "DatastorePlacement.chooseDatastore");
+        try {
+            Collection<StoragePool> pools = provider.getDataCenterServices().listStoragePools();
+            String endpoint = getEndpoint();
+
+            synchronized( reservations ) {
+                StoragePool best = null;
+                double bestScore = -1;
+                long now = System.currentTimeMillis();
+
+                for( StoragePool pool : pools ) {
+                    boolean candidate = (candidateIds != null && candidateIds.contains(pool.getStoragePoolId()));
+                    boolean inDataCenter = (dataCenterId != null && (pool.getDataCenterId() == null || dataCenterId.equals(pool.getDataCenterId())));
+                    if( (!candidate && !inDataCenter) || (mountedIds != null && !mountedIds.contains(pool.getStoragePoolId())) ) {
+                        continue;
+                    }
+                    if( pool.getCapacity() == null || pool.getFreeSpace() == null ) {
+                        continue;
+                    }
+                    long capacity = toBytes(pool.getCapacity().longValue());
+                    long free = toBytes(pool.getFreeSpace().longValue()) - getReservedBytes(endpoint, pool.getStoragePoolId(), now);
+                    if( capacity <= 0 || free < requiredBytes ) {
+                        continue;
+                    }
+                    double score = ( double ) (free - requiredBytes) / ( double ) capacity;
+                    if( score > bestScore ) {
+                        bestScore = score;
+                        best = pool;
+                    }
+                }
+                if( best != null ) {
+                    reserve(endpoint, best.getStoragePoolId(), requiredBytes, now);
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Placing " + requiredBytes + " bytes on datastore " + best.getStoragePoolId() + " (" + best.getStoragePoolName() + ")");
+                    }
+                }
+                return best;
+            }
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Chooses the datastore for a new vm. If PlaceVm is enabled the DRS recommendation for the cluster is used,
+     * otherwise, or if DRS has no recommendation, the least loaded datastore mounted by the host of the vm is
+     * chosen. The chosen datastore is set on the location, and if no host was set yet so is the host DRS
+     * recommended along with it.
+     * @param clusterId the cluster the vm will run in, null if the vm is not launched into a cluster
+     * @param location the location of the new vm, its host if already set limits the eligible datastores
+     * @param config the configuration of the new vm, used for the DRS recommendation
+     * @param requiredBytes the total size of the vm disks
+     * @return the id of the chosen datastore or null to leave the choice to vSphere
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable String chooseLaunchDatastore(@Nullable String clusterId, @Nonnull VirtualMachineRelocateSpec location, @Nonnull VirtualMachineConfigSpec config, long requiredBytes) throws InternalException, CloudException {
+        String datastoreId = null;
+
+        if( clusterId != null && isPlaceVmEnabled() ) {
+            VirtualMachineRelocateSpec recommended = recommend(clusterId, location.getHost(), config);
+            if( recommended != null ) {
+                datastoreId = recommended.getDatastore().getValue();
+                if( location.getHost() == null ) {
+                    location.setHost(recommended.getHost());
+                }
+                synchronized( reservations ) {
+                    reserve(getEndpoint(), datastoreId, requiredBytes, System.currentTimeMillis());
+                }
+            }
+        }
+        if( datastoreId == null ) {
+            List<String> mountedIds = null;
+            if( location.getHost() != null ) {
+                mountedIds = provider.getComputeServices().getAffinityGroupSupport().listDatastoreIds(location.getHost().getValue());
+            }
+            StoragePool pool = chooseDatastore(clusterId, null, mountedIds, requiredBytes);
+            datastoreId = (pool == null ? null : pool.getStoragePoolId());
+        }
+        if( datastoreId != null ) {
+            ManagedObjectReference dsRef = new ManagedObjectReference();
+            dsRef.setType("Datastore");
+            dsRef.setValue(datastoreId);
+            location.setDatastore(dsRef);
+        }
+        return datastoreId;
+    }
+
+    /**
+     * Gives back the space of an earlier placement, once the storage exists and shows in the storage pool list or
+     * when it could not be created.
+     * @param datastoreId the datastore chosen earlier
+     * @param bytes the size that was placed on it
+     */
+    public void release(@Nonnull String datastoreId, long bytes) {
+        synchronized( reservations ) {
+            List<Reservation> list = reservations.get(getEndpoint() + "|" + datastoreId);
+            if( list != null ) {
+                Iterator<Reservation> it = list.iterator();
+                while( it.hasNext() ) {
+                    if( it.next().bytes == bytes ) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isPlaceVmEnabled() {
+        return provider.getApiMajorVersion() >= 6 && "true".equalsIgnoreCase(provider.getCustomProperty(PLACE_VM_PROPERTY));
+    }
+
+    private @Nullable VirtualMachineRelocateSpec recommend(@Nonnull String clusterId, @Nullable ManagedObjectReference hostRef, @Nonnull VirtualMachineConfigSpec config) throws InternalException, CloudException {
+        OperationTrace.begin(provider, "DatastorePlacement.recommend");
+        try {
+            VsphereConnection vsphereConnection = provider.getServiceInstance();
+            VimPortType vimPortType = vsphereConnection.getVimPort();
+
+            ManagedObjectReference clusterRef = new ManagedObjectReference();
+            clusterRef.setType("ClusterComputeResource");
+            clusterRef.setValue(clusterId);
+
+            PlacementSpec spec = new PlacementSpec();
+            spec.setPlacementType("create");
+            spec.setConfigSpec(config);
+            if( hostRef != null ) {
+                // a requested host only leaves DRS the choice of its datastores
+                spec.getHosts().add(hostRef);
+            }
+
+            PlacementResult result = vimPortType.placeVm(clusterRef, spec);
+            if( result != null ) {
+                for( ClusterRecommendation recommendation : result.getRecommendations() ) {
+                    for( ClusterAction action : recommendation.getAction() ) {
+                        if( action instanceof PlacementAction ) {
+                            VirtualMachineRelocateSpec relocateSpec = (( PlacementAction ) action).getRelocateSpec();
+                            if( relocateSpec != null && relocateSpec.getDatastore() != null ) {
+                                if( relocateSpec.getHost() == null ) {
+                                    relocateSpec.setHost((( PlacementAction ) action).getTargetHost());
+                                }
+                                return relocateSpec;
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        catch( InvalidStateFaultMsg e ) {
+            logger.warn("PlaceVm not possible for cluster " + clusterId + ": " + e.getMessage());
+            return null;
+        }
+        catch( RuntimeFaultFaultMsg e ) {
+            logger.warn("PlaceVm failed for cluster " + clusterId + ": " + e.getMessage());
+            return null;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull String getEndpoint() {
+        ProviderContext ctx = provider.getContext();
+        if( ctx == null || ctx.getCloud() == null || ctx.getCloud().getEndpoint() == null ) {
+            return "";
+        }
+        return ctx.getCloud().getEndpoint();
+    }
+
+    private long getReservedBytes(@Nonnull String endpoint, @Nonnull String datastoreId, long now) {
+        List<Reservation> list = reservations.get(endpoint + "|" + datastoreId);
+        long reserved = 0;
+        if( list != null ) {
+            Iterator<Reservation> it = list.iterator();
+            while( it.hasNext() ) {
+                Reservation r = it.next();
+                if( r.expires < now ) {
+                    it.remove();
+                }
+                else {
+                    reserved += r.bytes;
+                }
+            }
+        }
+        return reserved;
+    }
+
+    private void reserve(@Nonnull String endpoint, @Nonnull String datastoreId, long bytes, long now) {
+        String key = endpoint + "|" + datastoreId;
+        List<Reservation> list = reservations.get(key);
+        if( list == null ) {
+            list = new ArrayList<Reservation>();
+            reservations.put(key, list);
+        }
+        list.add(new Reservation(bytes, now + RESERVATION_MILLIS));
+    }
+
+    // storage pool sizes are held in megabytes
+    private long toBytes(long megabytes) {
+        return megabytes * 1024L * 1024L;
+    }
+}
@@ -27,12 +27,11 @@ import org.dasein.cloud.compute.*;
 import org.dasein.cloud.dc.Region;
 import org.dasein.cloud.dc.ResourcePool;
 import org.dasein.cloud.dc.StoragePool;
-import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.vsphere.*;
 import org.dasein.cloud.vsphere.capabilities.HardDiskCapabilities;
-import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Kilobyte;
 import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.Second;
 import org.dasein.util.uom.time.TimePeriod;
 
@@ -40,7 +39,14 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * User: daniellemayne
@@ -48,17 +54,27 @@ import java.util.List;
  * Time: 10:28
  */
 public class HardDisk extends AbstractVolumeSupport<Vsphere> {
+    static private final int MAX_SCSI_CONTROLLERS = 4;
+    static private final int MAX_SCSI_UNIT_NUMBER = 15;
+    static private final int SCSI_CONTROLLER_UNIT_NUMBER = 7;
+    // temporary keys for controllers added in the same reconfigure as their disks
+    static private final int NEW_CONTROLLER_KEY = -100;
+    static private final int DEFAULT_MAX_CONCURRENT_DELETES = 10;
+
     private List<PropertySpec> hardDiskPSpecs;
-    private List<PropertySpec> rpPSpecs;
-    private List<SelectionSpec> rpSSpecs;
+    private List<PropertySpec> vmDevicePSpecs;
     private List<PropertySpec> spPSpecs;
     private DataCenters dc;
+    private DatastorePlacement placement;
+    private ResourcePoolTree resourcePoolTree;
 
     private ObjectManagement om = new ObjectManagement();
 
     public HardDisk(@Nonnull Vsphere provider) {
         super(provider);
         dc = provider.getDataCenterServices();
+        placement = new DatastorePlacement(provider);
+        resourcePoolTree = new ResourcePoolTree(provider);
     }
 
     public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
@@ -66,6 +82,11 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
         return nav.retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
     }
 
+    public RetrieveResult retrieveObjectProperties(Vsphere provider, @Nonnull ManagedObjectReference objectRef, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
+        VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
+        return nav.retrieveObjectProperties(provider, objectRef, pSpecs);
+    }
+
     public ManagedObjectReference searchDatastores(Vsphere provider, @Nonnull ManagedObjectReference hostDatastoreBrowser, @Nonnull String datastoreFolder, @Nullable HostDatastoreBrowserSearchSpec spec) throws InternalException, CloudException {
         VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
         return nav.searchDatastores(provider, hostDatastoreBrowser, datastoreFolder, spec);
@@ -82,37 +103,15 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
         return hardDiskPSpecs;
     }
 
-    public List<SelectionSpec> getResourcePoolSelectionSpec() {
-        if (rpSSpecs == null) {
-            rpSSpecs = new ArrayList<SelectionSpec>();
-            // Recurse through all ResourcePools
-            SelectionSpec sSpec = new SelectionSpec();
-            sSpec.setName("rpToRp");
-
-            TraversalSpec rpToRp = new TraversalSpec();
-            rpToRp.setType("ResourcePool");
-            rpToRp.setPath("resourcePool");
-            rpToRp.setSkip(Boolean.FALSE);
-            rpToRp.setName("rpToRp");
-            rpToRp.getSelectSet().add(sSpec);
-
-            TraversalSpec crToRp = new TraversalSpec();
-            crToRp.setType("ComputeResource");
-            crToRp.setPath("resourcePool");
-            crToRp.setSkip(Boolean.FALSE);
-            crToRp.setName("crToRp");
-            crToRp.getSelectSet().add(sSpec);
-
-            rpSSpecs.add(sSpec);
-            rpSSpecs.add(rpToRp);
-            rpSSpecs.add(crToRp);
-        }
-        return rpSSpecs;
+    public List<PropertySpec> getVmDevicePSpec() {
+        if (vmDevicePSpecs == null) {
+            vmDevicePSpecs = VsphereTraversalSpec.createPropertySpec(vmDevicePSpecs, "VirtualMachine", false, "config.hardware.device", "datastore", "runtime.host");
+        }
+        return vmDevicePSpecs;
     }
 
-    public List<PropertySpec> getResourcePoolPropertySpec() {
-        rpPSpecs = VsphereTraversalSpec.createPropertySpec(rpPSpecs, "ResourcePool", false, "owner");
-        return rpPSpecs;
+    public ResourcePoolTree getResourcePoolTree() {
+        return resourcePoolTree;
     }
 
     public List<PropertySpec> getDatastorePropertySpec() {
@@ -122,7 +121,7 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
 
     @Override
     public void attach(@Nonnull String volumeId, @Nonnull String toServer, @Nonnull String deviceId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.attach");
+        OperationTrace.begin(getProvider(), "HardDisk.attach");
         try {
             Vm vmSupport = getProvider().getComputeServices().getVirtualMachineSupport();
             VirtualMachine vm = vmSupport.getVirtualMachine(toServer);
@@ -137,8 +136,14 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             if (volume.getProviderVirtualMachineId() != null)
                 throw new CloudException("Volume is already attached");
 
-            List<PropertySpec> pSpecs = getHardDiskPSpec();
-            RetrieveResult props = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
+            ManagedObjectReference vmRef = new ManagedObjectReference();
+            vmRef.setType("VirtualMachine");
+            vmRef.setValue(toServer);
+
+            RetrieveResult props = retrieveObjectProperties(getProvider(), vmRef, getVmDevicePSpec());
+            if (props == null) {
+                throw new CloudException("Unable to find vm reference for attach task");
+            }
 
             List<VirtualDeviceConfigSpec> machineSpecs = null;
             List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
@@ -148,12 +153,6 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
                 devices = array.getVirtualDevice();
             }
 
-            Object vmMor = getVMProperty(props, toServer, "MOR");
-            if (vmMor == null) {
-                throw new CloudException("Unable to find vm reference for attach task");
-            }
-            ManagedObjectReference vmRef = (ManagedObjectReference) vmMor;
-
             int cKey = 1000;
             boolean scsiExists = false;
             for (VirtualDevice device : devices) {
@@ -214,92 +213,183 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public String createVolume(@Nonnull VolumeCreateOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.createVolume");
+        OperationTrace.begin(getProvider(), "HardDisk.createVolume");
         try {
-            if (options.getProviderVirtualMachineId() == null) {
-                throw new CloudException("Volumes can only be created in the context of a vm for "+getProvider().getCloudName()+". ProviderVirtualMachineId cannot be null");
+            List<String> ids = createVolumes(Collections.singletonList(options));
+            return ids.get(0);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Creates several volumes on the same vm with a single reconfigure task. Controller keys and unit numbers
+     * are assigned up front and new SCSI controllers are added when the existing ones are full.
+     * @param optionsList the volumes to create, all must reference the same vm
+     * @return the ids of the new volumes in the same order as the options
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nonnull List<String> createVolumes(@Nonnull List<VolumeCreateOptions> optionsList) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "HardDisk.createVolumes");
+        // datastores chosen per volume name, their reservations are given back once the reconfigure task is over
+        Map<String, String> placed = new HashMap<String, String>();
+        try {
+            if (optionsList.isEmpty()) {
+                throw new InternalException("At least one set of volume create options must be provided");
+            }
+            final String vmId = optionsList.get(0).getProviderVirtualMachineId();
+            Set<String> names = new HashSet<String>();
+            for (VolumeCreateOptions options : optionsList) {
+                if (options.getProviderVirtualMachineId() == null) {
+                    throw new CloudException("Volumes can only be created in the context of a vm for "+getProvider().getCloudName()+". ProviderVirtualMachineId cannot be null");
+                }
+                if (!options.getProviderVirtualMachineId().equals(vmId)) {
+                    throw new CloudException("All volumes in a batch must be created on the same vm");
+                }
+                // the new disks are matched back to their options by name where possible
+                if (!names.add(options.getName())) {
+                    throw new CloudException("Volume names must be unique within a batch: " + options.getName());
+                }
             }
             Vm vmSupport = getProvider().getComputeServices().getVirtualMachineSupport();
-            VirtualMachine vm = vmSupport.getVirtualMachine(options.getProviderVirtualMachineId());
+            VirtualMachine vm = vmSupport.getVirtualMachine(vmId);
             if( vm == null ) {
-                throw new CloudException("Unable to find vm with id " + options.getProviderVirtualMachineId());
+                throw new CloudException("Unable to find vm with id " + vmId);
             }
 
-            List<PropertySpec> pSpecs = getHardDiskPSpec();
-            RetrieveResult props = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
+            ManagedObjectReference vmRef = new ManagedObjectReference();
+            vmRef.setType("VirtualMachine");
+            vmRef.setValue(vmId);
 
-            List<VirtualDeviceConfigSpec> machineSpecs = null;
-            Object deviceObject = getVMProperty(props, options.getProviderVirtualMachineId(), "config.hardware.device");
+            RetrieveResult props = retrieveObjectProperties(getProvider(), vmRef, getVmDevicePSpec());
+            if (props == null) {
+                throw new CloudException("Unable to retrieve devices for vm " + vmId);
+            }
+
+            Object deviceObject = getVMProperty(props, vmId, "config.hardware.device");
             ArrayOfVirtualDevice array = (ArrayOfVirtualDevice) deviceObject;
             List<VirtualDevice> devices = array.getVirtualDevice();
 
-            Object datastoreObject = getVMProperty(props, options.getProviderVirtualMachineId(), "datastore");
+            Object datastoreObject = getVMProperty(props, vmId, "datastore");
             ArrayOfManagedObjectReference mors = (ArrayOfManagedObjectReference) datastoreObject;
-            ManagedObjectReference datastore = mors.getManagedObjectReference().get(0);
-
-            Object vmMor = getVMProperty(props, options.getProviderVirtualMachineId(), "MOR");
-            ManagedObjectReference vmRef = (ManagedObjectReference) vmMor;
-
-            String datastoreId = datastore.getValue();
-            StoragePool sp = dc.getStoragePool(datastoreId);
-            String datastoreName = sp.getStoragePoolName();
+            List<String> vmDatastoreIds = new ArrayList<String>();
+            for (ManagedObjectReference mor : mors.getManagedObjectReference()) {
+                vmDatastoreIds.add(mor.getValue());
+            }
+            String defaultDatastoreName = null;
+            // new disks have to be reachable from the host the vm runs on
+            List<String> mountedIds = null;
+            Object hostObject = getVMProperty(props, vmId, "runtime.host");
+            if (hostObject instanceof ManagedObjectReference) {
+                mountedIds = getProvider().getComputeServices().getAffinityGroupSupport().listDatastoreIds(((ManagedObjectReference) hostObject).getValue());
+            }
 
-            int cKey = 1000;
-            boolean scsiExists = false;
-            int numDisks = 0;
-            List<String> diskNames = new ArrayList<String>();
+            // map each scsi controller to the unit numbers already taken on it
+            final List<String> diskNames = new ArrayList<String>();
+            List<Integer> controllerKeys = new ArrayList<Integer>();
+            Map<Integer, List<Integer>> usedUnits = new HashMap<Integer, List<Integer>>();
+            List<Integer> usedBusNumbers = new ArrayList<Integer>();
             for (VirtualDevice device : devices) {
                 if (device instanceof VirtualSCSIController) {
-                    if (!scsiExists) {
-                        cKey = device.getKey();
-                        scsiExists = true;
+                    controllerKeys.add(device.getKey());
+                    usedBusNumbers.add(((VirtualSCSIController) device).getBusNumber());
+                    if (!usedUnits.containsKey(device.getKey())) {
+                        usedUnits.put(device.getKey(), new ArrayList<Integer>());
                     }
                 }
-                else if (device instanceof VirtualDisk) {
-                    numDisks++;
-                    VirtualDisk vDisk = (VirtualDisk) device;
-                    VirtualDiskFlatVer2BackingInfo bkInfo = (VirtualDiskFlatVer2BackingInfo) vDisk.getBacking();
+            }
+            for (VirtualDevice device : devices) {
+                if (device.getControllerKey() != null && device.getUnitNumber() != null && usedUnits.containsKey(device.getControllerKey())) {
+                    usedUnits.get(device.getControllerKey()).add(device.getUnitNumber());
+                }
+                if (device instanceof VirtualDisk) {
+                    VirtualDeviceFileBackingInfo bkInfo = (VirtualDeviceFileBackingInfo) device.getBacking();
                     diskNames.add(bkInfo.getFileName());
                 }
             }
-            machineSpecs = new ArrayList<VirtualDeviceConfigSpec>();
-            if (!scsiExists) {
-                VirtualDeviceConfigSpec scsiSpec = new VirtualDeviceConfigSpec();
-                scsiSpec.setOperation(VirtualDeviceConfigSpecOperation.ADD);
-                VirtualLsiLogicSASController scsiCtrl = new VirtualLsiLogicSASController();
-                scsiCtrl.setKey(cKey);
-                scsiCtrl.setBusNumber(0);
-                scsiCtrl.setSharedBus(VirtualSCSISharing.NO_SHARING);
-                scsiSpec.setDevice(scsiCtrl);
-                machineSpecs.add(scsiSpec);
-            }
-            // Associate the virtual disk with the scsi controller
-            VirtualDisk disk = new VirtualDisk();
 
-            disk.setControllerKey(cKey);
-            disk.setUnitNumber(numDisks);
-            disk.setCapacityInKB(options.getVolumeSize().intValue() * 1000000);
-
-            VirtualDeviceConfigSpec diskSpec = new VirtualDeviceConfigSpec();
-            diskSpec.setOperation(VirtualDeviceConfigSpecOperation.ADD);
-            diskSpec.setFileOperation(VirtualDeviceConfigSpecFileOperation.CREATE);
-            diskSpec.setDevice(disk);
+            List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>();
+            int newControllerKey = NEW_CONTROLLER_KEY;
+            for (VolumeCreateOptions options : optionsList) {
+                int cKey = 0;
+                int unitNumber = -1;
+                for (Integer key : controllerKeys) {
+                    unitNumber = getFreeUnitNumber(usedUnits.get(key));
+                    if (unitNumber >= 0) {
+                        cKey = key;
+                        break;
+                    }
+                }
+                if (unitNumber < 0) {
+                    int busNumber = 0;
+                    while (usedBusNumbers.contains(busNumber)) {
+                        busNumber++;
+                    }
+                    if (busNumber >= MAX_SCSI_CONTROLLERS) {
+                        throw new CloudException("No free SCSI slots left on vm " + vmId);
+                    }
+                    cKey = newControllerKey--;
+                    VirtualDeviceConfigSpec scsiSpec = new VirtualDeviceConfigSpec();
+                    scsiSpec.setOperation(VirtualDeviceConfigSpecOperation.ADD);
+                    VirtualLsiLogicSASController scsiCtrl = new VirtualLsiLogicSASController();
+                    scsiCtrl.setKey(cKey);
+                    scsiCtrl.setBusNumber(busNumber);
+                    scsiCtrl.setSharedBus(VirtualSCSISharing.NO_SHARING);
+                    scsiSpec.setDevice(scsiCtrl);
+                    machineSpecs.add(scsiSpec);
+
+                    controllerKeys.add(cKey);
+                    usedBusNumbers.add(busNumber);
+                    usedUnits.put(cKey, new ArrayList<Integer>());
+                    unitNumber = getFreeUnitNumber(usedUnits.get(cKey));
+                }
+                usedUnits.get(cKey).add(unitNumber);
+
+                // Associate the virtual disk with the scsi controller
+                VirtualDisk disk = new VirtualDisk();
+                disk.setControllerKey(cKey);
+                disk.setUnitNumber(unitNumber);
+                long sizeInKB = options.getVolumeSize().longValue() * 1024L * 1024L;
+                disk.setCapacityInKB(sizeInKB);
+
+                VirtualDeviceConfigSpec diskSpec = new VirtualDeviceConfigSpec();
+                diskSpec.setOperation(VirtualDeviceConfigSpecOperation.ADD);
+                diskSpec.setFileOperation(VirtualDeviceConfigSpecFileOperation.CREATE);
+                diskSpec.setDevice(disk);
+
+                // spread disks over the least loaded datastores of the vm's cluster, falling back to the vm's own datastore
+                String datastoreName;
+                long requiredBytes = sizeInKB * 1024L;
+                StoragePool sp = placement.chooseDatastore(vm.getProviderDataCenterId(), vmDatastoreIds, mountedIds, requiredBytes);
+                if (sp != null) {
+                    datastoreName = sp.getStoragePoolName();
+                    placed.put(options.getName(), sp.getStoragePoolId());
+                }
+                else {
+                    if (defaultDatastoreName == null) {
+                        defaultDatastoreName = dc.getStoragePool(vmDatastoreIds.get(0)).getStoragePoolName();
+                    }
+                    datastoreName = defaultDatastoreName;
+                }
 
-            VirtualDiskFlatVer2BackingInfo diskFileBacking = new VirtualDiskFlatVer2BackingInfo();
-            String fileName2 = "[" + datastoreName + "]" + vm.getName() + "/" + options.getName();
-            diskFileBacking.setFileName(fileName2);
-            diskFileBacking.setDiskMode("persistent");
-            diskFileBacking.setThinProvisioned(false);
-            diskFileBacking.setWriteThrough(false);
-            disk.setBacking(diskFileBacking);
-            machineSpecs.add(diskSpec);
+                // only the datastore is given, vSphere creates the vm folder there if needed and names the file
+                VirtualDiskFlatVer2BackingInfo diskFileBacking = new VirtualDiskFlatVer2BackingInfo();
+                diskFileBacking.setFileName("[" + datastoreName + "]");
+                diskFileBacking.setDiskMode("persistent");
+                diskFileBacking.setThinProvisioned(false);
+                diskFileBacking.setWriteThrough(false);
+                disk.setBacking(diskFileBacking);
+                machineSpecs.add(diskSpec);
+            }
 
             VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
             spec.getDeviceChange().addAll(machineSpecs);
@@ -310,28 +400,23 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             VsphereMethod method = new VsphereMethod(getProvider());
             TimePeriod interval = new TimePeriod<Second>(30, TimePeriod.SECOND);
 
-            if( method.getOperationComplete(taskmor, interval, 10) ) {
-                long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
-
-                while( System.currentTimeMillis() < timeout ) {
-                    try { Thread.sleep(10000L); }
-                    catch( InterruptedException ignore ) { }
-
-                    props = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
-                    array = (ArrayOfVirtualDevice) getVMProperty(props, options.getProviderVirtualMachineId(), "config.hardware.device");;
-                    devices = array.getVirtualDevice();
-
-                    for (VirtualDevice device : devices) {
-                        if (device instanceof VirtualDisk) {
-                            VirtualDisk vDisk = (VirtualDisk) device;
-                            VirtualDiskFlatVer2BackingInfo bkInfo = (VirtualDiskFlatVer2BackingInfo) vDisk.getBacking();
-                            String diskFileName = bkInfo.getFileName();
-                            if (!diskNames.contains(diskFileName)) {
-                                diskFileName = diskFileName.substring(diskFileName.lastIndexOf("/") + 1);
-                                return diskFileName;
-                            }
-                        }
+            boolean created = method.getOperationComplete(taskmor, interval, 10);
+            // the disks either exist now or never will, in both cases the space no longer needs holding
+            releasePlacements(optionsList, placed);
+            placed.clear();
+            if( created ) {
+                // watch the device list of this vm rather than re-listing every vm until the new disks show up
+                final int expected = optionsList.size();
+                Object updatedDevices = method.waitForPropertyValue(vmRef, "config.hardware.device", new VsphereMethod.PropertyCondition() {
+                    @Override
+                    public boolean matches(@Nullable Object value) {
+                        return findNewDiskIds(value, diskNames).size() >= expected;
                     }
+                }, new TimePeriod<Minute>(20, TimePeriod.MINUTE));
+
+                List<String> newDiskIds = findNewDiskIds(updatedDevices, diskNames);
+                if (newDiskIds.size() >= expected) {
+                    return matchNewDiskIds(optionsList, newDiskIds);
                 }
                 lastError = new CloudException("Unable to identify new volume.");
             }
@@ -344,13 +429,23 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             throw new CloudException("No volume and no error");
         }
         finally {
-            APITrace.end();
+            releasePlacements(optionsList, placed);
+            OperationTrace.end();
+        }
+    }
+
+    private void releasePlacements(@Nonnull List<VolumeCreateOptions> optionsList, @Nonnull Map<String, String> placed) {
+        for (VolumeCreateOptions options : optionsList) {
+            String datastoreId = placed.get(options.getName());
+            if (datastoreId != null) {
+                placement.release(datastoreId, options.getVolumeSize().longValue() * 1024L * 1024L * 1024L);
+            }
         }
     }
 
     @Override
     public void detach(@Nonnull String volumeId, boolean force) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.detach");
+        OperationTrace.begin(getProvider(), "HardDisk.detach");
         Volume volume = getVolume(volumeId);
         if (volume == null ) {
             throw new CloudException("Volume not found with id "+volumeId);
@@ -365,18 +460,21 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             throw new CloudException("Vm not found with id " + volume.getProviderVirtualMachineId());
         }
 
-        List<PropertySpec> pSpecs = getHardDiskPSpec();
-        RetrieveResult props = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
+        ManagedObjectReference vmRef = new ManagedObjectReference();
+        vmRef.setType("VirtualMachine");
+        vmRef.setValue(volume.getProviderVirtualMachineId());
+
+        RetrieveResult props = retrieveObjectProperties(getProvider(), vmRef, getVmDevicePSpec());
 
         try {
+            if (props == null) {
+                throw new CloudException("Unable to retrieve devices for vm " + volume.getProviderVirtualMachineId());
+            }
             List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<VirtualDeviceConfigSpec>();
             Object deviceObject = getVMProperty(props, volume.getProviderVirtualMachineId(), "config.hardware.device");
             ArrayOfVirtualDevice array = (ArrayOfVirtualDevice) deviceObject;
             List<VirtualDevice> devices = array.getVirtualDevice();
 
-            Object vmMor = getVMProperty(props, volume.getProviderVirtualMachineId(), "MOR");
-            ManagedObjectReference vmRef = (ManagedObjectReference) vmMor;
-
             String diskId;
             int diskKey = 0;
             int controller = 0;
@@ -433,7 +531,7 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -449,13 +547,27 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
     @Nonnull
     @Override
     public Iterable<Volume> listVolumes() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.listVolumes");
+        ProviderContext ctx = getProvider().getContext();
+        if (ctx == null) {
+            throw new NoContextException();
+        }
+        // concurrent listings share a single traversal
+        return SingleFlight.execute(SingleFlight.getKey(ctx, "HardDisk.listVolumes"), new SingleFlight.Call<Iterable<Volume>>() {
+            @Override
+            public Iterable<Volume> call() throws InternalException, CloudException {
+                return loadVolumes();
+            }
+        });
+    }
+
+    private @Nonnull Iterable<Volume> loadVolumes() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "HardDisk.listVolumes");
         try {
             VsphereMethod method = new VsphereMethod(getProvider());
             TimePeriod interval = new TimePeriod<Second>(30, TimePeriod.SECOND);
 
-            List<Volume> list = new ArrayList<Volume>();
-            List<String> fileNames = new ArrayList<String>();
+            final List<Volume> list = new ArrayList<Volume>();
+            final List<String> fileNames = new ArrayList<String>();
             ProviderContext ctx = getProvider().getContext();
             if (ctx == null) {
                 throw new NoContextException();
@@ -466,83 +578,24 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
 
             //get attached volumes
             List<PropertySpec> pSpecs = getHardDiskPSpec();
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
 
-            if (listobcont != null) {
-                Iterable<ResourcePool> rps = getAllResourcePoolsIncludingRoot();//return all resourcePools
-                List<ObjectContent> objectContents = listobcont.getObjects();
-                ManagedObjectReference mo;
-                String vmId;
-                String dataCenterId;
-                Platform guestOs;
-                List<DynamicProperty> dps;
-                List<Volume> tmpVolList;
-                List<String> tmpFileNames;
-                boolean skipObject;
-                for (ObjectContent oc : objectContents) {
-                    mo = oc.getObj();
-                    vmId = mo.getValue();
-                    dataCenterId = null;
-                    guestOs = null;
-                    dps = oc.getPropSet();
-                    if (dps != null) {
-                        tmpVolList = new ArrayList<Volume>();
-                        tmpFileNames = new ArrayList<String>();
-                        skipObject = false;
-                        for (DynamicProperty dp : dps) {
-                            if (dp.getName().equals("runtime.powerState")) {
-                                VirtualMachinePowerState ps = (VirtualMachinePowerState) dp.getVal();
-                                if (ps.equals(VirtualMachinePowerState.SUSPENDED )) {
-                                    skipObject = true;
-                                }
-                            }
-                            else if (dp.getName().equals("config.template")) {
-                                Boolean isTemplate = (Boolean) dp.getVal();
-                                if (isTemplate) {
-                                    skipObject = true;
-                                }
-                            }
-                            else if (dp.getName().equals("config.guestFullName")) {
-                                guestOs = Platform.guess((String) dp.getVal());
-                            }
-                            else if (dp.getName().equals("resourcePool")) {
-                                ManagedObjectReference ref = (ManagedObjectReference) dp.getVal();
-                                String resourcePoolId = ref.getValue();
-                                for (ResourcePool rp : rps) {
-                                    if (rp.getProvideResourcePoolId().equals(resourcePoolId)) {
-                                        dataCenterId = rp.getDataCenterId();
-                                        break;
-                                    }
-                                }
-                            }
-                            else if (dp.getName().equals("config.hardware.device")) {
-                                ArrayOfVirtualDevice avd = (ArrayOfVirtualDevice) dp.getVal();
-                                List<VirtualDevice> devices = avd.getVirtualDevice();
-                                for (VirtualDevice device : devices) {
-                                    if (device instanceof VirtualDisk) {
-                                        VirtualDisk disk = (VirtualDisk)device;
-                                        Volume vol = toVolume(disk, vmId, ctx.getRegionId());
-                                        if (vol != null) {
-                                            vol.setGuestOperatingSystem(guestOs);
-                                            tmpVolList.add(vol);
-                                            tmpFileNames.add(vol.getProviderVolumeId());
-                                        }
-                                    }
-                                }
-                            }
-                            if (skipObject) {
-                                break;
-                            }
-                        }
-                        if (!skipObject) {
-                            if (tmpVolList.size() > 0) {
-                                for (Volume v : tmpVolList) {
-                                    v.setProviderDataCenterId(dataCenterId);
-                                }
-                                list.addAll(tmpVolList);
-                                fileNames.addAll(tmpFileNames);
-                            }
-                        }
+            if (PropertyStream.isEnabled(getProvider())) {
+                final Iterable<ResourcePool> rps = getAllResourcePoolsIncludingRoot();
+                final String regionId = ctx.getRegionId();
+                streamObjectList(getProvider(), "vmFolder", null, pSpecs, new PropertyStream.Handler() {
+                    @Override
+                    public void handle(@Nonnull ObjectContent oc) {
+                        addAttachedVolumes(list, fileNames, oc, rps, regionId);
+                    }
+                });
+            }
+            else {
+                RetrieveResult listobcont = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
+
+                if (listobcont != null) {
+                    Iterable<ResourcePool> rps = getAllResourcePoolsIncludingRoot();//return all resourcePools
+                    for (ObjectContent oc : listobcont.getObjects()) {
+                        addAttachedVolumes(list, fileNames, oc, rps, ctx.getRegionId());
                     }
                 }
             }
@@ -617,7 +670,74 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
             return list;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    private void addAttachedVolumes(@Nonnull List<Volume> list, @Nonnull List<String> fileNames, @Nonnull ObjectContent oc, @Nonnull Iterable<ResourcePool> rps, @Nonnull String regionId) {
+        ManagedObjectReference mo = oc.getObj();
+        String vmId = mo.getValue();
+        String dataCenterId = null;
+        Platform guestOs = null;
+        List<DynamicProperty> dps = oc.getPropSet();
+        if (dps != null) {
+            List<Volume> tmpVolList = new ArrayList<Volume>();
+            List<String> tmpFileNames = new ArrayList<String>();
+            boolean skipObject = false;
+            for (DynamicProperty dp : dps) {
+                if (dp.getName().equals("runtime.powerState")) {
+                    VirtualMachinePowerState ps = (VirtualMachinePowerState) dp.getVal();
+                    if (ps.equals(VirtualMachinePowerState.SUSPENDED )) {
+                        skipObject = true;
+                    }
+                }
+                else if (dp.getName().equals("config.template")) {
+                    Boolean isTemplate = (Boolean) dp.getVal();
+                    if (isTemplate) {
+                        skipObject = true;
+                    }
+                }
+                else if (dp.getName().equals("config.guestFullName")) {
+                    guestOs = Platform.guess((String) dp.getVal());
+                }
+                else if (dp.getName().equals("resourcePool")) {
+                    ManagedObjectReference ref = (ManagedObjectReference) dp.getVal();
+                    String resourcePoolId = ref.getValue();
+                    for (ResourcePool rp : rps) {
+                        if (rp.getProvideResourcePoolId().equals(resourcePoolId)) {
+                            dataCenterId = rp.getDataCenterId();
+                            break;
+                        }
+                    }
+                }
+                else if (dp.getName().equals("config.hardware.device")) {
+                    ArrayOfVirtualDevice avd = (ArrayOfVirtualDevice) dp.getVal();
+                    List<VirtualDevice> devices = avd.getVirtualDevice();
+                    for (VirtualDevice device : devices) {
+                        if (device instanceof VirtualDisk) {
+                            VirtualDisk disk = (VirtualDisk)device;
+                            Volume vol = toVolume(disk, vmId, regionId);
+                            if (vol != null) {
+                                vol.setGuestOperatingSystem(guestOs);
+                                tmpVolList.add(vol);
+                                tmpFileNames.add(vol.getProviderVolumeId());
+                            }
+                        }
+                    }
+                }
+                if (skipObject) {
+                    break;
+                }
+            }
+            if (!skipObject) {
+                if (tmpVolList.size() > 0) {
+                    for (Volume v : tmpVolList) {
+                        v.setProviderDataCenterId(dataCenterId);
+                    }
+                    list.addAll(tmpVolList);
+                    fileNames.addAll(tmpFileNames);
+                }
+            }
         }
     }
 
@@ -628,7 +748,7 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
 
     @Override
     public void remove(@Nonnull String volumeId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.remove");
+        OperationTrace.begin(getProvider(), "HardDisk.remove");
         try {
             Volume volume = getVolume(volumeId);
 
@@ -639,79 +759,132 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
                 throw new CloudException("Volume is attached to vm " + volume.getProviderVirtualMachineId() + " - removing not allowed");
             }
 
-            VsphereConnection vsphereConnection = getProvider().getServiceInstance();
-            ManagedObjectReference fileManager = vsphereConnection.getServiceContent().getFileManager();
-            VimPortType vimPortType = vsphereConnection.getVimPort();
+            VsphereMethod method = new VsphereMethod(getProvider());
+            TimePeriod interval = new TimePeriod<Second>(15, TimePeriod.SECOND);
 
-            try {
-                ManagedObjectReference datacenter = new ManagedObjectReference();
-                datacenter.setValue(volume.getProviderRegionId());
-                datacenter.setType("Datacenter");
+            // the virtual disk manager removes the descriptor together with its extents
+            ManagedObjectReference taskMor = deleteVirtualDiskTask(volume);
+            if (method.getOperationComplete(taskMor, interval, 10)) {
+                return;
+            }
+            throw new CloudException("Error removing virtual disk: " + method.getTaskError().getVal().toString());
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-                ManagedObjectReference taskMor;
-                VsphereMethod method = new VsphereMethod(getProvider());
-                TimePeriod interval = new TimePeriod<Second>(15, TimePeriod.SECOND);
-
-                String filePath = volume.getTag("filePath");
-                taskMor = vimPortType.deleteDatastoreFileTask(fileManager, filePath, datacenter);
-                if (method.getOperationComplete(taskMor, interval, 10)) {
-                    //also delete the flat file
-                    String flatfile = filePath.substring(0, filePath.indexOf(".vmdk")) + "-flat.vmdk";
-                    taskMor = vimPortType.deleteDatastoreFileTask(fileManager, flatfile, datacenter);
-                    if (method.getOperationComplete(taskMor, interval, 10)) {
-                        return;
-                    }
+    public void removeVolumes(@Nonnull Collection<String> volumeIds) throws InternalException, CloudException {
+        removeVolumes(volumeIds, DEFAULT_MAX_CONCURRENT_DELETES);
+    }
+
+    /**
+     * Removes a number of detached volumes. The volume list is fetched once and up to maxConcurrent delete tasks
+     * are kept running in vSphere at the same time, so the total time is close to that of the slowest deletes
+     * rather than the sum of all of them. Failures don't stop the remaining deletes, they are reported together
+     * once all volumes have been processed.
+     * @param volumeIds the ids of the volumes to remove
+     * @param maxConcurrent the maximum number of delete tasks outstanding at any time
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException one or more volumes could not be removed
+     */
+    public void removeVolumes(@Nonnull Collection<String> volumeIds, int maxConcurrent) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "HardDisk.removeVolumes");
+        try {
+            if (maxConcurrent < 1) {
+                throw new InternalException("maxConcurrent must be at least 1");
+            }
+            Map<String, Volume> volumes = new HashMap<String, Volume>();
+            for (Volume volume : listVolumes()) {
+                volumes.put(volume.getProviderVolumeId(), volume);
+            }
+
+            List<String> failures = new ArrayList<String>();
+            List<String> inFlightIds = new ArrayList<String>();
+            List<ManagedObjectReference> inFlightTasks = new ArrayList<ManagedObjectReference>();
+            TimePeriod interval = new TimePeriod<Second>(1, TimePeriod.SECOND);
+
+            for (String volumeId : volumeIds) {
+                Volume volume = volumes.get(volumeId);
+                if (volume == null) {
+                    failures.add(volumeId + ": volume not found");
+                    continue;
                 }
-                throw new CloudException("Error removing datastore file: " + method.getTaskError().getVal().toString());
-            } catch (FileFaultFaultMsg fileFaultFaultMsg) {
-                throw new CloudException("FileFaultFaultMsg while removing datastore file", fileFaultFaultMsg);
-            } catch (InvalidDatastoreFaultMsg invalidDatastoreFaultMsg) {
-                throw new CloudException("InvalidDatastoreFaultMsg while removing datastore file", invalidDatastoreFaultMsg);
-            } catch (RuntimeFaultFaultMsg runtimeFaultFaultMsg) {
-                throw new CloudException("RuntimeFaultFaultMsg while removing datastore file", runtimeFaultFaultMsg);
+                if (volume.getProviderVirtualMachineId() != null) {
+                    failures.add(volumeId + ": attached to vm " + volume.getProviderVirtualMachineId());
+                    continue;
+                }
+                if (inFlightTasks.size() >= maxConcurrent) {
+                    waitForDelete(inFlightIds.remove(0), inFlightTasks.remove(0), interval, failures);
+                }
+                try {
+                    inFlightTasks.add(deleteVirtualDiskTask(volume));
+                    inFlightIds.add(volumeId);
+                }
+                catch (CloudException e) {
+                    failures.add(volumeId + ": " + e.getMessage());
+                }
+            }
+            while (!inFlightTasks.isEmpty()) {
+                waitForDelete(inFlightIds.remove(0), inFlightTasks.remove(0), interval, failures);
+            }
+
+            if (!failures.isEmpty()) {
+                throw new CloudException("Failed to remove " + failures.size() + " volume(s): " + failures);
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    private void waitForDelete(@Nonnull String volumeId, @Nonnull ManagedObjectReference taskMor, @Nonnull TimePeriod interval, @Nonnull List<String> failures) throws InternalException, CloudException {
+        // the task state and error are kept per method, so each task gets its own
+        VsphereMethod method = new VsphereMethod(getProvider());
+        if (!method.getOperationComplete(taskMor, interval, 150)) {
+            PropertyChange error = method.getTaskError();
+            failures.add(volumeId + ": " + (error != null && error.getVal() != null ? error.getVal().toString() : "delete task did not complete"));
+        }
+    }
+
+    private @Nonnull ManagedObjectReference deleteVirtualDiskTask(@Nonnull Volume volume) throws InternalException, CloudException {
+        VsphereConnection vsphereConnection = getProvider().getServiceInstance();
+        ManagedObjectReference virtualDiskManager = vsphereConnection.getServiceContent().getVirtualDiskManager();
+        VimPortType vimPortType = vsphereConnection.getVimPort();
+
+        ManagedObjectReference datacenter = new ManagedObjectReference();
+        datacenter.setValue(volume.getProviderRegionId());
+        datacenter.setType("Datacenter");
+
+        try {
+            return vimPortType.deleteVirtualDiskTask(virtualDiskManager, volume.getTag("filePath"), datacenter);
+        } catch (FileFaultFaultMsg fileFaultFaultMsg) {
+            throw new CloudException("FileFaultFaultMsg while removing virtual disk", fileFaultFaultMsg);
+        } catch (InvalidDatastoreFaultMsg invalidDatastoreFaultMsg) {
+            throw new CloudException("InvalidDatastoreFaultMsg while removing virtual disk", invalidDatastoreFaultMsg);
+        } catch (RuntimeFaultFaultMsg runtimeFaultFaultMsg) {
+            throw new CloudException("RuntimeFaultFaultMsg while removing virtual disk", runtimeFaultFaultMsg);
         }
     }
 
     @Nonnull
     public List<ResourcePool> getAllResourcePoolsIncludingRoot() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "HardDisk.getAllResourcePoolsIncludingRoot");
         try {
             List<ResourcePool> resourcePools = new ArrayList<ResourcePool>();
 
-            List<SelectionSpec> selectionSpecsArr = getResourcePoolSelectionSpec();
-            List<PropertySpec> pSpecs = getResourcePoolPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", selectionSpecsArr, pSpecs);
-
-            if (listobcont != null) {
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference rpRef = oc.getObj();
-                    String rpId = rpRef.getValue();
-                    String owner = null;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            if (dp.getName().equals("owner")) {
-                                ManagedObjectReference clusterRef = (ManagedObjectReference) dp.getVal();
-                                owner = clusterRef.getValue();
-                            }
-                        }
-                    }
-                    if (owner != null) {
-                        ResourcePool resourcePool = new ResourcePool();
-                        resourcePool.setDataCenterId(owner);
-                        resourcePool.setProvideResourcePoolId(rpId);
-                        resourcePools.add(resourcePool);
-                    }
+            for (ResourcePoolTree.Node node : getResourcePoolTree().listNodes()) {
+                if (node.getOwnerId() != null) {
+                    ResourcePool resourcePool = new ResourcePool();
+                    resourcePool.setDataCenterId(node.getOwnerId());
+                    resourcePool.setProvideResourcePoolId(node.getId());
+                    resourcePools.add(resourcePool);
                 }
             }
             return resourcePools;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -738,6 +911,70 @@ public class HardDisk extends AbstractVolumeSupport<Vsphere> {
         return object;
     }
 
+    /**
+     * Finds the disks in a device list whose backing file is not one of the known disk files.
+     * @param deviceObject the config.hardware.device value of a vm
+     * @param knownDiskNames backing file names of the disks that existed before the change
+     * @return the volume ids (file names) of the new disks, empty if there are none
+     */
+    private @Nonnull List<String> findNewDiskIds(@Nullable Object deviceObject, @Nonnull List<String> knownDiskNames) {
+        List<String> ids = new ArrayList<String>();
+        if (!(deviceObject instanceof ArrayOfVirtualDevice)) {
+            return ids;
+        }
+        for (VirtualDevice device : ((ArrayOfVirtualDevice) deviceObject).getVirtualDevice()) {
+            if (device instanceof VirtualDisk) {
+                VirtualDisk vDisk = (VirtualDisk) device;
+                VirtualDeviceFileBackingInfo bkInfo = (VirtualDeviceFileBackingInfo) vDisk.getBacking();
+                String diskFileName = bkInfo.getFileName();
+                if (!knownDiskNames.contains(diskFileName)) {
+                    ids.add(diskFileName.substring(diskFileName.lastIndexOf("/") + 1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Orders the new disk ids to match the requested volumes, using the volume name the disk file was created with.
+     * Disks that can't be matched by name, such as those whose file vSphere named after the vm, are handed out in
+     * device order, which follows the order of the reconfigure spec.
+     */
+    private @Nonnull List<String> matchNewDiskIds(@Nonnull List<VolumeCreateOptions> optionsList, @Nonnull List<String> newDiskIds) {
+        List<String> remaining = new ArrayList<String>(newDiskIds);
+        String[] ids = new String[optionsList.size()];
+        for (int i = 0; i < optionsList.size(); i++) {
+            String name = optionsList.get(i).getName();
+            for (String id : remaining) {
+                if (id.equals(name) || id.equals(name + ".vmdk")) {
+                    ids[i] = id;
+                    remaining.remove(id);
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == null) {
+                ids[i] = remaining.remove(0);
+            }
+        }
+        return Arrays.asList(ids);
+    }
+
+    /**
+     * @param usedUnits unit numbers already taken on a scsi controller
+     * @return the lowest free unit number on the controller or -1 if the controller is full
+     */
+    private int getFreeUnitNumber(@Nonnull List<Integer> usedUnits) {
+        for (int unit = 0; unit <= MAX_SCSI_UNIT_NUMBER; unit++) {
+            // unit 7 is reserved for the controller itself
+            if (unit != SCSI_CONTROLLER_UNIT_NUMBER && !usedUnits.contains(unit)) {
+                return unit;
+            }
+        }
+        return -1;
+    }
+
     private @Nullable Volume toVolume(@Nonnull VirtualDisk disk, @Nonnull String vmId, @Nonnull String regionId) {
         Volume volume = new Volume();
 
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+import org.dasein.cloud.vsphere.OperationTrace;
+import org.dasein.cloud.vsphere.Vsphere;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the host for new vms. Eligible hosts (green, connected and not in maintenance) are ranked by the
+ * fraction of their cpu and memory that is still free, so new vms go to the least loaded host rather than the
+ * first one. Capacity comes from the cached host list and usage from the host loads, which are only ever
+ * refreshed in the background, so no decision waits for a host scan. As with datastores, every decision is remembered for a short time and its
+ * memory counted against the chosen host so concurrent launches spread out.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class HostPlacement {
+    static private final Logger logger = Vsphere.getLogger(HostPlacement.class);
+
+    // how long a placement decision keeps counting against the memory of its host
+    static private final long RESERVATION_MILLIS = 5L * 60L * 1000L;
+
+    static private final Map<String, List<Reservation>> reservations = new HashMap<String, List<Reservation>>();
+
+    static private class Reservation {
+        long memoryMB;
+        long expires;
+
+        Reservation(long memoryMB, long expires) {
+            this.memoryMB = memoryMB;
+            this.expires = expires;
+        }
+    }
+
+    private Vsphere provider;
+
+    public HostPlacement(@Nonnull Vsphere provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Picks the least loaded eligible host of a cluster. Hosts without capacity or usage data are still eligible
+     * but rank below hosts with data.
+     * @param dataCenterId the cluster to place the vm in
+     * @param requiredMemoryMB the memory of the new vm
+     * @return the id of the chosen host or null if no host is eligible
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable String chooseHost(@Nonnull String dataCenterId, long requiredMemoryMB) throws InternalException, CloudException {
+        OperationTrace.begin(provider, "HostPlacement.chooseHost");
+        try {
+            HostSupport hostSupport = provider.getComputeServices().getAffinityGroupSupport();
+            Iterable<AffinityGroup> hosts = hostSupport.list(AffinityGroupFilterOptions.getInstance().withDataCenterId(dataCenterId));
+            Map<String, HostSupport.HostLoad> loads = new HashMap<String, HostSupport.HostLoad>();
+
+            for( HostSupport.HostLoad load : hostSupport.listHostLoads() ) {
+                loads.put(load.getHostId(), load);
+            }
+            String endpoint = getEndpoint();
+
+            synchronized( reservations ) {
+                String best = null;
+                double bestScore = -2;
+                long now = System.currentTimeMillis();
+
+                for( AffinityGroup host : hosts ) {
+                    Map<String, String> tags = host.getTags();
+                    if( tags == null || !"green".equalsIgnoreCase(tags.get("status")) ) {
+                        continue;
+                    }
+                    HostSupport.HostLoad load = loads.get(host.getAffinityGroupId());
+                    String connectionState = (load == null ? tags.get("connectionState") : load.getConnectionState());
+                    boolean maintenance = (load == null ? "true".equals(tags.get("maintenance")) : load.isInMaintenanceMode());
+                    if( maintenance || (connectionState != null && !connectionState.equals("connected")) ) {
+                        continue;
+                    }
+                    long cpuUsage = (load == null ? getLong(tags, "cpuUsageMhz") : load.getCpuUsageMhz());
+                    long memoryUsage = (load == null ? getLong(tags, "memoryUsageMB") : load.getMemoryUsageMB());
+                    long cpuCapacity = getLong(tags, "cpuCapacityMhz");
+                    long memoryCapacity = getLong(tags, "memoryCapacityMB");
+
+                    double score = -1;
+                    if( cpuUsage >= 0 && memoryUsage >= 0 && cpuCapacity > 0 && memoryCapacity > 0 ) {
+                        long freeMemory = memoryCapacity - memoryUsage - getReservedMemory(endpoint, host.getAffinityGroupId(), now) - requiredMemoryMB;
+                        double memoryScore = ( double ) freeMemory / ( double ) memoryCapacity;
+                        double cpuScore = ( double ) (cpuCapacity - cpuUsage) / ( double ) cpuCapacity;
+                        score = Math.max(-1, Math.min(memoryScore, cpuScore));
+                    }
+                    if( score > bestScore ) {
+                        bestScore = score;
+                        best = host.getAffinityGroupId();
+                    }
+                }
+                if( best != null ) {
+                    reserve(endpoint, best, requiredMemoryMB, now);
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Placing " + requiredMemoryMB + " MB on host " + best + " in " + dataCenterId);
+                    }
+                }
+                return best;
+            }
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private long getLong(@Nonnull Map<String, String> tags, @Nonnull String name) {
+        String value = tags.get(name);
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value);
+            }
+            catch( NumberFormatException ignore ) {
+                // treated as unknown
+            }
+        }
+        return -1;
+    }
+
+    private @Nonnull String getEndpoint() {
+        ProviderContext ctx = provider.getContext();
+        if( ctx == null || ctx.getCloud() == null || ctx.getCloud().getEndpoint() == null ) {
+            return "";
+        }
+        return ctx.getCloud().getEndpoint();
+    }
+
+    private long getReservedMemory(@Nonnull String endpoint, @Nonnull String hostId, long now) {
+        List<Reservation> list = reservations.get(endpoint + "|" + hostId);
+        long reserved = 0;
+        if( list != null ) {
+            Iterator<Reservation> it = list.iterator();
+            while( it.hasNext() ) {
+                Reservation r = it.next();
+                if( r.expires < now ) {
+                    it.remove();
+                }
+                else {
+                    reserved += r.memoryMB;
+                }
+            }
+        }
+        return reserved;
+    }
+
+    private void reserve(@Nonnull String endpoint, @Nonnull String hostId, long memoryMB, long now) {
+        String key = endpoint + "|" + hostId;
+        List<Reservation> list = reservations.get(key);
+        if( list == null ) {
+            list = new ArrayList<Reservation>();
+            reservations.put(key, list);
+        }
+        list.add(new Reservation(memoryMB, now + RESERVATION_MILLIS));
+    }
+}
@@ -35,11 +35,11 @@ import org.dasein.cloud.compute.AffinityGroupCreateOptions;
 import org.dasein.cloud.compute.AffinityGroupFilterOptions;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.DataCenterServices;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.*;
 import org.dasein.util.uom.time.Day;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
 
 import javax.annotation.Nonnull;
@@ -59,24 +59,111 @@ public class HostSupport extends AbstractAffinityGroupSupport<Vsphere> {
 
     public List<PropertySpec> hostPSpec;
     public List<SelectionSpec> hostSSpec;
+    public List<PropertySpec> hostLoadPSpec;
+    public List<PropertySpec> hostDatastorePSpec;
+    public List<PropertySpec> clusterDrsPSpec;
+
+    /**
+     * The current load and state of a host. Unlike the host list these change all the time, so they are fetched
+     * on their own and refreshed far more often.
+     */
+    static public class HostLoad {
+        private String hostId;
+        private long cpuUsageMhz = -1;
+        private long memoryUsageMB = -1;
+        private String connectionState;
+        private boolean inMaintenanceMode;
+
+        public HostLoad(@Nonnull String hostId, long cpuUsageMhz, long memoryUsageMB, @Nullable String connectionState, boolean inMaintenanceMode) {
+            this.hostId = hostId;
+            this.cpuUsageMhz = cpuUsageMhz;
+            this.memoryUsageMB = memoryUsageMB;
+            this.connectionState = connectionState;
+            this.inMaintenanceMode = inMaintenanceMode;
+        }
+
+        public @Nonnull String getHostId() {
+            return hostId;
+        }
+
+        /**
+         * @return the cpu usage in MHz or -1 if not known
+         */
+        public long getCpuUsageMhz() {
+            return cpuUsageMhz;
+        }
+
+        /**
+         * @return the memory usage in MB or -1 if not known
+         */
+        public long getMemoryUsageMB() {
+            return memoryUsageMB;
+        }
+
+        /**
+         * @return connected, disconnected or notResponding, null if not known
+         */
+        public @Nullable String getConnectionState() {
+            return connectionState;
+        }
+
+        public boolean isInMaintenanceMode() {
+            return inMaintenanceMode;
+        }
+    }
 
     public HostSupport(@Nonnull Vsphere provider) {
         super(provider);
     }
 
+    /**
+     * @param provider the provider a cache load has to run through
+     * @return these services if they use that provider, otherwise services of that provider
+     */
+    private @Nonnull HostSupport forProvider(@Nonnull Vsphere provider) {
+        return (provider == getProvider() ? this : new HostSupport(provider));
+    }
+
     public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
         VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
         return nav.retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
     }
 
+    public RetrieveResult retrieveObjectProperties(Vsphere provider, @Nonnull ManagedObjectReference objectRef, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
+        VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
+        return nav.retrieveObjectProperties(provider, objectRef, pSpecs);
+    }
+
     public List<PropertySpec> getHostPSpec() {
         if (hostPSpec == null) {
-            hostPSpec = VsphereTraversalSpec.createPropertySpec(hostPSpec, "HostSystem", false, "name", "overallStatus");
-            hostPSpec = VsphereTraversalSpec.createPropertySpec(hostPSpec, "ClusterComputeResource", false, "host");
+            hostPSpec = VsphereTraversalSpec.createPropertySpec(hostPSpec, "HostSystem", false, "name", "overallStatus", "summary.hardware", "summary.quickStats", "runtime.connectionState", "runtime.inMaintenanceMode");
+            // ComputeResource also covers clusters, standalone hosts have a plain ComputeResource parent
+            hostPSpec = VsphereTraversalSpec.createPropertySpec(hostPSpec, "ComputeResource", false, "host");
         }
         return hostPSpec;
     }
 
+    public List<PropertySpec> getHostLoadPSpec() {
+        if (hostLoadPSpec == null) {
+            hostLoadPSpec = VsphereTraversalSpec.createPropertySpec(hostLoadPSpec, "HostSystem", false, "summary.quickStats", "runtime.connectionState", "runtime.inMaintenanceMode");
+        }
+        return hostLoadPSpec;
+    }
+
+    public List<PropertySpec> getHostDatastorePSpec() {
+        if (hostDatastorePSpec == null) {
+            hostDatastorePSpec = VsphereTraversalSpec.createPropertySpec(hostDatastorePSpec, "HostSystem", false, "datastore");
+        }
+        return hostDatastorePSpec;
+    }
+
+    public List<PropertySpec> getClusterDrsPSpec() {
+        if (clusterDrsPSpec == null) {
+            clusterDrsPSpec = VsphereTraversalSpec.createPropertySpec(clusterDrsPSpec, "ClusterComputeResource", false, "configurationEx");
+        }
+        return clusterDrsPSpec;
+    }
+
     public List<SelectionSpec> getHostSSpec() {
         if (hostSSpec == null) {
             hostSSpec = new ArrayList<SelectionSpec>();
@@ -114,103 +201,274 @@ public class HostSupport extends AbstractAffinityGroupSupport<Vsphere> {
     @Nonnull
     @Override
     public Iterable<AffinityGroup> list(@Nonnull AffinityGroupFilterOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Host.list");
+        OperationTrace.begin(getProvider(), "Host.list");
         try {
             ProviderContext ctx = getProvider().getContext();
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            Cache<AffinityGroup> cache = Cache.getInstance(getProvider(), "affinityGroups", AffinityGroup.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Collection<AffinityGroup> hostList = (Collection<AffinityGroup>)cache.get(ctx);
-
-            if( hostList != null ) {
-                List<AffinityGroup> filtered = new ArrayList<AffinityGroup>();
-                for (AffinityGroup a : hostList) {
-                    if (options.matches(a)) {
-                        filtered.add(a);
-                    }
+            VsphereCache<AffinityGroup> cache = VsphereCache.getInstance(getProvider(), "affinityGroups", AffinityGroup.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY), new TimePeriod<Hour>(1, TimePeriod.HOUR));
+            // concurrent listings after an expiry share a single traversal
+            Iterable<AffinityGroup> hostList = cache.get(ctx, new VsphereCache.Loader<AffinityGroup>() {
+                @Override
+                public @Nonnull Iterable<AffinityGroup> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadHosts();
+                }
+            });
+            List<AffinityGroup> filtered = new ArrayList<AffinityGroup>();
+            for (AffinityGroup a : hostList) {
+                if (options.matches(a)) {
+                    filtered.add(a);
                 }
-                return filtered;
             }
-            List<AffinityGroup> allHosts = new ArrayList<AffinityGroup>();
-
-            List<SelectionSpec> selectionSpecsArr = getHostSSpec();
-            List<PropertySpec> pSpecs = getHostPSpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", selectionSpecsArr, pSpecs);
-
-            if (listobcont != null) {
-                List<AffinityGroup> temp = new ArrayList<AffinityGroup>();
-                Map<String, List<String>> dcToHostMap = new HashMap<String, List<String>>();
-
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference mr = oc.getObj();
-                    if (mr.getType().equals("HostSystem")) {
-                        String hostName = null, status = null;
-                        List<DynamicProperty> dps = oc.getPropSet();
-                        if (dps != null) {
-                            for (DynamicProperty dp : dps) {
-                                if (dp.getName().equals("name") ) {
-                                    hostName = (String) dp.getVal();
-                                }
-                                else if (dp.getName().equals("overallStatus")) {
-                                    ManagedEntityStatus mes = (ManagedEntityStatus) dp.getVal();
-                                    status = mes.value();
-                                }
+            return filtered;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull List<AffinityGroup> loadHosts() throws InternalException, CloudException {
+        List<AffinityGroup> allHosts = new ArrayList<AffinityGroup>();
 
+        List<SelectionSpec> selectionSpecsArr = getHostSSpec();
+        List<PropertySpec> pSpecs = getHostPSpec();
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", selectionSpecsArr, pSpecs);
+
+        if (listobcont != null) {
+            List<AffinityGroup> temp = new ArrayList<AffinityGroup>();
+            Map<String, String> hostToCluster = new HashMap<String, String>();
+
+            for (ObjectContent oc : listobcont.getObjects()) {
+                ManagedObjectReference mr = oc.getObj();
+                if (mr.getType().equals("HostSystem")) {
+                    String hostName = null, status = null;
+                    HostHardwareSummary hardware = null;
+                    List<DynamicProperty> dps = oc.getPropSet();
+                    if (dps != null) {
+                        for (DynamicProperty dp : dps) {
+                            if (dp.getName().equals("name") ) {
+                                hostName = (String) dp.getVal();
+                            }
+                            else if (dp.getName().equals("overallStatus")) {
+                                ManagedEntityStatus mes = (ManagedEntityStatus) dp.getVal();
+                                status = mes.value();
                             }
-                            if (hostName != null && status != null) {
-                                String agDesc = "Affinity group for "+hostName;
-                                long created = 0;
+                            else if (dp.getName().equals("summary.hardware")) {
+                                hardware = (HostHardwareSummary) dp.getVal();
+                            }
+                        }
+                        if (hostName != null && status != null) {
+                            String agDesc = "Affinity group for "+hostName;
+                            long created = 0;
 
-                                AffinityGroup host = AffinityGroup.getInstance(mr.getValue(), hostName, agDesc, "tempDC", created);
-                                host.setTag("status", status);
-                                temp.add(host);
+                            AffinityGroup host = AffinityGroup.getInstance(mr.getValue(), hostName, agDesc, "tempDC", created);
+                            host.setTag("status", status);
+                            if (hardware != null) {
+                                host.setTag("cpuCapacityMhz", String.valueOf((long) hardware.getCpuMhz() * hardware.getNumCpuCores()));
+                                host.setTag("memoryCapacityMB", String.valueOf(hardware.getMemorySize() / (1024L * 1024L)));
+                            }
+                            HostLoad load = toHostLoad(mr.getValue(), dps);
+                            if (load.getCpuUsageMhz() >= 0) {
+                                host.setTag("cpuUsageMhz", String.valueOf(load.getCpuUsageMhz()));
                             }
+                            if (load.getMemoryUsageMB() >= 0) {
+                                host.setTag("memoryUsageMB", String.valueOf(load.getMemoryUsageMB()));
+                            }
+                            if (load.getConnectionState() != null) {
+                                host.setTag("connectionState", load.getConnectionState());
+                            }
+                            host.setTag("maintenance", String.valueOf(load.isInMaintenanceMode()));
+                            temp.add(host);
                         }
                     }
-                    else {
-                        List<DynamicProperty> dps = oc.getPropSet();
-                        if (dps != null) {
-                            for (DynamicProperty dp : dps) {
+                }
+                else {
+                    List<DynamicProperty> dps = oc.getPropSet();
+                    if (dps != null) {
+                        for (DynamicProperty dp : dps) {
+                            if (dp.getName().equals("host")) {
                                 ArrayOfManagedObjectReference lMor = (ArrayOfManagedObjectReference) dp.getVal();
-                                List<ManagedObjectReference> list = lMor.getManagedObjectReference();
-                                List<String> hostIdList = new ArrayList<String>();
-                                for (ManagedObjectReference mor : list) {
-                                    hostIdList.add(mor.getValue());
+                                for (ManagedObjectReference mor : lMor.getManagedObjectReference()) {
+                                    hostToCluster.put(mor.getValue(), mr.getValue());
                                 }
-                                dcToHostMap.put(mr.getValue(), hostIdList);
                             }
                         }
                     }
                 }
+            }
 
-                for (AffinityGroup host: temp) {
-                    String id = host.getAffinityGroupId();
-                    for (Map.Entry e : dcToHostMap.entrySet()) {
-                        List<String> ids = (List<String>) e.getValue();
-                        if (ids.contains(id)) {
-                            Map<String, String> tags = host.getTags();
-                            host = AffinityGroup.getInstance(host.getAffinityGroupId(), host.getAffinityGroupName(), host.getDescription(), (String) e.getKey(), host.getCreationTimestamp());
-                            host.setTags(tags);
-                            allHosts.add(host);
-                            break;
+            // hosts and their compute resources come back in any order so membership is resolved afterwards
+            for (AffinityGroup host: temp) {
+                String clusterId = hostToCluster.get(host.getAffinityGroupId());
+                if (clusterId != null) {
+                    Map<String, String> tags = host.getTags();
+                    host = AffinityGroup.getInstance(host.getAffinityGroupId(), host.getAffinityGroupName(), host.getDescription(), clusterId, host.getCreationTimestamp());
+                    host.setTags(tags);
+                    allHosts.add(host);
+                }
+            }
+        }
+        return allHosts;
+    }
+
+    /**
+     * Lists the last known load of all hosts. Only the fast changing host properties are fetched, always in the
+     * background: loads past their two minute time to live keep being served while they are refreshed, and until
+     * the first refresh is done no loads are known. Placement therefore never waits for a host scan, falling back
+     * to the usage in the host list for hosts without a known load.
+     * @return the last known load of every host, empty while none is known yet
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nonnull Collection<HostLoad> listHostLoads() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Host.listHostLoads");
+        try {
+            ProviderContext ctx = getProvider().getContext();
+            if( ctx == null ) {
+                throw new NoContextException();
+            }
+            VsphereCache<HostLoad> cache = VsphereCache.getInstance(getProvider(), "hostLoads", HostLoad.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(2, TimePeriod.MINUTE), new TimePeriod<Minute>(1, TimePeriod.MINUTE));
+            Iterable<HostLoad> loads = cache.getCached(ctx, new VsphereCache.Loader<HostLoad>() {
+                @Override
+                public @Nonnull Iterable<HostLoad> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadHostLoads();
+                }
+            });
+            return (loads == null ? Collections.<HostLoad>emptyList() : (Collection<HostLoad>) loads);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * @param hostId the host to look up
+     * @return the last known load of the host or null if the host is not known
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nullable HostLoad getHostLoad(@Nonnull String hostId) throws InternalException, CloudException {
+        for (HostLoad load : listHostLoads()) {
+            if (load.getHostId().equals(hostId)) {
+                return load;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param hostId the host to look up
+     * @return the ids of the datastores mounted by the host, storage for its vms has to be placed on one of them
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public @Nonnull List<String> listDatastoreIds(@Nonnull String hostId) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Host.listDatastoreIds");
+        try {
+            ManagedObjectReference hostRef = new ManagedObjectReference();
+            hostRef.setType("HostSystem");
+            hostRef.setValue(hostId);
+
+            List<String> datastoreIds = new ArrayList<String>();
+            RetrieveResult props = retrieveObjectProperties(getProvider(), hostRef, getHostDatastorePSpec());
+            if (props != null) {
+                for (ObjectContent oc : props.getObjects()) {
+                    if (oc.getPropSet() == null) {
+                        continue;
+                    }
+                    for (DynamicProperty dp : oc.getPropSet()) {
+                        if (dp.getName().equals("datastore")) {
+                            for (ManagedObjectReference mor : ((ArrayOfManagedObjectReference) dp.getVal()).getManagedObjectReference()) {
+                                datastoreIds.add(mor.getValue());
+                            }
                         }
                     }
                 }
             }
-            cache.put(ctx, allHosts);
-            List<AffinityGroup> filtered = new ArrayList<AffinityGroup>();
-            for (AffinityGroup affinityGroup : allHosts) {
-                if (options.matches(affinityGroup)) {
-                    filtered.add(affinityGroup);
+            return datastoreIds;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * @param dataCenterId the cluster, or the compute resource of a standalone host
+     * @return true if DRS is enabled for the cluster and places new vms on its hosts itself
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred within the cloud provider
+     */
+    public boolean isDrsEnabled(@Nonnull String dataCenterId) throws InternalException, CloudException {
+        // only clusters have DRS, standalone hosts have plain compute resources (domain-s)
+        if (!dataCenterId.startsWith("domain-c")) {
+            return false;
+        }
+        OperationTrace.begin(getProvider(), "Host.isDrsEnabled");
+        try {
+            ManagedObjectReference clusterRef = new ManagedObjectReference();
+            clusterRef.setType("ClusterComputeResource");
+            clusterRef.setValue(dataCenterId);
+
+            RetrieveResult props = retrieveObjectProperties(getProvider(), clusterRef, getClusterDrsPSpec());
+            if (props != null) {
+                for (ObjectContent oc : props.getObjects()) {
+                    if (oc.getPropSet() == null) {
+                        continue;
+                    }
+                    for (DynamicProperty dp : oc.getPropSet()) {
+                        if (dp.getName().equals("configurationEx") && dp.getVal() instanceof ClusterConfigInfoEx) {
+                            ClusterDrsConfigInfo drsConfig = ((ClusterConfigInfoEx) dp.getVal()).getDrsConfig();
+                            return (drsConfig != null && Boolean.TRUE.equals(drsConfig.isEnabled()));
+                        }
+                    }
                 }
             }
-            return filtered;
+            return false;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull List<HostLoad> loadHostLoads() throws InternalException, CloudException {
+        List<HostLoad> loads = new ArrayList<HostLoad>();
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", getHostSSpec(), getHostLoadPSpec());
+
+        if (listobcont != null) {
+            for (ObjectContent oc : listobcont.getObjects()) {
+                if (oc.getObj().getType().equals("HostSystem") && oc.getPropSet() != null) {
+                    loads.add(toHostLoad(oc.getObj().getValue(), oc.getPropSet()));
+                }
+            }
+        }
+        return loads;
+    }
+
+    private @Nonnull HostLoad toHostLoad(@Nonnull String hostId, @Nonnull List<DynamicProperty> dps) {
+        long cpuUsage = -1, memoryUsage = -1;
+        String connectionState = null;
+        boolean maintenance = false;
+
+        for (DynamicProperty dp : dps) {
+            if (dp.getName().equals("summary.quickStats")) {
+                HostListSummaryQuickStats stats = (HostListSummaryQuickStats) dp.getVal();
+                if (stats.getOverallCpuUsage() != null) {
+                    cpuUsage = stats.getOverallCpuUsage();
+                }
+                if (stats.getOverallMemoryUsage() != null) {
+                    memoryUsage = stats.getOverallMemoryUsage();
+                }
+            }
+            else if (dp.getName().equals("runtime.connectionState")) {
+                connectionState = ((HostSystemConnectionState) dp.getVal()).value();
+            }
+            else if (dp.getName().equals("runtime.inMaintenanceMode")) {
+                maintenance = Boolean.TRUE.equals(dp.getVal());
+            }
         }
+        return new HostLoad(hostId, cpuUsage, memoryUsage, connectionState, maintenance);
     }
 
     @Override
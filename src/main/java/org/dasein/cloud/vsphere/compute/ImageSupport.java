@@ -44,7 +44,6 @@ import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.vsphere.*;
 import org.dasein.cloud.vsphere.capabilities.VsphereImageCapabilities;
 
-import org.dasein.cloud.util.APITrace;
 import org.dasein.util.uom.time.Second;
 import org.dasein.util.uom.time.TimePeriod;
 
@@ -97,7 +96,7 @@ public class ImageSupport extends AbstractImageSupport<Vsphere> {
     @Nonnull
     @Override
     public Iterable<MachineImage> listImages(@Nullable ImageFilterOptions opts) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "ImageSupport.listImages");
+        OperationTrace.begin(getProvider(), "ImageSupport.listImages");
 
         final ImageFilterOptions options;
 
@@ -157,7 +156,7 @@ public class ImageSupport extends AbstractImageSupport<Vsphere> {
         } catch (Exception e) {
             throw new CloudException(e);
         } finally {
-            APITrace.end();
+            OperationTrace.end();
         }
 
         return machineImages;
@@ -165,7 +164,7 @@ public class ImageSupport extends AbstractImageSupport<Vsphere> {
 
     @Override
     protected MachineImage capture(@Nonnull ImageCreateOptions options, @Nullable AsynchronousTask<MachineImage> task) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.capture");
+        OperationTrace.begin(getProvider(), "Image.capture");
         try {
             String vmId = options.getVirtualMachineId();
 
@@ -222,13 +221,13 @@ public class ImageSupport extends AbstractImageSupport<Vsphere> {
             return img;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void remove(@Nonnull String providerImageId, boolean checkState) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "ImageSupport.remove");
+        OperationTrace.begin(getProvider(), "ImageSupport.remove");
 
         MachineImage image = getImage(providerImageId);
         if (image == null) {
@@ -255,7 +254,7 @@ public class ImageSupport extends AbstractImageSupport<Vsphere> {
             throw new CloudException("VimFaultFaultMsg when deleting image", vimFaultFaultMsg);
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
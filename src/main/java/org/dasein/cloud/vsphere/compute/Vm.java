@@ -31,8 +31,6 @@ import org.dasein.cloud.dc.Folder;
 import org.dasein.cloud.dc.ResourcePool;
 import org.dasein.cloud.network.RawAddress;
 import org.dasein.cloud.network.VLAN;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.*;
 import org.dasein.cloud.vsphere.capabilities.VmCapabilities;
@@ -43,7 +41,6 @@ import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
 import org.dasein.util.uom.storage.Storage;
 import org.dasein.util.uom.time.Day;
-import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.Second;
 import org.dasein.util.uom.time.TimePeriod;
 import org.json.JSONArray;
@@ -63,13 +60,13 @@ import java.util.*;
 public class Vm extends AbstractVMSupport<Vsphere> {
     static private final Logger logger = Vsphere.getLogger(Vm.class);
     private List<PropertySpec> virtualMachinePSpec;
-    private List<PropertySpec> rpPSpecs;
-    private List<SelectionSpec> rpSSpecs;
     private DataCenters dc;
+    private ResourcePoolTree resourcePoolTree;
 
     public Vm(Vsphere provider) {
         super(provider);
         dc = provider.getDataCenterServices();
+        resourcePoolTree = new ResourcePoolTree(provider);
     }
 
     public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
@@ -87,37 +84,8 @@ public class Vm extends AbstractVMSupport<Vsphere> {
         return virtualMachinePSpec;
     }
 
-    public List<SelectionSpec> getResourcePoolSelectionSpec() {
-        if (rpSSpecs == null) {
-            rpSSpecs = new ArrayList<SelectionSpec>();
-            // Recurse through all ResourcePools
-            SelectionSpec sSpec = new SelectionSpec();
-            sSpec.setName("rpToRp");
-
-            TraversalSpec rpToRp = new TraversalSpec();
-            rpToRp.setType("ResourcePool");
-            rpToRp.setPath("resourcePool");
-            rpToRp.setSkip(Boolean.FALSE);
-            rpToRp.setName("rpToRp");
-            rpToRp.getSelectSet().add(sSpec);
-
-            TraversalSpec crToRp = new TraversalSpec();
-            crToRp.setType("ComputeResource");
-            crToRp.setPath("resourcePool");
-            crToRp.setSkip(Boolean.FALSE);
-            crToRp.setName("crToRp");
-            crToRp.getSelectSet().add(sSpec);
-
-            rpSSpecs.add(sSpec);
-            rpSSpecs.add(rpToRp);
-            rpSSpecs.add(crToRp);
-        }
-        return rpSSpecs;
-    }
-
-    public List<PropertySpec> getResourcePoolPropertySpec() {
-        rpPSpecs = VsphereTraversalSpec.createPropertySpec(rpPSpecs, "ResourcePool", false, "owner", "parent");
-        return rpPSpecs;
+    public ResourcePoolTree getResourcePoolTree() {
+        return resourcePoolTree;
     }
 
     private transient volatile VmCapabilities capabilities;
@@ -139,7 +107,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
     @Nonnull
     @Override
     public VirtualMachine alterVirtualMachineSize(@Nonnull String virtualMachineId, @Nullable String cpuCount, @Nullable String ramInMB) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.alterVirtualMachineSize");
+        OperationTrace.begin(getProvider(), "Vm.alterVirtualMachineSize");
         try {
             VirtualMachine vm = getVirtualMachine(virtualMachineId);
             if( vm == null ) {
@@ -198,14 +166,14 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             throw lastError;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public VirtualMachine clone(@Nonnull String vmId, @Nonnull String intoDcId, @Nonnull String name, @Nonnull String description, boolean powerOn, @Nullable String... firewallIds) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.clone");
+        OperationTrace.begin(getProvider(), "Vm.clone");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -245,18 +213,19 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
             VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
 
+            // DRS places the clone itself, only clusters without it get the least loaded host
             ManagedObjectReference host = null;
-            Iterable<AffinityGroup> agList = getProvider().getComputeServices().getAffinityGroupSupport().list(AffinityGroupFilterOptions.getInstance().withDataCenterId(intoDcId));
-            for (AffinityGroup ag : agList) {
-                if (ag.getTag("status").toString().equalsIgnoreCase("green")) {
+            boolean drsEnabled = getProvider().getComputeServices().getAffinityGroupSupport().isDrsEnabled(intoDcId);
+            if (!drsEnabled) {
+                String hostId = new HostPlacement(getProvider()).chooseHost(intoDcId, getMemoryMB(vm.getProductId()));
+                if (hostId != null) {
                     host = new ManagedObjectReference();
                     host.setType("HostSystem");
-                    host.setValue(ag.getAffinityGroupId());
-                    break;
+                    host.setValue(hostId);
                 }
             }
 
-            if (host != null && rpRef != null) {
+            if ((host != null || drsEnabled) && rpRef != null) {
                 location.setHost(host);
                 location.setPool(rpRef);
                 spec.setLocation(location);
@@ -271,6 +240,8 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                 if (method.getOperationComplete(taskMor, interval, 20)) {
                     PropertyChange pChange = method.getTaskResult();
                     ManagedObjectReference newVmRef = (ManagedObjectReference) pChange.getVal();
+                    // pool usage has changed
+                    getResourcePoolTree().invalidate();
 
                     return getVirtualMachine(newVmRef.getValue());
                 }
@@ -279,13 +250,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             throw new InternalException("Unable to clone vm due to invalid request properties (host, folder, resourcePool");
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getProduct(String)");
+        OperationTrace.begin(getProvider(), "Vm.getProduct(String)");
         try {
             for( VirtualMachineProduct product : listProducts("ignoreme", null) ) {
                 if( product.getProviderProductId().equals(productId) ) {
@@ -306,27 +277,32 @@ public class Vm extends AbstractVMSupport<Vsphere> {
 
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private @Nonnull VirtualMachineProduct getProduct(@Nonnull VirtualHardware hardware) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getProduct(VirtualHardware)");
-        VirtualMachineProduct product = getProduct(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
-
-        if( product == null ) {
-            int cpu = hardware.getNumCPU();
-            int ram = hardware.getMemoryMB();
-            int disk = 1;
-
-            product = new VirtualMachineProduct();
-            product.setCpuCount(cpu);
-            product.setDescription("Custom product - " + cpu + " CPU, " + ram + "MB RAM");
-            product.setName(cpu + " CPU/" + ram + "MB RAM");
-            product.setRootVolumeSize(new Storage<Gigabyte>(disk, Storage.GIGABYTE));
-            product.setProviderProductId(cpu + ":" + ram);
-        }
-        return product;
+        OperationTrace.begin(getProvider(), "Vm.getProduct(VirtualHardware)");
+        try {
+            VirtualMachineProduct product = getProduct(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
+
+            if( product == null ) {
+                int cpu = hardware.getNumCPU();
+                int ram = hardware.getMemoryMB();
+                int disk = 1;
+
+                product = new VirtualMachineProduct();
+                product.setCpuCount(cpu);
+                product.setDescription("Custom product - " + cpu + " CPU, " + ram + "MB RAM");
+                product.setName(cpu + " CPU/" + ram + "MB RAM");
+                product.setRootVolumeSize(new Storage<Gigabyte>(disk, Storage.GIGABYTE));
+                product.setProviderProductId(cpu + ":" + ram);
+            }
+            return product;
+        }
+        finally {
+            OperationTrace.end();
+        }
     }
 
     @Nonnull
@@ -335,22 +311,8 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             /** ignored **/ @Nonnull String machineImageId,
             @Nullable VirtualMachineProductFilterOptions options) throws InternalException, CloudException {
 
-        APITrace.begin(getProvider(), "Vm.listProducts(String, VirtualMachineProductFilterOptions)");
+        OperationTrace.begin(getProvider(), "Vm.listProducts(String, VirtualMachineProductFilterOptions)");
         try {
-            // get resource pools from cache or live
-            Cache<ResourcePool> cache = Cache.getInstance(
-                    getProvider(), "resourcePools", ResourcePool.class, CacheLevel.REGION_ACCOUNT,
-                    new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            List<ResourcePool> rps = (ArrayList<ResourcePool>) cache.get(getContext());
-
-            if( rps == null ) {
-                rps = new ArrayList<ResourcePool>();
-
-                Collection<ResourcePool> pools = getProvider().getDataCenterServices().listResourcePools(null);
-                rps.addAll(pools);
-                cache.put(getContext(), rps);
-            }
-
             List<VirtualMachineProduct> results = new ArrayList<VirtualMachineProduct>();
             Iterable<VirtualMachineProduct> jsonProducts = listProductsJson();
             // first add all matching products from vmproducts.json
@@ -360,12 +322,15 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                 }
             }
 
-            // second add same products but augmented with the resource pool info, ordered by pool name
-            for( org.dasein.cloud.dc.ResourcePool pool : rps ) {
+            // second add same products but augmented with the resource pool info, root pools being the clusters themselves
+            for( ResourcePoolTree.Node pool : getResourcePoolTree().listNodes() ) {
+                if( pool.isRoot() || pool.getName() == null || pool.getOwnerId() == null ) {
+                    continue;
+                }
                 for( VirtualMachineProduct product : jsonProducts ) {
                     VirtualMachineProduct tmp = new VirtualMachineProduct();
                     tmp.setName("Pool " + pool.getName() + "/" + product.getName());
-                    tmp.setProviderProductId(pool.getProvideResourcePoolId() + ":" + product.getProviderProductId());
+                    tmp.setProviderProductId(pool.getId() + ":" + product.getProviderProductId());
                     tmp.setRootVolumeSize(product.getRootVolumeSize());
                     tmp.setCpuCount(product.getCpuCount());
                     tmp.setDescription(product.getDescription());
@@ -380,7 +345,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             return results;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -397,9 +362,9 @@ public class Vm extends AbstractVMSupport<Vsphere> {
      * @throws InternalException
      */
     private @Nonnull Iterable<VirtualMachineProduct> listProductsJson() throws InternalException {
-        APITrace.begin(getProvider(), "VM.listProducts");
+        OperationTrace.begin(getProvider(), "VM.listProducts");
         try {
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(getProvider(), "products", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
+            VsphereCache<VirtualMachineProduct> cache = VsphereCache.getInstance(getProvider(), "products", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
             Iterable<VirtualMachineProduct> products = cache.get(getContext());
 
             if( products != null && products.iterator().hasNext() ) {
@@ -485,7 +450,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
             return list;
         } finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -550,7 +515,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
     @Nonnull
     @Override
     public VirtualMachine launch(@Nonnull VMLaunchOptions options) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.launch");
+        OperationTrace.begin(getProvider(), "Vm.launch");
         try {
             ProviderContext ctx = getProvider().getContext();
 
@@ -626,17 +591,34 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                 ManagedObjectReference vmFolder = new ManagedObjectReference();
                 vmFolder.setType("Folder");
                 if (options.getVmFolderId() != null) {
-                    vmFolder.setValue(options.getVmFolderId());
+                    String vmFolderId = options.getVmFolderId();
+                    if (vmFolderId.startsWith("/")) {
+                        // folder given by inventory path
+                        vmFolderId = dc.getVMFolderIdByPath(vmFolderId);
+                        if (vmFolderId == null) {
+                            throw new CloudException("No vm folder found at " + options.getVmFolderId());
+                        }
+                    }
+                    vmFolder.setValue(vmFolderId);
                 }
                 else {
-                    //find the root vm folder
-                    Collection<Folder> folders = dc.listVMFolders();
-                    for (Folder folder : folders) {
-                        if (folder.getParent() == null) {
-                            vmFolder.setValue(folder.getId());
-                            break;
+                    //find the root vm folder of the region the chosen datacenter belongs to
+                    String regionId = ctx.getRegionId();
+                    DataCenter dataCenter = dc.getDataCenter(dataCenterId);
+                    if (dataCenter != null && dataCenter.getRegionId() != null) {
+                        regionId = dataCenter.getRegionId();
+                    }
+                    String vmFolderId = (regionId == null ? null : dc.getRootVMFolderId(regionId));
+                    if (vmFolderId == null) {
+                        // region not indexed, fall back to the first root vm folder
+                        for (Folder folder : dc.listVMFolders()) {
+                            if (folder.getParent() == null) {
+                                vmFolderId = folder.getId();
+                                break;
+                            }
                         }
                     }
+                    vmFolder.setValue(vmFolderId);
                 }
 
                 VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
@@ -673,6 +655,30 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                 config.setNumCPUs(cpuCount);
                 config.setNumCoresPerSocket(cpuCount);
 
+                if (location.getHost() == null && !getProvider().getComputeServices().getAffinityGroupSupport().isDrsEnabled(dataCenterId)) {
+                    // no host requested and no DRS to place the vm, so pick the least loaded one in the cluster
+                    String hostId = new HostPlacement(getProvider()).chooseHost(dataCenterId, memory);
+                    if (hostId != null) {
+                        ManagedObjectReference hostRef = new ManagedObjectReference();
+                        hostRef.setValue(hostId);
+                        hostRef.setType("HostSystem");
+                        location.setHost(hostRef);
+                    }
+                }
+
+                if (location.getDatastore() == null) {
+                    // no datastore requested so pick the least loaded one of the host that can hold the template disks
+                    long requiredBytes = 0;
+                    if (templateConfigInfo.getHardware() != null) {
+                        for (VirtualDevice device : templateConfigInfo.getHardware().getDevice()) {
+                            if (device instanceof VirtualDisk) {
+                                requiredBytes += ((VirtualDisk) device).getCapacityInKB() * 1024L;
+                            }
+                        }
+                    }
+                    new DatastorePlacement(getProvider()).chooseLaunchDatastore(dataCenterId, location, config, requiredBytes);
+                }
+
                 // record all networks we will end up with so that we can configure NICs correctly
                 List<String> resultingNetworks = new ArrayList<String>();
                 //networking section
@@ -928,6 +934,8 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                 if (method.getOperationComplete(taskMor, interval, 20)) {
                     PropertyChange pChange = method.getTaskResult();
                     ManagedObjectReference newVmRef = (ManagedObjectReference) pChange.getVal();
+                    // pool usage has changed
+                    getResourcePoolTree().invalidate();
 
                     if (apiMajorVersion >= 6) {
                         //reconfig vm call as of vsphere api v6.0
@@ -970,7 +978,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
         return null;
     }
@@ -978,9 +986,23 @@ public class Vm extends AbstractVMSupport<Vsphere> {
     @Nonnull
     @Override
     public Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.listVirtualMachines");
+        ProviderContext ctx = getProvider().getContext();
+        if (ctx == null) {
+            throw new NoContextException();
+        }
+        // concurrent listings share a single traversal
+        return SingleFlight.execute(SingleFlight.getKey(ctx, "Vm.listVirtualMachines"), new SingleFlight.Call<Iterable<VirtualMachine>>() {
+            @Override
+            public Iterable<VirtualMachine> call() throws InternalException, CloudException {
+                return loadVirtualMachines();
+            }
+        });
+    }
+
+    private @Nonnull Iterable<VirtualMachine> loadVirtualMachines() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.listVirtualMachines");
         try {
-            List<VirtualMachine> list = new ArrayList<VirtualMachine>();
+            final List<VirtualMachine> list = new ArrayList<VirtualMachine>();
             ProviderContext ctx = getProvider().getContext();
             if (ctx == null) {
                 throw new NoContextException();
@@ -990,102 +1012,121 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
 
             List<PropertySpec> pSpecs = getVirtualMachinePSpec();
+
+            if (PropertyStream.isEnabled(getProvider())) {
+                final Iterable<ResourcePool> rps = getResourcePools(false);
+                final Map<String, String> vmFolderNames = getVmFolderNames();
+                streamObjectList(getProvider(), "vmFolder", null, pSpecs, new PropertyStream.Handler() {
+                    @Override
+                    public void handle(@Nonnull ObjectContent oc) throws CloudException, InternalException {
+                        addVirtualMachine(list, oc, rps, vmFolderNames);
+                    }
+                });
+                return list;
+            }
+
             RetrieveResult listobcont = retrieveObjectList(getProvider(), "vmFolder", null, pSpecs);
 
             if (listobcont != null) {
                 Iterable<ResourcePool> rps = getResourcePools(false);//return all resourcePools
-                Iterable<Folder> vmFolders = dc.listVMFolders();
-                List<ObjectContent> objectContents = listobcont.getObjects();
-                for (ObjectContent oc : objectContents) {
-                    boolean isTemplate = false;
-
-                    ManagedObjectReference vmRef = oc.getObj();
-                    String vmId = vmRef.getValue();
-
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    VirtualMachineConfigInfo vmInfo = null;
-                    ManagedObjectReference rpRef = null, parentRef = null;
-                    String dataCenterId = null, vmFolderName = null;
-                    GuestInfo guestInfo = null;
-                    VirtualMachineRuntimeInfo vmRuntimeInfo = null;
-                    List<ManagedObjectReference> datastores = null;
-                    label:
-                    for (DynamicProperty dp : dps) {
-                        switch (dp.getName()) {
-                            case "config":
-                                vmInfo = (VirtualMachineConfigInfo) dp.getVal();
-                                if (vmInfo.isTemplate()) {
-                                    isTemplate = true;
-                                    break label;
-                                }
-                                break;
-                            case "resourcePool":
-                                rpRef = (ManagedObjectReference) dp.getVal();
-                                String resourcePoolId = rpRef.getValue();
-                                for (ResourcePool rp : rps) {
-                                    if (rp.getProvideResourcePoolId().equals(resourcePoolId)) {
-                                        dataCenterId = rp.getDataCenterId();
-                                        break;
-                                    }
-                                }
-                                break;
-                            case "guest":
-                                guestInfo = (GuestInfo) dp.getVal();
-                                break;
-                            case "runtime":
-                                vmRuntimeInfo = (VirtualMachineRuntimeInfo) dp.getVal();
-                                break;
-                            case "parent":
-                                parentRef = (ManagedObjectReference) dp.getVal();
-                                for (Folder vmFolder : vmFolders) {
-                                    if (vmFolder.getId().equals(parentRef.getValue())) {
-                                        vmFolderName = vmFolder.getName();
-                                        break;
-                                    }
-                                }
-                                break;
-                            case "datastore":
-                                ArrayOfManagedObjectReference array = (ArrayOfManagedObjectReference) dp.getVal();
-                                datastores = array.getManagedObjectReference();
-                                break;
+                Map<String, String> vmFolderNames = getVmFolderNames();
+                for (ObjectContent oc : listobcont.getObjects()) {
+                    addVirtualMachine(list, oc, rps, vmFolderNames);
+                }
+            }
+            return list;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Map<String, String> getVmFolderNames() throws InternalException, CloudException {
+        Map<String, String> vmFolderNames = new HashMap<String, String>();
+        for (Folder vmFolder : dc.listVMFolders()) {
+            vmFolderNames.put(vmFolder.getId(), vmFolder.getName());
+        }
+        return vmFolderNames;
+    }
+
+    private void addVirtualMachine(@Nonnull List<VirtualMachine> list, @Nonnull ObjectContent oc, @Nonnull Iterable<ResourcePool> rps, @Nonnull Map<String, String> vmFolderNames) throws InternalException, CloudException {
+        boolean isTemplate = false;
+
+        ManagedObjectReference vmRef = oc.getObj();
+        String vmId = vmRef.getValue();
+
+        List<DynamicProperty> dps = oc.getPropSet();
+        VirtualMachineConfigInfo vmInfo = null;
+        ManagedObjectReference rpRef = null, parentRef = null;
+        String dataCenterId = null, vmFolderName = null;
+        GuestInfo guestInfo = null;
+        VirtualMachineRuntimeInfo vmRuntimeInfo = null;
+        List<ManagedObjectReference> datastores = null;
+        label:
+        for (DynamicProperty dp : dps) {
+            switch (dp.getName()) {
+                case "config":
+                    vmInfo = (VirtualMachineConfigInfo) dp.getVal();
+                    if (vmInfo.isTemplate()) {
+                        isTemplate = true;
+                        break label;
+                    }
+                    break;
+                case "resourcePool":
+                    rpRef = (ManagedObjectReference) dp.getVal();
+                    String resourcePoolId = rpRef.getValue();
+                    for (ResourcePool rp : rps) {
+                        if (rp.getProvideResourcePoolId().equals(resourcePoolId)) {
+                            dataCenterId = rp.getDataCenterId();
+                            break;
                         }
                     }
-                    if (!isTemplate) {
-                        VirtualMachine vm = toVirtualMachine(vmId, vmInfo, guestInfo, vmRuntimeInfo, datastores);
-                        if (vm != null) {
-                            if (dataCenterId != null) {
-                                DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
-                                if (ourDC != null) {
-                                    vm.setProviderDataCenterId(dataCenterId);
-                                    vm.setProviderRegionId(ourDC.getRegionId());
-                                } else if (dataCenterId.equals(getContext().getRegionId())) {
-                                    // env doesn't have clusters?
-                                    vm.setProviderDataCenterId(dataCenterId + "-a");
-                                    vm.setProviderRegionId(dataCenterId);
-                                }
-                                if (vm.getProviderDataCenterId() != null) {
-                                    if (vmFolderName != null) {
-                                        vm.setTag("vmFolder", vmFolderName);
-                                        vm.setTag("vmFolderId", parentRef.getValue());
-                                    }
-                                    vm.setResourcePoolId(rpRef.getValue());
-                                    list.add(vm);
-                                }
-                            }
+                    break;
+                case "guest":
+                    guestInfo = (GuestInfo) dp.getVal();
+                    break;
+                case "runtime":
+                    vmRuntimeInfo = (VirtualMachineRuntimeInfo) dp.getVal();
+                    break;
+                case "parent":
+                    parentRef = (ManagedObjectReference) dp.getVal();
+                    vmFolderName = vmFolderNames.get(parentRef.getValue());
+                    break;
+                case "datastore":
+                    ArrayOfManagedObjectReference array = (ArrayOfManagedObjectReference) dp.getVal();
+                    datastores = array.getManagedObjectReference();
+                    break;
+            }
+        }
+        if (!isTemplate) {
+            VirtualMachine vm = toVirtualMachine(vmId, vmInfo, guestInfo, vmRuntimeInfo, datastores);
+            if (vm != null) {
+                if (dataCenterId != null) {
+                    DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
+                    if (ourDC != null) {
+                        vm.setProviderDataCenterId(dataCenterId);
+                        vm.setProviderRegionId(ourDC.getRegionId());
+                    } else if (dataCenterId.equals(getContext().getRegionId())) {
+                        // env doesn't have clusters?
+                        vm.setProviderDataCenterId(dataCenterId + "-a");
+                        vm.setProviderRegionId(dataCenterId);
+                    }
+                    if (vm.getProviderDataCenterId() != null) {
+                        if (vmFolderName != null) {
+                            vm.setTag("vmFolder", vmFolderName);
+                            vm.setTag("vmFolderId", parentRef.getValue());
                         }
+                        vm.setResourcePoolId(rpRef.getValue());
+                        list.add(vm);
                     }
                 }
             }
-            return list;
-        }
-        finally {
-            APITrace.end();
         }
     }
 
     @Override
     public void reboot(@Nonnull String vmId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.reboot");
+        OperationTrace.begin(getProvider(), "Vm.reboot");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1114,13 +1155,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void resume(@Nonnull String vmId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.resume");
+        OperationTrace.begin(getProvider(), "Vm.resume");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1158,13 +1199,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void start(@Nonnull String vmId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.start");
+        OperationTrace.begin(getProvider(), "Vm.start");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1206,13 +1247,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void stop(@Nonnull String vmId, boolean force) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.stop");
+        OperationTrace.begin(getProvider(), "Vm.stop");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1247,13 +1288,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void suspend(@Nonnull String vmId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.suspend");
+        OperationTrace.begin(getProvider(), "Vm.suspend");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1281,13 +1322,13 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void terminate(@Nonnull String vmId, String explanation) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.terminate");
+        OperationTrace.begin(getProvider(), "Vm.terminate");
         try {
             VirtualMachine vm = getVirtualMachine(vmId);
             if (vm == null) {
@@ -1312,6 +1353,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
                     }
                 }
                 vimPortType.destroyTask(vmRef);
+                getResourcePoolTree().invalidate();
             } catch (InvalidStateFaultMsg invalidStateFaultMsg) {
                 throw new CloudException("InvalidStateFaultMsg when terminating vm", invalidStateFaultMsg);
             } catch (RuntimeFaultFaultMsg runtimeFaultFaultMsg) {
@@ -1323,7 +1365,7 @@ public class Vm extends AbstractVMSupport<Vsphere> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1513,49 +1555,22 @@ public class Vm extends AbstractVMSupport<Vsphere> {
 
     @Nonnull
     public List<ResourcePool> getResourcePools(boolean rootOnly) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.getResourcePools");
         try {
             List<ResourcePool> resourcePools = new ArrayList<ResourcePool>();
 
-            List<SelectionSpec> selectionSpecsArr = getResourcePoolSelectionSpec();
-            List<PropertySpec> pSpecs = getResourcePoolPropertySpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "hostFolder", selectionSpecsArr, pSpecs);
-
-            if (listobcont != null) {
-                for (ObjectContent oc : listobcont.getObjects()) {
-                    ManagedObjectReference rpRef = oc.getObj();
-                    String rpId = rpRef.getValue();
-                    String owner = null;
-                    boolean isRootResourcePool = false;
-                    List<DynamicProperty> dps = oc.getPropSet();
-                    if (dps != null) {
-                        for (DynamicProperty dp : dps) {
-                            if (dp.getName().equals("owner")) {
-                                ManagedObjectReference clusterRef = (ManagedObjectReference) dp.getVal();
-                                owner = clusterRef.getValue();
-                            }
-                            else if (dp.getName().equals("parent")) {
-                                ManagedObjectReference parentRef = (ManagedObjectReference) dp.getVal();
-                                if (!parentRef.getType().equals("ResourcePool")) {
-                                    isRootResourcePool = true;
-                                }
-                            }
-                        }
-                    }
-                    if (owner != null) {
-                        if ( (rootOnly && isRootResourcePool) || !rootOnly) {
-                            ResourcePool resourcePool = new ResourcePool();
-                            resourcePool.setDataCenterId(owner);
-                            resourcePool.setProvideResourcePoolId(rpId);
-                            resourcePools.add(resourcePool);
-                        }
-                    }
+            for (ResourcePoolTree.Node node : getResourcePoolTree().listNodes()) {
+                if (node.getOwnerId() != null && (!rootOnly || node.isRoot())) {
+                    ResourcePool resourcePool = new ResourcePool();
+                    resourcePool.setDataCenterId(node.getOwnerId());
+                    resourcePool.setProvideResourcePoolId(node.getId());
+                    resourcePools.add(resourcePool);
                 }
             }
             return resourcePools;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1768,6 +1783,20 @@ public class Vm extends AbstractVMSupport<Vsphere> {
         return "";
     }
 
+    // product ids are cpu:memory or resourcePool:cpu:memory
+    private long getMemoryMB(@Nullable String productId) {
+        if (productId != null) {
+            String[] items = productId.split(":");
+            try {
+                return Long.parseLong(items[items.length - 1]);
+            }
+            catch (NumberFormatException ignore) {
+                // unknown size
+            }
+        }
+        return 0;
+    }
+
     private String validateName(String name) {
         name = name.toLowerCase().replaceAll("_", "-").replaceAll(" ", "");
         if( name.length() <= 30 ) {
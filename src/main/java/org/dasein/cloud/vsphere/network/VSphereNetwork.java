@@ -26,17 +26,15 @@ import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.VisibleScope;
 import org.dasein.cloud.network.*;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.*;
 import org.dasein.util.uom.time.Day;
+import org.dasein.util.uom.time.Hour;
 import org.dasein.util.uom.time.TimePeriod;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 
@@ -52,6 +50,14 @@ public class VSphereNetwork extends AbstractVLANSupport<Vsphere> {
         super(provider);
     }
 
+    /**
+     * @param provider the provider a cache load has to run through
+     * @return these services if they use that provider, otherwise services of that provider
+     */
+    private @Nonnull VSphereNetwork forProvider(@Nonnull Vsphere provider) {
+        return (provider == getProvider() ? this : new VSphereNetwork(provider));
+    }
+
     public RetrieveResult retrieveObjectList(Vsphere provider, @Nonnull String baseFolder, @Nullable List<SelectionSpec> selectionSpecsArr, @Nonnull List<PropertySpec> pSpecs) throws InternalException, CloudException {
         VsphereInventoryNavigation nav = new VsphereInventoryNavigation();
         return nav.retrieveObjectList(provider, baseFolder, selectionSpecsArr, pSpecs);
@@ -59,7 +65,9 @@ public class VSphereNetwork extends AbstractVLANSupport<Vsphere> {
 
     public List<PropertySpec> getNetworkPSpec() {
         if (networkPSpec == null) {
-            networkPSpec = VsphereTraversalSpec.createPropertySpec(networkPSpec, "Network", true);
+            // only what the vlan needs, the full objects carry vm and host arrays that grow with the cluster
+            networkPSpec = VsphereTraversalSpec.createPropertySpec(networkPSpec, "Network", false, "summary.name", "summary.accessible");
+            networkPSpec = VsphereTraversalSpec.createPropertySpec(networkPSpec, "DistributedVirtualPortgroup", false, "config.distributedVirtualSwitch");
         }
         return networkPSpec;
     }
@@ -100,66 +108,80 @@ public class VSphereNetwork extends AbstractVLANSupport<Vsphere> {
     @Nonnull
     @Override
     public Iterable<VLAN> listVlans() throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "VSphereNetwork.listVlans");
+        OperationTrace.begin(getProvider(), "VSphereNetwork.listVlans");
         try {
             ProviderContext ctx = getProvider().getContext();
             if( ctx == null ) {
                 throw new NoContextException();
             }
-            Cache<VLAN> cache = Cache.getInstance(getProvider(), "networks", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Collection<VLAN> netList = (Collection<VLAN>)cache.get(ctx);
+            VsphereCache<VLAN> cache = VsphereCache.getInstance(getProvider(), "networks", VLAN.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY), new TimePeriod<Hour>(1, TimePeriod.HOUR));
+
+            return cache.get(ctx, new VsphereCache.Loader<VLAN>() {
+                @Override
+                public @Nonnull Iterable<VLAN> load(@Nonnull Vsphere provider) throws InternalException, CloudException {
+                    return forProvider(provider).loadVlans();
+                }
+            });
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-            if( netList != null ) {
-                return netList;
+    private @Nonnull List<VLAN> loadVlans() throws InternalException, CloudException {
+        List<VLAN> list = new ArrayList<VLAN>();
+        List<PropertySpec> pSpecs = getNetworkPSpec();
+
+        RetrieveResult listobcont = retrieveObjectList(getProvider(), "networkFolder", null, pSpecs);
+
+        if (listobcont != null) {
+            List<ObjectContent> objectContents = listobcont.getObjects();
+            for (ObjectContent oc : objectContents) {
+                VLAN vlan = decodeVlan(oc);
+                if (vlan != null) {
+                    list.add(vlan);
+                }
             }
+        }
+        return list;
+    }
 
-            List<VLAN> list = new ArrayList<VLAN>();
-            List<PropertySpec> pSpecs = getNetworkPSpec();
-
-            RetrieveResult listobcont = retrieveObjectList(getProvider(), "networkFolder", null, pSpecs);
-
-            if (listobcont != null) {
-                List<ObjectContent> objectContents = listobcont.getObjects();
-                for (ObjectContent oc : objectContents) {
-                    ManagedObjectReference mo = oc.getObj();
-                    String id = mo.getValue();
-                    String networkType = mo.getType();
-                    if (networkType.equals("Network") || networkType.equals("DistributedVirtualPortgroup")) {
-                        List<DynamicProperty> props = oc.getPropSet();
-                        String networkName = null, dvsId = null;
-                        boolean state = false;
-                        for (DynamicProperty dp : props) {
-                            if (dp.getName().equals("summary")) {
-                                NetworkSummary ns = (NetworkSummary) dp.getVal();
-                                state = ns.isAccessible();
-                                networkName = ns.getName();
-                            }
-                            else if (dp.getVal() instanceof DVPortgroupConfigInfo) {
-                                DVPortgroupConfigInfo di = (DVPortgroupConfigInfo) dp.getVal();
-                                ManagedObjectReference switchMO = di.getDistributedVirtualSwitch();
-                                dvsId = switchMO.getValue();
-                            }
-                        }
-                        if ( networkName != null ) {
-                            if (networkType.equals("DistributedVirtualPortgroup")) {
-                                if (dvsId == null) {
-                                    continue;
-                                }
-                            }
-                            VLAN vlan = toVlan(id, networkName, state, dvsId);
-                            if (vlan != null) {
-                                list.add(vlan);
-                            }
-                        }
-                    }
+    /**
+     * Decodes a network retrieved with {@link #getNetworkPSpec()}.
+     * @param oc the network or distributed port group
+     * @return the vlan or null if the object is not a network or lacks mandatory properties
+     */
+    private @Nullable VLAN decodeVlan(@Nonnull ObjectContent oc) throws InternalException, CloudException {
+        ManagedObjectReference mo = oc.getObj();
+        String networkType = mo.getType();
+        boolean portGroup = networkType.equals("DistributedVirtualPortgroup");
+
+        if (!portGroup && !networkType.equals("Network")) {
+            return null;
+        }
+        String networkName = null, dvsId = null;
+        boolean state = false;
+        List<DynamicProperty> props = oc.getPropSet();
+        if (props != null) {
+            for (DynamicProperty dp : props) {
+                switch (dp.getName()) {
+                    case "summary.name":
+                        networkName = (String) dp.getVal();
+                        break;
+                    case "summary.accessible":
+                        state = Boolean.TRUE.equals(dp.getVal());
+                        break;
+                    case "config.distributedVirtualSwitch":
+                        dvsId = ((ManagedObjectReference) dp.getVal()).getValue();
+                        break;
                 }
             }
-            cache.put(ctx, list);
-            return list;
         }
-        finally {
-            APITrace.end();
+        // port groups are only usable through their switch
+        if (networkName == null || (portGroup && dvsId == null)) {
+            return null;
         }
+        return toVlan(mo.getValue(), networkName, state, dvsId);
     }
 
     private VLAN toVlan(@Nonnull String id, @Nonnull String name, boolean available, @Nullable String switchID) throws InternalException, CloudException {
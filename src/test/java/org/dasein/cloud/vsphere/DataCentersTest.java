@@ -55,9 +55,14 @@ public class DataCentersTest extends VsphereTestBase{
     private ObjectManagement om = new ObjectManagement();
     private final RetrieveResult regions = om.readJsonFile("src/test/resources/DataCenters/regions.json", RetrieveResult.class);
     private final RetrieveResult datacenters = om.readJsonFile("src/test/resources/DataCenters/datacenters.json", RetrieveResult.class);
+    private final RetrieveResult standaloneDatacenters = om.readJsonFile("src/test/resources/DataCenters/standaloneDatacenters.json", RetrieveResult.class);
     private final RetrieveResult resourcePools = om.readJsonFile("src/test/resources/DataCenters/resourcePools.json", RetrieveResult.class);
     private final RetrieveResult storagePools = om.readJsonFile("src/test/resources/DataCenters/storagePools.json", RetrieveResult.class);
     private final RetrieveResult vmFolders = om.readJsonFile("src/test/resources/DataCenters/vmFolders.json", RetrieveResult.class);
+    private final RetrieveResult datacenterParent = om.readJsonFile("src/test/resources/DataCenters/datacenterParent.json", RetrieveResult.class);
+    private final RetrieveResult nestedDatacenterParent = om.readJsonFile("src/test/resources/DataCenters/nestedDatacenterParent.json", RetrieveResult.class);
+    private final RetrieveResult datacenterFolder = om.readJsonFile("src/test/resources/DataCenters/datacenterFolder.json", RetrieveResult.class);
+    private final RetrieveResult rootFolder = om.readJsonFile("src/test/resources/DataCenters/rootFolder.json", RetrieveResult.class);
 
     private final AffinityGroup[] daseinHosts = om.readJsonFile("src/test/resources/DataCenters/daseinHosts.json", AffinityGroup[].class);
     private final AffinityGroup[] standaloneHost = om.readJsonFile("src/test/resources/DataCenters/standaloneHost.json", AffinityGroup[].class);
@@ -76,8 +81,10 @@ public class DataCentersTest extends VsphereTestBase{
     private List<PropertySpec> dcPSpecs = null;
     private List<SelectionSpec> rpSSpecs = null;
     private List<PropertySpec> rpPSpecs = null;
+    private ResourcePoolTree rpTree = null;
     private List<PropertySpec> spPSpecs = null;
     private List<PropertySpec> vfPSpecs = null;
+    private List<PropertySpec> parentPSpecs = null;
     private List<PropertySpec> invalidProps = null;
 
     private Cache<Region> regCache = null;
@@ -96,10 +103,13 @@ public class DataCentersTest extends VsphereTestBase{
         dc = new DataCenters(vsphereMock);
         regPSpecs = dc.getRegionPropertySpec();
         dcPSpecs = dc.getDataCenterPropertySpec();
-        rpSSpecs = dc.getResourcePoolSelectionSpec();
-        rpPSpecs = dc.getResourcePoolPropertySpec();
+        rpTree = dc.getResourcePoolTree();
+        rpTree.invalidate();
+        rpSSpecs = rpTree.getResourcePoolSelectionSpec();
+        rpPSpecs = rpTree.getResourcePoolPropertySpec();
         spPSpecs = dc.getStoragePoolPropertySpec();
         vfPSpecs = dc.getVmFolderPropertySpec();
+        parentPSpecs = dc.getInventoryParentPropertySpec();
 
         regCache = Cache.getInstance(vsphereMock, "regions", Region.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR));
         dcCache = Cache.getInstance(vsphereMock, "dataCenters", DataCenter.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
@@ -316,6 +326,31 @@ public class DataCentersTest extends VsphereTestBase{
         assertEquals("domain-c70", dataCenter.getProviderDataCenterId());
     }
 
+    @Test
+    public void getDataCenterShouldResolveStandaloneHostComputeResource() throws CloudException, InternalException{
+        dcCache.clear();
+
+        new NonStrictExpectations(DataCenters.class) {
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, regPSpecs);
+                result = regions;
+            }
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, dcPSpecs);
+                result = standaloneDatacenters;
+                result = datacenters;
+            }
+        };
+
+        // reloading drops any index built by earlier tests
+        dc.listDataCenters("datacenter-21");
+        DataCenter dataCenter = dc.getDataCenter("domain-s48");
+        assertNotNull("Standalone hosts and their vms point at their compute resource", dataCenter);
+        assertEquals("esx-standalone-1", dataCenter.getName());
+        assertEquals("datacenter-21", dataCenter.getRegionId());
+
+        dcCache.clear();
+        dc.listDataCenters("datacenter-21");
+    }
+
     @Test
     public void getFakeDataCenterShouldReturnNull() throws CloudException, InternalException{
         new NonStrictExpectations(DataCenters.class) {
@@ -537,8 +572,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePools() throws CloudException, InternalException{
-        new Expectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
                 result = resourcePools;
             }
         };
@@ -561,8 +596,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void getResourcePool() throws CloudException, InternalException{
-        new NonStrictExpectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
+        new NonStrictExpectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
                 result = resourcePools;
             }
         };
@@ -577,8 +612,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void getFakeResourcePoolShouldReturnNull() throws CloudException, InternalException{
-        new NonStrictExpectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
+        new NonStrictExpectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpecs, rpPSpecs);
                 result = resourcePools;
             }
         };
@@ -589,8 +624,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePoolsShouldReturnEmptyListIfCloudReturnsNullObject() throws CloudException, InternalException{
-        new NonStrictExpectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
+        new NonStrictExpectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
                 result = null;
             }
         };
@@ -602,8 +637,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePoolsShouldReturnEmptyListIfCloudReturnsEmptyObject() throws CloudException, InternalException{
-        new Expectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
                 result = new RetrieveResult();
                 times=1;
             }
@@ -616,8 +651,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePoolsShouldReturnEmptyListIfCloudReturnsEmptyPropertyList() throws CloudException, InternalException{
-        new Expectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
                 RetrieveResult rr = new RetrieveResult();
                 ObjectContent oc = new ObjectContent();
                 oc.setObj(new ManagedObjectReference());
@@ -634,8 +669,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePoolsShouldReturnEmptyListIfCloudDoesNotReturnNameProperty() throws CloudException, InternalException{
-        new Expectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
                 result = resourcePoolsNoNameProperty;
                 times=1;
             }
@@ -648,8 +683,8 @@ public class DataCentersTest extends VsphereTestBase{
 
     @Test
     public void listResourcePoolsShouldReturnEmptyListIfCloudDoesNotReturnOwnerProperty() throws CloudException, InternalException{
-        new Expectations(DataCenters.class) {
-            {dc.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, anyString, (List) any, (List) any);
                 result = resourcePoolsNoOwnerProperty;
                 times=1;
             }
@@ -909,6 +944,91 @@ public class DataCentersTest extends VsphereTestBase{
         assertTrue("Folder returned but id was made up", folder == null);
     }
 
+    @Test
+    public void getVmFolderIdByPathShouldResolveFromIndex() throws CloudException, InternalException{
+        vfCache.clear();
+        regCache.clear();
+
+        new NonStrictExpectations(DataCenters.class) {
+            { dc.retrieveObjectList(vsphereMock, "vmFolder", null, vfPSpecs);
+                result = vmFolders;
+                times=1;
+            }
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, regPSpecs);
+                result = regions;
+            }
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, dcPSpecs);
+                result = datacenters;
+            }
+            {dc.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, parentPSpecs);
+                result = datacenterParent;
+                result = rootFolder;
+            }
+        };
+
+        assertEquals("group-v22", dc.getVMFolderIdByPath("/WTC/vm"));
+        assertEquals("group-v81", dc.getVMFolderIdByPath("/WTC/vm/VM Folder1/"));
+        assertEquals("group-v81", dc.getVMFolderIdByPath("WTC/vm/VM Folder1"));
+        assertEquals("group-v22", dc.getRootVMFolderId("datacenter-21"));
+        vfCache.clear();
+    }
+
+    @Test
+    public void getVmFolderIdByPathShouldIncludeFoldersAboveDatacenter() throws CloudException, InternalException{
+        vfCache.clear();
+
+        new NonStrictExpectations(DataCenters.class) {
+            { dc.retrieveObjectList(vsphereMock, "vmFolder", null, vfPSpecs);
+                result = vmFolders;
+            }
+            {dc.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, parentPSpecs);
+                result = nestedDatacenterParent;
+                result = datacenterFolder;
+                result = rootFolder;
+            }
+        };
+
+        assertEquals("group-v22", dc.getVMFolderIdByPath("/emea/WTC/vm"));
+        assertEquals("group-v81", dc.getVMFolderIdByPath("/emea/WTC/vm/VM Folder1"));
+        vfCache.clear();
+    }
+
+    @Test
+    public void getVmFolderIdByPathShouldFallBackToSearchIndex() throws CloudException, InternalException{
+        vfCache.clear();
+        regCache.clear();
+
+        new NonStrictExpectations(DataCenters.class) {
+            { dc.retrieveObjectList(vsphereMock, "vmFolder", null, vfPSpecs);
+                result = vmFolders;
+            }
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, regPSpecs);
+                result = regions;
+            }
+            {dc.retrieveObjectList(vsphereMock, "hostFolder", null, dcPSpecs);
+                result = datacenters;
+            }
+            {dc.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, parentPSpecs);
+                result = datacenterParent;
+                result = rootFolder;
+            }
+        };
+
+        final ManagedObjectReference newFolder = new ManagedObjectReference();
+        newFolder.setType("Folder");
+        newFolder.setValue("group-v999");
+
+        new Expectations() {
+            { vimPortMock.findByInventoryPath((ManagedObjectReference) any, "WTC/vm/NewFolder");
+                result = newFolder;
+                times=1;
+            }
+        };
+
+        assertEquals("group-v999", dc.getVMFolderIdByPath("/WTC/vm/NewFolder"));
+        vfCache.clear();
+    }
+
     @Test
     public void listVMFoldersShouldNotCallCloudIfVmFolderCacheIsValid() throws CloudException, InternalException {
         vfCache.clear();
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.dc.StoragePool;
+import org.dasein.cloud.vsphere.compute.DatastorePlacement;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DatastorePlacementTest extends VsphereTestBase {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private DatastorePlacement placement = null;
+
+    @Mocked
+    DataCenters dcMock;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        placement = new DatastorePlacement(vsphereMock);
+    }
+
+    private StoragePool getStoragePool(String id, String dataCenterId, long capacityGb, long freeGb) {
+        StoragePool sp = new StoragePool();
+        sp.setStoragePoolId(id);
+        sp.setStoragePoolName(id + "-name");
+        sp.setDataCenterId(dataCenterId);
+        sp.setCapacity(new Storage<Megabyte>(capacityGb * 1024L, Storage.MEGABYTE));
+        sp.setFreeSpace(new Storage<Megabyte>(freeGb * 1024L, Storage.MEGABYTE));
+        return sp;
+    }
+
+    private void expectStoragePools(final List<StoragePool> pools) throws CloudException, InternalException {
+        new NonStrictExpectations() {
+            {vsphereMock.getDataCenterServices();
+                result = dcMock;
+            }
+            {dcMock.listStoragePools();
+                result = pools;
+            }
+        };
+    }
+
+    @Test
+    public void chooseDatastoreShouldPickLeastLoadedDatastoreInDataCenter() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-a1", "domain-c1", 1000, 100));
+        pools.add(getStoragePool("datastore-a2", "domain-c1", 1000, 600));
+        pools.add(getStoragePool("datastore-a3", "domain-c2", 1000, 900));
+        expectStoragePools(pools);
+
+        StoragePool sp = placement.chooseDatastore("domain-c1", null, 10 * GB);
+        assertNotNull("No datastore chosen", sp);
+        assertEquals("Least loaded datastore in the datacenter should be chosen", "datastore-a2", sp.getStoragePoolId());
+    }
+
+    @Test
+    public void chooseDatastoreShouldSpreadConsecutivePlacements() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-b1", "domain-c1", 1000, 500));
+        pools.add(getStoragePool("datastore-b2", "domain-c1", 1000, 450));
+        expectStoragePools(pools);
+
+        StoragePool first = placement.chooseDatastore("domain-c1", null, 100 * GB);
+        StoragePool second = placement.chooseDatastore("domain-c1", null, 100 * GB);
+        assertEquals("datastore-b1", first.getStoragePoolId());
+        assertEquals("Earlier placement should count against the first datastore", "datastore-b2", second.getStoragePoolId());
+    }
+
+    @Test
+    public void chooseDatastoreShouldOnlyUseCandidatesWithoutDataCenter() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-c1", "domain-c1", 1000, 100));
+        pools.add(getStoragePool("datastore-c2", "domain-c1", 1000, 900));
+        expectStoragePools(pools);
+
+        StoragePool sp = placement.chooseDatastore(null, Collections.singletonList("datastore-c1"), 10 * GB);
+        assertNotNull("No datastore chosen", sp);
+        assertEquals("datastore-c1", sp.getStoragePoolId());
+    }
+
+    @Test
+    public void chooseDatastoreShouldReturnNullIfNoDatastoreHasRoom() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-d1", "domain-c1", 1000, 5));
+        expectStoragePools(pools);
+
+        assertNull(placement.chooseDatastore("domain-c1", null, 10 * GB));
+    }
+
+    @Test
+    public void chooseDatastoreShouldOnlyUseDatastoresMountedByTheHost() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-e1", "domain-c1", 1000, 100));
+        pools.add(getStoragePool("datastore-e2", "domain-c1", 1000, 900));
+        expectStoragePools(pools);
+
+        StoragePool sp = placement.chooseDatastore("domain-c1", null, Collections.singletonList("datastore-e1"), 10 * GB);
+        assertNotNull("No datastore chosen", sp);
+        assertEquals("A datastore the host does not mount is not eligible", "datastore-e1", sp.getStoragePoolId());
+    }
+
+    @Test
+    public void releasedPlacementShouldNoLongerCount() throws CloudException, InternalException {
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(getStoragePool("datastore-f1", "domain-c1", 1000, 500));
+        pools.add(getStoragePool("datastore-f2", "domain-c1", 1000, 450));
+        expectStoragePools(pools);
+
+        StoragePool first = placement.chooseDatastore("domain-c1", null, 100 * GB);
+        assertEquals("datastore-f1", first.getStoragePoolId());
+        placement.release(first.getStoragePoolId(), 100 * GB);
+        assertEquals("A failed placement should not count against its datastore", "datastore-f1", placement.chooseDatastore("domain-c1", null, 100 * GB).getStoragePoolId());
+    }
+}
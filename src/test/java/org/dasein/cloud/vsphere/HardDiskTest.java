@@ -23,6 +23,7 @@ import com.vmware.vim25.*;
 import mockit.Expectations;
 import mockit.Mocked;
 import mockit.NonStrictExpectations;
+import mockit.Verifications;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
 import org.dasein.cloud.CloudException;
@@ -39,7 +40,6 @@ import org.dasein.util.uom.storage.Storage;
 import org.dasein.util.uom.storage.StorageUnit;
 import org.dasein.util.uom.time.TimePeriod;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -71,6 +71,7 @@ public class HardDiskTest extends VsphereTestBase {
     private VsphereMethod method = null;
     private List<PropertySpec> hardDiskPSpec = null;
     private List<PropertySpec> datastorePSpec = null;
+    private List<PropertySpec> vmDevicePSpec = null;
 
     @Mocked
     VsphereCompute vsphereComputeMock;
@@ -86,6 +87,7 @@ public class HardDiskTest extends VsphereTestBase {
         method = new VsphereMethod(vsphereMock);
         hardDiskPSpec = hd.getHardDiskPSpec();
         datastorePSpec = hd.getDatastorePropertySpec();
+        vmDevicePSpec = hd.getVmDevicePSpec();
         ObjectManagement om = new ObjectManagement();
         om.mapper.enableDefaultTypingAsProperty(ObjectMapper.DefaultTyping.NON_FINAL, "type");
         om.mapper.configure(SerializationConfig.Feature.FAIL_ON_EMPTY_BEANS, false);
@@ -645,10 +647,13 @@ public class HardDiskTest extends VsphereTestBase {
 
         new Expectations(HardDisk.class) {
             {hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
-                result = hardDisks;
                 result = hardDisks;
                 result = postAttachHardDisks;
             }
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
+                result = hardDisks;
+                times = 1;
+            }
             {hd.getAllResourcePoolsIncludingRoot();
                 result = resourcePools;
                 times = 2;
@@ -768,7 +773,11 @@ public class HardDiskTest extends VsphereTestBase {
         new Expectations(HardDisk.class) {
             {hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
                 result = hardDisks;
-                times=2;
+                times=1;
+            }
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
+                result = hardDisks;
+                times = 1;
             }
             {hd.getAllResourcePoolsIncludingRoot();
                 result = resourcePools;
@@ -874,10 +883,13 @@ public class HardDiskTest extends VsphereTestBase {
 
         new Expectations(HardDisk.class) {
             {hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
-                result = hardDisks;
                 result = hardDisks;
                 result = postDetachHardDisks;
             }
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
+                result = hardDisks;
+                times = 1;
+            }
             {hd.getAllResourcePoolsIncludingRoot();
                 result = resourcePools;
                 times = 2;
@@ -1027,7 +1039,11 @@ public class HardDiskTest extends VsphereTestBase {
         new Expectations(HardDisk.class) {
             {hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
                 result = hardDisks;
-                times=2;
+                times=1;
+            }
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
+                result = hardDisks;
+                times = 1;
             }
             {hd.getAllResourcePoolsIncludingRoot();
                 result = resourcePools;
@@ -1136,18 +1152,22 @@ public class HardDiskTest extends VsphereTestBase {
         };
 
         new Expectations(HardDisk.class) {
-            {
-                hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
                 result = hardDisks;
-                result = newHardDisks;
+                times = 1;
             }
         };
 
+        final Object newDevices = getVmDevices(newHardDisks, "vm-2318");
         new Expectations(VsphereMethod.class) {
             {method.getOperationComplete((ManagedObjectReference) any, (TimePeriod) any, anyInt);
                 result = true;
                 times=1;
             }
+            {method.waitForPropertyValue((ManagedObjectReference) any, "config.hardware.device", (VsphereMethod.PropertyCondition) any, (TimePeriod) any);
+                result = newDevices;
+                times=1;
+            }
         };
         VolumeCreateOptions options = VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription");
         options.withVirtualMachineId("vm-2318");
@@ -1156,6 +1176,100 @@ public class HardDiskTest extends VsphereTestBase {
         assertEquals("New volume id does not match expected", "myNewDisk.vmdk", newVolume);
     }
 
+    @Test
+    public void createVolumesShouldUseSingleReconfigureTask() throws CloudException, InternalException {
+        final List<PropertySpec> spPSpecs = dcMock.getStoragePoolPropertySpec();
+        new NonStrictExpectations() {
+            {vsphereMock.getComputeServices();
+                result = vsphereComputeMock;
+            }
+            {vsphereComputeMock.getVirtualMachineSupport();
+                result = vmMock;
+            }
+            {vmMock.getVirtualMachine(anyString);
+                result = new VirtualMachine();
+            }
+            {vmMock.reconfigVMTask((ManagedObjectReference) any, (VirtualMachineConfigSpec) any);
+                result = new ManagedObjectReference();
+            }
+            {dcMock.retrieveObjectList(vsphereMock, "datastoreFolder", null, spPSpecs);
+                result = dcStoragePools;
+            }
+        };
+
+        new Expectations(HardDisk.class) {
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
+                result = hardDisks;
+                times = 1;
+            }
+        };
+
+        final ArrayOfVirtualDevice newDevices = new ArrayOfVirtualDevice();
+        newDevices.getVirtualDevice().addAll(((ArrayOfVirtualDevice) getVmDevices(newHardDisks, "vm-2318")).getVirtualDevice());
+        VirtualDiskFlatVer2BackingInfo backing = new VirtualDiskFlatVer2BackingInfo();
+        backing.setFileName("[datastore1] dmTesting/mySecondDisk.vmdk");
+        VirtualDisk secondDisk = new VirtualDisk();
+        secondDisk.setBacking(backing);
+        newDevices.getVirtualDevice().add(secondDisk);
+
+        new Expectations(VsphereMethod.class) {
+            {method.getOperationComplete((ManagedObjectReference) any, (TimePeriod) any, anyInt);
+                result = true;
+                times=1;
+            }
+            {method.waitForPropertyValue((ManagedObjectReference) any, "config.hardware.device", (VsphereMethod.PropertyCondition) any, (TimePeriod) any);
+                result = newDevices;
+                times=1;
+            }
+        };
+
+        List<VolumeCreateOptions> optionsList = new ArrayList<VolumeCreateOptions>();
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "mySecondDisk", "mySecondDiskDescription").withVirtualMachineId("vm-2318"));
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription").withVirtualMachineId("vm-2318"));
+        List<String> newVolumes = hd.createVolumes(optionsList);
+        assertEquals("Number of new volumes does not match expected", 2, newVolumes.size());
+        assertEquals("New volume id does not match expected", "mySecondDisk.vmdk", newVolumes.get(0));
+        assertEquals("New volume id does not match expected", "myNewDisk.vmdk", newVolumes.get(1));
+
+        new Verifications() {
+            {VirtualMachineConfigSpec spec;
+                vmMock.reconfigVMTask((ManagedObjectReference) any, spec = withCapture());
+                times = 1;
+
+                List<String> slots = new ArrayList<String>();
+                for (VirtualDeviceConfigSpec deviceSpec : spec.getDeviceChange()) {
+                    if (deviceSpec.getDevice() instanceof VirtualDisk) {
+                        VirtualDevice disk = deviceSpec.getDevice();
+                        String slot = disk.getControllerKey() + ":" + disk.getUnitNumber();
+                        assertFalse("Disks must not share a controller slot", slots.contains(slot));
+                        assertFalse("Unit 7 is reserved for the controller", disk.getUnitNumber() == 7);
+                        assertEquals("2 GB in KB", 2L * 1024L * 1024L, ((VirtualDisk) disk).getCapacityInKB());
+                        String fileName = ((VirtualDeviceFileBackingInfo) disk.getBacking()).getFileName();
+                        assertTrue("Only the datastore should be named, vSphere picks the file path", fileName.startsWith("[") && fileName.endsWith("]"));
+                        slots.add(slot);
+                    }
+                }
+                assertEquals("Both disks should be in the same reconfigure task", 2, slots.size());
+            }
+        };
+    }
+
+    @Test(expected = CloudException.class)
+    public void createVolumesShouldThrowExceptionIfNamesRepeat() throws CloudException, InternalException {
+        List<VolumeCreateOptions> optionsList = new ArrayList<VolumeCreateOptions>();
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription").withVirtualMachineId("vm-2318"));
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(4, Storage.GIGABYTE), "myNewDisk", "myOtherDiskDescription").withVirtualMachineId("vm-2318"));
+        hd.createVolumes(optionsList);
+    }
+
+    @Test(expected = CloudException.class)
+    public void createVolumesShouldThrowExceptionIfVmIdsDiffer() throws CloudException, InternalException {
+        List<VolumeCreateOptions> optionsList = new ArrayList<VolumeCreateOptions>();
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription").withVirtualMachineId("vm-2318"));
+        optionsList.add(VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "mySecondDisk", "mySecondDiskDescription").withVirtualMachineId("vm-1111"));
+        hd.createVolumes(optionsList);
+    }
+
     @Test(expected = CloudException.class)
     public void createVolumeShouldThrowExceptionIfVmIdIsNull() throws CloudException, InternalException {
         VolumeCreateOptions options = VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription");
@@ -1203,10 +1317,9 @@ public class HardDiskTest extends VsphereTestBase {
         };
 
         new Expectations(HardDisk.class) {
-            {
-                hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
                 result = hardDisks;
-                result = newHardDisks;
+                times = 1;
             }
         };
 
@@ -1224,9 +1337,6 @@ public class HardDiskTest extends VsphereTestBase {
         hd.createVolume(options);
     }
 
-    //this test loops for 20 minutes searching for new volume so not great for frequent test runs
-    //update the timeout in the code if you wish to run this test
-    @Ignore
     @Test(expected = CloudException.class)
     public void createVolumeShouldThrowExceptionIfNewVolumeIsNotFound() throws CloudException, InternalException {
         final List<PropertySpec> spPSpecs = dcMock.getStoragePoolPropertySpec();
@@ -1249,10 +1359,9 @@ public class HardDiskTest extends VsphereTestBase {
         };
 
         new Expectations(HardDisk.class) {
-            {
-                hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
+            {hd.retrieveObjectProperties(vsphereMock, (ManagedObjectReference) any, vmDevicePSpec);
                 result = hardDisks;
-                minTimes = 2;
+                times = 1;
             }
         };
 
@@ -1261,6 +1370,10 @@ public class HardDiskTest extends VsphereTestBase {
                 result = true;
                 times=1;
             }
+            {method.waitForPropertyValue((ManagedObjectReference) any, "config.hardware.device", (VsphereMethod.PropertyCondition) any, (TimePeriod) any);
+                result = null;
+                times=1;
+            }
         };
         VolumeCreateOptions options = VolumeCreateOptions.getInstance(new Storage<StorageUnit>(2, Storage.GIGABYTE), "myNewDisk", "myNewDiskDescription");
         options.withVirtualMachineId("vm-2318");
@@ -1270,12 +1383,12 @@ public class HardDiskTest extends VsphereTestBase {
     @Test
     public void removeVolume() throws CloudException, InternalException, RuntimeFaultFaultMsg, FileFaultFaultMsg, InvalidDatastoreFaultMsg {
         new NonStrictExpectations() {
-            {serviceContentMock.getFileManager();
+            {serviceContentMock.getVirtualDiskManager();
                 result = new ManagedObjectReference();
             }
-            {vimPortMock.deleteDatastoreFileTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
+            {vimPortMock.deleteVirtualDiskTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
                 result = task;
-                times = 2;
+                times = 1;
             }
         };
 
@@ -1302,7 +1415,7 @@ public class HardDiskTest extends VsphereTestBase {
         new Expectations(VsphereMethod.class) {
             {method.getOperationComplete((ManagedObjectReference) any, (TimePeriod) any, anyInt);
                 result = true;
-                times=14;
+                times=13;
             }
             {method.getTaskResult();
                 result = searchResult;
@@ -1396,10 +1509,10 @@ public class HardDiskTest extends VsphereTestBase {
     @Test(expected = CloudException.class)
     public void removeVolumeShouldThrowExceptionIfOperationIsNotSuccessful() throws CloudException, InternalException, RuntimeFaultFaultMsg, FileFaultFaultMsg, InvalidDatastoreFaultMsg {
         new NonStrictExpectations() {
-            {serviceContentMock.getFileManager();
+            {serviceContentMock.getVirtualDiskManager();
                 result = new ManagedObjectReference();
             }
-            {vimPortMock.deleteDatastoreFileTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
+            {vimPortMock.deleteVirtualDiskTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
                 result = task;
             }
         };
@@ -1444,4 +1557,79 @@ public class HardDiskTest extends VsphereTestBase {
 
         hd.remove("dmTesting7Oct_1.vmdk");
     }
+
+    @Test
+    public void removeVolumesShouldDeleteDetachedVolumesAndReportFailures() throws CloudException, InternalException, RuntimeFaultFaultMsg, FileFaultFaultMsg, InvalidDatastoreFaultMsg {
+        new NonStrictExpectations() {
+            {serviceContentMock.getVirtualDiskManager();
+                result = new ManagedObjectReference();
+            }
+            {vimPortMock.deleteVirtualDiskTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
+                result = task;
+            }
+        };
+
+        new Expectations(HardDisk.class) {
+            {hd.retrieveObjectList(vsphereMock, "vmFolder", null, hardDiskPSpec);
+                result = hardDisks;
+                times=1;
+            }
+            {hd.getAllResourcePoolsIncludingRoot();
+                result = resourcePools;
+            }
+            {hd.retrieveObjectList(vsphereMock, "datastoreFolder", null, datastorePSpec);
+                result = datastores;
+            }
+            {hd.listStoragePools();
+                result = storagePools;
+            }
+            {hd.searchDatastores(vsphereMock, (ManagedObjectReference) any, anyString, null);
+                result = task;
+            }
+        };
+
+        new Expectations(VsphereMethod.class) {
+            {method.getOperationComplete((ManagedObjectReference) any, (TimePeriod) any, anyInt);
+                result = true;
+                times=7;
+            }
+            {method.getTaskResult();
+                result = searchResult;
+                times = 6;
+            }
+        };
+
+        List<String> volumeIds = new ArrayList<String>();
+        volumeIds.add("dmTesting7Oct_1.vmdk");
+        volumeIds.add("dmTesting7Oct_4.vmdk");
+        volumeIds.add("MyFakeVolume.vmdk");
+        try {
+            hd.removeVolumes(volumeIds, 1);
+            fail("Attached and unknown volumes should be reported as failures");
+        }
+        catch (CloudException e) {
+            assertTrue(e.getMessage().contains("dmTesting7Oct_4.vmdk"));
+            assertTrue(e.getMessage().contains("MyFakeVolume.vmdk"));
+            assertFalse(e.getMessage().contains("dmTesting7Oct_1.vmdk"));
+        }
+
+        new Verifications() {
+            {vimPortMock.deleteVirtualDiskTask((ManagedObjectReference) any, anyString, (ManagedObjectReference) any);
+                times = 1;
+            }
+        };
+    }
+
+    private Object getVmDevices(RetrieveResult result, String vmId) {
+        for (ObjectContent oc : result.getObjects()) {
+            if (vmId.equals(oc.getObj().getValue())) {
+                for (DynamicProperty dp : oc.getPropSet()) {
+                    if (dp.getName().equals("config.hardware.device")) {
+                        return dp.getVal();
+                    }
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+import org.dasein.cloud.vsphere.compute.HostPlacement;
+import org.dasein.cloud.vsphere.compute.HostSupport;
+import org.dasein.cloud.vsphere.compute.VsphereCompute;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostPlacementTest extends VsphereTestBase {
+    private HostPlacement placement = null;
+
+    @Mocked
+    VsphereCompute computeMock;
+    @Mocked
+    HostSupport hostSupportMock;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        placement = new HostPlacement(vsphereMock);
+    }
+
+    private AffinityGroup getHost(String id, String status, long cpuCapacityMhz, long memoryCapacityMB) {
+        AffinityGroup host = AffinityGroup.getInstance(id, id + "-name", "Affinity group for " + id, "domain-c1", 0);
+        host.setTag("status", status);
+        host.setTag("cpuCapacityMhz", String.valueOf(cpuCapacityMhz));
+        host.setTag("memoryCapacityMB", String.valueOf(memoryCapacityMB));
+        return host;
+    }
+
+    private void expectHosts(final List<AffinityGroup> hosts, final List<HostSupport.HostLoad> loads) throws CloudException, InternalException {
+        new NonStrictExpectations() {
+            {vsphereMock.getComputeServices();
+                result = computeMock;
+            }
+            {computeMock.getAffinityGroupSupport();
+                result = hostSupportMock;
+            }
+            {hostSupportMock.list((AffinityGroupFilterOptions) any);
+                result = hosts;
+            }
+            {hostSupportMock.listHostLoads();
+                result = loads;
+            }
+        };
+    }
+
+    @Test
+    public void chooseHostShouldPickLeastLoadedHost() throws CloudException, InternalException {
+        List<AffinityGroup> hosts = new ArrayList<AffinityGroup>();
+        hosts.add(getHost("host-a1", "green", 10000, 65536));
+        hosts.add(getHost("host-a2", "green", 10000, 65536));
+        List<HostSupport.HostLoad> loads = new ArrayList<HostSupport.HostLoad>();
+        loads.add(new HostSupport.HostLoad("host-a1", 8000, 40000, "connected", false));
+        loads.add(new HostSupport.HostLoad("host-a2", 2000, 20000, "connected", false));
+        expectHosts(hosts, loads);
+
+        assertEquals("Least loaded host should be chosen", "host-a2", placement.chooseHost("domain-c1", 1024));
+    }
+
+    @Test
+    public void chooseHostShouldSkipHostsInMaintenanceOrDisconnected() throws CloudException, InternalException {
+        List<AffinityGroup> hosts = new ArrayList<AffinityGroup>();
+        hosts.add(getHost("host-b1", "green", 10000, 65536));
+        hosts.add(getHost("host-b2", "green", 10000, 65536));
+        hosts.add(getHost("host-b3", "green", 10000, 65536));
+        hosts.add(getHost("host-b4", "red", 10000, 65536));
+        List<HostSupport.HostLoad> loads = new ArrayList<HostSupport.HostLoad>();
+        loads.add(new HostSupport.HostLoad("host-b1", 0, 0, "connected", true));
+        loads.add(new HostSupport.HostLoad("host-b2", 0, 0, "notResponding", false));
+        loads.add(new HostSupport.HostLoad("host-b3", 9000, 60000, "connected", false));
+        loads.add(new HostSupport.HostLoad("host-b4", 0, 0, "connected", false));
+        expectHosts(hosts, loads);
+
+        assertEquals("Only the healthy host is eligible", "host-b3", placement.chooseHost("domain-c1", 1024));
+    }
+
+    @Test
+    public void chooseHostShouldSpreadConsecutivePlacements() throws CloudException, InternalException {
+        List<AffinityGroup> hosts = new ArrayList<AffinityGroup>();
+        hosts.add(getHost("host-c1", "green", 10000, 16384));
+        hosts.add(getHost("host-c2", "green", 10000, 16384));
+        List<HostSupport.HostLoad> loads = new ArrayList<HostSupport.HostLoad>();
+        loads.add(new HostSupport.HostLoad("host-c1", 1000, 4096, "connected", false));
+        loads.add(new HostSupport.HostLoad("host-c2", 1000, 5120, "connected", false));
+        expectHosts(hosts, loads);
+
+        assertEquals("host-c1", placement.chooseHost("domain-c1", 4096));
+        assertEquals("Earlier placement should count against the first host", "host-c2", placement.chooseHost("domain-c1", 4096));
+    }
+
+    @Test
+    public void chooseHostShouldReturnNullIfNoHostIsEligible() throws CloudException, InternalException {
+        List<AffinityGroup> hosts = new ArrayList<AffinityGroup>();
+        hosts.add(getHost("host-d1", "yellow", 10000, 65536));
+        expectHosts(hosts, new ArrayList<HostSupport.HostLoad>());
+
+        assertNull(placement.chooseHost("domain-c1", 1024));
+    }
+}
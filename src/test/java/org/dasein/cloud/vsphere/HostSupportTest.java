@@ -50,6 +50,8 @@ public class HostSupportTest extends VsphereTestBase{
     private final RetrieveResult hostsWithNoNameProperty = om.readJsonFile("src/test/resources/HostSupport/missingNamePropertyHosts.json", RetrieveResult.class);
     private final RetrieveResult hostsWithNoHostProperty = om.readJsonFile("src/test/resources/HostSupport/missingHostPropertyHosts.json", RetrieveResult.class);
     private final RetrieveResult hostsWithNoProperties = om.readJsonFile("src/test/resources/HostSupport/missingPropertiesHosts.json", RetrieveResult.class);
+    private final RetrieveResult standaloneHosts = om.readJsonFile("src/test/resources/HostSupport/standaloneHosts.json", RetrieveResult.class);
+    private final RetrieveResult hostsWithLoad = om.readJsonFile("src/test/resources/HostSupport/hostsWithLoad.json", RetrieveResult.class);
 
     private HostSupport hs = null;
     private List<PropertySpec> hostPSpec = null;
@@ -95,6 +97,86 @@ public class HostSupportTest extends VsphereTestBase{
         assertEquals("Number of hosts returned is incorrect", 4, count);
     }
 
+    @Test
+    public void listHostsShouldIncludeStandaloneHosts() throws CloudException, InternalException {
+        cache.clear();
+
+        new Expectations(HostSupport.class) {
+            {hs.retrieveObjectList(vsphereMock, "hostFolder", hostSSpec, hostPSpec);
+                result = standaloneHosts;
+                times=1;
+            }
+        };
+
+        AffinityGroup clustered = null, standalone = null;
+        for (AffinityGroup host : hs.list(AffinityGroupFilterOptions.getInstance())) {
+            if (host.getAffinityGroupId().equals("host-43")) {
+                clustered = host;
+            }
+            else if (host.getAffinityGroupId().equals("host-50")) {
+                standalone = host;
+            }
+        }
+        assertNotNull("Clustered host missing", clustered);
+        assertEquals("domain-c26", clustered.getDataCenterId());
+        assertNotNull("Standalone host missing", standalone);
+        assertEquals("domain-s48", standalone.getDataCenterId());
+        cache.clear();
+    }
+
+    @Test
+    public void listHostsShouldTagCapacityAndLoad() throws CloudException, InternalException {
+        cache.clear();
+
+        new Expectations(HostSupport.class) {
+            {hs.retrieveObjectList(vsphereMock, "hostFolder", hostSSpec, hostPSpec);
+                result = hostsWithLoad;
+                times=1;
+            }
+        };
+
+        AffinityGroup host = hs.list(AffinityGroupFilterOptions.getInstance()).iterator().next();
+        assertEquals("host-43", host.getAffinityGroupId());
+        assertEquals("19200", host.getTag("cpuCapacityMhz"));
+        assertEquals("65536", host.getTag("memoryCapacityMB"));
+        assertEquals("4800", host.getTag("cpuUsageMhz"));
+        assertEquals("32768", host.getTag("memoryUsageMB"));
+        assertEquals("connected", host.getTag("connectionState"));
+        assertEquals("false", host.getTag("maintenance"));
+        cache.clear();
+    }
+
+    @Test
+    public void listHostLoadsShouldOnlyFetchLoadPropertiesInBackground() throws Exception {
+        Cache.getInstance(vsphereMock, "hostLoads", HostSupport.HostLoad.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY)).clear();
+        final List<PropertySpec> loadPSpec = hs.getHostLoadPSpec();
+
+        new NonStrictExpectations() {
+            {vsphereMock.connectCopy();
+                result = vsphereMock;
+            }
+        };
+        new Expectations(HostSupport.class) {
+            {hs.retrieveObjectList(vsphereMock, "hostFolder", hostSSpec, loadPSpec);
+                result = hostsWithLoad;
+                times=1;
+            }
+        };
+
+        assertTrue("Loads should not be scanned in the calling thread", hs.listHostLoads().isEmpty());
+        HostSupport.HostLoad load = null;
+        for( int i = 0; i < 100 && load == null; i++ ) {
+            Thread.sleep(50L);
+            load = hs.getHostLoad("host-43");
+        }
+        assertNotNull("No load returned for host", load);
+        assertEquals(4800, load.getCpuUsageMhz());
+        assertEquals(32768, load.getMemoryUsageMB());
+        assertEquals("connected", load.getConnectionState());
+        assertFalse(load.isInMaintenanceMode());
+        assertNull(hs.getHostLoad("host-99"));
+    }
+
     @Test
     public void getHost() throws CloudException, InternalException{
         new NonStrictExpectations(HostSupport.class) {
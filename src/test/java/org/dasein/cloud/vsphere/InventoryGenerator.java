@@ -0,0 +1,596 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.dc.ResourcePool;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a consistent vSphere inventory shaped as the {@link RetrieveResult}s the services retrieve, so listings
+ * and lookups can be tested and benchmarked at any scale without a vCenter. Every reference points at an object
+ * of the same inventory: hosts belong to clusters, datastores are mounted by the hosts of their cluster (or of
+ * the whole datacenter when shared), resource pools nest below the root pool of a cluster and virtual machines
+ * run on a host of the cluster owning their resource pool, with disks on its datastores and nics on its networks.
+ * The same shape and seed always produce the same inventory.
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+public class InventoryGenerator {
+    /**
+     * Object counts of a generated inventory.
+     */
+    static public class Shape {
+        private int dataCenters = 1;
+        private int clustersPerDataCenter = 2;
+        private int hostsPerCluster = 4;
+        private int standaloneHostsPerDataCenter = 1;
+        private int resourcePoolFanOut = 2;
+        private int resourcePoolDepth = 2;
+        private int foldersPerDataCenter = 4;
+        private int datastoresPerCluster = 2;
+        private int sharedDatastoresPerDataCenter = 1;
+        private int networksPerDataCenter = 2;
+        private int portGroupsPerDataCenter = 2;
+        private int virtualMachines = 20;
+        private int templates = 2;
+        private int disksPerVm = 2;
+        private int nicsPerVm = 1;
+        private long seed = 42L;
+
+        static public @Nonnull Shape getInstance() {
+            return new Shape();
+        }
+
+        private Shape() { }
+
+        public @Nonnull Shape withDataCenters(int dataCenters) {
+            this.dataCenters = dataCenters;
+            return this;
+        }
+
+        public @Nonnull Shape withClustersPerDataCenter(int clustersPerDataCenter) {
+            this.clustersPerDataCenter = clustersPerDataCenter;
+            return this;
+        }
+
+        public @Nonnull Shape withHostsPerCluster(int hostsPerCluster) {
+            this.hostsPerCluster = hostsPerCluster;
+            return this;
+        }
+
+        public @Nonnull Shape withStandaloneHostsPerDataCenter(int standaloneHostsPerDataCenter) {
+            this.standaloneHostsPerDataCenter = standaloneHostsPerDataCenter;
+            return this;
+        }
+
+        /**
+         * @param fanOut child pools per pool
+         * @param depth levels of pools below the root pool of each cluster
+         * @return this
+         */
+        public @Nonnull Shape withResourcePools(int fanOut, int depth) {
+            this.resourcePoolFanOut = fanOut;
+            this.resourcePoolDepth = depth;
+            return this;
+        }
+
+        public @Nonnull Shape withFoldersPerDataCenter(int foldersPerDataCenter) {
+            this.foldersPerDataCenter = foldersPerDataCenter;
+            return this;
+        }
+
+        public @Nonnull Shape withDatastores(int perCluster, int sharedPerDataCenter) {
+            this.datastoresPerCluster = perCluster;
+            this.sharedDatastoresPerDataCenter = sharedPerDataCenter;
+            return this;
+        }
+
+        public @Nonnull Shape withNetworks(int networksPerDataCenter, int portGroupsPerDataCenter) {
+            this.networksPerDataCenter = networksPerDataCenter;
+            this.portGroupsPerDataCenter = portGroupsPerDataCenter;
+            return this;
+        }
+
+        /**
+         * @param virtualMachines total number of virtual machines, spread over all resource pools
+         * @param templates total number of templates
+         * @return this
+         */
+        public @Nonnull Shape withVirtualMachines(int virtualMachines, int templates) {
+            this.virtualMachines = virtualMachines;
+            this.templates = templates;
+            return this;
+        }
+
+        public @Nonnull Shape withDevicesPerVm(int disks, int nics) {
+            this.disksPerVm = disks;
+            this.nicsPerVm = nics;
+            return this;
+        }
+
+        public @Nonnull Shape withSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    static private final String GUEST_ID = "ubuntu64Guest";
+    static private final String GUEST_NAME = "Ubuntu Linux (64-bit)";
+
+    private final Shape shape;
+    private final Random random;
+    private int nextId = 100;
+
+    private final RetrieveResult regions = new RetrieveResult();
+    private final RetrieveResult clusters = new RetrieveResult();
+    private final RetrieveResult hosts = new RetrieveResult();
+    private final RetrieveResult resourcePools = new RetrieveResult();
+    private final RetrieveResult vmFolders = new RetrieveResult();
+    private final RetrieveResult datastores = new RetrieveResult();
+    private final RetrieveResult networks = new RetrieveResult();
+    private final RetrieveResult virtualMachines = new RetrieveResult();
+    private final RetrieveResult hardDisks = new RetrieveResult();
+    private final RetrieveResult templates = new RetrieveResult();
+    private final List<AffinityGroup> daseinHosts = new ArrayList<AffinityGroup>();
+    private final List<ResourcePool> daseinResourcePools = new ArrayList<ResourcePool>();
+
+    // what a virtual machine placed in a resource pool can reference
+    static private class Placement {
+        ManagedObjectReference pool;
+        List<ManagedObjectReference> hosts;
+        List<DatastoreSummary> datastores;
+        List<ManagedObjectReference> networks;
+        List<ObjectContent> folders;
+    }
+
+    public InventoryGenerator(@Nonnull Shape shape) {
+        this.shape = shape;
+        this.random = new Random(shape.seed);
+        generate();
+    }
+
+    /**
+     * @return vSphere datacenters (dasein regions) as retrieved with {@link DataCenters#getRegionPropertySpec()}
+     */
+    public @Nonnull RetrieveResult getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return clusters and standalone compute resources (dasein datacenters) as retrieved with
+     * {@link DataCenters#getDataCenterPropertySpec()}
+     */
+    public @Nonnull RetrieveResult getDataCenters() {
+        return clusters;
+    }
+
+    /**
+     * @return hosts and their compute resources as retrieved with {@code HostSupport.getHostPSpec()}
+     */
+    public @Nonnull RetrieveResult getHosts() {
+        return hosts;
+    }
+
+    /**
+     * @return resource pools as retrieved with {@link ResourcePoolTree#getResourcePoolPropertySpec()}
+     */
+    public @Nonnull RetrieveResult getResourcePools() {
+        return resourcePools;
+    }
+
+    /**
+     * @return vm folders as retrieved with {@link DataCenters#getVmFolderPropertySpec()}
+     */
+    public @Nonnull RetrieveResult getVmFolders() {
+        return vmFolders;
+    }
+
+    /**
+     * @return datastores as retrieved with {@link DataCenters#getStoragePoolPropertySpec()}
+     */
+    public @Nonnull RetrieveResult getStoragePools() {
+        return datastores;
+    }
+
+    /**
+     * @return networks and port groups as retrieved with {@code VSphereNetwork.getNetworkPSpec()}
+     */
+    public @Nonnull RetrieveResult getNetworks() {
+        return networks;
+    }
+
+    /**
+     * @return virtual machines and templates as retrieved with {@code Vm.getVirtualMachinePSpec()}
+     */
+    public @Nonnull RetrieveResult getVirtualMachines() {
+        return virtualMachines;
+    }
+
+    /**
+     * @return virtual machines and templates as retrieved with {@code HardDisk.getHardDiskPSpec()}
+     */
+    public @Nonnull RetrieveResult getHardDisks() {
+        return hardDisks;
+    }
+
+    /**
+     * @return virtual machines and templates as retrieved with {@code ImageSupport.getTemplatePSpec()}
+     */
+    public @Nonnull RetrieveResult getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return the clustered hosts as listed by {@code HostSupport.list}
+     */
+    public @Nonnull List<AffinityGroup> getDaseinHosts() {
+        return daseinHosts;
+    }
+
+    /**
+     * @return every resource pool as listed by {@code Vm.getResourcePools(false)}
+     */
+    public @Nonnull List<ResourcePool> getDaseinResourcePools() {
+        return daseinResourcePools;
+    }
+
+    private @Nonnull String nextId(@Nonnull String prefix) {
+        return prefix + (nextId++);
+    }
+
+    static private @Nonnull ManagedObjectReference mor(@Nonnull String type, @Nonnull String value) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setValue(value);
+        return mor;
+    }
+
+    static private @Nonnull DynamicProperty prop(@Nonnull String name, @Nonnull Object val) {
+        DynamicProperty dp = new DynamicProperty();
+        dp.setName(name);
+        dp.setVal(val);
+        return dp;
+    }
+
+    static private @Nonnull ObjectContent add(@Nonnull RetrieveResult result, @Nonnull ManagedObjectReference obj, @Nonnull DynamicProperty... props) {
+        ObjectContent oc = new ObjectContent();
+        oc.setObj(obj);
+        for( DynamicProperty dp : props ) {
+            oc.getPropSet().add(dp);
+        }
+        result.getObjects().add(oc);
+        return oc;
+    }
+
+    static private @Nonnull ArrayOfManagedObjectReference array(@Nonnull List<ManagedObjectReference> refs) {
+        ArrayOfManagedObjectReference array = new ArrayOfManagedObjectReference();
+        array.getManagedObjectReference().addAll(refs);
+        return array;
+    }
+
+    private void generate() {
+        List<Placement> placements = new ArrayList<Placement>();
+
+        for( int d = 0; d < shape.dataCenters; d++ ) {
+            ManagedObjectReference dcRef = mor("Datacenter", nextId("datacenter-"));
+            add(regions, dcRef, prop("name", "Datacenter " + d));
+
+            List<ManagedObjectReference> dcNetworks = generateNetworks();
+            List<ObjectContent> dcFolders = generateFolders(dcRef);
+            List<ManagedObjectReference> dcHosts = new ArrayList<ManagedObjectReference>();
+            List<Placement> dcPlacements = new ArrayList<Placement>();
+
+            for( int c = 0; c < shape.clustersPerDataCenter; c++ ) {
+                ManagedObjectReference clusterRef = mor("ClusterComputeResource", nextId("domain-c"));
+                String clusterName = "Cluster " + d + "-" + c;
+
+                add(clusters, clusterRef, prop("name", clusterName), prop("overallStatus", ManagedEntityStatus.GREEN));
+                List<ManagedObjectReference> clusterHosts = generateHosts(clusterRef, clusterName, shape.hostsPerCluster);
+                add(hosts, clusterRef, prop("host", array(clusterHosts)));
+                dcHosts.addAll(clusterHosts);
+
+                List<DatastoreSummary> clusterDatastores = new ArrayList<DatastoreSummary>();
+                for( int s = 0; s < shape.datastoresPerCluster; s++ ) {
+                    clusterDatastores.add(generateDatastore(clusterName + " datastore " + s, clusterHosts));
+                }
+                ManagedObjectReference rootPool = mor("ResourcePool", nextId("resgroup-"));
+                List<ManagedObjectReference> pools = new ArrayList<ManagedObjectReference>();
+                generateResourcePools(clusterRef, clusterRef, rootPool, "Resources", 0, pools);
+
+                for( ManagedObjectReference pool : pools ) {
+                    Placement placement = new Placement();
+                    placement.pool = pool;
+                    placement.hosts = clusterHosts;
+                    placement.datastores = clusterDatastores;
+                    placement.networks = dcNetworks;
+                    placement.folders = dcFolders;
+                    dcPlacements.add(placement);
+                }
+            }
+            for( int h = 0; h < shape.standaloneHostsPerDataCenter; h++ ) {
+                ManagedObjectReference computeRef = mor("ComputeResource", nextId("domain-s"));
+                String computeName = "Standalone " + d + "-" + h;
+
+                add(clusters, computeRef, prop("name", computeName), prop("overallStatus", ManagedEntityStatus.GREEN));
+                List<ManagedObjectReference> standalone = generateHosts(computeRef, computeName, 1);
+                add(hosts, computeRef, prop("host", array(standalone)));
+                dcHosts.addAll(standalone);
+            }
+            for( int s = 0; s < shape.sharedDatastoresPerDataCenter; s++ ) {
+                DatastoreSummary shared = generateDatastore("Shared datastore " + d + "-" + s, dcHosts);
+                for( Placement placement : dcPlacements ) {
+                    placement.datastores = new ArrayList<DatastoreSummary>(placement.datastores);
+                    placement.datastores.add(shared);
+                }
+            }
+            placements.addAll(dcPlacements);
+        }
+        if( placements.isEmpty() ) {
+            return;
+        }
+        for( int i = 0; i < shape.virtualMachines + shape.templates; i++ ) {
+            generateVirtualMachine(placements.get(i % placements.size()), i, i >= shape.virtualMachines);
+        }
+    }
+
+    private @Nonnull List<ManagedObjectReference> generateNetworks() {
+        List<ManagedObjectReference> refs = new ArrayList<ManagedObjectReference>();
+
+        for( int n = 0; n < shape.networksPerDataCenter; n++ ) {
+            ManagedObjectReference ref = mor("Network", nextId("network-"));
+            add(networks, ref, prop("summary.name", "VM Network " + ref.getValue()), prop("summary.accessible", Boolean.TRUE));
+            refs.add(ref);
+        }
+        if( shape.portGroupsPerDataCenter > 0 ) {
+            ManagedObjectReference dvs = mor("VmwareDistributedVirtualSwitch", nextId("dvs-"));
+            for( int n = 0; n < shape.portGroupsPerDataCenter; n++ ) {
+                ManagedObjectReference ref = mor("DistributedVirtualPortgroup", nextId("dvportgroup-"));
+                add(networks, ref, prop("summary.name", "Port group " + ref.getValue()), prop("summary.accessible", Boolean.TRUE), prop("config.distributedVirtualSwitch", dvs));
+                refs.add(ref);
+            }
+        }
+        return refs;
+    }
+
+    // the root vm folder first, then its sub folders; virtual machines are added as children later
+    private @Nonnull List<ObjectContent> generateFolders(@Nonnull ManagedObjectReference dcRef) {
+        List<ObjectContent> folders = new ArrayList<ObjectContent>();
+        ManagedObjectReference rootRef = mor("Folder", nextId("group-v"));
+        ArrayOfManagedObjectReference rootChildren = new ArrayOfManagedObjectReference();
+
+        folders.add(add(vmFolders, rootRef, prop("name", "vm"), prop("parent", dcRef), prop("childEntity", rootChildren)));
+        for( int f = 0; f < shape.foldersPerDataCenter; f++ ) {
+            ManagedObjectReference ref = mor("Folder", nextId("group-v"));
+            rootChildren.getManagedObjectReference().add(ref);
+            folders.add(add(vmFolders, ref, prop("name", "Folder " + ref.getValue()), prop("parent", rootRef), prop("childEntity", new ArrayOfManagedObjectReference())));
+        }
+        return folders;
+    }
+
+    private @Nonnull List<ManagedObjectReference> generateHosts(@Nonnull ManagedObjectReference computeRef, @Nonnull String computeName, int count) {
+        List<ManagedObjectReference> refs = new ArrayList<ManagedObjectReference>();
+
+        for( int h = 0; h < count; h++ ) {
+            ManagedObjectReference ref = mor("HostSystem", nextId("host-"));
+            String name = computeName.toLowerCase().replace(' ', '-') + "-esx" + h + ".example.com";
+
+            HostHardwareSummary hardware = new HostHardwareSummary();
+            hardware.setVendor("Dell Inc.");
+            hardware.setModel("PowerEdge M630");
+            hardware.setUuid(ref.getValue());
+            hardware.setCpuModel("Intel(R) Xeon(R) CPU E5-2660 v3 @ 2.60GHz");
+            hardware.setCpuMhz(2600);
+            hardware.setNumCpuPkgs(( short ) 2);
+            hardware.setNumCpuCores(( short ) 20);
+            hardware.setNumCpuThreads(( short ) 40);
+            hardware.setMemorySize(256L * 1024L * 1024L * 1024L);
+            hardware.setNumNics(4);
+            hardware.setNumHBAs(2);
+
+            HostListSummaryQuickStats quickStats = new HostListSummaryQuickStats();
+            quickStats.setOverallCpuUsage(random.nextInt(52000));
+            quickStats.setOverallMemoryUsage(random.nextInt(262144));
+
+            add(hosts, ref, prop("name", name), prop("overallStatus", ManagedEntityStatus.GREEN), prop("summary.hardware", hardware), prop("summary.quickStats", quickStats), prop("runtime.connectionState", HostSystemConnectionState.CONNECTED), prop("runtime.inMaintenanceMode", Boolean.FALSE));
+            if( computeRef.getType().equals("ClusterComputeResource") ) {
+                AffinityGroup host = AffinityGroup.getInstance(ref.getValue(), name, "Affinity group for " + name, computeRef.getValue(), 0);
+                host.setTag("status", "green");
+                daseinHosts.add(host);
+            }
+            refs.add(ref);
+        }
+        return refs;
+    }
+
+    private @Nonnull DatastoreSummary generateDatastore(@Nonnull String name, @Nonnull List<ManagedObjectReference> mountedBy) {
+        ManagedObjectReference ref = mor("Datastore", nextId("datastore-"));
+        long capacity = (1L + random.nextInt(16)) * 1024L * 1024L * 1024L * 1024L;
+
+        DatastoreSummary summary = new DatastoreSummary();
+        summary.setDatastore(ref);
+        summary.setName(name);
+        summary.setUrl("ds:///vmfs/volumes/" + ref.getValue() + "/");
+        summary.setCapacity(capacity);
+        summary.setFreeSpace(( long ) (capacity * random.nextDouble()));
+        summary.setUncommitted(0L);
+        summary.setAccessible(true);
+        summary.setMultipleHostAccess(mountedBy.size() > 1);
+        summary.setType("VMFS");
+
+        ArrayOfDatastoreHostMount mounts = new ArrayOfDatastoreHostMount();
+        for( ManagedObjectReference host : mountedBy ) {
+            HostMountInfo info = new HostMountInfo();
+            info.setPath("/vmfs/volumes/" + ref.getValue());
+            info.setAccessMode("readWrite");
+            info.setMounted(true);
+            info.setAccessible(true);
+
+            DatastoreHostMount mount = new DatastoreHostMount();
+            mount.setKey(host);
+            mount.setMountInfo(info);
+            mounts.getDatastoreHostMount().add(mount);
+        }
+        add(datastores, ref, prop("summary", summary), prop("host", mounts));
+        return summary;
+    }
+
+    private void generateResourcePools(@Nonnull ManagedObjectReference clusterRef, @Nonnull ManagedObjectReference parentRef, @Nonnull ManagedObjectReference ref, @Nonnull String name, int level, @Nonnull List<ManagedObjectReference> pools) {
+        ResourcePoolResourceUsage cpu = new ResourcePoolResourceUsage();
+        cpu.setOverallUsage(random.nextInt(20000));
+        cpu.setMaxUsage(52000);
+        ResourcePoolResourceUsage memory = new ResourcePoolResourceUsage();
+        memory.setOverallUsage(random.nextInt(64) * 1024L * 1024L * 1024L);
+        memory.setMaxUsage(256L * 1024L * 1024L * 1024L);
+
+        ResourcePoolRuntimeInfo runtime = new ResourcePoolRuntimeInfo();
+        runtime.setOverallStatus(ManagedEntityStatus.GREEN);
+        runtime.setCpu(cpu);
+        runtime.setMemory(memory);
+
+        add(resourcePools, ref, prop("name", name), prop("owner", clusterRef), prop("parent", parentRef), prop("runtime", runtime));
+        ResourcePool pool = new ResourcePool();
+        pool.setDataCenterId(clusterRef.getValue());
+        pool.setName(name);
+        pool.setProvideResourcePoolId(ref.getValue());
+        daseinResourcePools.add(pool);
+        pools.add(ref);
+
+        if( level < shape.resourcePoolDepth ) {
+            for( int i = 0; i < shape.resourcePoolFanOut; i++ ) {
+                generateResourcePools(clusterRef, ref, mor("ResourcePool", nextId("resgroup-")), name + "/" + i, level + 1, pools);
+            }
+        }
+    }
+
+    private void generateVirtualMachine(@Nonnull Placement placement, int index, boolean template) {
+        ManagedObjectReference ref = mor("VirtualMachine", nextId("vm-"));
+        String name = (template ? "template-" : "vm-") + index;
+        ManagedObjectReference host = placement.hosts.get(index % placement.hosts.size());
+        ObjectContent folder = placement.folders.get(placement.folders.size() > 1 ? 1 + index % (placement.folders.size() - 1) : 0);
+        boolean poweredOn = !template && random.nextInt(4) != 0;
+
+        List<ManagedObjectReference> vmDatastores = new ArrayList<ManagedObjectReference>();
+        ArrayOfVirtualDevice devices = new ArrayOfVirtualDevice();
+        for( int i = 0; i < shape.disksPerVm && !placement.datastores.isEmpty(); i++ ) {
+            DatastoreSummary datastore = placement.datastores.get((index + i) % placement.datastores.size());
+            if( !vmDatastores.contains(datastore.getDatastore()) ) {
+                vmDatastores.add(datastore.getDatastore());
+            }
+            VirtualDiskFlatVer2BackingInfo backing = new VirtualDiskFlatVer2BackingInfo();
+            backing.setFileName("[" + datastore.getName() + "] " + name + "/" + name + (i == 0 ? "" : "_" + i) + ".vmdk");
+            backing.setDiskMode("persistent");
+            backing.setDatastore(datastore.getDatastore());
+
+            Description info = new Description();
+            info.setLabel("Hard disk " + (i + 1));
+            info.setSummary((16 + i * 16) + " GB");
+
+            VirtualDisk disk = new VirtualDisk();
+            disk.setKey(2000 + i);
+            disk.setControllerKey(1000);
+            disk.setUnitNumber(i);
+            disk.setCapacityInKB((16L + i * 16L) * 1024L * 1024L);
+            disk.setDeviceInfo(info);
+            disk.setBacking(backing);
+            devices.getVirtualDevice().add(disk);
+        }
+        GuestInfo guest = new GuestInfo();
+        guest.setGuestState(poweredOn ? "running" : "notRunning");
+        if( poweredOn ) {
+            guest.setHostName(name);
+            guest.setIpAddress("10." + ((index >> 16) & 255) + "." + ((index >> 8) & 255) + "." + (index & 255));
+        }
+        for( int i = 0; i < shape.nicsPerVm && !placement.networks.isEmpty(); i++ ) {
+            ManagedObjectReference network = placement.networks.get((index + i) % placement.networks.size());
+            VirtualEthernetCard nic = new VirtualVmxnet3();
+            nic.setKey(4000 + i);
+            if( network.getType().equals("DistributedVirtualPortgroup") ) {
+                DistributedVirtualSwitchPortConnection port = new DistributedVirtualSwitchPortConnection();
+                port.setSwitchUuid("50 2d 8e 0a 41 5c 7b 1f-" + network.getValue());
+                port.setPortgroupKey(network.getValue());
+                VirtualEthernetCardDistributedVirtualPortBackingInfo backing = new VirtualEthernetCardDistributedVirtualPortBackingInfo();
+                backing.setPort(port);
+                nic.setBacking(backing);
+            }
+            else {
+                VirtualEthernetCardNetworkBackingInfo backing = new VirtualEthernetCardNetworkBackingInfo();
+                backing.setNetwork(network);
+                backing.setDeviceName("VM Network " + network.getValue());
+                nic.setBacking(backing);
+            }
+            devices.getVirtualDevice().add(nic);
+
+            GuestNicInfo nicInfo = new GuestNicInfo();
+            nicInfo.setConnected(poweredOn);
+            nicInfo.setDeviceConfigId(4000 + i);
+            if( poweredOn && i == 0 ) {
+                nicInfo.getIpAddress().add(guest.getIpAddress());
+            }
+            guest.getNet().add(nicInfo);
+        }
+        int cpus = 1 << random.nextInt(3);
+        int memoryMB = 1024 << random.nextInt(4);
+
+        VirtualHardware hardware = new VirtualHardware();
+        hardware.setNumCPU(cpus);
+        hardware.setMemoryMB(memoryMB);
+        hardware.getDevice().addAll(devices.getVirtualDevice());
+
+        VirtualMachineConfigInfo config = new VirtualMachineConfigInfo();
+        config.setName(name);
+        config.setGuestId(GUEST_ID);
+        config.setGuestFullName(GUEST_NAME);
+        config.setTemplate(template);
+        config.setUuid("4201" + ref.getValue());
+        config.setAnnotation("");
+        config.setHardware(hardware);
+
+        VirtualMachineRuntimeInfo runtime = new VirtualMachineRuntimeInfo();
+        runtime.setHost(host);
+        runtime.setConnectionState(VirtualMachineConnectionState.CONNECTED);
+        runtime.setPowerState(poweredOn ? VirtualMachinePowerState.POWERED_ON : VirtualMachinePowerState.POWERED_OFF);
+
+        VirtualMachineConfigSummary summary = new VirtualMachineConfigSummary();
+        summary.setName(name);
+        summary.setTemplate(template);
+        summary.setVmPathName("[" + (placement.datastores.isEmpty() ? "" : placement.datastores.get(0).getName()) + "] " + name + "/" + name + ".vmx");
+        summary.setGuestId(GUEST_ID);
+        summary.setGuestFullName(GUEST_NAME);
+        summary.setNumCpu(cpus);
+        summary.setMemorySizeMB(memoryMB);
+
+        ArrayOfManagedObjectReference datastoreArray = array(vmDatastores);
+        add(virtualMachines, ref, prop("runtime", runtime), prop("config", config), prop("parent", folder.getObj()), prop("resourcePool", placement.pool), prop("guest", guest), prop("datastore", datastoreArray));
+        add(hardDisks, ref, prop("runtime.powerState", runtime.getPowerState()), prop("config.template", template), prop("config.guestFullName", GUEST_NAME), prop("resourcePool", placement.pool), prop("config.hardware.device", devices), prop("datastore", datastoreArray));
+        add(templates, ref, prop("summary.config", summary), prop("summary.overallStatus", ManagedEntityStatus.GREEN));
+
+        for( DynamicProperty dp : folder.getPropSet() ) {
+            if( dp.getName().equals("childEntity") ) {
+                (( ArrayOfManagedObjectReference ) dp.getVal()).getManagedObjectReference().add(ref);
+            }
+        }
+    }
+}
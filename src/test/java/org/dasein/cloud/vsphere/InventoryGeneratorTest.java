@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+import org.dasein.cloud.dc.StoragePool;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.compute.HostSupport;
+import org.dasein.cloud.vsphere.compute.VsphereCompute;
+import org.dasein.util.uom.time.Day;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class InventoryGeneratorTest extends VsphereTestBase {
+    private final InventoryGenerator inventory = new InventoryGenerator(InventoryGenerator.Shape.getInstance()
+            .withClustersPerDataCenter(3)
+            .withHostsPerCluster(5)
+            .withStandaloneHostsPerDataCenter(1)
+            .withDatastores(2, 1)
+            .withVirtualMachines(50, 5));
+
+    private Set<String> getIds(RetrieveResult result, String type) {
+        Set<String> ids = new HashSet<String>();
+        for (ObjectContent oc : result.getObjects()) {
+            if (oc.getObj().getType().equals(type)) {
+                ids.add(oc.getObj().getValue());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void virtualMachinesShouldOnlyReferenceGeneratedObjects() {
+        Set<String> hostIds = getIds(inventory.getHosts(), "HostSystem");
+        Set<String> poolIds = getIds(inventory.getResourcePools(), "ResourcePool");
+        Set<String> folderIds = getIds(inventory.getVmFolders(), "Folder");
+        Set<String> datastoreIds = getIds(inventory.getStoragePools(), "Datastore");
+
+        assertEquals(55, inventory.getVirtualMachines().getObjects().size());
+        for (ObjectContent oc : inventory.getVirtualMachines().getObjects()) {
+            for (DynamicProperty dp : oc.getPropSet()) {
+                switch (dp.getName()) {
+                    case "runtime":
+                        assertTrue("Unknown host", hostIds.contains(((VirtualMachineRuntimeInfo) dp.getVal()).getHost().getValue()));
+                        break;
+                    case "resourcePool":
+                        assertTrue("Unknown resource pool", poolIds.contains(((ManagedObjectReference) dp.getVal()).getValue()));
+                        break;
+                    case "parent":
+                        assertTrue("Unknown folder", folderIds.contains(((ManagedObjectReference) dp.getVal()).getValue()));
+                        break;
+                    case "datastore":
+                        for (ManagedObjectReference ds : ((ArrayOfManagedObjectReference) dp.getVal()).getManagedObjectReference()) {
+                            assertTrue("Unknown datastore", datastoreIds.contains(ds.getValue()));
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void listHostsShouldResolveEveryGeneratedHost() throws CloudException, InternalException {
+        final HostSupport hs = new HostSupport(vsphereMock);
+        final List<SelectionSpec> hostSSpec = hs.getHostSSpec();
+        final List<PropertySpec> hostPSpec = hs.getHostPSpec();
+        Cache.getInstance(vsphereMock, "affinityGroups", AffinityGroup.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY)).clear();
+
+        new Expectations(HostSupport.class) {
+            {hs.retrieveObjectList(vsphereMock, "hostFolder", hostSSpec, hostPSpec);
+                result = inventory.getHosts();
+                times=1;
+            }
+        };
+
+        Set<String> clusterIds = getIds(inventory.getDataCenters(), "ClusterComputeResource");
+        int clustered = 0, standalone = 0;
+        for (AffinityGroup host : hs.list(AffinityGroupFilterOptions.getInstance())) {
+            if (clusterIds.contains(host.getDataCenterId())) {
+                clustered++;
+            }
+            else if (host.getDataCenterId().startsWith("domain-s")) {
+                standalone++;
+            }
+        }
+        assertEquals(15, clustered);
+        assertEquals(1, standalone);
+        Cache.getInstance(vsphereMock, "affinityGroups", AffinityGroup.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY)).clear();
+    }
+
+    @Test
+    public void listStoragePoolsShouldMapDatastoresToTheirCluster(@Mocked final VsphereCompute computeMock, @Mocked final HostSupport hostSupportMock) throws CloudException, InternalException {
+        new NonStrictExpectations() {
+            { vsphereMock.getComputeServices();
+                result = computeMock;
+            }
+            { computeMock.getAffinityGroupSupport();
+                result = hostSupportMock;
+            }
+            { hostSupportMock.list((AffinityGroupFilterOptions) any);
+                result = inventory.getDaseinHosts();
+            }
+        };
+        final DataCenters dc = new DataCenters(vsphereMock);
+        final List<PropertySpec> spPSpecs = dc.getStoragePoolPropertySpec();
+        Cache.getInstance(vsphereMock, "storagePools", StoragePool.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR)).clear();
+
+        new Expectations(DataCenters.class) {
+            { dc.retrieveObjectList(vsphereMock, "datastoreFolder", null, spPSpecs);
+                result = inventory.getStoragePools();
+                times=1;
+            }
+        };
+
+        Set<String> clusterIds = getIds(inventory.getDataCenters(), "ClusterComputeResource");
+        int local = 0, shared = 0;
+        for (StoragePool pool : dc.listStoragePools()) {
+            if (pool.getDataCenterId() == null) {
+                shared++;
+            }
+            else {
+                assertTrue("Datastore mapped to unknown cluster", clusterIds.contains(pool.getDataCenterId()));
+                local++;
+            }
+        }
+        assertEquals(6, local);
+        assertEquals("Datastore mounted across clusters should be shared", 1, shared);
+        Cache.getInstance(vsphereMock, "storagePools", StoragePool.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Hour>(10, TimePeriod.HOUR)).clear();
+    }
+}
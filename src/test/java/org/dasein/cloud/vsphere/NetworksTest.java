@@ -227,6 +227,16 @@ public class NetworksTest extends VsphereTestBase {
         cache.clear();
     }
 
+    @Test
+    public void networkPSpecShouldOnlyRequestVlanProperties() {
+        for (PropertySpec spec : networkPSpec) {
+            assertFalse("Network listing should not retrieve all properties", Boolean.TRUE.equals(spec.isAll()));
+            for (String path : spec.getPathSet()) {
+                assertTrue("Unexpected property " + path, path.equals("summary.name") || path.equals("summary.accessible") || path.equals("config.distributedVirtualSwitch"));
+            }
+        }
+    }
+
     @Test(expected = NoContextException.class)
     public void listShouldThrowExceptionIfNullContext() throws CloudException, InternalException {
         new Expectations(VSphereNetwork.class) {
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.VimPortType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OperationTraceTest extends VsphereTestBase {
+
+    @Test
+    public void endShouldReportVimCallsOfTopLevelOperation() throws RuntimeFaultFaultMsg {
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, VimMetrics.getInstance("traceTest"), false);
+        ManagedObjectReference serviceInstance = new ManagedObjectReference();
+        serviceInstance.setType("ServiceInstance");
+        serviceInstance.setValue("ServiceInstance");
+
+        OperationTrace.begin(vsphereMock, "Test.outer");
+        try {
+            port.retrieveServiceContent(serviceInstance);
+            OperationTrace.begin(vsphereMock, "Test.inner");
+            try {
+                port.retrieveServiceContent(serviceInstance);
+                port.currentTime(serviceInstance);
+            }
+            finally {
+                OperationTrace.end();
+            }
+        }
+        finally {
+            OperationTrace.end();
+        }
+
+        OperationTrace.Usage usage = OperationTrace.getLastCompleted();
+        assertNotNull("No usage recorded for operation", usage);
+        assertEquals("Test.outer", usage.getOperation());
+        assertEquals("Nested calls should count towards the outer operation", 3, usage.getVimCalls());
+        assertEquals(Integer.valueOf(2), usage.getCallsByMethod().get("retrieveServiceContent"));
+        assertEquals(Integer.valueOf(1), usage.getCallsByMethod().get("currentTime"));
+        assertEquals(0, usage.getBytes());
+    }
+
+    @Test
+    public void callsOutsideAnOperationShouldNotBeCounted() throws RuntimeFaultFaultMsg {
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, VimMetrics.getInstance("traceTest"), false);
+        ManagedObjectReference serviceInstance = new ManagedObjectReference();
+
+        port.currentTime(serviceInstance);
+        OperationTrace.begin(vsphereMock, "Test.empty");
+        OperationTrace.end();
+
+        assertEquals(0, OperationTrace.getLastCompleted().getVimCalls());
+    }
+}
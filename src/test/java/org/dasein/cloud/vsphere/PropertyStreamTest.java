@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.xml.bind.JAXBContext;
+import javax.xml.namespace.QName;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPFactory;
+import javax.xml.soap.SOAPFault;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PropertyStreamTest {
+    private final InventoryGenerator inventory = new InventoryGenerator(InventoryGenerator.Shape.getInstance()
+            .withClustersPerDataCenter(3)
+            .withDatastores(2, 1)
+            .withVirtualMachines(30, 3));
+
+    private XMLStreamReader getSoapResponse(RetrieveResult result) throws Exception {
+        RetrievePropertiesExResponse body = new RetrievePropertiesExResponse();
+        body.setReturnval(result);
+
+        SOAPMessage message = MessageFactory.newInstance().createMessage();
+        JAXBContext.newInstance(ObjectFactory.class).createMarshaller().marshal(body, message.getSOAPBody());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void parseShouldHandEveryObjectWithTypedProperties() throws Exception {
+        RetrieveResult storagePools = inventory.getStoragePools();
+        final List<ObjectContent> objects = new ArrayList<ObjectContent>();
+
+        String token = PropertyStream.parse(getSoapResponse(storagePools), new PropertyStream.Handler() {
+            @Override
+            public void handle(@Nonnull ObjectContent object) {
+                objects.add(object);
+            }
+        });
+
+        assertNull(token);
+        assertEquals("3 clusters with 2 local datastores and 1 shared", 7, objects.size());
+        for( int i = 0; i < objects.size(); i++ ) {
+            ObjectContent expected = storagePools.getObjects().get(i);
+            ObjectContent actual = objects.get(i);
+            assertEquals(expected.getObj().getValue(), actual.getObj().getValue());
+            assertEquals("Datastore", actual.getObj().getType());
+            assertEquals(expected.getPropSet().size(), actual.getPropSet().size());
+            for( DynamicProperty dp : actual.getPropSet() ) {
+                if( dp.getName().equals("summary") ) {
+                    assertTrue("xsi:type should select the property type", dp.getVal() instanceof DatastoreSummary);
+                    assertEquals(((DatastoreSummary) expected.getPropSet().get(0).getVal()).getName(), ((DatastoreSummary) dp.getVal()).getName());
+                }
+                else {
+                    assertTrue(dp.getVal() instanceof ArrayOfDatastoreHostMount);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parseShouldReturnContinuationToken() throws Exception {
+        RetrieveResult page = new RetrieveResult();
+        page.getObjects().addAll(inventory.getVirtualMachines().getObjects().subList(0, 10));
+        page.setToken("session[52f0]7");
+        final int[] count = new int[1];
+
+        String token = PropertyStream.parse(getSoapResponse(page), new PropertyStream.Handler() {
+            @Override
+            public void handle(@Nonnull ObjectContent object) {
+                assertTrue(object.getPropSet().size() > 0);
+                count[0]++;
+            }
+        });
+
+        assertEquals("session[52f0]7", token);
+        assertEquals(10, count[0]);
+    }
+
+    @Test
+    public void soapActionShouldAnnounceTheServerApiVersion() {
+        ServiceContent serviceContent = new ServiceContent();
+        AboutInfo about = new AboutInfo();
+        about.setApiVersion("5.5");
+        serviceContent.setAbout(about);
+
+        assertEquals("urn:vim25/5.5", PropertyStream.getSoapAction(new VsphereConnection(null, null, null, serviceContent, null)));
+        assertEquals("urn:vim25/6.0", PropertyStream.getSoapAction(new VsphereConnection(null, null, null, new ServiceContent(), null)));
+    }
+
+    @Test
+    public void ordinarySoapFaultsShouldNotCountAsOverload() throws Exception {
+        SOAPFault invalidProperty = SOAPFactory.newInstance().createFault("InvalidProperty", new QName("http://schemas.xmlsoap.org/soap/envelope/", "Client"));
+        invalidProperty.addDetail().addDetailEntry(new QName("urn:vim25", "InvalidPropertyFault"));
+        SOAPFault systemError = SOAPFactory.newInstance().createFault("SystemError", new QName("http://schemas.xmlsoap.org/soap/envelope/", "Server"));
+        systemError.addDetail().addDetailEntry(new QName("urn:vim25", "RuntimeFaultFault"));
+
+        assertFalse(InstrumentedVimPort.isOverloaded(new SOAPFaultException(invalidProperty)));
+        assertTrue(InstrumentedVimPort.isOverloaded(new SOAPFaultException(systemError)));
+        assertTrue("Transport failures count", InstrumentedVimPort.isOverloaded(new WebServiceException("Read timed out")));
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest extends VsphereTestBase {
+
+    @Test
+    public void concurrentCallsShouldShareOneExecution() throws Exception {
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> followerResult = new AtomicReference<String>();
+
+        final SingleFlight.Call<String> call = new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws InternalException, CloudException {
+                executions.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    throw new InternalException("interrupted");
+                }
+                return "result";
+            }
+        };
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SingleFlight.execute("singleFlightTest", call);
+                }
+                catch( Exception ignore ) {
+                }
+            }
+        };
+        leader.start();
+        assertTrue("Leader did not start", started.await(10, TimeUnit.SECONDS));
+
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    followerResult.set(SingleFlight.execute("singleFlightTest", call));
+                }
+                catch( Exception ignore ) {
+                }
+            }
+        };
+        follower.start();
+        // give the follower time to join the flight before it completes
+        Thread.sleep(200L);
+        release.countDown();
+        leader.join(10000L);
+        follower.join(10000L);
+
+        assertEquals("Call should only run once", 1, executions.get());
+        assertEquals("result", followerResult.get());
+    }
+
+    @Test(expected = CloudException.class)
+    public void errorsShouldBePassedToCaller() throws InternalException, CloudException {
+        SingleFlight.execute("singleFlightErrorTest", new SingleFlight.Call<String>() {
+            @Override
+            public String call() throws InternalException, CloudException {
+                throw new CloudException("failed");
+            }
+        });
+    }
+
+    @Test
+    public void callsAfterCompletionShouldRunAgain() throws InternalException, CloudException {
+        final AtomicInteger executions = new AtomicInteger();
+        SingleFlight.Call<Integer> call = new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() throws InternalException, CloudException {
+                return executions.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), SingleFlight.execute("singleFlightSequentialTest", call));
+        assertEquals(Integer.valueOf(2), SingleFlight.execute("singleFlightSequentialTest", call));
+    }
+
+    @Test
+    public void joinedCallersShouldGetTheirOwnList() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<List<String>> leaderResult = new AtomicReference<List<String>>();
+
+        final SingleFlight.Call<List<String>> call = new SingleFlight.Call<List<String>>() {
+            @Override
+            public List<String> call() throws InternalException, CloudException {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    throw new InternalException("interrupted");
+                }
+                return new ArrayList<String>(Collections.singletonList("vm-1"));
+            }
+        };
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    leaderResult.set(SingleFlight.execute("singleFlightCopyTest", call));
+                }
+                catch( Exception ignore ) {
+                }
+            }
+        };
+        leader.start();
+        assertTrue("Leader did not start", started.await(10, TimeUnit.SECONDS));
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // give the follower time to join the flight before it completes
+                    Thread.sleep(200L);
+                }
+                catch( InterruptedException ignore ) {
+                }
+                release.countDown();
+            }
+        };
+        releaser.start();
+        List<String> followerResult = SingleFlight.execute("singleFlightCopyTest", call);
+        leader.join(10000L);
+
+        assertNotSame("Each caller should get its own list", leaderResult.get(), followerResult);
+        followerResult.add("vm-2");
+        assertEquals("Changing a joined list should not affect the leader's", 1, leaderResult.get().size());
+    }
+
+    @Test
+    public void callersShouldNotJoinCallsStartedBeforeTheirLastChange() throws Exception {
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final SingleFlight.Call<Integer> call = new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() throws InternalException, CloudException {
+                int execution = executions.incrementAndGet();
+
+                if( execution == 1 ) {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch( InterruptedException e ) {
+                        throw new InternalException("interrupted");
+                    }
+                }
+                return execution;
+            }
+        };
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SingleFlight.execute("singleFlightChangeTest", call);
+                }
+                catch( Exception ignore ) {
+                }
+            }
+        };
+        leader.start();
+        assertTrue("Leader did not start", started.await(10, TimeUnit.SECONDS));
+
+        try {
+            SingleFlight.changed();
+            assertEquals("A call started before the change should not be joined", Integer.valueOf(2), SingleFlight.execute("singleFlightChangeTest", call));
+        }
+        finally {
+            release.countDown();
+            leader.join(10000L);
+        }
+        assertEquals(2, executions.get());
+    }
+}
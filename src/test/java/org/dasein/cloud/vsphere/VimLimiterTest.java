@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import mockit.NonStrictExpectations;
+import org.junit.Test;
+
+import javax.xml.ws.WebServiceException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class VimLimiterTest extends VsphereTestBase {
+
+    @Test
+    public void methodsShouldBeCountedAgainstTheirBudget() {
+        assertEquals(VimLimiter.PROPERTY_COLLECTOR, VimLimiter.getBudget("retrievePropertiesEx"));
+        assertEquals(VimLimiter.PROPERTY_COLLECTOR, VimLimiter.getBudget("ContinueRetrievePropertiesEx"));
+        assertEquals(VimLimiter.SESSION, VimLimiter.getBudget("login"));
+        assertEquals(VimLimiter.TASKS, VimLimiter.getBudget("cloneVMTask"));
+        assertEquals("Other calls change the inventory like tasks do", VimLimiter.TASKS, VimLimiter.getBudget("rebootGuest"));
+    }
+
+    @Test
+    public void callsOverTheConcurrencyLimitShouldQueueThenTimeOut() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "true";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.SESSION + ".concurrency");
+                result = "1";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.QUEUE_TIMEOUT_PROPERTY);
+                result = "50";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestConcurrency");
+        limiter.configure(vsphereMock);
+
+        final VimLimiter.Permit first = limiter.acquire("login");
+        try {
+            limiter.acquire("logout");
+            fail("Second session call should not be admitted while the first is in flight");
+        }
+        catch( WebServiceException expected ) {
+            // the queue timeout elapsed
+        }
+        assertEquals(1, limiter.snapshot().get(VimLimiter.SESSION).getTimeouts());
+        assertEquals("Other budgets are not affected", 0, limiter.snapshot().get(VimLimiter.TASKS).getInFlight());
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waiting.await();
+                    Thread.sleep(20);
+                }
+                catch( InterruptedException ignore ) {
+                }
+                first.release(1, false);
+            }
+        };
+        releaser.start();
+        waiting.countDown();
+        limiter.acquire("logout").release(1, false);
+        releaser.join();
+
+        VimLimiter.BudgetSnapshot session = limiter.snapshot().get(VimLimiter.SESSION);
+        assertEquals(2, session.getCalls());
+        assertEquals(1, session.getQueued());
+        assertTrue("Queueing delay should be recorded", session.getMaxQueueMillis() >= 10);
+        assertEquals(0, session.getInFlight());
+    }
+
+    @Test
+    public void tokenBucketShouldSpaceCallsOutOnceTheBurstIsSpent() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "true";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.TASKS + ".rate");
+                result = "20";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.TASKS + ".burst");
+                result = "2";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestRate");
+        limiter.configure(vsphereMock);
+
+        long start = System.nanoTime();
+        for( int i = 0; i < 4; i++ ) {
+            limiter.acquire("powerOnVMTask").release(1, false);
+        }
+        long millis = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue("Two calls over the burst at 20 per second should take about 100ms, took " + millis, millis >= 80);
+        assertEquals(2, limiter.snapshot().get(VimLimiter.TASKS).getQueued());
+    }
+
+    @Test
+    public void limitShouldGrowWhileSaturatedAndShrinkWhenVcenterSlowsDown() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "true";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.PROPERTY_COLLECTOR + ".concurrency");
+                result = "2";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestAdaptive");
+        limiter.configure(vsphereMock);
+
+        for( int i = 0; i < 10; i++ ) {
+            VimLimiter.Permit a = limiter.acquire("retrievePropertiesEx");
+            VimLimiter.Permit b = limiter.acquire("retrievePropertiesEx");
+            a.release(20, false);
+            b.release(20, false);
+        }
+        double grown = limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit();
+        assertTrue("Saturated budget with steady latency should grow, limit " + grown, grown > 2);
+
+        limiter.acquire("retrievePropertiesEx").release(500, false);
+        double slowed = limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit();
+        assertTrue("A call far slower than usual should shrink the limit", slowed < grown);
+
+        limiter.acquire("retrievePropertiesEx").release(20, true);
+        assertTrue("Runtime faults should shrink the limit", limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit() < slowed);
+    }
+
+    @Test
+    public void longPollsShouldNotHoldConcurrencySlots() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "true";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.PROPERTY_COLLECTOR + ".concurrency");
+                result = "1";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.QUEUE_TIMEOUT_PROPERTY);
+                result = "50";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestLongPoll");
+        limiter.configure(vsphereMock);
+
+        VimLimiter.Permit firstWait = limiter.acquire("waitForUpdatesEx");
+        VimLimiter.Permit secondWait = limiter.acquire("WaitForUpdatesEx");
+        limiter.acquire("retrievePropertiesEx").release(20, false);
+        assertEquals("Long polls should leave the slot to listings", 0, limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getQueued());
+
+        double limit = limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit();
+        firstWait.release(600000, false);
+        secondWait.release(600000, false);
+        assertEquals("Long polls should not shrink the limit", limit, limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit(), 0.0);
+        assertEquals(0, limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getInFlight());
+    }
+
+    @Test
+    public void disabledLimiterShouldAdmitEveryCall() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "false";
+            }
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.SESSION + ".concurrency");
+                result = "1";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestDisabled");
+        limiter.configure(vsphereMock);
+
+        for( int i = 0; i < 5; i++ ) {
+            limiter.acquire("login");
+        }
+        assertFalse(limiter.isEnabled());
+        assertEquals(5, limiter.snapshot().get(VimLimiter.SESSION).getInFlight());
+    }
+
+    @Test
+    public void limiterShouldBeOffUnlessEnabled() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.PROPERTY_PREFIX + VimLimiter.SESSION + ".concurrency");
+                result = "1";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestDefault");
+        limiter.configure(vsphereMock);
+
+        assertFalse(limiter.isEnabled());
+        limiter.acquire("login");
+        limiter.acquire("login");
+        assertEquals(2, limiter.snapshot().get(VimLimiter.SESSION).getInFlight());
+    }
+
+    @Test
+    public void slowListingsShouldNotShrinkTheLimitSetBySingleObjectReads() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimLimiter.ENABLED_PROPERTY);
+                result = "true";
+            }
+        };
+        VimLimiter limiter = VimLimiter.getInstance("limiterTestShapes");
+        limiter.configure(vsphereMock);
+
+        String read = InstrumentedVimPort.getQueryShape("retrievePropertiesEx", new Object[] { null, Collections.singletonList(getFilter("VirtualMachine", false, "config.hardware.device")), null });
+        String listing = InstrumentedVimPort.getQueryShape("retrievePropertiesEx", new Object[] { null, Collections.singletonList(getFilter("Folder", true, "name", "runtime")), null });
+        assertFalse("A traversal should not share the shape of a single object read", read.equals(listing));
+
+        for( int i = 0; i < 10; i++ ) {
+            limiter.acquire("retrievePropertiesEx", read).release(20, false);
+            limiter.acquire("retrievePropertiesEx", listing).release(2000, false);
+        }
+        assertEquals("Steady latencies per shape should not shrink the limit", 8.0, limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit(), 0.0);
+
+        limiter.acquire("retrievePropertiesEx", read).release(500, false);
+        assertTrue("A read far slower than earlier reads should still shrink the limit", limiter.snapshot().get(VimLimiter.PROPERTY_COLLECTOR).getLimit() < 8.0);
+    }
+
+    private PropertyFilterSpec getFilter(String type, boolean traverse, String ... paths) {
+        ManagedObjectReference ref = new ManagedObjectReference();
+        ref.setType(type);
+        ObjectSpec os = new ObjectSpec();
+        os.setObj(ref);
+        if( traverse ) {
+            os.getSelectSet().add(new TraversalSpec());
+        }
+        PropertySpec ps = new PropertySpec();
+        ps.setType(type);
+        for( String path : paths ) {
+            ps.getPathSet().add(path);
+        }
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        spec.getObjectSet().add(os);
+        spec.getPropSet().add(ps);
+        return spec;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.VimPortType;
+import mockit.NonStrictExpectations;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VimMetricsTest extends VsphereTestBase {
+
+    private VimMetrics getMetrics(String endpoint) {
+        VimMetrics metrics = VimMetrics.getInstance(endpoint);
+        metrics.reset();
+        return metrics;
+    }
+
+    @Test
+    public void endShouldCountCallsFaultsAndLatencies() {
+        VimMetrics metrics = getMetrics("metricsTestCounts");
+
+        metrics.begin("RetrievePropertiesEx");
+        assertEquals(1, metrics.getInFlight());
+        metrics.end("RetrievePropertiesEx", 3, 100, 2000, false);
+        metrics.begin("RetrievePropertiesEx");
+        metrics.end("RetrievePropertiesEx", 40, 100, 4000, false);
+        metrics.begin("CloneVMTask");
+        metrics.end("CloneVMTask", 20000, 500, 300, true);
+
+        Map<String, VimMetrics.MethodSnapshot> snapshot = metrics.snapshot();
+        VimMetrics.MethodSnapshot retrieve = snapshot.get("RetrievePropertiesEx");
+        assertNotNull("No statistics kept for method", retrieve);
+        assertEquals(2, retrieve.getCalls());
+        assertEquals(0, retrieve.getFaults());
+        assertEquals(0, retrieve.getInFlight());
+        assertEquals(40, retrieve.getMaxMillis());
+        assertEquals(21, retrieve.getMeanMillis());
+        assertEquals(6000, retrieve.getResponseBytes());
+        assertEquals("Fast call should land in the first bucket", 1, retrieve.getHistogram()[0]);
+        assertEquals("Slower call should land in the 50ms bucket", 1, retrieve.getHistogram()[3]);
+        assertEquals(5, retrieve.getPercentileMillis(50));
+        assertEquals(40, retrieve.getPercentileMillis(95));
+
+        assertEquals(1, snapshot.get("CloneVMTask").getFaults());
+        assertEquals(3, metrics.getCalls());
+        assertEquals(1, metrics.getFaults());
+        assertEquals(700, metrics.getRequestBytes());
+        assertEquals(2, metrics.getMethodSummaries().length);
+    }
+
+    @Test
+    public void resetShouldKeepCallsInFlight() {
+        VimMetrics metrics = getMetrics("metricsTestReset");
+
+        metrics.begin("RetrievePropertiesEx");
+        metrics.end("RetrievePropertiesEx", 3, 0, 0, false);
+        metrics.begin("RetrievePropertiesEx");
+        metrics.reset();
+        assertEquals(0, metrics.getCalls());
+        assertEquals("Call begun before the reset is still in flight", 1, metrics.getInFlight());
+
+        metrics.end("RetrievePropertiesEx", 5, 0, 0, false);
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(1, metrics.getCalls());
+    }
+
+    @Test
+    public void wrappedPortShouldRecordEachCall() throws RuntimeFaultFaultMsg {
+        VimMetrics metrics = getMetrics("metricsTestWrap");
+        final ManagedObjectReference serviceInstance = new ManagedObjectReference();
+        serviceInstance.setType("ServiceInstance");
+        serviceInstance.setValue("ServiceInstance");
+
+        new NonStrictExpectations() {
+            {vimPortMock.currentTime(serviceInstance);
+                result = new RuntimeFaultFaultMsg("Session expired", new RuntimeFault());
+            }
+        };
+
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, metrics, false);
+        port.retrieveServiceContent(serviceInstance);
+        try {
+            port.currentTime(serviceInstance);
+            fail("Fault should be rethrown unwrapped");
+        }
+        catch( RuntimeFaultFaultMsg expected ) {
+            // expected
+        }
+
+        Map<String, VimMetrics.MethodSnapshot> snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.get("retrieveServiceContent").getCalls());
+        assertEquals(0, snapshot.get("retrieveServiceContent").getFaults());
+        assertEquals(1, snapshot.get("currentTime").getCalls());
+        assertEquals(1, snapshot.get("currentTime").getFaults());
+        assertEquals(0, metrics.getInFlight());
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import mockit.NonStrictExpectations;
+import org.junit.Test;
+
+import javax.xml.ws.WebServiceException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VimRetryPolicyTest extends VsphereTestBase {
+
+    private VimRetryPolicy getPolicy(String endpoint) {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimRetryPolicy.BASE_DELAY_PROPERTY);
+                result = "1";
+            }
+        };
+        VimRetryPolicy policy = VimRetryPolicy.getInstance(endpoint);
+        policy.configure(vsphereMock);
+        return policy;
+    }
+
+    @Test
+    public void onlyTransientFaultsOfSafeCallsShouldBeRetriable() {
+        WebServiceException timeout = new WebServiceException(new SocketTimeoutException("Read timed out"));
+
+        assertTrue(VimRetryPolicy.isRetriable("retrievePropertiesEx", new RuntimeFaultFaultMsg("Busy", new SystemError())));
+        assertTrue(VimRetryPolicy.isRetriable("retrievePropertiesEx", timeout));
+        assertFalse("An expired session fails again", VimRetryPolicy.isRetriable("retrievePropertiesEx", new RuntimeFaultFaultMsg("Expired", new NotAuthenticated())));
+        assertFalse("A clone may have started before the timeout", VimRetryPolicy.isRetriable("cloneVMTask", timeout));
+        assertFalse(VimRetryPolicy.isRetriable("powerOnVMTask", new RuntimeFaultFaultMsg("Busy", new RuntimeFault())));
+        assertTrue("A busy object rejected the call", VimRetryPolicy.isRetriable("powerOnVMTask", new TaskInProgressFaultMsg("Busy", new TaskInProgress())));
+    }
+
+    @Test
+    public void transientFaultOfReadShouldCostOneMoreCall() throws Exception {
+        VimMetrics metrics = VimMetrics.getInstance("retryTestRead");
+        metrics.reset();
+        final RetrieveResult retrieveResult = new RetrieveResult();
+        new NonStrictExpectations() {
+            {vimPortMock.retrievePropertiesEx((ManagedObjectReference) any, (List<PropertyFilterSpec>) any, (RetrieveOptions) any);
+                result = new RuntimeFaultFaultMsg("Busy", new SystemError());
+                result = retrieveResult;
+            }
+        };
+
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, metrics, null, getPolicy("retryTestRead"), false);
+        assertSame(retrieveResult, port.retrievePropertiesEx(new ManagedObjectReference(), null, new RetrieveOptions()));
+
+        Map<String, VimMetrics.MethodSnapshot> snapshot = metrics.snapshot();
+        assertEquals("Each attempt is a call", 2, snapshot.get("retrievePropertiesEx").getCalls());
+        assertEquals(1, snapshot.get("retrievePropertiesEx").getFaults());
+        assertEquals(1, VimRetryPolicy.getInstance("retryTestRead").getRetries());
+    }
+
+    @Test
+    public void taskCallsShouldOnlyBeRetriedWhenRejected() throws Exception {
+        final ManagedObjectReference task = new ManagedObjectReference();
+        new NonStrictExpectations() {
+            {vimPortMock.powerOnVMTask((ManagedObjectReference) any, (ManagedObjectReference) any);
+                result = new TaskInProgressFaultMsg("Busy", new TaskInProgress());
+                result = task;
+            }
+            {vimPortMock.powerOffVMTask((ManagedObjectReference) any);
+                result = new RuntimeFaultFaultMsg("Failed", new SystemError());
+                times = 1;
+            }
+        };
+
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, VimMetrics.getInstance("retryTestTasks"), null, getPolicy("retryTestTasks"), false);
+        assertSame(task, port.powerOnVMTask(new ManagedObjectReference(), null));
+        try {
+            port.powerOffVMTask(new ManagedObjectReference());
+            fail("Power off may have been carried out, its fault should be surfaced");
+        }
+        catch( RuntimeFaultFaultMsg expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void retriesShouldStopOnceTheBudgetIsSpent() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimRetryPolicy.BUDGET_RESERVE_PROPERTY);
+                result = "1";
+            }
+            {vsphereMock.getCustomProperty(VimRetryPolicy.BUDGET_RATIO_PROPERTY);
+                result = "0";
+            }
+            {vimPortMock.retrieveServiceContent((ManagedObjectReference) any);
+                result = new WebServiceException(new SocketTimeoutException("Read timed out"));
+            }
+        };
+        VimRetryPolicy policy = getPolicy("retryTestBudget");
+        VimPortType port = InstrumentedVimPort.wrap(vimPortMock, VimMetrics.getInstance("retryTestBudget"), null, policy, false);
+
+        for( int i = 0; i < 2; i++ ) {
+            try {
+                port.retrieveServiceContent(new ManagedObjectReference());
+                fail("Timeouts should be surfaced once retries are exhausted");
+            }
+            catch( WebServiceException expected ) {
+                // expected
+            }
+        }
+        assertEquals("Only the reserve of one retry was available", 1, policy.getRetries());
+        assertEquals("Second call and the first call's last attempt were refused", 2, policy.getRefusals());
+    }
+
+    @Test
+    public void delaysShouldBeJitteredUnderAnExponentialCeiling() {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimRetryPolicy.BASE_DELAY_PROPERTY);
+                result = "100";
+            }
+            {vsphereMock.getCustomProperty(VimRetryPolicy.MAX_DELAY_PROPERTY);
+                result = "300";
+            }
+        };
+        VimRetryPolicy policy = VimRetryPolicy.getInstance("retryTestDelay");
+        policy.configure(vsphereMock);
+
+        boolean varied = false;
+        long first = policy.getDelay(2);
+        for( int i = 0; i < 50; i++ ) {
+            long delay = policy.getDelay(2);
+            assertTrue("Second retry waits less than 200ms", delay >= 0 && delay < 200);
+            assertTrue("Delays are capped", policy.getDelay(10) < 300);
+            varied |= (delay != first);
+        }
+        assertTrue("Delays should be jittered", varied);
+    }
+}
@@ -0,0 +1,661 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPConstants;
+import javax.xml.soap.SOAPElement;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.Endpoint;
+import javax.xml.ws.Provider;
+import javax.xml.ws.Service;
+import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceProvider;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process vim25 SOAP endpoint serving an {@link InventoryGenerator} inventory, so the provider can be load
+ * tested against a realistic wire protocol without a vCenter. Point the cloud endpoint of a context (or the
+ * {@code ENDPOINT_ADDRESS_PROPERTY} of a vim port) at {@link #getEndpoint()} and {@link Vsphere#getServiceInstance()}
+ * logs in and retrieves from the simulator like from a vCenter.
+ * <p>
+ * The simulator implements the calls the provider makes: service content, login, property retrieval with
+ * paging, property filters and update waits, and tasks for clone, reconfigure, power operations, destroy and
+ * datastore searches. Traversal specs are not followed, every object of the requested type is reachable from
+ * the root of any traversal. Tasks complete immediately; clones and destroys change the inventory, the other
+ * tasks do not. Every call waits for the configured latency before answering, anything else answers with a
+ * SOAP fault.
+ * </p>
+ * @version 2016.02 initial version
+ * @since 2016.02
+ */
+@WebServiceProvider
+@ServiceMode(Service.Mode.MESSAGE)
+public class VimSimulator implements Provider<SOAPMessage> {
+    static private final String VIM25 = "urn:vim25";
+
+    static private final Set<String> TASK_METHODS = new HashSet<String>(Arrays.asList(
+            "CloneVM_Task", "ReconfigVM_Task", "RelocateVM_Task", "PowerOnVM_Task", "PowerOffVM_Task",
+            "SuspendVM_Task", "ResetVM_Task", "Destroy_Task", "SearchDatastore_Task", "SearchDatastoreSubFolders_Task"));
+
+    static private final Set<String> VOID_METHODS = new HashSet<String>(Arrays.asList(
+            "Logout", "ShutdownGuest", "RebootGuest", "MarkAsTemplate", "DestroyPropertyFilter",
+            "DestroyPropertyCollector", "CancelRetrievePropertiesEx"));
+
+    static private final Map<String, String> SUPERTYPES = new HashMap<String, String>();
+
+    static {
+        SUPERTYPES.put("ClusterComputeResource", "ComputeResource");
+        SUPERTYPES.put("DistributedVirtualPortgroup", "Network");
+        SUPERTYPES.put("VmwareDistributedVirtualSwitch", "DistributedVirtualSwitch");
+        SUPERTYPES.put("VirtualApp", "ResourcePool");
+    }
+
+    static private @Nonnull ManagedObjectReference mor(@Nonnull String type, @Nonnull String value) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setValue(value);
+        return mor;
+    }
+
+    static private boolean isA(@Nonnull String type, @Nonnull String target) {
+        for( String t = type; t != null; t = SUPERTYPES.get(t) ) {
+            if( t.equals(target) ) {
+                return true;
+            }
+        }
+        return (target.equals("ManagedEntity") && !type.equals("Task"));
+    }
+
+    // a filter created on a property collector, delivered to waits for versions older than its own
+    static private class Filter {
+        ManagedObjectReference collector;
+        PropertyFilterSpec spec;
+        int version;
+    }
+
+    // the remaining objects of a paged retrieval
+    static private class Page {
+        List<ObjectContent> objects;
+        Integer maxObjects;
+    }
+
+    private final Map<String, ObjectContent> inventory = new LinkedHashMap<String, ObjectContent>();
+    private final Map<String, Object> taskResults = new ConcurrentHashMap<String, Object>();
+    private final Map<String, Filter> filters = new ConcurrentHashMap<String, Filter>();
+    private final Map<String, Page> pages = new ConcurrentHashMap<String, Page>();
+    private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger version = new AtomicInteger();
+
+    private long latencyMillis;
+    private long jitterMillis;
+    private int pageSize;
+    private int threads = 8;
+    private Endpoint endpoint;
+    private ExecutorService executor;
+    private String address;
+
+    /**
+     * @param generator the inventory to serve
+     */
+    public VimSimulator(@Nonnull InventoryGenerator generator) {
+        for( RetrieveResult result : Arrays.asList(generator.getRegions(), generator.getDataCenters(), generator.getHosts(), generator.getResourcePools(), generator.getVmFolders(), generator.getStoragePools(), generator.getNetworks(), generator.getVirtualMachines(), generator.getHardDisks(), generator.getTemplates()) ) {
+            for( ObjectContent oc : result.getObjects() ) {
+                ObjectContent merged = inventory.get(oc.getObj().getValue());
+
+                if( merged == null ) {
+                    merged = new ObjectContent();
+                    merged.setObj(oc.getObj());
+                    inventory.put(oc.getObj().getValue(), merged);
+                }
+                for( DynamicProperty dp : oc.getPropSet() ) {
+                    if( !hasProperty(merged, dp.getName()) ) {
+                        merged.getPropSet().add(dp);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param millis the time every call waits before answering
+     * @param jitterMillis the maximum random time added to it
+     * @return this simulator
+     */
+    public @Nonnull VimSimulator withLatency(long millis, long jitterMillis) {
+        this.latencyMillis = millis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param pageSize the most objects a retrieval returns before handing out a continuation token, 0 for
+     *                 only the {@code maxObjects} of the request
+     * @return this simulator
+     */
+    public @Nonnull VimSimulator withPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param threads the number of calls served concurrently
+     * @return this simulator
+     */
+    public @Nonnull VimSimulator withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Publishes the simulator on a free local port.
+     * @return this simulator
+     * @throws IOException no local port is available
+     */
+    public synchronized @Nonnull VimSimulator start() throws IOException {
+        if( endpoint == null ) {
+            int port;
+            ServerSocket socket = new ServerSocket(0);
+
+            try {
+                port = socket.getLocalPort();
+            }
+            finally {
+                socket.close();
+            }
+            address = "http://localhost:" + port + "/sdk";
+            executor = Executors.newFixedThreadPool(threads);
+            endpoint = Endpoint.create(this);
+            endpoint.setExecutor(executor);
+            endpoint.publish(address);
+        }
+        return this;
+    }
+
+    public synchronized void stop() {
+        if( endpoint != null ) {
+            endpoint.stop();
+            executor.shutdownNow();
+            endpoint = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the URL of the vim endpoint, null before {@link #start()}
+     */
+    public @Nullable String getEndpoint() {
+        return address;
+    }
+
+    /**
+     * @param method the vim method as named on the wire, e.g. {@code RetrievePropertiesEx}
+     * @return the number of calls of the method served so far
+     */
+    public long getCalls(@Nonnull String method) {
+        AtomicLong count = calls.get(method);
+
+        return (count == null ? 0 : count.get());
+    }
+
+    @Override
+    public SOAPMessage invoke(SOAPMessage request) {
+        try {
+            SOAPElement body = firstElement(request.getSOAPBody());
+
+            if( body == null ) {
+                return fault("Empty request");
+            }
+            String method = body.getLocalName();
+            calls.putIfAbsent(method, new AtomicLong());
+            calls.get(method).incrementAndGet();
+            pause();
+            Object returnval = dispatch(method, body);
+            SOAPMessage response = MessageFactory.newInstance().createMessage();
+            SOAPElement wrapper = response.getSOAPBody().addBodyElement(new QName(VIM25, method + "Response"));
+
+            if( returnval != null ) {
+                marshal(returnval, wrapper);
+            }
+            response.saveChanges();
+            return response;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return fault("Interrupted");
+        }
+        catch( Exception e ) {
+            return fault(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+
+        if( millis > 0 ) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private @Nullable Object dispatch(@Nonnull String method, @Nonnull SOAPElement body) throws Exception {
+        if( TASK_METHODS.contains(method) ) {
+            return task(method, body);
+        }
+        if( VOID_METHODS.contains(method) ) {
+            if( method.equals("DestroyPropertyFilter") ) {
+                filters.remove(getThis(body).getValue());
+            }
+            else if( method.equals("DestroyPropertyCollector") ) {
+                String collector = getThis(body).getValue();
+
+                for( Iterator<Filter> it = filters.values().iterator(); it.hasNext(); ) {
+                    if( it.next().collector.getValue().equals(collector) ) {
+                        it.remove();
+                    }
+                }
+            }
+            return null;
+        }
+        switch( method ) {
+            case "RetrieveServiceContent":
+                return getServiceContent();
+            case "Login":
+                return login(unmarshal(body, LoginRequestType.class).getUserName());
+            case "RetrievePropertiesEx":
+                RetrievePropertiesExRequestType retrieve = unmarshal(body, RetrievePropertiesExRequestType.class);
+                return page(select(retrieve.getSpecSet()), retrieve.getOptions() == null ? null : retrieve.getOptions().getMaxObjects());
+            case "ContinueRetrievePropertiesEx":
+                Page remaining = pages.remove(unmarshal(body, ContinueRetrievePropertiesExRequestType.class).getToken());
+
+                if( remaining == null ) {
+                    throw new IllegalArgumentException("InvalidArgument: token");
+                }
+                return page(remaining.objects, remaining.maxObjects);
+            case "CreatePropertyCollector":
+                return mor("PropertyCollector", "session[" + nextId.getAndIncrement() + "]");
+            case "CreateFilter":
+                CreateFilterRequestType create = unmarshal(body, CreateFilterRequestType.class);
+                Filter filter = new Filter();
+
+                filter.collector = create.getThis();
+                filter.spec = create.getSpec();
+                filter.version = version.incrementAndGet();
+                ManagedObjectReference ref = mor("PropertyFilter", "session[" + nextId.getAndIncrement() + "]");
+                filters.put(ref.getValue(), filter);
+                return ref;
+            case "WaitForUpdatesEx":
+                return waitForUpdates(unmarshal(body, WaitForUpdatesExRequestType.class));
+            default:
+                throw new UnsupportedOperationException("NotImplemented: " + method);
+        }
+    }
+
+    private @Nonnull ServiceContent getServiceContent() {
+        ServiceContent content = new ServiceContent();
+        AboutInfo about = new AboutInfo();
+
+        about.setName("VMware vCenter Server");
+        about.setFullName("VMware vCenter Server 6.0.0 build-0 (simulated)");
+        about.setVendor("VMware, Inc.");
+        about.setVersion("6.0.0");
+        about.setBuild("0");
+        about.setOsType("linux-x64");
+        about.setProductLineId("vpx");
+        about.setApiType("VirtualCenter");
+        about.setApiVersion("6.0");
+        content.setAbout(about);
+        content.setRootFolder(mor("Folder", "group-d1"));
+        content.setPropertyCollector(mor("PropertyCollector", "propertyCollector"));
+        content.setViewManager(mor("ViewManager", "ViewManager"));
+        content.setSessionManager(mor("SessionManager", "SessionManager"));
+        content.setSearchIndex(mor("SearchIndex", "SearchIndex"));
+        content.setFileManager(mor("FileManager", "FileManager"));
+        content.setVirtualDiskManager(mor("VirtualDiskManager", "virtualDiskManager"));
+        content.setCustomizationSpecManager(mor("CustomizationSpecManager", "CustomizationSpecManager"));
+        content.setTaskManager(mor("TaskManager", "TaskManager"));
+        return content;
+    }
+
+    private @Nonnull UserSession login(@Nonnull String userName) throws Exception {
+        UserSession session = new UserSession();
+        DatatypeFactory factory = DatatypeFactory.newInstance();
+
+        session.setKey(String.valueOf(nextId.getAndIncrement()));
+        session.setUserName(userName);
+        session.setFullName(userName);
+        session.setLoginTime(factory.newXMLGregorianCalendar(new GregorianCalendar()));
+        session.setLastActiveTime(factory.newXMLGregorianCalendar(new GregorianCalendar()));
+        session.setLocale("en");
+        session.setMessageLocale("en");
+        return session;
+    }
+
+    private @Nonnull ManagedObjectReference task(@Nonnull String method, @Nonnull SOAPElement body) throws JAXBException {
+        ManagedObjectReference target = getThis(body);
+        ManagedObjectReference task = mor("Task", "task-" + nextId.getAndIncrement());
+        Object result = null;
+
+        if( method.equals("CloneVM_Task") ) {
+            ManagedObjectReference clone = mor("VirtualMachine", "vm-" + nextId.getAndIncrement());
+
+            synchronized( inventory ) {
+                ObjectContent source = inventory.get(target.getValue());
+                ObjectContent copy = new ObjectContent();
+
+                copy.setObj(clone);
+                if( source != null ) {
+                    copy.getPropSet().addAll(source.getPropSet());
+                }
+                inventory.put(clone.getValue(), copy);
+            }
+            result = clone;
+        }
+        else if( method.equals("Destroy_Task") ) {
+            synchronized( inventory ) {
+                inventory.remove(target.getValue());
+            }
+        }
+        else if( method.startsWith("SearchDatastore") ) {
+            ArrayOfHostDatastoreBrowserSearchResults results = new ArrayOfHostDatastoreBrowserSearchResults();
+            HostDatastoreBrowserSearchResults folder = new HostDatastoreBrowserSearchResults();
+            Element path = childElement(body, "datastorePath");
+
+            folder.setFolderPath(path == null ? "" : path.getTextContent());
+            results.getHostDatastoreBrowserSearchResults().add(folder);
+            result = results;
+        }
+        if( result != null ) {
+            taskResults.put(task.getValue(), result);
+        }
+        else {
+            taskResults.put(task.getValue(), Boolean.TRUE);
+        }
+        return task;
+    }
+
+    private @Nonnull List<ObjectContent> select(@Nonnull List<PropertyFilterSpec> specSet) {
+        Map<String, ObjectContent> selected = new LinkedHashMap<String, ObjectContent>();
+
+        synchronized( inventory ) {
+            for( PropertyFilterSpec spec : specSet ) {
+                for( ObjectSpec oSpec : spec.getObjectSet() ) {
+                    ObjectContent start = inventory.get(oSpec.getObj().getValue());
+
+                    if( start != null && oSpec.getSelectSet().isEmpty() ) {
+                        addMatching(selected, start, spec.getPropSet());
+                        continue;
+                    }
+                    for( ObjectContent oc : inventory.values() ) {
+                        if( oc == start && Boolean.TRUE.equals(oSpec.isSkip()) ) {
+                            continue;
+                        }
+                        addMatching(selected, oc, spec.getPropSet());
+                    }
+                }
+            }
+        }
+        return new ArrayList<ObjectContent>(selected.values());
+    }
+
+    private void addMatching(@Nonnull Map<String, ObjectContent> selected, @Nonnull ObjectContent source, @Nonnull List<PropertySpec> propSet) {
+        List<DynamicProperty> props = filterProperties(source.getObj(), source.getPropSet(), propSet);
+
+        if( props == null ) {
+            return;
+        }
+        ObjectContent oc = selected.get(source.getObj().getValue());
+
+        if( oc == null ) {
+            oc = new ObjectContent();
+            oc.setObj(source.getObj());
+            selected.put(source.getObj().getValue(), oc);
+        }
+        for( DynamicProperty dp : props ) {
+            if( !oc.getPropSet().contains(dp) ) {
+                oc.getPropSet().add(dp);
+            }
+        }
+    }
+
+    // the properties the specs ask for, null if no spec applies to the type of the object
+    private @Nullable List<DynamicProperty> filterProperties(@Nonnull ManagedObjectReference obj, @Nonnull List<DynamicProperty> available, @Nonnull List<PropertySpec> propSet) {
+        Set<String> paths = new HashSet<String>();
+        boolean matched = false;
+        boolean all = false;
+
+        for( PropertySpec ps : propSet ) {
+            if( isA(obj.getType(), ps.getType()) ) {
+                matched = true;
+                all = all || Boolean.TRUE.equals(ps.isAll());
+                paths.addAll(ps.getPathSet());
+            }
+        }
+        if( !matched ) {
+            return null;
+        }
+        List<DynamicProperty> props = new ArrayList<DynamicProperty>();
+
+        for( DynamicProperty dp : available ) {
+            if( all || paths.contains(dp.getName()) ) {
+                props.add(dp);
+            }
+        }
+        return props;
+    }
+
+    private @Nullable RetrieveResult page(@Nonnull List<ObjectContent> objects, @Nullable Integer maxObjects) {
+        if( objects.isEmpty() ) {
+            // like vCenter, an empty retrieval has no result at all
+            return null;
+        }
+        int limit = objects.size();
+
+        if( pageSize > 0 ) {
+            limit = Math.min(limit, pageSize);
+        }
+        if( maxObjects != null && maxObjects > 0 ) {
+            limit = Math.min(limit, maxObjects);
+        }
+        RetrieveResult result = new RetrieveResult();
+
+        result.getObjects().addAll(objects.subList(0, limit));
+        if( limit < objects.size() ) {
+            Page remaining = new Page();
+
+            remaining.objects = new ArrayList<ObjectContent>(objects.subList(limit, objects.size()));
+            remaining.maxObjects = maxObjects;
+            result.setToken(String.valueOf(nextId.getAndIncrement()));
+            pages.put(result.getToken(), remaining);
+        }
+        return result;
+    }
+
+    private @Nullable UpdateSet waitForUpdates(@Nonnull WaitForUpdatesExRequestType request) throws InterruptedException {
+        int since = (request.getVersion() == null || request.getVersion().isEmpty() ? 0 : Integer.parseInt(request.getVersion()));
+        UpdateSet updates = new UpdateSet();
+
+        for( Map.Entry<String, Filter> entry : filters.entrySet() ) {
+            Filter filter = entry.getValue();
+
+            if( filter.version <= since || !filter.collector.getValue().equals(request.getThis().getValue()) ) {
+                continue;
+            }
+            PropertyFilterUpdate update = new PropertyFilterUpdate();
+
+            update.setFilter(mor("PropertyFilter", entry.getKey()));
+            for( ObjectSpec oSpec : filter.spec.getObjectSet() ) {
+                List<DynamicProperty> props = filterProperties(oSpec.getObj(), getProperties(oSpec.getObj()), filter.spec.getPropSet());
+
+                if( props == null ) {
+                    continue;
+                }
+                ObjectUpdate objectUpdate = new ObjectUpdate();
+
+                objectUpdate.setKind(ObjectUpdateKind.ENTER);
+                objectUpdate.setObj(oSpec.getObj());
+                for( DynamicProperty dp : props ) {
+                    PropertyChange change = new PropertyChange();
+
+                    change.setName(dp.getName());
+                    change.setOp(PropertyChangeOp.ASSIGN);
+                    change.setVal(dp.getVal());
+                    objectUpdate.getChangeSet().add(change);
+                }
+                update.getObjectSet().add(objectUpdate);
+            }
+            updates.getFilterSet().add(update);
+        }
+        if( updates.getFilterSet().isEmpty() ) {
+            // nothing ever changes after a filter reported, wait out the request like vCenter would
+            Integer maxWait = (request.getOptions() == null ? null : request.getOptions().getMaxWaitSeconds());
+
+            if( maxWait != null && maxWait > 0 ) {
+                Thread.sleep(maxWait * 1000L);
+            }
+            return null;
+        }
+        updates.setVersion(String.valueOf(version.get()));
+        return updates;
+    }
+
+    private @Nonnull List<DynamicProperty> getProperties(@Nonnull ManagedObjectReference obj) {
+        List<DynamicProperty> props = new ArrayList<DynamicProperty>();
+        Object result = taskResults.get(obj.getValue());
+
+        if( result != null ) {
+            props.add(property("info.state", TaskInfoState.SUCCESS));
+            if( !Boolean.TRUE.equals(result) ) {
+                props.add(property("info.result", result));
+            }
+            return props;
+        }
+        synchronized( inventory ) {
+            ObjectContent oc = inventory.get(obj.getValue());
+
+            if( oc != null ) {
+                props.addAll(oc.getPropSet());
+            }
+        }
+        return props;
+    }
+
+    static private boolean hasProperty(@Nonnull ObjectContent oc, @Nonnull String name) {
+        for( DynamicProperty dp : oc.getPropSet() ) {
+            if( dp.getName().equals(name) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static private @Nonnull DynamicProperty property(@Nonnull String name, @Nonnull Object val) {
+        DynamicProperty dp = new DynamicProperty();
+
+        dp.setName(name);
+        dp.setVal(val);
+        return dp;
+    }
+
+    private @Nonnull ManagedObjectReference getThis(@Nonnull SOAPElement body) throws JAXBException {
+        Element element = childElement(body, "_this");
+
+        if( element == null ) {
+            throw new IllegalArgumentException("InvalidRequest: missing _this");
+        }
+        return SharedVimService.getJaxbContext().createUnmarshaller().unmarshal(element, ManagedObjectReference.class).getValue();
+    }
+
+    private <T> T unmarshal(@Nonnull SOAPElement body, @Nonnull Class<T> type) throws JAXBException {
+        Unmarshaller unmarshaller = SharedVimService.getJaxbContext().createUnmarshaller();
+
+        return unmarshaller.unmarshal(body, type).getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void marshal(@Nonnull Object returnval, @Nonnull SOAPElement wrapper) throws JAXBException {
+        Marshaller marshaller = SharedVimService.getJaxbContext().createMarshaller();
+        JAXBElement<Object> element = new JAXBElement<Object>(new QName(VIM25, "returnval"), ( Class<Object> ) returnval.getClass(), returnval);
+
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+        marshaller.marshal(element, wrapper);
+    }
+
+    static private @Nullable SOAPElement firstElement(@Nonnull SOAPElement parent) {
+        for( Node node = parent.getFirstChild(); node != null; node = node.getNextSibling() ) {
+            if( node instanceof SOAPElement ) {
+                return ( SOAPElement ) node;
+            }
+        }
+        return null;
+    }
+
+    static private @Nullable Element childElement(@Nonnull Element parent, @Nonnull String localName) {
+        for( Node node = parent.getFirstChild(); node != null; node = node.getNextSibling() ) {
+            if( node instanceof Element && localName.equals(node.getLocalName()) ) {
+                return ( Element ) node;
+            }
+        }
+        return null;
+    }
+
+    private @Nonnull SOAPMessage fault(@Nonnull String message) {
+        try {
+            SOAPMessage response = MessageFactory.newInstance().createMessage();
+
+            response.getSOAPBody().addFault(new QName(SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE, "Server"), message);
+            response.saveChanges();
+            return response;
+        }
+        catch( SOAPException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
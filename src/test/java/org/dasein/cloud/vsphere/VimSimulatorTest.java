@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import com.vmware.vim25.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.ws.BindingProvider;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Talks to the simulator over a real vim port, so unlike the other tests this one does not mock the vim service.
+ */
+public class VimSimulatorTest {
+    private VimSimulator simulator;
+    private VimPortType vimPort;
+    private ServiceContent serviceContent;
+
+    @Before
+    public void setUp() throws Exception {
+        InventoryGenerator inventory = new InventoryGenerator(InventoryGenerator.Shape.getInstance()
+                .withClustersPerDataCenter(2)
+                .withHostsPerCluster(3)
+                .withStandaloneHostsPerDataCenter(1));
+        simulator = new VimSimulator(inventory).withLatency(20, 0).start();
+
+        vimPort = SharedVimService.getVimService().getVimPort();
+        ((BindingProvider) vimPort).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, simulator.getEndpoint());
+        ((BindingProvider) vimPort).getRequestContext().put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+
+        ManagedObjectReference serviceInstance = new ManagedObjectReference();
+        serviceInstance.setType("ServiceInstance");
+        serviceInstance.setValue("ServiceInstance");
+        serviceContent = vimPort.retrieveServiceContent(serviceInstance);
+        vimPort.login(serviceContent.getSessionManager(), "user", "password", null);
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    private PropertyFilterSpec getHostFilterSpec() {
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.setType("HostSystem");
+        pSpec.getPathSet().addAll(Arrays.asList("name", "runtime.connectionState"));
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(serviceContent.getRootFolder());
+        oSpec.setSkip(Boolean.TRUE);
+        TraversalSpec tSpec = new TraversalSpec();
+        tSpec.setType("Folder");
+        tSpec.setPath("childEntity");
+        oSpec.getSelectSet().add(tSpec);
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        spec.getObjectSet().add(oSpec);
+        spec.getPropSet().add(pSpec);
+        return spec;
+    }
+
+    @Test
+    public void retrievePropertiesShouldReturnRequestedPropertiesOfEveryObjectOfTheType() throws Exception {
+        assertEquals("6.0", serviceContent.getAbout().getApiVersion());
+
+        long start = System.currentTimeMillis();
+        RetrieveResult result = vimPort.retrievePropertiesEx(serviceContent.getPropertyCollector(), Arrays.asList(getHostFilterSpec()), new RetrieveOptions());
+
+        assertTrue("Configured latency should be applied", System.currentTimeMillis() - start >= 20);
+        assertNull("Unpaged retrieval should not return a token", result.getToken());
+        assertEquals("2 clusters of 3 hosts and 1 standalone host", 7, result.getObjects().size());
+        for( ObjectContent oc : result.getObjects() ) {
+            assertEquals("HostSystem", oc.getObj().getType());
+            assertEquals("Only the requested properties should be returned", 2, oc.getPropSet().size());
+            for( DynamicProperty dp : oc.getPropSet() ) {
+                if( dp.getName().equals("runtime.connectionState") ) {
+                    assertEquals(HostSystemConnectionState.CONNECTED, dp.getVal());
+                }
+            }
+        }
+        assertEquals(1, simulator.getCalls("RetrievePropertiesEx"));
+    }
+
+    @Test
+    public void retrievePropertiesShouldPageWithContinuationTokens() throws Exception {
+        RetrieveOptions options = new RetrieveOptions();
+        options.setMaxObjects(3);
+
+        RetrieveResult result = vimPort.retrievePropertiesEx(serviceContent.getPropertyCollector(), Arrays.asList(getHostFilterSpec()), options);
+        int objects = result.getObjects().size();
+        int pages = 1;
+
+        while( result.getToken() != null ) {
+            result = vimPort.continueRetrievePropertiesEx(serviceContent.getPropertyCollector(), result.getToken());
+            objects += result.getObjects().size();
+            pages++;
+        }
+        assertEquals(7, objects);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void tasksShouldCompleteWithTheirResult() throws Exception {
+        ManagedObjectReference vm = new ManagedObjectReference();
+        vm.setType("VirtualMachine");
+        vm.setValue("vm-1");
+        ManagedObjectReference task = vimPort.cloneVMTask(vm, serviceContent.getRootFolder(), "clone", new VirtualMachineCloneSpec());
+
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.setType("Task");
+        pSpec.getPathSet().addAll(Arrays.asList("info.state", "info.error", "info.result"));
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(task);
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        spec.getObjectSet().add(oSpec);
+        spec.getPropSet().add(pSpec);
+
+        ManagedObjectReference filter = vimPort.createFilter(serviceContent.getPropertyCollector(), spec, true);
+        UpdateSet updates = vimPort.waitForUpdatesEx(serviceContent.getPropertyCollector(), "", new WaitOptions());
+        vimPort.destroyPropertyFilter(filter);
+
+        Object state = null;
+        Object clone = null;
+        for( PropertyFilterUpdate filterUpdate : updates.getFilterSet() ) {
+            for( ObjectUpdate objectUpdate : filterUpdate.getObjectSet() ) {
+                for( PropertyChange change : objectUpdate.getChangeSet() ) {
+                    if( change.getName().equals("info.state") ) {
+                        state = change.getVal();
+                    }
+                    else if( change.getName().equals("info.result") ) {
+                        clone = change.getVal();
+                    }
+                }
+            }
+        }
+        assertEquals(TaskInfoState.SUCCESS, state);
+        assertNotNull("Clone task should return the new virtual machine", clone);
+        assertEquals("VirtualMachine", ((ManagedObjectReference) clone).getType());
+    }
+
+    @Test(expected = Exception.class)
+    public void unknownMethodsShouldFault() throws Exception {
+        vimPort.currentTime(serviceContent.getPropertyCollector());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.MessageContext;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VimTransportTest extends VsphereTestBase {
+    @Mocked
+    BindingProvider portMock;
+    @Mocked
+    BindingProvider otherPortMock;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void configureShouldApplyContextProperties() throws InternalException {
+        final Map<String, Object> requestContext = new HashMap<String, Object>();
+        new NonStrictExpectations() {
+            {portMock.getRequestContext();
+                result = requestContext;
+            }
+            {vsphereMock.getCustomProperty(VimTransport.CONNECT_TIMEOUT_PROPERTY);
+                result = "5000";
+            }
+            {vsphereMock.getCustomProperty(VimTransport.READ_TIMEOUT_PROPERTY);
+                result = "not a number";
+            }
+        };
+
+        VimTransport.configure(portMock, vsphereMock);
+
+        assertEquals(5000, requestContext.get("com.sun.xml.internal.ws.connect.timeout"));
+        assertEquals(5000, requestContext.get("com.sun.xml.ws.connect.timeout"));
+        assertEquals("Invalid values should fall back to the default", VimTransport.DEFAULT_READ_TIMEOUT, requestContext.get("com.sun.xml.internal.ws.request.timeout"));
+        assertSame("The factory installed for the JVM should be honoured", HttpsURLConnection.getDefaultSSLSocketFactory(), requestContext.get("com.sun.xml.internal.ws.transport.https.client.SSLSocketFactory"));
+        Map<String, List<String>> headers = (Map<String, List<String>>) requestContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+        assertEquals("gzip", headers.get("Accept-Encoding").get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void portsShouldShareTheSocketFactoryAndKeepHeaders() throws InternalException {
+        final Map<String, Object> requestContext = new HashMap<String, Object>();
+        final Map<String, Object> otherRequestContext = new HashMap<String, Object>();
+        new NonStrictExpectations() {
+            {portMock.getRequestContext();
+                result = requestContext;
+            }
+            {otherPortMock.getRequestContext();
+                result = otherRequestContext;
+            }
+            {vsphereMock.getCustomProperty(VimTransport.GZIP_PROPERTY);
+                result = "false";
+            }
+        };
+
+        VimTransport.addHeader(otherPortMock, "Cookie", "vmware_soap_session=\"52\"");
+        VimTransport.configure(portMock, vsphereMock);
+        VimTransport.configure(otherPortMock, vsphereMock);
+
+        assertSame("TLS sessions and connections are only reused with the same socket factory",
+                requestContext.get("com.sun.xml.ws.transport.https.client.SSLSocketFactory"),
+                otherRequestContext.get("com.sun.xml.ws.transport.https.client.SSLSocketFactory"));
+        assertNull("gzip was turned off", requestContext.get(MessageContext.HTTP_REQUEST_HEADERS));
+        Map<String, List<String>> headers = (Map<String, List<String>>) otherRequestContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+        assertEquals("vmware_soap_session=\"52\"", headers.get("Cookie").get(0));
+    }
+
+    @Test
+    public void longPollsShouldEndBeforeTheReadTimeout() {
+        assertTrue(VimTransport.getMaxWaitSeconds(vsphereMock) * 1000 < VimTransport.DEFAULT_READ_TIMEOUT);
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VimTransport.READ_TIMEOUT_PROPERTY);
+                result = "500";
+            }
+        };
+        assertEquals("A wait is at least a second", 1, VimTransport.getMaxWaitSeconds(vsphereMock));
+    }
+}
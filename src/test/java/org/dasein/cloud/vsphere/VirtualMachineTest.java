@@ -33,14 +33,11 @@ import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.Folder;
 import org.dasein.cloud.dc.ResourcePool;
 import org.dasein.cloud.network.VLAN;
-import org.dasein.cloud.util.Cache;
-import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.compute.HostSupport;
 import org.dasein.cloud.vsphere.compute.Vm;
 import org.dasein.cloud.vsphere.compute.VsphereCompute;
 import org.dasein.cloud.vsphere.network.VSphereNetwork;
 import org.dasein.cloud.vsphere.network.VSphereNetworkServices;
-import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -82,7 +79,7 @@ public class VirtualMachineTest extends VsphereTestBase {
     private final RetrieveResult resourcePools = om.readJsonFile("src/test/resources/VirtualMachine/resourcePools.json", RetrieveResult.class);
 
     private final ResourcePool[] daseinRootResourcePools = om.readJsonFile("src/test/resources/VirtualMachine/daseinRootResourcePools.json", ResourcePool[].class);
-    private final ResourcePool[] daseinResourcePools = om.readJsonFile("src/test/resources/VirtualMachine/daseinResourcePools.json", ResourcePool[].class);
+    private final RetrieveResult resourcePoolTree = om.readJsonFile("src/test/resources/VirtualMachine/resourcePoolTree.json", RetrieveResult.class);
     private final Folder[] vmFolders = om.readJsonFile("src/test/resources/VirtualMachine/vmFolders.json", Folder[].class);
     private final DataCenter daseinDatacenter = om.readJsonFile("src/test/resources/VirtualMachine/daseinDatacenter.json", DataCenter.class);
     private final AffinityGroup[] daseinHosts = om.readJsonFile("src/test/resources/VirtualMachine/daseinHosts.json", AffinityGroup[].class);
@@ -105,10 +102,10 @@ public class VirtualMachineTest extends VsphereTestBase {
     private VsphereMethod method = null;
     private List<PropertySpec> vmPSpec = null;
     private List<PropertySpec> launchVmPSpec = null;
-    private Cache<ResourcePool> rpCache = null;
 
     private List<PropertySpec> rpPSpec = null;
     private List<SelectionSpec> rpSSpec = null;
+    private ResourcePoolTree rpTree = null;
 
     @Mocked
     DataCenters dcMock;
@@ -128,10 +125,11 @@ public class VirtualMachineTest extends VsphereTestBase {
         method = new VsphereMethod(vsphereMock);
         vmPSpec = vm.getVirtualMachinePSpec();
         launchVmPSpec = vm.getLaunchVirtualMachinePSpec();
-        rpCache = Cache.getInstance(vsphereMock, "resourcePools", ResourcePool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
 
-        rpPSpec = vm.getResourcePoolPropertySpec();
-        rpSSpec = vm.getResourcePoolSelectionSpec();
+        rpTree = vm.getResourcePoolTree();
+        rpTree.invalidate();
+        rpPSpec = rpTree.getResourcePoolPropertySpec();
+        rpSSpec = rpTree.getResourcePoolSelectionSpec();
 
         ObjectManagement om = new ObjectManagement();
         om.mapper.enableDefaultTypingAsProperty(ObjectMapper.DefaultTyping.NON_FINAL, "type");
@@ -565,11 +563,9 @@ public class VirtualMachineTest extends VsphereTestBase {
 
     @Test
     public void listProducts() throws CloudException, InternalException {
-        rpCache.clear();
-
-        new Expectations() {
-            {dcMock.listResourcePools(null);
-                result = daseinResourcePools;
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
+                result = resourcePoolTree;
                 times = 1;
             }
         };
@@ -596,9 +592,9 @@ public class VirtualMachineTest extends VsphereTestBase {
 
     @Test
     public void listProductsWithFilterOptions() throws CloudException, InternalException {
-        new Expectations() {
-            {dcMock.listResourcePools(null);
-                result = daseinResourcePools;
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
+                result = resourcePoolTree;
                 minTimes = 0;
             }
         };
@@ -640,11 +636,9 @@ public class VirtualMachineTest extends VsphereTestBase {
 
     @Test
     public void listProductsShouldUseResourcePoolCacheWhenItIsValid() throws CloudException, InternalException {
-        rpCache.clear();
-
-        new Expectations() {
-            {dcMock.listResourcePools(null);
-                result = daseinResourcePools;
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
+                result = resourcePoolTree;
                 times = 1;
             }
         };
@@ -2416,8 +2410,8 @@ public class VirtualMachineTest extends VsphereTestBase {
 
     @Test
     public void getResourcePools() throws CloudException, InternalException {
-        new Expectations(Vm.class) {
-            {vm.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
                 result = resourcePools;
             }
         };
@@ -2436,6 +2430,21 @@ public class VirtualMachineTest extends VsphereTestBase {
         assertEquals("Incorrect number of resource pools returned", 2, count);
     }
 
+    @Test
+    public void getResourcePoolsShouldReadTreeFromCache() throws CloudException, InternalException {
+        new Expectations(rpTree) {
+            {rpTree.retrieveObjectList(vsphereMock, "hostFolder", rpSSpec, rpPSpec);
+                result = resourcePools;
+                times = 1;
+            }
+        };
+
+        List<ResourcePool> all = vm.getResourcePools(false);
+        List<ResourcePool> roots = vm.getResourcePools(true);
+        assertEquals("Incorrect number of resource pools returned", 2, all.size());
+        assertEquals("Both pools in the fixture are cluster root pools", 2, roots.size());
+    }
+
     @Test
     public void launchBasicVm() throws CloudException, InternalException {
         new Expectations(Vm.class) {
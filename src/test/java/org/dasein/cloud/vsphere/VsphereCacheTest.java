@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import mockit.NonStrictExpectations;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VsphereCacheTest extends VsphereTestBase {
+
+    private VsphereCache<String> getCache(String name) {
+        VsphereCache<String> cache = VsphereCache.getInstance(vsphereMock, name, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR));
+        cache.clear();
+        return cache;
+    }
+
+    private void setProperty(final String name, final String value) {
+        new NonStrictExpectations() {
+            {vsphereMock.getCustomProperty(VsphereCache.PROPERTY_PREFIX + name);
+                result = value;
+            }
+        };
+    }
+
+    @Test
+    public void getShouldCountMissesHitsAndLoads() {
+        VsphereCache<String> cache = getCache("cacheTestStatistics");
+
+        assertNull("Empty cache should return null", cache.get(providerContextMock));
+        cache.put(providerContextMock, Arrays.asList("a", "b"));
+        assertNotNull("Cached items not returned", cache.get(providerContextMock));
+
+        VsphereCache.Statistics stats = VsphereCache.getStatistics().get("cacheTestStatistics");
+        assertNotNull("No statistics kept for cache", stats);
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getLoads());
+        assertEquals(0.5, stats.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void getShouldUseConfiguredTimeToLive() throws InterruptedException {
+        setProperty("cacheTestTtl.ttl", "0");
+        VsphereCache<String> cache = getCache("cacheTestTtl");
+        assertEquals(0, cache.getTimeToLiveMillis());
+
+        cache.put(providerContextMock, Arrays.asList("a"));
+        Thread.sleep(5L);
+        assertNull("Entry should have expired", cache.get(providerContextMock));
+    }
+
+    @Test
+    public void getShouldSendOnlyFirstReaderToRefreshAhead() throws InterruptedException {
+        setProperty("cacheTestRefresh.refreshAhead", "0.000001");
+        VsphereCache<String> cache = getCache("cacheTestRefresh");
+
+        cache.put(providerContextMock, Arrays.asList("old"));
+        Thread.sleep(5L);
+        assertNull("First reader should be sent to refresh", cache.get(providerContextMock));
+        Iterable<String> items = cache.get(providerContextMock);
+        assertNotNull("Other readers should keep getting the cached value", items);
+        assertEquals("old", items.iterator().next());
+
+        cache.put(providerContextMock, Arrays.asList("new"));
+        Iterable<String> refreshed = cache.peek(providerContextMock);
+        assertNotNull(refreshed);
+        assertEquals("new", refreshed.iterator().next());
+        assertEquals(1, VsphereCache.getStatistics().get("cacheTestRefresh").getRefreshes());
+    }
+
+    @Test
+    public void getWithLoaderShouldServeStaleValueWhileReloadingInBackground() throws Exception {
+        setProperty("cacheTestStale.ttl", "1");
+        setProperty("cacheTestStale.staleGrace", "3600");
+        new NonStrictExpectations() {
+            // the background reload gets a provider of its own
+            {vsphereMock.connectCopy();
+                result = vsphereMock;
+            }
+        };
+        final VsphereCache<String> cache = getCache("cacheTestStale");
+        assertEquals(3600000L, cache.getStaleGraceMillis());
+
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch reloading = new CountDownLatch(1);
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        final VsphereCache.Loader<String> loader = new VsphereCache.Loader<String>() {
+            @Override
+            public @Nonnull Iterable<String> load(@Nonnull Vsphere provider) {
+                int load = loads.incrementAndGet();
+                if( load == 2 ) {
+                    reloading.countDown();
+                    try {
+                        reloaded.await();
+                    }
+                    catch( InterruptedException ignore ) {
+                    }
+                }
+                return Arrays.asList("v" + load);
+            }
+        };
+        assertEquals("Miss should load in the calling thread", "v1", cache.get(providerContextMock, loader).iterator().next());
+        Thread.sleep(1100L);
+
+        assertEquals("Expired value should be served within the grace period", "v1", cache.get(providerContextMock, loader).iterator().next());
+        assertTrue("Reload should have started in the background", reloading.await(10, TimeUnit.SECONDS));
+        assertEquals("Expired value should be served while it is reloaded", "v1", cache.get(providerContextMock, loader).iterator().next());
+        reloaded.countDown();
+
+        VsphereCache.Statistics stats = VsphereCache.getStatistics().get("cacheTestStale");
+        for( int i = 0; i < 100 && stats.getRefreshLoads() == 0; i++ ) {
+            Thread.sleep(50L);
+        }
+        assertEquals(1, stats.getRefreshLoads());
+        assertEquals("Reloaded value should be served once stored", "v2", cache.get(providerContextMock, loader).iterator().next());
+        assertEquals(1, stats.getRefreshes());
+        assertEquals(2, loads.get());
+        assertEquals(2, stats.getStaleHits());
+        assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void getCachedShouldLoadOnlyInBackground() throws Exception {
+        new NonStrictExpectations() {
+            {vsphereMock.connectCopy();
+                result = vsphereMock;
+            }
+        };
+        VsphereCache<String> cache = getCache("cacheTestCached");
+        final Thread reader = Thread.currentThread();
+        final AtomicInteger readerLoads = new AtomicInteger();
+        VsphereCache.Loader<String> loader = new VsphereCache.Loader<String>() {
+            @Override
+            public @Nonnull Iterable<String> load(@Nonnull Vsphere provider) {
+                if( Thread.currentThread() == reader ) {
+                    readerLoads.incrementAndGet();
+                }
+                return Arrays.asList("v1");
+            }
+        };
+        assertNull("Miss should not wait for the load", cache.getCached(providerContextMock, loader));
+
+        VsphereCache.Statistics stats = VsphereCache.getStatistics().get("cacheTestCached");
+        for( int i = 0; i < 100 && stats.getRefreshLoads() == 0; i++ ) {
+            Thread.sleep(50L);
+        }
+        assertEquals("v1", cache.getCached(providerContextMock, loader).iterator().next());
+        assertEquals("Nothing should be loaded in the reading thread", 0, readerLoads.get());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+    }
+
+    @Test
+    public void invalidateShouldReloadEntryDespiteStaleGrace() throws CloudException, InternalException {
+        setProperty("cacheTestInvalidate.staleGrace", "3600");
+        VsphereCache<String> cache = getCache("cacheTestInvalidate");
+        final AtomicInteger loads = new AtomicInteger();
+        VsphereCache.Loader<String> loader = new VsphereCache.Loader<String>() {
+            @Override
+            public @Nonnull Iterable<String> load(@Nonnull Vsphere provider) {
+                return Arrays.asList("v" + loads.incrementAndGet());
+            }
+        };
+        assertEquals("v1", cache.get(providerContextMock, loader).iterator().next());
+        cache.invalidate(providerContextMock);
+        assertNull("Invalidated entry should not be peeked", cache.peek(providerContextMock));
+        assertEquals("Invalidated entry should be loaded in the calling thread", "v2", cache.get(providerContextMock, loader).iterator().next());
+        assertEquals(0, VsphereCache.getStatistics().get("cacheTestInvalidate").getStaleHits());
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012-2016 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.vsphere.network.VSphereNetwork;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WarmUpTest extends VsphereTestBase {
+    @Mocked
+    VSphereNetwork networkMock;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        new NonStrictExpectations() {
+            // each dataset is loaded through a provider of its own
+            {vsphereMock.connectCopy();
+                result = vsphereMock;
+            }
+        };
+    }
+
+    @Test
+    public void runShouldReportTimingsForEveryDataset() throws CloudException, InternalException {
+        WarmUp.Report report = new WarmUp(vsphereMock).run();
+
+        assertTrue("Warm-up should complete: " + report.getFailures(), report.isComplete());
+        assertEquals(5, report.getTimings().size());
+        assertTrue(report.getTimings().containsKey("regions"));
+        assertTrue(report.getTimings().containsKey("dataCenters"));
+        assertTrue(report.getTimings().containsKey("hosts"));
+        assertTrue(report.getTimings().containsKey("networks"));
+        assertTrue(report.getTimings().containsKey("resourcePoolTree"));
+        new Verifications() {
+            {vsphereMock.connectCopy(); times = 5;}
+            {vsphereMock.close(); times = 5;}
+        };
+    }
+
+    @Test
+    public void runShouldReportFailedDatasetsWithoutFailing() throws CloudException, InternalException {
+        new NonStrictExpectations() {
+            {networkMock.listVlans();
+                result = new CloudException("Network listing failed");
+            }
+        };
+
+        WarmUp.Report report = new WarmUp(vsphereMock).run();
+
+        assertFalse(report.isComplete());
+        assertEquals("Network listing failed", report.getFailures().get("networks"));
+        assertEquals(4, report.getTimings().size());
+    }
+}